@@ -6,9 +6,14 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.opensha.commons.data.CSVFile;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileUtils;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.InversionConstraint;
 
@@ -21,6 +26,7 @@ import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
 import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
 import cern.colt.matrix.tdouble.impl.SparseRCDoubleMatrix2D;
 import scratch.UCERF3.FaultSystemRupSet;
+import scratch.UCERF3.simulatedAnnealing.CompactCCDoubleMatrix2D;
 import scratch.UCERF3.simulatedAnnealing.ConstraintRange;
 import scratch.UCERF3.utils.MatrixIO;
 
@@ -45,6 +51,8 @@ public class InversionInputGenerator {
 	protected double[] d_ineq;
 	
 	protected List<ConstraintRange> constraintRowRanges;
+	
+	private boolean writeColumnCompressed = false;
 
 	public InversionInputGenerator(FaultSystemRupSet rupSet, List<InversionConstraint> constraints) {
 		this(rupSet, constraints, null, null);
@@ -67,6 +75,33 @@ public class InversionInputGenerator {
 	}
 	
 	public void generateInputs(Class<? extends DoubleMatrix2D> clazz, final boolean verbose) {
+		generateInputs(clazz, 0, verbose);
+	}
+	
+	/**
+	 * Generates inputs, encoding constraints in parallel. Each constraint owns a disjoint range of rows, so they
+	 * are encoded independently on worker threads, each into a buffer of (row, column, value) triplets which only
+	 * spans the rows of that constraint. These are then merged directly into column compressed A matrices
+	 * (SparseCCDoubleMatrix2D) without ever building a hash based matrix. Output matrices are column compressed for
+	 * any number of threads, including 1 (in which case constraints are encoded in the calling thread).
+	 * <br><br>
+	 * Constraints must be safe to encode concurrently if numThreads > 1.
+	 * 
+	 * @param numThreads number of encoding threads
+	 * @param verbose
+	 */
+	public void generateInputsParallel(int numThreads, boolean verbose) {
+		Preconditions.checkArgument(numThreads > 0, "must have at least 1 thread");
+		generateInputs(null, numThreads, verbose);
+	}
+	
+	/**
+	 * @param clazz matrix class for serial encoding
+	 * @param numThreads number of threads for triplet encoding, or 0 to encode directly into matrices of the
+	 * given class
+	 * @param verbose
+	 */
+	private void generateInputs(Class<? extends DoubleMatrix2D> clazz, int numThreads, final boolean verbose) {
 		if (verbose)
 			System.out.println("Generating inversion inputs with "+numRuptures+" ruptures "
 					+"and "+constraints.size()+" constraints");
@@ -112,6 +147,50 @@ public class InversionInputGenerator {
 			System.out.println("Took "+getTimeStr(watch)+" to get row counts");
 		}
 		
+		if (numThreads > 0)
+			encodeParallel(numRows, numIneqRows, numThreads, verbose);
+		else
+			encodeSerial(clazz, numRows, numIneqRows, verbose);
+		
+		if (waterLevelRates != null) {
+			// offset data vector: d = d-A*minimumRuptureRates
+			watch = verbose ? Stopwatch.createStarted() : null;
+			if (numRows > 0) {
+				if (verbose)
+					System.out.println("Applying minimum rupture rates to A matrix");
+				
+				A.forEachNonZero(new AdjustDataForMinRates(d, waterLevelRates));
+			}
+			if (numIneqRows > 0) {
+				if (verbose)
+					System.out.println("Applying minimum rupture rates to A_ineq matrix");
+				
+				A_ineq.forEachNonZero(new AdjustDataForMinRates(d_ineq, waterLevelRates));
+			}
+			
+			// also adjust the initial solution by the minimum rates
+			initialSolution = Arrays.copyOf(initialSolution, numRuptures);
+			for (int i=0; i<numRuptures; i++) {
+				double adjustedVal = initialSolution[i] - waterLevelRates[i];
+				if (adjustedVal < 0)
+					adjustedVal = 0;
+				initialSolution[i] = adjustedVal;
+			}
+			
+			if (verbose) {
+				System.out.println("Took "+getTimeStr(watch)+" to apply minimum rates");
+				watch.stop();
+			}
+		}
+		
+		if (verbose) {
+			System.out.println("Took "+getTimeStr(watchTotal)+" to generate inputs");
+			watchTotal.stop();
+		}
+	}
+	
+	private void encodeSerial(Class<? extends DoubleMatrix2D> clazz, int numRows, int numIneqRows,
+			boolean verbose) {
 		if (numRows > 0) {
 			if (verbose)
 				System.out.println("Building A matrix with "+numRows
@@ -133,8 +212,8 @@ public class InversionInputGenerator {
 		if (verbose)
 			System.out.println("Encoding matrices");
 		
-		watch = verbose ? Stopwatch.createStarted() : null;
-		int numNonZero = 0;
+		Stopwatch watch = verbose ? Stopwatch.createStarted() : null;
+		long numNonZero = 0;
 		
 		for (int i=0; i<constraints.size(); i++) {
 			InversionConstraint constraint = constraints.get(i);
@@ -172,44 +251,175 @@ public class InversionInputGenerator {
 					+numNonZero+" values (density: "+oneDigit.format(density)+" %)");
 			watch.stop();
 		}
+	}
+	
+	private void encodeParallel(int numRows, int numIneqRows, int numThreads, boolean verbose) {
+		if (numRows > 0)
+			d = new double[numRows];	// data vector d
+		if (numIneqRows > 0)
+			d_ineq = new double[numIneqRows];	// data vector d
 		
-		if (waterLevelRates != null) {
-			// offset data vector: d = d-A*minimumRuptureRates
-			watch = verbose ? Stopwatch.createStarted() : null;
-			if (numRows > 0) {
-				if (verbose)
-					System.out.println("Applying minimum rupture rates to A matrix");
-				
-				A.forEachNonZero(new AdjustDataForMinRates(d, waterLevelRates));
-			}
-			if (numIneqRows > 0) {
-				if (verbose)
-					System.out.println("Applying minimum rupture rates to A_ineq matrix");
-				
-				A_ineq.forEachNonZero(new AdjustDataForMinRates(d_ineq, waterLevelRates));
+		if (verbose)
+			System.out.println("Encoding matrices with "+numThreads+" threads");
+		
+		Stopwatch watch = verbose ? Stopwatch.createStarted() : null;
+		
+		List<EncodedConstraint> encoded = new ArrayList<>();
+		List<EncodeCallable> calls = new ArrayList<>();
+		for (int i=0; i<constraints.size(); i++) {
+			InversionConstraint constraint = constraints.get(i);
+			calls.add(new EncodeCallable(constraint, constraintRowRanges.get(i),
+					constraint.isInequality() ? d_ineq : d));
+		}
+		if (numThreads == 1) {
+			try {
+				for (EncodeCallable call : calls)
+					encoded.add(call.call());
+			} catch (Exception e) {
+				throw ExceptionUtils.asRuntimeException(e);
 			}
-			
-			// also adjust the initial solution by the minimum rates
-			initialSolution = Arrays.copyOf(initialSolution, numRuptures);
-			for (int i=0; i<numRuptures; i++) {
-				double adjustedVal = initialSolution[i] - waterLevelRates[i];
-				if (adjustedVal < 0)
-					adjustedVal = 0;
-				initialSolution[i] = adjustedVal;
+		} else {
+			ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+			try {
+				List<Future<EncodedConstraint>> futures = new ArrayList<>();
+				for (EncodeCallable call : calls)
+					futures.add(exec.submit(call));
+				for (Future<EncodedConstraint> future : futures)
+					encoded.add(future.get());
+			} catch (Exception e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			} finally {
+				exec.shutdown();
 			}
-			
+		}
+		
+		long numNonZero = 0;
+		int numEqStored = 0;
+		int numIneqStored = 0;
+		for (int i=0; i<encoded.size(); i++) {
+			EncodedConstraint enc = encoded.get(i);
+			ConstraintRange rowRange = constraintRowRanges.get(i);
 			if (verbose) {
-				System.out.println("Took "+getTimeStr(watch)+" to apply minimum rates");
-				watch.stop();
+				long maxNum = (rowRange.endRow - rowRange.startRow)*(long)numRuptures;
+				double density = 100d*(double)enc.numNonZero/(double)maxNum;
+				System.out.println("\tEncoded "+enc.constraint.getName()+", ineq="+enc.constraint.isInequality()
+					+", took "+getTimeStr(enc.millis)+" to encode "+enc.numNonZero
+					+" values (density: "+oneDigit.format(density)+" %)");
+			}
+			numNonZero += enc.numNonZero;
+			if (enc.constraint.isInequality())
+				numIneqStored += enc.values.length;
+			else
+				numEqStored += enc.values.length;
+		}
+		
+		if (verbose)
+			System.out.println("Merging into column compressed matrices");
+		
+		// merge the triplets, each constraint's buffer is released as soon as it has been copied
+		int[] rowIndexes = new int[numEqStored];
+		int[] colIndexes = new int[numEqStored];
+		double[] values = new double[numEqStored];
+		int[] rowIndexesIneq = new int[numIneqStored];
+		int[] colIndexesIneq = new int[numIneqStored];
+		double[] valuesIneq = new double[numIneqStored];
+		int eqIndex = 0;
+		int ineqIndex = 0;
+		for (int i=0; i<encoded.size(); i++) {
+			EncodedConstraint enc = encoded.get(i);
+			int num = enc.values.length;
+			if (enc.constraint.isInequality()) {
+				System.arraycopy(enc.rowIndexes, 0, rowIndexesIneq, ineqIndex, num);
+				System.arraycopy(enc.colIndexes, 0, colIndexesIneq, ineqIndex, num);
+				System.arraycopy(enc.values, 0, valuesIneq, ineqIndex, num);
+				ineqIndex += num;
+			} else {
+				System.arraycopy(enc.rowIndexes, 0, rowIndexes, eqIndex, num);
+				System.arraycopy(enc.colIndexes, 0, colIndexes, eqIndex, num);
+				System.arraycopy(enc.values, 0, values, eqIndex, num);
+				eqIndex += num;
 			}
+			encoded.set(i, null);
 		}
 		
+		// rows are disjoint between constraints, so there can't be any duplicates. row indexes still need to be
+		// sorted within each column (as getQuick uses a binary search), as constraints can encode in any order
+		if (numRows > 0)
+			A = new SparseCCDoubleMatrix2D(numRows, numRuptures, rowIndexes, colIndexes, values,
+					false, false, true);
+		if (numIneqRows > 0)
+			A_ineq = new SparseCCDoubleMatrix2D(numIneqRows, numRuptures, rowIndexesIneq, colIndexesIneq, valuesIneq,
+					false, false, true);
+		
 		if (verbose) {
-			System.out.println("Took "+getTimeStr(watchTotal)+" to generate inputs");
-			watchTotal.stop();
+			long maxNum = (numRows+numIneqRows)*(long)numRuptures;
+			double density = 100d*(double)numNonZero/(double)maxNum;
+			System.out.println("DONE encoding, took "+getTimeStr(watch)+" to encode "
+					+numNonZero+" values (density: "+oneDigit.format(density)+" %)");
+			watch.stop();
 		}
 	}
 	
+	/**
+	 * Nonzero values of a single encoded constraint, with rows in the coordinates of the full A matrix
+	 */
+	private static class EncodedConstraint {
+		private final InversionConstraint constraint;
+		private final long numNonZero;
+		private final long millis;
+		private final int[] rowIndexes;
+		private final int[] colIndexes;
+		private final double[] values;
+		
+		public EncodedConstraint(InversionConstraint constraint, long numNonZero, long millis,
+				int[] rowIndexes, int[] colIndexes, double[] values) {
+			this.constraint = constraint;
+			this.numNonZero = numNonZero;
+			this.millis = millis;
+			this.rowIndexes = rowIndexes;
+			this.colIndexes = colIndexes;
+			this.values = values;
+		}
+	}
+	
+	/**
+	 * Encodes a single constraint into a private triplet buffer which only spans the rows of that constraint.
+	 * The data vector values are copied into the given shared data vector, which is safe as constraint row ranges
+	 * are disjoint.
+	 */
+	private class EncodeCallable implements Callable<EncodedConstraint> {
+		
+		private InversionConstraint constraint;
+		private ConstraintRange rowRange;
+		private double[] sharedD;
+		
+		public EncodeCallable(InversionConstraint constraint, ConstraintRange rowRange, double[] sharedD) {
+			this.constraint = constraint;
+			this.rowRange = rowRange;
+			this.sharedD = sharedD;
+		}
+
+		@Override
+		public EncodedConstraint call() throws Exception {
+			Stopwatch watch = Stopwatch.createStarted();
+			int myRows = rowRange.endRow - rowRange.startRow;
+			TripletDoubleMatrix2D myA = new TripletDoubleMatrix2D(myRows, numRuptures);
+			double[] myD = new double[myRows];
+			long numNonZero = constraint.encode(myA, myD, 0);
+			System.arraycopy(myD, 0, sharedD, rowRange.startRow, myRows);
+			
+			myA.compact();
+			int[] rowIndexes = myA.getRowIndexes();
+			// offset to rows of the full matrix
+			for (int i=0; i<rowIndexes.length; i++)
+				rowIndexes[i] += rowRange.startRow;
+			watch.stop();
+			return new EncodedConstraint(constraint, numNonZero, watch.elapsed(TimeUnit.MILLISECONDS),
+					rowIndexes, myA.getColumnIndexes(), myA.getValues());
+		}
+		
+	}
+	
 	private static class AdjustDataForMinRates implements IntIntDoubleFunction {
 		
 		private double[] d;
@@ -244,7 +454,10 @@ public class InversionInputGenerator {
 	private static final DecimalFormat oneDigit = new DecimalFormat("0.0");
 	
 	protected String getTimeStr(Stopwatch watch) {
-		long millis = watch.elapsed(TimeUnit.MILLISECONDS);
+		return getTimeStr(watch.elapsed(TimeUnit.MILLISECONDS));
+	}
+	
+	protected String getTimeStr(long millis) {
 		if (millis < 1000)
 			return millis+" ms";
 		double secs = (double)millis/1000d;
@@ -270,19 +483,39 @@ public class InversionInputGenerator {
 	 * Column compress the A matrices for faster multiplication
 	 */
 	public void columnCompress() {
-		A = getColumnCompressed(A);
+		columnCompress(false, false);
+	}
+	
+	/**
+	 * Column compress the A matrices for faster multiplication, optionally storing them in the compact
+	 * {@link CompactCCDoubleMatrix2D} format (float precision values) to reduce memory usage
+	 * 
+	 * @param compact if true, matrices will be stored as {@link CompactCCDoubleMatrix2D} instances
+	 * @param deltaEncodeRows if true (and compact), row indexes will be delta encoded as 16-bit values
+	 */
+	public void columnCompress(boolean compact, boolean deltaEncodeRows) {
+		A = getColumnCompressed(A, compact, deltaEncodeRows);
 		if (A_ineq != null)
-			A_ineq = getColumnCompressed(A_ineq);
+			A_ineq = getColumnCompressed(A_ineq, compact, deltaEncodeRows);
 	}
 	
-	private static SparseCCDoubleMatrix2D getColumnCompressed(DoubleMatrix2D mat) {
+	private static DoubleMatrix2D getColumnCompressed(DoubleMatrix2D mat, boolean compact,
+			boolean deltaEncodeRows) {
+		if (mat instanceof CompactCCDoubleMatrix2D)
+			// already column compressed
+			return compact ? CompactCCDoubleMatrix2D.build(mat, deltaEncodeRows) : mat;
+		SparseCCDoubleMatrix2D compressed;
 		if (mat instanceof SparseCCDoubleMatrix2D)
-			return (SparseCCDoubleMatrix2D)mat;
-		if (mat instanceof SparseRCDoubleMatrix2D)
-			return ((SparseRCDoubleMatrix2D)mat).getColumnCompressed();
-		if (mat instanceof SparseDoubleMatrix2D)
-			return ((SparseDoubleMatrix2D)mat).getColumnCompressed(true);
-		throw new RuntimeException("Can't column compress matrix: "+mat);
+			compressed = (SparseCCDoubleMatrix2D)mat;
+		else if (mat instanceof SparseRCDoubleMatrix2D)
+			compressed = ((SparseRCDoubleMatrix2D)mat).getColumnCompressed();
+		else if (mat instanceof SparseDoubleMatrix2D)
+			compressed = ((SparseDoubleMatrix2D)mat).getColumnCompressed(true);
+		else
+			throw new RuntimeException("Can't column compress matrix: "+mat);
+		if (compact)
+			return CompactCCDoubleMatrix2D.build(compressed, deltaEncodeRows);
+		return compressed;
 	}
 	
 	/**
@@ -314,6 +547,24 @@ public class InversionInputGenerator {
 		return solution;
 	}
 	
+	/**
+	 * If set, A matrices will be written in the column compressed binary format of
+	 * {@link MatrixIO#saveSparseCSC(DoubleMatrix2D, File)}, which can be memory mapped directly by the annealer.
+	 * Both formats can be read by {@link MatrixIO#loadSparse(File)}.
+	 * 
+	 * @param writeColumnCompressed
+	 */
+	public void setWriteColumnCompressed(boolean writeColumnCompressed) {
+		this.writeColumnCompressed = writeColumnCompressed;
+	}
+	
+	private void saveSparse(DoubleMatrix2D mat, File file) throws IOException {
+		if (writeColumnCompressed)
+			MatrixIO.saveSparseCSC(mat, file);
+		else
+			MatrixIO.saveSparse(mat, file);
+	}
+	
 	public void writeZipFile(File file, boolean verbose) throws IOException {
 		File tempDir = FileUtils.createTempDir();
 		writeZipFile(file, FileUtils.createTempDir(), true, verbose);
@@ -340,7 +591,7 @@ public class InversionInputGenerator {
 		if(verbose) System.out.println("d.bin saved");
 		
 		fileNames.add("a.bin");			
-		MatrixIO.saveSparse(A, new File(storeDir, "a.bin"));
+		saveSparse(A, new File(storeDir, "a.bin"));
 		if(verbose) System.out.println("a.bin saved");
 		
 		fileNames.add("initial.bin");	
@@ -355,7 +606,7 @@ public class InversionInputGenerator {
 		
 		if (A_ineq != null) {
 			fileNames.add("a_ineq.bin");	
-			MatrixIO.saveSparse(A_ineq,new File(storeDir, "a_ineq.bin"));
+			saveSparse(A_ineq,new File(storeDir, "a_ineq.bin"));
 			if(verbose) System.out.println("a_ineq.bin saved");
 		}
 		
@@ -0,0 +1,183 @@
+package org.opensha.sha.earthquake.faultSysSolution.inversion;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix1D;
+
+/**
+ * Sparse matrix which stores values as (row, column, value) triplets in the order that they are set, used to encode
+ * constraints without building a hash based matrix. Values can be overwritten (the last value set is kept) and read
+ * back, but the first read builds an index of all values set so far, so reads are only efficient for constraints which
+ * rarely use them.
+ * <br><br>
+ * Call {@link #compact()} once encoding is done to remove overwritten and zero values, after which the triplets can be
+ * accessed directly. This is not thread safe.
+ */
+class TripletDoubleMatrix2D extends DoubleMatrix2D {
+
+	private static final long serialVersionUID = 1L;
+
+	private int[] rowIndexes;
+	private int[] colIndexes;
+	private double[] values;
+	private int size;
+
+	// true if a cell may have been set more than once without the index, in which case the last one should be kept
+	private boolean mayHaveDuplicates = false;
+	private long lastKey = -1l;
+	// index from cell key to triplet position, only built once values are read
+	private HashMap<Long, Integer> index;
+
+	public TripletDoubleMatrix2D(int rows, int columns) {
+		try {
+			setUp(rows, columns);
+		} catch (IllegalArgumentException e) {
+			// sparse matrices can have more than Integer.MAX_VALUE cells
+			if (!"matrix too large".equals(e.getMessage()))
+				throw e;
+		}
+		int capacity = 1024;
+		rowIndexes = new int[capacity];
+		colIndexes = new int[capacity];
+		values = new double[capacity];
+	}
+
+	private long key(int row, int column) {
+		return (long)row*columns + column;
+	}
+
+	private void buildIndex() {
+		if (index != null)
+			return;
+		index = new HashMap<>();
+		// later values replace earlier ones
+		for (int i=0; i<size; i++)
+			index.put(key(rowIndexes[i], colIndexes[i]), i);
+	}
+
+	@Override
+	public double getQuick(int row, int column) {
+		if (size == 0)
+			return 0d;
+		buildIndex();
+		Integer pos = index.get(key(row, column));
+		return pos == null ? 0d : values[pos];
+	}
+
+	@Override
+	public void setQuick(int row, int column, double value) {
+		long key = key(row, column);
+		if (index != null) {
+			Integer pos = index.get(key);
+			if (pos != null) {
+				values[pos] = value;
+				return;
+			}
+			index.put(key, size);
+		} else if (key <= lastKey) {
+			// out of order, could be a duplicate
+			mayHaveDuplicates = true;
+		}
+		lastKey = Long.max(lastKey, key);
+		if (size == values.length) {
+			int capacity = size*2;
+			rowIndexes = Arrays.copyOf(rowIndexes, capacity);
+			colIndexes = Arrays.copyOf(colIndexes, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		rowIndexes[size] = row;
+		colIndexes[size] = column;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Removes overwritten and zero values, and trims the triplet arrays to the number of values. This matrix
+	 * shouldn't be modified afterwards.
+	 */
+	public void compact() {
+		if (mayHaveDuplicates)
+			buildIndex();
+		int num = 0;
+		for (int i=0; i<size; i++) {
+			if (values[i] == 0d)
+				continue;
+			if (mayHaveDuplicates && index.get(key(rowIndexes[i], colIndexes[i])) != i)
+				// overwritten by a later value
+				continue;
+			rowIndexes[num] = rowIndexes[i];
+			colIndexes[num] = colIndexes[i];
+			values[num] = values[i];
+			num++;
+		}
+		size = num;
+		index = null;
+		mayHaveDuplicates = false;
+		rowIndexes = Arrays.copyOf(rowIndexes, size);
+		colIndexes = Arrays.copyOf(colIndexes, size);
+		values = Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * @return number of stored triplets
+	 */
+	public int getNumTriplets() {
+		return size;
+	}
+
+	/**
+	 * @return row index array, which may be longer than {@link #getNumTriplets()} unless {@link #compact()} was called
+	 */
+	public int[] getRowIndexes() {
+		return rowIndexes;
+	}
+
+	/**
+	 * @return column index array, which may be longer than {@link #getNumTriplets()} unless {@link #compact()} was
+	 * called
+	 */
+	public int[] getColumnIndexes() {
+		return colIndexes;
+	}
+
+	/**
+	 * @return value array, which may be longer than {@link #getNumTriplets()} unless {@link #compact()} was called
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	@Override
+	public Object elements() {
+		return values;
+	}
+
+	@Override
+	public DoubleMatrix2D like(int rows, int columns) {
+		return new TripletDoubleMatrix2D(rows, columns);
+	}
+
+	@Override
+	public DoubleMatrix1D like1D(int size) {
+		return new SparseDoubleMatrix1D(size);
+	}
+
+	@Override
+	protected DoubleMatrix1D like1D(int size, int zero, int stride) {
+		throw new UnsupportedOperationException("Not supported by "+getClass().getSimpleName());
+	}
+
+	@Override
+	public DoubleMatrix1D vectorize() {
+		throw new UnsupportedOperationException("Not supported by "+getClass().getSimpleName());
+	}
+
+	@Override
+	protected DoubleMatrix2D viewSelectionLike(int[] rowOffsets, int[] columnOffsets) {
+		throw new UnsupportedOperationException("Not supported by "+getClass().getSimpleName());
+	}
+
+}
@@ -3,20 +3,26 @@ package org.opensha.sha.earthquake.faultSysSolution.ruptures;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
@@ -77,6 +83,19 @@ public class ClusterRuptureBuilder {
 	private RupDebugCriteria debugCriteria;
 	private boolean stopAfterDebugMatch;
 	
+	// growth branches are split into separate fork/join tasks for ruptures with fewer than this many jumps
+	private int splitDepth = 2;
+	
+	// used to test each candidate rupture before it is built
+	private ThreadLocal<UniqueRupture.Probe> candidateProbes = new ThreadLocal<UniqueRupture.Probe>() {
+
+		@Override
+		protected UniqueRupture.Probe initialValue() {
+			return new UniqueRupture.Probe();
+		}
+		
+	};
+	
 	/**
 	 * Constructor which gets everything from the PlausibilityConfiguration
 	 * 
@@ -116,10 +135,12 @@ public class ClusterRuptureBuilder {
 	
 	private class ProgressTracker {
 		// rupture size & count tracking
-		private int largestRup;
+		private AtomicInteger largestRup;
 		private int largestRupPrintMod = 10;
-		private int rupCountPrintMod = 1000;
-		private HashSet<UniqueRupture> allPassedUniques;
+		private volatile int rupCountPrintMod = 1000;
+		// concurrent set, so that passed ruptures can be checked and added without holding the status lock
+		private Set<UniqueRupture> allPassedUniques;
+		private AtomicInteger numPassedUniques;
 		
 		// start cluster tracking
 		private HashSet<Integer> startClusterIDs = new HashSet<>();
@@ -131,29 +152,60 @@ public class ClusterRuptureBuilder {
 		private long prevTime;
 		private int prevCount;
 		
+		// guards start cluster tracking, rate tracking, and printing
+		private ReentrantLock statusLock = new ReentrantLock();
+		// contention tracking for the status lock, adders as these are only summed when printing stats
+		private LongAdder statusLockCount = new LongAdder();
+		private LongAdder statusLockContendedCount = new LongAdder();
+		private LongAdder statusLockWaitNanos = new LongAdder();
+		
 		public ProgressTracker() {
-			this.largestRup = 0;
-			this.allPassedUniques = new HashSet<>();
+			this.largestRup = new AtomicInteger(0);
+			this.allPassedUniques = ConcurrentHashMap.newKeySet();
+			this.numPassedUniques = new AtomicInteger(0);
 			this.startTime = System.currentTimeMillis();
 			this.prevTime = startTime;
 		}
 		
-		public synchronized void processPassedRupture(ClusterRupture rup) {
-			if (!allPassedUniques.contains(rup.unique)) {
-				allPassedUniques.add(rup.unique);
-				int count = rup.getTotalNumSects();
-				if (count > largestRup) {
-					largestRup = count;
-					if (largestRup % largestRupPrintMod == 0) {
-						System.out.println("New largest rup has "+largestRup
-								+" subsections with "+rup.getTotalNumJumps()+" jumps and "
-								+rup.splays.size()+" splays.");
-						printCountAndStartClusterStatus();
+		private void lockStatus() {
+			statusLockCount.increment();
+			if (statusLock.tryLock())
+				return;
+			// contended, keep track of how long we wait
+			long start = System.nanoTime();
+			statusLock.lock();
+			statusLockContendedCount.increment();
+			statusLockWaitNanos.add(System.nanoTime() - start);
+		}
+		
+		public void processPassedRupture(ClusterRupture rup) {
+			if (!allPassedUniques.add(rup.unique))
+				return;
+			int numUnique = numPassedUniques.incrementAndGet();
+			int count = rup.getTotalNumSects();
+			int prevLargest = largestRup.get();
+			while (count > prevLargest) {
+				if (largestRup.compareAndSet(prevLargest, count)) {
+					if (count % largestRupPrintMod == 0) {
+						lockStatus();
+						try {
+							System.out.println("New largest rup has "+count
+									+" subsections with "+rup.getTotalNumJumps()+" jumps and "
+									+rup.splays.size()+" splays.");
+							doPrintCountAndStartClusterStatus();
+						} finally {
+							statusLock.unlock();
+						}
 						return;
 					}
+					break;
 				}
-				int numUnique = allPassedUniques.size();
-				if (numUnique % rupCountPrintMod == 0) {
+				prevLargest = largestRup.get();
+			}
+			// each count is seen by exactly one thread, so only one thread will print for a given count
+			if (numUnique % rupCountPrintMod == 0) {
+				lockStatus();
+				try {
 					if (rupCountPrintMod <= 1000000) {
 						if (numUnique == 10000)
 							rupCountPrintMod = 5000;
@@ -166,31 +218,65 @@ public class ClusterRuptureBuilder {
 						else if (numUnique == 1000000)
 							rupCountPrintMod = 100000;
 					}
-					printCountAndStartClusterStatus();
+					doPrintCountAndStartClusterStatus();
+				} finally {
+					statusLock.unlock();
 				}
 			}
 		}
 		
-		public synchronized int newStartCluster(int parentSectionID) {
-			startClusterIDs.add(parentSectionID);
-			return startClusterIDs.size();
+		public int newStartCluster(int parentSectionID) {
+			lockStatus();
+			try {
+				startClusterIDs.add(parentSectionID);
+				return startClusterIDs.size();
+			} finally {
+				statusLock.unlock();
+			}
 		}
 		
-		public synchronized int startClusterCount() {
-			return startClusterIDs.size();
+		public int startClusterCount() {
+			lockStatus();
+			try {
+				return startClusterIDs.size();
+			} finally {
+				statusLock.unlock();
+			}
 		}
 		
-		public synchronized void addStartClusterFuture(int parentSectionID, Future<?> future) {
+		public void addStartClusterFuture(int parentSectionID, Future<?> future) {
 			Preconditions.checkNotNull(future);
-			List<Future<?>> futures = runningStartClusterFutures.get(parentSectionID);
-			if (futures == null) {
-				futures = new ArrayList<>();
-				runningStartClusterFutures.put(parentSectionID, futures);
+			lockStatus();
+			try {
+				List<Future<?>> futures = runningStartClusterFutures.get(parentSectionID);
+				if (futures == null) {
+					futures = new ArrayList<>();
+					runningStartClusterFutures.put(parentSectionID, futures);
+				}
+				futures.add(future);
+			} finally {
+				statusLock.unlock();
 			}
-			futures.add(future);
 		}
 		
-		public synchronized void printCountAndStartClusterStatus() {
+		public void printContentionStats() {
+			long count = statusLockCount.sum();
+			long contended = statusLockContendedCount.sum();
+			double waitSecs = (double)statusLockWaitNanos.sum()/1e9;
+			System.out.println("Progress tracker lock: "+countDF.format(count)+" acquisitions, "
+					+countDF.format(contended)+" contended, "+oneDigitDF.format(waitSecs)+" s total wait");
+		}
+		
+		public void printCountAndStartClusterStatus() {
+			lockStatus();
+			try {
+				doPrintCountAndStartClusterStatus();
+			} finally {
+				statusLock.unlock();
+			}
+		}
+		
+		private void doPrintCountAndStartClusterStatus() {
 			// see if there are any completed clusters
 			long curTime = System.currentTimeMillis();
 			List<Integer> newlyCompleted = new ArrayList<>();
@@ -205,7 +291,7 @@ public class ClusterRuptureBuilder {
 				else
 					futuresOutstanding += futures.size();
 			}
-			int numRups = allPassedUniques.size();
+			int numRups = numPassedUniques.get();
 			if (numRups == prevCount && newlyCompleted.isEmpty())
 				return;
 			for (Integer parentID : newlyCompleted) {
@@ -273,8 +359,8 @@ public class ClusterRuptureBuilder {
 	/**
 	 * This builds ruptures using the given rupture growing strategy
 	 * 
-	 * @param growingStrategy strategy for determining unique & viable subsection variations 
-	 * for each cluster 
+	 * @param growingStrategy strategy for determining unique & viable subsection variations
+	 * for each cluster
 	 * @return list of unique ruptures which were build
 	 */
 	public List<ClusterRupture> build(RuptureGrowingStrategy growingStrategy) {
@@ -284,70 +370,141 @@ public class ClusterRuptureBuilder {
 	/**
 	 * This builds ruptures using the given growing strategy with the given number of threads
 	 * 
-	 * @param growingStrategy strategy for determining unique & viable subsection variations 
-	 * for each cluster 
+	 * @param growingStrategy strategy for determining unique & viable subsection variations
+	 * for each cluster
 	 * @param numThreads
 	 * @return list of unique ruptures which were build
 	 */
 	public List<ClusterRupture> build(RuptureGrowingStrategy growingStrategy, int numThreads) {
+		final List<ClusterRupture> rups = new ArrayList<>();
+		build(growingStrategy, numThreads, new RuptureSink() {
+		
+			@Override
+			public void process(ClusterRupture rup) {
+				rups.add(rup);
+			}
+		});
+		return rups;
+	}
+	
+	/**
+	 * Receives unique ruptures as they are built, e.g., to write them out rather than keep them all in memory
+	 */
+	public static interface RuptureSink {
+		/**
+		 * Called from the building thread for each new unique rupture
+		 * 
+		 * @param rup
+		 */
+		public void process(ClusterRupture rup);
+	}
+	
+	/**
+	 * Sets the depth (number of jumps taken) below which growth branches are split into separate tasks when
+	 * building with multiple threads; branches at or beyond this depth are built by the task which reached them.
+	 * Larger values balance load better across threads at the cost of more, smaller tasks. Default is 2.
+	 * 
+	 * @param splitDepth
+	 */
+	public void setSplitDepth(int splitDepth) {
+		Preconditions.checkArgument(splitDepth >= 0, "Split depth must be >= 0");
+		this.splitDepth = splitDepth;
+	}
+	
+	/**
+	 * This builds ruptures using the given growing strategy with the given number of threads, passing each
+	 * unique rupture to the given sink.
+	 * <br>
+	 * Each start cluster is built as a fork/join task, split into subtasks for each growth branch with fewer than
+	 * {@link #setSplitDepth(int)} jumps. Ruptures are passed to the sink one start cluster at a time, in start
+	 * cluster order, so the set of ruptures is independent of the number of threads. When building serially, each
+	 * rupture is checked for uniqueness and passed to the sink as soon as it is built. When building in parallel,
+	 * ruptures from the oldest start cluster are passed on to the sink while it is still being built, and only a
+	 * few start clusters per thread are built ahead of it; ruptures from those clusters are held (after skipping
+	 * any which were already passed to the sink) until they become the oldest. Ruptures held in memory are thus
+	 * bounded by the output of those clusters rather than by the full rupture set.
+	 * 
+	 * @param growingStrategy strategy for determining unique & viable subsection variations
+	 * for each cluster
+	 * @param numThreads
+	 * @param sink receives each unique rupture, always from the calling thread
+	 * @return number of unique ruptures passed to the sink
+	 */
+	public int build(RuptureGrowingStrategy growingStrategy, int numThreads, RuptureSink sink) {
 		growingStrategy.clearCaches();
-		List<ClusterRupture> rups = new ArrayList<>();
-		HashSet<UniqueRupture> uniques = new HashSet<>();
+		// concurrent, as it is read by worker threads while ruptures are merged in
+		Set<UniqueRupture> uniques = ConcurrentHashMap.newKeySet();
 		ProgressTracker track = new ProgressTracker();
 		
-		if (numThreads <= 1) {
-			for (FaultSubsectionCluster cluster : clusters) {
-				ClusterBuildCallable build = new ClusterBuildCallable(
-						growingStrategy, cluster, uniques, track, null);
-				try {
-					build.call();
-				} catch (Exception e) {
-					throw ExceptionUtils.asRuntimeException(e);
-				}
-				try {
-					build.merge(rups);
-				} catch (InterruptedException | ExecutionException e) {
-					throw ExceptionUtils.asRuntimeException(e);
-				}
-				if (build.debugStop)
-					break;
-			}
-		} else {
-			// multi threaded
-			ExecutorService exec = Executors.newFixedThreadPool(numThreads);
-			
-			List<Future<ClusterBuildCallable>> futures = new ArrayList<>();
+		boolean parallel = numThreads > 1;
+		ArrayDeque<ClusterBuildTask> tasks = new ArrayDeque<>(clusters.size());
+		for (FaultSubsectionCluster cluster : clusters)
+			// serial tasks can pass ruptures directly to the sink, as they're run from this thread
+			tasks.add(new ClusterBuildTask(growingStrategy, cluster, uniques, track, parallel, parallel ? null : sink));
+		
+		int count = 0;
+		if (parallel) {
+			ForkJoinPool pool = new ForkJoinPool(numThreads);
 			
-			for (FaultSubsectionCluster cluster : clusters) {
-				ClusterBuildCallable build = new ClusterBuildCallable(
-						growingStrategy, cluster, uniques, track, exec);
-				futures.add(exec.submit(build));
+			// bound the number of start clusters built ahead of the one being merged
+			int maxPending = numThreads*4;
+			ArrayDeque<ClusterBuildTask> pending = new ArrayDeque<>(maxPending);
+			while (!tasks.isEmpty() && pending.size() < maxPending) {
+				ClusterBuildTask task = tasks.removeFirst();
+				pool.execute(task);
+				pending.add(task);
 			}
 			
-			System.out.println("Waiting on "+futures.size()+" cluster build futures");
-			for (Future<ClusterBuildCallable> future : futures) {
-				ClusterBuildCallable build;
-				try {
-					build = future.get();
-				} catch (Exception e) {
-					throw ExceptionUtils.asRuntimeException(e);
-				}
-				try {
-					build.merge(rups);
-				} catch (InterruptedException | ExecutionException e) {
-					throw ExceptionUtils.asRuntimeException(e);
+			System.out.println("Building "+(pending.size()+tasks.size())+" start clusters, up to "
+					+maxPending+" at a time");
+			try {
+				while (!pending.isEmpty()) {
+					ClusterBuildTask task = pending.removeFirst();
+					// pass ruptures from this start cluster on to the sink while it's still being built, so that
+					// they don't accumulate in memory
+					while (!task.isDone()) {
+						task.drain(sink);
+						try {
+							task.get(100, TimeUnit.MILLISECONDS);
+						} catch (TimeoutException e) {
+							// still building
+						} catch (Exception e) {
+							throw ExceptionUtils.asRuntimeException(e);
+						}
+					}
+					try {
+						task.get();
+					} catch (Exception e) {
+						throw ExceptionUtils.asRuntimeException(e);
+					}
+					if (!tasks.isEmpty()) {
+						ClusterBuildTask next = tasks.removeFirst();
+						pool.execute(next);
+						pending.add(next);
+					}
+					task.drain(sink);
+					count += task.finishMerge(count);
+					if (task.debugStop)
+						break;
 				}
-				if (build.debugStop) {
-					exec.shutdownNow();
+			} finally {
+				pool.shutdownNow();
+			}
+		} else {
+			while (!tasks.isEmpty()) {
+				ClusterBuildTask task = tasks.removeFirst();
+				task.invoke();
+				count += task.finishMerge(count);
+				if (task.debugStop)
 					break;
-				}
 			}
-			
-			exec.shutdown();
 		}
 		
+		track.printContentionStats();
+		if (growingStrategy instanceof CachedRuptureGrowingStrategy)
+			System.out.println("Variation cache: "+((CachedRuptureGrowingStrategy)growingStrategy).getCacheStats());
 		
-		return rups;
+		return count;
 	}
 	
 	private static DecimalFormat oneDigitDF = new DecimalFormat("0.0");
@@ -357,38 +514,70 @@ public class ClusterRuptureBuilder {
 		countDF.setGroupingSize(3);
 	}
 	
-	private class ClusterBuildCallable implements Callable<ClusterBuildCallable> {
-		
+	/**
+	 * Builds all ruptures starting with a given cluster. When run serially, new ruptures are passed directly to the
+	 * sink. Otherwise, passed ruptures which may be new are held in this task until they are drained by the
+	 * building thread.
+	 */
+	private class ClusterBuildTask extends RecursiveAction {
+	
 		private RuptureGrowingStrategy growingStrategy;
 		private FaultSubsectionCluster cluster;
-		private HashSet<UniqueRupture> uniques;
-		private List<Future<List<ClusterRupture>>> rupListFutures;
-		private boolean debugStop = false;
+		private Set<UniqueRupture> uniques;
 		private ProgressTracker track;
-		private ExecutorService exec;
+		private boolean parallel;
+		
+		// if non null, new ruptures are passed directly to this sink (only when run serially)
+		private RuptureSink sink;
+		private Queue<ClusterRupture> passed;
+		private volatile boolean debugStop = false;
 		
 		private int clusterIndex;
-
-		public ClusterBuildCallable(RuptureGrowingStrategy growingStrategy,
-				FaultSubsectionCluster cluster, HashSet<UniqueRupture> uniques, ProgressTracker track,
-				ExecutorService exec) {
+		// counts of ruptures passed to the sink, and of those offered (including possible duplicates)
+		private int added = 0;
+		private int raw = 0;
+		
+		public ClusterBuildTask(RuptureGrowingStrategy growingStrategy,
+				FaultSubsectionCluster cluster, Set<UniqueRupture> uniques, ProgressTracker track,
+				boolean parallel, RuptureSink sink) {
+			Preconditions.checkState(!parallel || sink == null, "Can't pass ruptures directly to the sink in parallel");
 			this.growingStrategy = growingStrategy;
 			this.cluster = cluster;
 			this.uniques = uniques;
 			this.track = track;
-			this.exec = exec;
+			this.parallel = parallel;
+			this.sink = sink;
+			if (sink == null)
+				passed = new ConcurrentLinkedQueue<>();
 			clusterIndex = track.newStartCluster(cluster.parentSectionID);
 		}
-
-		@SuppressWarnings({ "unchecked", "rawtypes" })
+		
+		/**
+		 * Offers a rupture which passes all plausibility filters
+		 * 
+		 * @param rup
+		 * @return false if the rupture has already been processed, true if it is (or may be) new
+		 */
+		private boolean offer(ClusterRupture rup) {
+			if (sink != null) {
+				raw++;
+				if (uniques.add(rup.unique)) {
+					sink.process(rup);
+					added++;
+					return true;
+				}
+				return false;
+			}
+			if (uniques.contains(rup.unique))
+				return false;
+			// this means that this rupture passes and has not yet been processed, hold it until it's drained
+			passed.add(rup);
+			return true;
+		}
+		
 		@Override
-		public ClusterBuildCallable call() throws Exception {
-			FakeFuture<ClusterBuildCallable> primaryFuture = new FakeFuture<>(this, false);
-			track.addStartClusterFuture(cluster.parentSectionID, primaryFuture);
-			if (this.exec != null)
-				rupListFutures = Collections.synchronizedList(new ArrayList<>());
-			else
-				rupListFutures = new ArrayList<>();
+		protected void compute() {
+			track.addStartClusterFuture(cluster.parentSectionID, this);
 			for (FaultSection startSection : cluster.subSects) {
 				for (FaultSubsectionCluster variation : growingStrategy.getVariations(
 						cluster, startSection)) {
@@ -400,8 +589,7 @@ public class ClusterRuptureBuilder {
 						testRup(rup, true);
 						if (stopAfterDebugMatch) {
 							debugStop = true;
-							primaryFuture.setDone(true);
-							return this;
+							return;
 						}
 					}
 					if (!result.canContinue())
@@ -410,93 +598,80 @@ public class ClusterRuptureBuilder {
 					if (result.isPass()) {
 						// passes as is, add it if it's new
 						track.processPassedRupture(rup);
-						if (!uniques.contains(rup.unique))
-							// this means that this rupture passes and has not yet been processed
-//							rups.add(rup);
-							rupListFutures.add(new FakeFuture(Collections.singletonList(rup), true));
+						offer(rup);
 					}
 					// continue to build this rupture
-					List<ClusterRupture> rups = new ArrayList<>();
-					boolean canContinue = addRuptures(rups, uniques, rup, rup, 
-							growingStrategy, track, exec, rupListFutures);
-					if (!rups.isEmpty())
-						rupListFutures.add(new FakeFuture(rups, true));
-					if (!canContinue) {
-						System.out.println("Stopping due to debug criteria match with "+rups.size()+" ruptures");
+					boolean canContinue = addRuptures(this, rup, rup);
+					if (!canContinue || debugStop) {
+						System.out.println("Stopping due to debug criteria match");
 						debugStop = true;
-						primaryFuture.setDone(true);
-						return this;
+						return;
 					}
 				}
 			}
-			primaryFuture.setDone(true);
-			return this;
-		}
-		
-		public void merge(List<ClusterRupture> masterRups) throws InterruptedException, ExecutionException {
-			int added = 0;
-			int raw = 0;
-			for (Future<List<ClusterRupture>> future : rupListFutures) {
-				for (ClusterRupture rup : future.get()) {
-					if (!uniques.contains(rup.unique)) {
-						masterRups.add(rup);
-						uniques.add(rup.unique);
-						// make sure that contains now returns true
-						Preconditions.checkState(uniques.contains(rup.unique));
-//						Preconditions.checkState(uniques.contains(rup.reversed().unique));
-						added++;
-						raw++;
-					}
+		}
+		
+		/**
+		 * Passes any new ruptures held by this task to the given sink, and releases them from this task. This can be
+		 * called while the task is still running, but only from a single thread.
+		 * 
+		 * @param sink
+		 */
+		public void drain(RuptureSink sink) {
+			if (passed == null)
+				return;
+			ClusterRupture rup;
+			while ((rup = passed.poll()) != null) {
+				raw++;
+				if (uniques.add(rup.unique)) {
+					sink.process(rup);
+					added++;
 				}
 			}
-			System.out.println("Merged in "+countDF.format(masterRups.size())+" ruptures after processing "
+		}
+		
+		/**
+		 * Prints merge status after this task has completed and been drained
+		 * 
+		 * @param prevCount number of ruptures already passed to the sink before this task (for status printing)
+		 * @return number of new ruptures from this task
+		 */
+		public int finishMerge(int prevCount) {
+			System.out.println("Merged in "+countDF.format(prevCount+added)+" ruptures after processing "
 					+ "start cluster "+clusterIndex+"/"+track.startClusterCount()+" (id="+cluster.parentSectionID+"): "
 					+cluster.parentSectionName+" ("+added+" new, "+raw+" incl. possible duplicates).");
 			track.printCountAndStartClusterStatus();
+			return added;
 		}
-		
+	
 	}
 	
-	private class FakeFuture<E> implements Future<E> {
+	/**
+	 * Builds all variations of a single jump (and everything beyond), split off from a {@link ClusterBuildTask}
+	 */
+	private class JumpTask extends RecursiveAction {
+	
+		private ClusterBuildTask clusterTask;
+		private ClusterRupture currentRupture;
+		private ClusterRupture currentStrand;
+		private Jump jump;
 		
-		private E result;
-		private boolean done;
-
-		public FakeFuture(E result, boolean done) {
-			this.result = result;
-			this.done = done;
-		}
-
-		@Override
-		public boolean cancel(boolean mayInterruptIfRunning) {
-			return false;
-		}
-
-		@Override
-		public boolean isCancelled() {
-			return false;
-		}
-
-		@Override
-		public boolean isDone() {
-			return done;
+		public JumpTask(ClusterBuildTask clusterTask, ClusterRupture currentRupture,
+				ClusterRupture currentStrand, Jump jump) {
+			this.clusterTask = clusterTask;
+			this.currentRupture = currentRupture;
+			this.currentStrand = currentStrand;
+			this.jump = jump;
 		}
 		
-		public void setDone(boolean done) {
-			this.done = done;
-		}
-
 		@Override
-		public E get() throws InterruptedException, ExecutionException {
-			return result;
-		}
-
-		@Override
-		public E get(long timeout, TimeUnit unit)
-				throws InterruptedException, ExecutionException, TimeoutException {
-			return result;
+		protected void compute() {
+			if (clusterTask.debugStop)
+				return;
+			if (!addJumpVariations(clusterTask, currentRupture, currentStrand, jump))
+				clusterTask.debugStop = true;
 		}
-		
+	
 	}
 	
 	private PlausibilityResult testRup(ClusterRupture rupture, final boolean debug) {
@@ -512,40 +687,7 @@ public class ClusterRuptureBuilder {
 		return result;
 	}
 	
-	private class AddRupturesCallable implements Callable<List<ClusterRupture>> {
-		
-		private HashSet<UniqueRupture> uniques;
-		private ClusterRupture currentRupture;
-		private ClusterRupture currentStrand;
-		private RuptureGrowingStrategy growingStrategy;
-		private ProgressTracker track;
-		private Jump jump;
-
-		public AddRupturesCallable(HashSet<UniqueRupture> uniques,
-				ClusterRupture currentRupture, ClusterRupture currentStrand,
-				RuptureGrowingStrategy growingStrategy, ProgressTracker track, Jump jump) {
-			this.uniques = uniques;
-			this.currentRupture = currentRupture;
-			this.currentStrand = currentStrand;
-			this.growingStrategy = growingStrategy;
-			this.track = track;
-			this.jump = jump;
-		}
-
-		@Override
-		public List<ClusterRupture> call() {
-			List<ClusterRupture> rups = new ArrayList<>();
-			addJumpVariations(rups, uniques, currentRupture, currentStrand,
-					growingStrategy, jump, track);
-			return rups;
-		}
-		
-	}
-	
-	private boolean addRuptures(List<ClusterRupture> rups, HashSet<UniqueRupture> uniques,
-			ClusterRupture currentRupture, ClusterRupture currentStrand,
-			RuptureGrowingStrategy growingStrategy, ProgressTracker track,
-			ExecutorService exec, List<Future<List<ClusterRupture>>> futures) {
+	private boolean addRuptures(ClusterBuildTask task, ClusterRupture currentRupture, ClusterRupture currentStrand) {
 		FaultSubsectionCluster lastCluster = currentStrand.clusters[currentStrand.clusters.length-1];
 		FaultSection firstSection = currentStrand.clusters[0].startSect;
 		
@@ -560,37 +702,41 @@ public class ClusterRuptureBuilder {
 					break;
 				for (Jump jump : lastCluster.getConnections(section)) {
 					if (!currentRupture.contains(jump.toSection)) {
-						boolean canContinue = addJumpVariations(rups, uniques, currentRupture, currentStrand,
-								growingStrategy, jump, track);
+						boolean canContinue = addJumpVariations(task, currentRupture, currentStrand, jump);
 						if (!canContinue)
 							return false;
 					}
 				}
 			}
 		}
-
+		
+		// split off separate tasks for each jump if we're shallow enough
+		List<JumpTask> subtasks = null;
+		if (task.parallel && currentRupture.getTotalNumJumps() < splitDepth)
+			subtasks = new ArrayList<>();
+		
 		// try to grow this strand first
 		for (FaultSection endSection : lastCluster.endSects) {
 			for (Jump jump : lastCluster.getConnections(endSection)) {
 				if (!currentRupture.contains(jump.toSection)) {
-					if (exec != null) {
-						// fork it
-						Future<List<ClusterRupture>> future = exec.submit(new AddRupturesCallable(
-								uniques, currentRupture, currentStrand, growingStrategy, track, jump));
-						track.addStartClusterFuture(currentRupture.clusters[0].parentSectionID, future);
-						futures.add(future);
+					if (subtasks != null) {
+						subtasks.add(new JumpTask(task, currentRupture, currentStrand, jump));
 					} else {
-						boolean canContinue = addJumpVariations(rups, uniques, currentRupture, currentStrand,
-								growingStrategy, jump, track);
+						boolean canContinue = addJumpVariations(task, currentRupture, currentStrand, jump);
 						if (!canContinue)
 							return false;
 					}
 				}
 			}
 		}
+		if (subtasks != null && !subtasks.isEmpty()) {
+			// forks all but the first, which is computed in this thread, then waits on (or helps with) the rest
+			ForkJoinTask.invokeAll(subtasks);
+			return !task.debugStop;
+		}
 		return true;
 	}
-	
+
 	private Jump buildJump(Jump jump, FaultSubsectionCluster toVariation) {
 		// correct the distance to be the minimum distance between the two clusters, not just the jumping point distance
 		double minDist = Double.POSITIVE_INFINITY;
@@ -602,22 +748,17 @@ public class ClusterRuptureBuilder {
 		return new Jump(jump.fromSection, jump.fromCluster, jump.toSection, toVariation, minDist);
 	}
 
-	private boolean addJumpVariations(List<ClusterRupture> rups, HashSet<UniqueRupture> uniques,
-			ClusterRupture currentRupture, ClusterRupture currentStrand,
-			RuptureGrowingStrategy growingStrategy, Jump jump, ProgressTracker track) {
+	private boolean addJumpVariations(ClusterBuildTask task, ClusterRupture currentRupture,
+			ClusterRupture currentStrand, Jump jump) {
 		Preconditions.checkNotNull(jump);
-		for (FaultSubsectionCluster variation : growingStrategy.getVariations(
+		UniqueRupture.Probe probe = candidateProbes.get();
+		for (FaultSubsectionCluster variation : task.growingStrategy.getVariations(
 				currentRupture, jump.toCluster, jump.toSection)) {
-			boolean hasLoopback = false;
-			for (FaultSection sect : variation.subSects) {
-				if (currentRupture.contains(sect)) {
-					// this variation contains a section already part of this rupture, stop
-					hasLoopback = true;
-					break;
-				}
-			}
-			if (hasLoopback)
+			if (!probe.set(currentRupture.unique, variation.unique))
+				// this variation contains a section already part of this rupture, stop
 				continue;
+			// check if it has already been processed before building it (the probe is reused when we recurse below)
+			boolean processed = task.uniques.contains(probe);
 			Jump testJump = buildJump(jump, variation);
 			ClusterRupture candidateRupture = currentRupture.take(testJump);
 			PlausibilityResult result = testRup(candidateRupture, false);
@@ -639,11 +780,10 @@ public class ClusterRuptureBuilder {
 			}
 			if (result.isPass()) {
 				// passes as is, add it if it's new
-				track.processPassedRupture(candidateRupture);
-				if (!uniques.contains(candidateRupture.unique)) {
+				task.track.processPassedRupture(candidateRupture);
+				if (!processed && task.offer(candidateRupture)) {
 					if (debugMatch)
 						System.out.println("We passed and this is potentially new, adding");
-					rups.add(candidateRupture);
 				} else if (debugMatch)
 					System.out.println("We passed but have already processed this rupture, skipping");
 			}
@@ -651,8 +791,7 @@ public class ClusterRuptureBuilder {
 //			ClusterRupture newCurrentStrand;
 			if (currentStrand == currentRupture) {
 				// we're on the primary strand
-				boolean canContinue = addRuptures(rups, uniques, candidateRupture, candidateRupture,
-						growingStrategy, track, null, null);
+				boolean canContinue = addRuptures(task, candidateRupture, candidateRupture);
 				if (!canContinue)
 					return false;
 			} else {
@@ -668,13 +807,11 @@ public class ClusterRuptureBuilder {
 				// try to build out the splay
 				FaultSection newLastStart = splayStrand.clusters[splayStrand.clusters.length-1].startSect;
 				Preconditions.checkState(newLastStart.equals(variation.startSect));
-				boolean canContinue = addRuptures(rups, uniques, candidateRupture, splayStrand,
-						growingStrategy, track, null, null);
+				boolean canContinue = addRuptures(task, candidateRupture, splayStrand);
 				if (!canContinue)
 					return false;
 				// now try to build out the primary strand
-				canContinue = addRuptures(rups, uniques, candidateRupture, candidateRupture,
-						growingStrategy, track, null, null);
+				canContinue = addRuptures(task, candidateRupture, candidateRupture);
 				if (!canContinue)
 					return false;
 			}
@@ -866,6 +1003,15 @@ public class ClusterRuptureBuilder {
 	public static class CompareRupSetNewInclusionCriteria implements RupDebugCriteria {
 		
 		private HashSet<UniqueRupture> uniques;
+		// avoids materializing each candidate rupture just to look it up
+		private ThreadLocal<UniqueRupture.Probe> probes = new ThreadLocal<UniqueRupture.Probe>() {
+
+			@Override
+			protected UniqueRupture.Probe initialValue() {
+				return new UniqueRupture.Probe();
+			}
+			
+		};
 		
 		public CompareRupSetNewInclusionCriteria(FaultSystemRupSet rupSet) {
 			uniques = new HashSet<>();
@@ -880,7 +1026,10 @@ public class ClusterRuptureBuilder {
 
 		@Override
 		public boolean isMatch(ClusterRupture rup, Jump newJump) {
-			return !uniques.contains(UniqueRupture.add(rup.unique, newJump.toCluster.unique));
+			UniqueRupture.Probe probe = probes.get();
+			if (!probe.set(rup.unique, newJump.toCluster.unique))
+				return true;
+			return !uniques.contains(probe);
 		}
 
 		@Override
@@ -893,6 +1042,15 @@ public class ClusterRuptureBuilder {
 	public static class CompareRupSetExclusionCriteria implements RupDebugCriteria {
 		
 		private HashSet<UniqueRupture> uniques;
+		// avoids materializing each candidate rupture just to look it up
+		private ThreadLocal<UniqueRupture.Probe> probes = new ThreadLocal<UniqueRupture.Probe>() {
+
+			@Override
+			protected UniqueRupture.Probe initialValue() {
+				return new UniqueRupture.Probe();
+			}
+			
+		};
 		
 		public CompareRupSetExclusionCriteria(FaultSystemRupSet rupSet) {
 			uniques = new HashSet<>();
@@ -907,7 +1065,10 @@ public class ClusterRuptureBuilder {
 
 		@Override
 		public boolean isMatch(ClusterRupture rup, Jump newJump) {
-			return uniques.contains(UniqueRupture.add(rup.unique, newJump.toCluster.unique));
+			UniqueRupture.Probe probe = probes.get();
+			if (!probe.set(rup.unique, newJump.toCluster.unique))
+				return false;
+			return uniques.contains(probe);
 		}
 
 		@Override
@@ -953,7 +1114,7 @@ public class ClusterRuptureBuilder {
 		// for UCERF3 fault models
 		FaultModels fm = FaultModels.FM3_1;
 		String fmPrefix = fm.encodeChoiceString().toLowerCase();
-		File distAzCacheFile = new File(rupSetsDir, fmPrefix+"_dist_az_cache.csv");
+		File distAzCacheFile = new File(rupSetsDir, fmPrefix+"_dist_az_cache.bin");
 		DeformationModels dm = fm.getFilterBasis();
 		ScalingRelationships scale = ScalingRelationships.MEAN_UCERF3;
 		DeformationModelFetcher dmFetch = new DeformationModelFetcher(fm, dm, null, 0.1);
@@ -1028,12 +1189,22 @@ public class ClusterRuptureBuilder {
 //		boolean stopAfterDebug = false;
 
 		SectionDistanceAzimuthCalculator distAzCalc = new SectionDistanceAzimuthCalculator(subSects);
+		int numAzCached = 0;
+		int numDistCached = 0;
 		if (distAzCacheFile.exists()) {
 			System.out.println("Loading dist/az cache from "+distAzCacheFile.getAbsolutePath());
 			distAzCalc.loadCacheFile(distAzCacheFile);
+			numAzCached = distAzCalc.getNumCachedAzimuths();
+			numDistCached = distAzCalc.getNumCachedDistances();
+		} else {
+			// fall back to an old CSV cache, which will then be rewritten in the binary format
+			File csvCacheFile = new File(distAzCacheFile.getParentFile(),
+					distAzCacheFile.getName().replaceAll(".bin$", ".csv"));
+			if (csvCacheFile.exists()) {
+				System.out.println("Loading dist/az cache from "+csvCacheFile.getAbsolutePath());
+				distAzCalc.loadCacheFile(csvCacheFile);
+			}
 		}
-		int numAzCached = distAzCalc.getNumCachedAzimuths();
-		int numDistCached = distAzCalc.getNumCachedDistances();
 		
 		int threads = Integer.max(1, Integer.min(31, Runtime.getRuntime().availableProcessors()-2));
 //		int threads = 1;
@@ -1179,10 +1350,13 @@ public class ClusterRuptureBuilder {
 		SubSectStiffnessCalculator stiffnessCalc = new SubSectStiffnessCalculator(
 				subSects, stiffGridSpacing, 3e4, 3e4, coeffOfFriction, PatchAlignment.FILL_OVERLAP, 1d);
 		AggregatedStiffnessCache stiffnessCache = stiffnessCalc.getAggregationCache(StiffnessType.CFF);
-		File stiffnessCacheFile = new File(rupSetsDir, stiffnessCache.getCacheFileName());
+		File stiffnessCacheFile = new File(rupSetsDir, stiffnessCache.getCacheFileName(true));
 		int stiffnessCacheSize = 0;
 		if (stiffnessCacheFile.exists())
 			stiffnessCacheSize = stiffnessCache.loadCacheFile(stiffnessCacheFile);
+		else if (new File(rupSetsDir, stiffnessCache.getCacheFileName(false)).exists())
+			// fall back to an old CSV cache, which will then be rewritten in the binary format
+			stiffnessCache.loadCacheFile(new File(rupSetsDir, stiffnessCache.getCacheFileName(false)));
 		// common aggregators
 		AggregatedStiffnessCalculator sumAgg = new AggregatedStiffnessCalculator(StiffnessType.CFF, stiffnessCalc, true,
 				AggregationMethod.FLATTEN, AggregationMethod.SUM, AggregationMethod.SUM, AggregationMethod.SUM);
@@ -76,18 +76,16 @@ public class AdaptiveClusterConnectionStrategy extends ClusterConnectionStrategy
 			for (FaultSubsectionCluster c : clusters)
 				possibleMap.put(c, new ArrayList<>());
 			
-			for (int c1=0; c1<clusters.size(); c1++) {
-				FaultSubsectionCluster from = clusters.get(c1);
-				for (int c2=c1+1; c2<clusters.size(); c2++) {
-					FaultSubsectionCluster to = clusters.get(c2);
-					
-					List<Jump> possibles = fullConnStrat.buildPossibleConnections(from, to);
-					if (possibles == null)
-						continue;
-					for (Jump jump : possibles) {
-						possibleMap.get(from).add(jump);
-						possibleMap.get(to).add(jump.reverse());
-					}
+			for (IDPairing pair : getCandidateClusterPairs()) {
+				FaultSubsectionCluster from = clusters.get(pair.getID1());
+				FaultSubsectionCluster to = clusters.get(pair.getID2());
+				
+				List<Jump> possibles = fullConnStrat.buildPossibleConnections(from, to);
+				if (possibles == null)
+					continue;
+				for (Jump jump : possibles) {
+					possibleMap.get(from).add(jump);
+					possibleMap.get(to).add(jump.reverse());
 				}
 			}
 			
@@ -182,6 +180,11 @@ public class AdaptiveClusterConnectionStrategy extends ClusterConnectionStrategy
 		return pair;
 	}
 
+	@Override
+	protected boolean isConnectionDistLimited() {
+		return fullConnStrat.isConnectionDistLimited();
+	}
+
 	@Override
 	public String getName() {
 		if (sectMax != 1)
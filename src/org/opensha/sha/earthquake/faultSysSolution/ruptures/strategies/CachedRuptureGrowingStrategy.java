@@ -1,44 +1,84 @@
 package org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.FaultSubsectionCluster;
 import org.opensha.sha.faultSurface.FaultSection;
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
-
 /**
- * Utility class to cache viable cluster variations for faster and memory-efficient rupture building
- * 
+ * Utility class to cache viable cluster variations for faster and memory-efficient rupture building.
+ * <br>
+ * The cache is concurrent and lookups don't lock. Variations are calculated outside of any lock, so two threads
+ * may occasionally calculate the same variations at once, in which case the first one stored is kept and returned
+ * to both (number of such redundant calculations are tracked in {@link #getCacheStats()}).
+ *
  * @author kevin
  *
  */
 public abstract class CachedRuptureGrowingStrategy implements RuptureGrowingStrategy {
-	
-	private Table<FaultSubsectionCluster, FaultSection, List<FaultSubsectionCluster>> cacheTable;
-	
+
+	private ConcurrentMap<FaultSubsectionCluster, ConcurrentMap<FaultSection, List<FaultSubsectionCluster>>> cache;
+
+	// cache statistics, adders as these are updated from every thread but only summed when printing
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private LongAdder redundantCalcs = new LongAdder();
+	private LongAdder calcNanos = new LongAdder();
+
 	public CachedRuptureGrowingStrategy() {
-		cacheTable = HashBasedTable.create();
+		cache = new ConcurrentHashMap<>();
 	}
 
 	@Override
-	public final synchronized List<FaultSubsectionCluster> getVariations(FaultSubsectionCluster fullCluster,
+	public final List<FaultSubsectionCluster> getVariations(FaultSubsectionCluster fullCluster,
 			FaultSection firstSection) {
-		List<FaultSubsectionCluster> permutations = cacheTable.get(fullCluster, firstSection);
-		if (permutations == null) {
-			permutations = calcPermutations(fullCluster, firstSection);
-			cacheTable.put(fullCluster, firstSection, permutations);
+		ConcurrentMap<FaultSection, List<FaultSubsectionCluster>> clusterCache = cache.get(fullCluster);
+		if (clusterCache == null) {
+			clusterCache = new ConcurrentHashMap<>();
+			ConcurrentMap<FaultSection, List<FaultSubsectionCluster>> prev =
+					cache.putIfAbsent(fullCluster, clusterCache);
+			if (prev != null)
+				clusterCache = prev;
+		}
+		List<FaultSubsectionCluster> permutations = clusterCache.get(firstSection);
+		if (permutations != null) {
+			hits.increment();
+			return permutations;
+		}
+		misses.increment();
+		long start = System.nanoTime();
+		permutations = calcPermutations(fullCluster, firstSection);
+		calcNanos.add(System.nanoTime() - start);
+		List<FaultSubsectionCluster> prev = clusterCache.putIfAbsent(firstSection, permutations);
+		if (prev != null) {
+			// another thread beat us to it, use theirs
+			redundantCalcs.increment();
+			return prev;
 		}
 		return permutations;
 	}
-	
+
 	protected abstract List<FaultSubsectionCluster> calcPermutations(FaultSubsectionCluster fullCluster,
 			FaultSection firstSection);
-	
+
 	@Override
 	public void clearCaches() {
-		cacheTable.clear();
+		cache.clear();
+		hits.reset();
+		misses.reset();
+		redundantCalcs.reset();
+		calcNanos.reset();
+	}
+
+	/**
+	 * @return summary of cache hits, misses, redundant (concurrent) calculations, and total calculation time
+	 */
+	public String getCacheStats() {
+		return hits.sum()+" hits, "+misses.sum()+" misses, "+redundantCalcs.sum()+" redundant calculations, "
+				+(float)(calcNanos.sum()/1e9)+" s calculating";
 	}
 
 }
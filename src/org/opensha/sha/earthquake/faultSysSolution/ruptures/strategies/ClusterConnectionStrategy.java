@@ -3,11 +3,14 @@ package org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -143,13 +146,8 @@ public abstract class ClusterConnectionStrategy implements Named {
 		List<Jump> jumps = new ArrayList<>();
 		
 		List<ConnSearchCallable> calls = new ArrayList<>();
-		for (int c1=0; c1<clusters.size(); c1++) {
-			FaultSubsectionCluster cluster1 = clusters.get(c1);
-			for (int c2=c1+1; c2<clusters.size(); c2++) {
-				FaultSubsectionCluster cluster2 = clusters.get(c2);
-				calls.add(new ConnSearchCallable(cluster1, cluster2));
-			}
-		}
+		for (IDPairing pair : getCandidateClusterPairs())
+			calls.add(new ConnSearchCallable(clusters.get(pair.getID1()), clusters.get(pair.getID2())));
 		
 		if (numThreads <= 1) {
 			for (ConnSearchCallable call : calls) {
@@ -227,6 +225,60 @@ public abstract class ClusterConnectionStrategy implements Named {
 		
 	}
 	
+	/**
+	 * @return true if every connection returned by buildPossibleConnections(...) is between sections within
+	 * getMaxJumpDist() of each other, in which case cluster pairs which are farther apart are never searched.
+	 * Strategies which can add longer connections must override this to return false.
+	 */
+	protected boolean isConnectionDistLimited() {
+		return true;
+	}
+	
+	/**
+	 * Returns the pairs of cluster indexes (in the getRawClusters() list) to search for connections, with ID1 < ID2
+	 * and sorted by ID1 then ID2. If connections are limited to getMaxJumpDist(), this only includes clusters with at
+	 * least one pair of sections which could be within that distance (as determined by a spatial index in the
+	 * distance calculator), otherwise all cluster pairs are included.
+	 * 
+	 * @return list of cluster index pairs
+	 */
+	protected List<IDPairing> getCandidateClusterPairs() {
+		List<FaultSubsectionCluster> clusters = getRawClusters();
+		List<IDPairing> ret = new ArrayList<>();
+		double maxDist = getMaxJumpDist();
+		if (!isConnectionDistLimited() || !Double.isFinite(maxDist) || distCalc == null) {
+			for (int c1=0; c1<clusters.size(); c1++)
+				for (int c2=c1+1; c2<clusters.size(); c2++)
+					ret.add(new IDPairing(c1, c2));
+			return ret;
+		}
+		
+		int[] sectClusterIndexes = new int[subSections.size()];
+		Arrays.fill(sectClusterIndexes, -1);
+		for (int c=0; c<clusters.size(); c++)
+			for (FaultSection sect : clusters.get(c).subSects)
+				sectClusterIndexes[sect.getSectionId()] = c;
+		
+		List<Set<Integer>> clusterMatches = new ArrayList<>();
+		for (int c=0; c<clusters.size(); c++)
+			clusterMatches.add(new HashSet<>());
+		// small buffer for rounding, as jumps are compared with the max distance at float precision
+		for (IDPairing pair : distCalc.getCandidatePairsWithin(maxDist + 0.1)) {
+			int c1 = sectClusterIndexes[pair.getID1()];
+			int c2 = sectClusterIndexes[pair.getID2()];
+			if (c1 < 0 || c2 < 0 || c1 == c2)
+				continue;
+			clusterMatches.get(Integer.min(c1, c2)).add(Integer.max(c1, c2));
+		}
+		for (int c1=0; c1<clusters.size(); c1++) {
+			List<Integer> matches = new ArrayList<>(clusterMatches.get(c1));
+			Collections.sort(matches);
+			for (int c2 : matches)
+				ret.add(new IDPairing(c1, c2));
+		}
+		return ret;
+	}
+	
 	/**
 	 * Builds a list of all possible jumps between all full clusters
 	 * 
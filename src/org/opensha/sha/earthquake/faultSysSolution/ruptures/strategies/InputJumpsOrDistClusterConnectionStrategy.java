@@ -75,6 +75,12 @@ public class InputJumpsOrDistClusterConnectionStrategy extends ClusterConnection
 		return ret;
 	}
 
+	@Override
+	protected boolean isConnectionDistLimited() {
+		// input jumps can be longer than the max jump distance
+		return false;
+	}
+
 	@Override
 	public String getName() {
 		return "InputPlusDist: maxDist="+(float)maxJumpDist+" km";
@@ -1,14 +1,26 @@
 package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.zip.ZipException;
 
@@ -39,7 +51,21 @@ public class SectionDistanceAzimuthCalculator {
 	private double[][] azCache;
 	private Map<Integer, RuptureSurface> sectSurfs;
 	
+	// horizontal bounding circle of each section surface, used for distance lower bounds
+	private Location[] boundCenters;
+	private double[] boundRadii;
+	
+	// distances are only fully computed for pairs with a lower bound at or below this value
+	private double maxExactDistance = Double.POSITIVE_INFINITY;
+	
+	// binary cache files which rows are lazily loaded from
+	private List<MappedCacheFile> mappedCaches = new CopyOnWriteArrayList<>();
+	
 	public static final double SURF_DISCRETIZATION = 1d;
+	
+	// fractional tolerance applied to distance lower bounds, to account for differences between the spherical
+	// distances used for bounds and the approximate distances used in surface distance calculations
+	private static final double LOWER_BOUND_TOLERANCE = 0.01;
 
 	public SectionDistanceAzimuthCalculator(List<? extends FaultSection> subSects) {
 		this.subSects = ImmutableList.copyOf(subSects);
@@ -74,7 +100,8 @@ public class SectionDistanceAzimuthCalculator {
 			id1 = id2;
 			id2 = tmp;
 		}
-		return distCache[id1] != null && Double.isFinite(distCache[id1][calcDistIndexOffset(id1, id2)]);
+		double[] cache = getDistRow(id1, false);
+		return cache != null && Double.isFinite(cache[calcDistIndexOffset(id1, id2)]);
 	}
 	
 	public synchronized void setDistance(int id1, int id2, double dist) {
@@ -86,13 +113,33 @@ public class SectionDistanceAzimuthCalculator {
 			id1 = id2;
 			id2 = tmp;
 		}
-		if (distCache[id1] == null) {
-			double[] cache = new double[subSects.size()-id1];
-			for (int i=0; i<cache.length; i++)
-				cache[i] = Double.NaN;
-			distCache[id1] = cache;
+		getDistRow(id1, true)[calcDistIndexOffset(id1, id2)] = dist;
+	}
+	
+	/**
+	 * Returns the distance cache row for the given ID (for all larger IDs), loading it from any mapped binary
+	 * cache files if it hasn't been loaded yet.
+	 * 
+	 * @param id1
+	 * @param create if true, an empty row will be created if needed
+	 * @return distance row, or null if create is false and no values exist for this row
+	 */
+	private double[] getDistRow(int id1, boolean create) {
+		double[] cache = distCache[id1];
+		if (cache == null && (create || !mappedCaches.isEmpty())) {
+			synchronized (distCache) {
+				cache = distCache[id1];
+				if (cache == null) {
+					cache = new double[subSects.size()-id1];
+					for (int i=0; i<cache.length; i++)
+						cache[i] = Double.NaN;
+					for (MappedCacheFile mapped : mappedCaches)
+						mapped.fillDistances(id1, cache);
+					distCache[id1] = cache;
+				}
+			}
 		}
-		distCache[id1][calcDistIndexOffset(id1, id2)] = dist;
+		return cache;
 	}
 	
 	public double getDistance(FaultSection sect1, FaultSection sect2) {
@@ -115,17 +162,14 @@ public class SectionDistanceAzimuthCalculator {
 		}
 		int offset = calcDistIndexOffset(id1, id2);
 		
-		if (distCache[id1] == null) {
-			synchronized (distCache) {
-				if (distCache[id1] == null) {
-					double[] cache = new double[subSects.size()-id1];
-					for (int i=0; i<cache.length; i++)
-						cache[i] = Double.NaN;
-					distCache[id1] = cache;
-				}
-			}
-		} else if (Double.isFinite(distCache[id1][offset])) {
-			return distCache[id1][offset];
+		double[] cache = getDistRow(id1, true);
+		if (Double.isFinite(cache[offset]))
+			return cache[offset];
+		if (Double.isFinite(maxExactDistance)) {
+			double lowerBound = getDistanceLowerBound(id1, id2);
+			if (lowerBound > maxExactDistance)
+				// too far to matter, don't compute or cache it
+				return lowerBound;
 		}
 		RuptureSurface surf1 = getSurface(id1);
 		Preconditions.checkNotNull(surf1);
@@ -145,46 +189,201 @@ public class SectionDistanceAzimuthCalculator {
 		if (minDist < quickDistThreshold)
 			// do the full calculation
 			minDist = surf1.getMinDistance(surf2);
-		distCache[id1][offset] = minDist;
+		cache[offset] = minDist;
 		return minDist;
 	}
 	
-	public synchronized void setAzimuth(int id1, int id2, double azimuth) {
-		if (id1 == id2)
+	/**
+	 * Sets the maximum distance for which full distance calculations are done. If finite, getDistance(...) will
+	 * return a cheap lower bound (see {@link #getDistanceLowerBound(int, int)}) without caching it for any pair where
+	 * that lower bound is above this value. Default is infinite (always do the full calculation).
+	 * 
+	 * @param maxExactDistance
+	 */
+	public void setMaxExactDistance(double maxExactDistance) {
+		Preconditions.checkArgument(maxExactDistance >= 0d);
+		this.maxExactDistance = maxExactDistance;
+	}
+	
+	public double getMaxExactDistance() {
+		return maxExactDistance;
+	}
+	
+	private void checkInitBounds() {
+		if (boundRadii != null)
 			return;
-		if (azCache[id1] == null) {
-			double[] cache = new double[subSects.size()];
-			for (int i=0; i<cache.length; i++)
-				cache[i] = Double.NaN;
-			azCache[id1] = cache;
+		synchronized (distCache) {
+			if (boundRadii != null)
+				return;
+			Location[] centers = new Location[subSects.size()];
+			double[] radii = new double[subSects.size()];
+			for (int id=0; id<centers.length; id++) {
+				List<Location> locs = getSurface(id).getEvenlyDiscritizedListOfLocsOnSurface();
+				double minLat = Double.POSITIVE_INFINITY;
+				double maxLat = Double.NEGATIVE_INFINITY;
+				double minLon = Double.POSITIVE_INFINITY;
+				double maxLon = Double.NEGATIVE_INFINITY;
+				for (Location loc : locs) {
+					minLat = Math.min(minLat, loc.getLatitude());
+					maxLat = Math.max(maxLat, loc.getLatitude());
+					minLon = Math.min(minLon, loc.getLongitude());
+					maxLon = Math.max(maxLon, loc.getLongitude());
+				}
+				centers[id] = new Location(0.5*(minLat+maxLat), 0.5*(minLon+maxLon));
+				for (Location loc : locs)
+					radii[id] = Math.max(radii[id], LocationUtils.horzDistance(centers[id], loc));
+			}
+			boundCenters = centers;
+			boundRadii = radii;
 		}
-		azCache[id1][id2] = azimuth;
 	}
 	
-	public double getAzimuth(FaultSection sect1, FaultSection sect2) {
-		return getAzimuth(sect1.getSectionId(), sect2.getSectionId());
+	/**
+	 * Cheap lower bound on the distance between the two given sections, computed from the horizontal separation of
+	 * circles which bound each surface. This is exact (zero) for nearby sections, and only useful for deciding that
+	 * sections are farther apart than some threshold.
+	 * 
+	 * @param id1
+	 * @param id2
+	 * @return lower bound on the distance between the two sections
+	 */
+	public double getDistanceLowerBound(int id1, int id2) {
+		if (id1 == id2)
+			return 0d;
+		checkInitBounds();
+		double centerDist = LocationUtils.horzDistance(boundCenters[id1], boundCenters[id2]);
+		double bound = (1d-LOWER_BOUND_TOLERANCE)*centerDist
+				- (1d+LOWER_BOUND_TOLERANCE)*(boundRadii[id1] + boundRadii[id2]);
+		return Math.max(0d, bound);
 	}
 	
-	public boolean isAzimuthCached(int id1, int id2) {
-		return azCache[id1] != null && Double.isFinite(azCache[id1][id2]);
+	/**
+	 * Finds all section pairs which could be within the given distance of each other, i.e., all pairs with a
+	 * {@link #getDistanceLowerBound(int, int)} at or below maxDist. Surfaces are bucketed into a latitude/longitude
+	 * grid with cells large enough that candidates are always in adjacent cells (wrapping around in longitude at the
+	 * antimeridian), so this scales with the number of sections rather than the number of pairs, and doesn't require
+	 * any full distance calculations.
+	 * 
+	 * @param maxDist
+	 * @return list of candidate pairs, with ID1 < ID2, sorted by ID1 then ID2
+	 */
+	public List<IDPairing> getCandidatePairsWithin(double maxDist) {
+		Preconditions.checkArgument(maxDist >= 0d && Double.isFinite(maxDist), "Distance must be finite and >= 0");
+		checkInitBounds();
+		int num = subSects.size();
+		
+		double maxRadius = 0d;
+		double maxAbsLat = 0d;
+		for (int id=0; id<num; id++) {
+			maxRadius = Math.max(maxRadius, boundRadii[id]);
+			maxAbsLat = Math.max(maxAbsLat, Math.abs(boundCenters[id].getLatitude()));
+		}
+		// centers of any candidate pair are within this distance
+		double searchDist = (maxDist + 2d*(1d+LOWER_BOUND_TOLERANCE)*maxRadius)/(1d-LOWER_BOUND_TOLERANCE);
+		double searchAngle = Math.min(Math.PI, searchDist/LocationUtils.EARTH_RADIUS_MEAN);
+		double latCellSize = Math.toDegrees(searchAngle);
+		// longitude difference between two points is largest (for a given distance) at the highest latitude
+		double minLonCellSize = Math.toDegrees(2d*Math.asin(Math.min(1d,
+				Math.sin(0.5*searchAngle)/Math.cos(Math.toRadians(maxAbsLat)))));
+		// longitude cells wrap around at the antimeridian, so use a whole number of cells (each at least as large as
+		// needed). with fewer than 3, neighboring cells would overlap, so just use one
+		int numLonCells = minLonCellSize > 0d ? (int)Math.floor(360d/minLonCellSize) : 1;
+		if (numLonCells < 3)
+			numLonCells = 1;
+		double lonCellSize = 360d/numLonCells;
+		int lonNeighbors = numLonCells == 1 ? 0 : 1;
+		
+		Map<Long, List<Integer>> cells = new HashMap<>();
+		int[] latIndexes = new int[num];
+		int[] lonIndexes = new int[num];
+		for (int id=0; id<num; id++) {
+			latIndexes[id] = (int)Math.floor(boundCenters[id].getLatitude()/latCellSize);
+			// normalize to [0, 360)
+			double lon = boundCenters[id].getLongitude();
+			lon -= 360d*Math.floor(lon/360d);
+			lonIndexes[id] = Math.min(numLonCells-1, (int)(lon/lonCellSize));
+			Long key = cellKey(latIndexes[id], lonIndexes[id]);
+			List<Integer> cell = cells.get(key);
+			if (cell == null) {
+				cell = new ArrayList<>();
+				cells.put(key, cell);
+			}
+			cell.add(id);
+		}
+		
+		List<IDPairing> pairs = new ArrayList<>();
+		List<Integer> matches = new ArrayList<>();
+		for (int id1=0; id1<num; id1++) {
+			matches.clear();
+			for (int latIndex=latIndexes[id1]-1; latIndex<=latIndexes[id1]+1; latIndex++) {
+				for (int lonOffset=-lonNeighbors; lonOffset<=lonNeighbors; lonOffset++) {
+					int lonIndex = (lonIndexes[id1] + lonOffset + numLonCells) % numLonCells;
+					List<Integer> cell = cells.get(cellKey(latIndex, lonIndex));
+					if (cell == null)
+						continue;
+					for (int id2 : cell)
+						if (id2 > id1 && getDistanceLowerBound(id1, id2) <= maxDist)
+							matches.add(id2);
+				}
+			}
+			Collections.sort(matches);
+			for (int id2 : matches)
+				pairs.add(new IDPairing(id1, id2));
+		}
+		return pairs;
 	}
 	
-	public double getAzimuth(int id1, int id2) {
+	private static Long cellKey(int latIndex, int lonIndex) {
+		return ((long)latIndex << 32) | (lonIndex & 0xffffffffL);
+	}
+	
+	public synchronized void setAzimuth(int id1, int id2, double azimuth) {
 		if (id1 == id2)
-			return Double.NaN;
-		if (azCache[id1] == null) {
+			return;
+		getAzRow(id1, true)[id2] = azimuth;
+	}
+	
+	/**
+	 * Returns the azimuth cache row for the given ID, loading it from any mapped binary cache files if it hasn't been
+	 * loaded yet.
+	 * 
+	 * @param id1
+	 * @param create if true, an empty row will be created if needed
+	 * @return azimuth row, or null if create is false and no values exist for this row
+	 */
+	private double[] getAzRow(int id1, boolean create) {
+		double[] cache = azCache[id1];
+		if (cache == null && (create || !mappedCaches.isEmpty())) {
 			synchronized (azCache) {
-				if (azCache[id1] == null) {
-					double[] cache = new double[subSects.size()];
+				cache = azCache[id1];
+				if (cache == null) {
+					cache = new double[subSects.size()];
 					for (int i=0; i<cache.length; i++)
 						cache[i] = Double.NaN;
+					for (MappedCacheFile mapped : mappedCaches)
+						mapped.fillAzimuths(id1, cache);
 					azCache[id1] = cache;
-					
 				}
 			}
-		} else if (Double.isFinite(azCache[id1][id2])) {
-			return azCache[id1][id2];
 		}
+		return cache;
+	}
+	
+	public double getAzimuth(FaultSection sect1, FaultSection sect2) {
+		return getAzimuth(sect1.getSectionId(), sect2.getSectionId());
+	}
+	
+	public boolean isAzimuthCached(int id1, int id2) {
+		double[] cache = getAzRow(id1, false);
+		return cache != null && Double.isFinite(cache[id2]);
+	}
+	
+	public double getAzimuth(int id1, int id2) {
+		if (id1 == id2)
+			return Double.NaN;
+		double[] cache = getAzRow(id1, true);
+		if (Double.isFinite(cache[id2]))
+			return cache[id2];
 		
 		RuptureSurface surf1 = getSurface(id1);
 		Preconditions.checkNotNull(surf1);
@@ -193,35 +392,76 @@ public class SectionDistanceAzimuthCalculator {
 		
 		Location loc1 = GriddedSurfaceUtils.getSurfaceMiddleLoc(surf1);
 		Location loc2 = GriddedSurfaceUtils.getSurfaceMiddleLoc(surf2);
-		azCache[id1][id2] = LocationUtils.azimuth(loc1, loc2);
-		return azCache[id1][id2];
+		cache[id2] = LocationUtils.azimuth(loc1, loc2);
+		return cache[id2];
 	}
 	
+	/**
+	 * @return number of cached distances, including those in any mapped binary cache files which haven't been
+	 * loaded yet (which are counted without loading them)
+	 */
 	public int getNumCachedDistances() {
 		int count = 0;
-		for (double[] cache : distCache) {
-			if (cache == null)
-				continue;
-			for (double val : cache)
-				if (Double.isFinite(val))
-					count++;
+		synchronized (distCache) {
+			for (int id1=0; id1<distCache.length; id1++) {
+				double[] cache = distCache[id1];
+				if (cache != null) {
+					for (double val : cache)
+						if (Double.isFinite(val))
+							count++;
+				} else {
+					for (int id2=id1+1; id2<distCache.length; id2++)
+						for (MappedCacheFile mapped : mappedCaches)
+							if (mapped.isDistanceCached(id1, id2)) {
+								count++;
+								break;
+							}
+				}
+			}
 		}
 		return count;
 	}
 	
+	/**
+	 * @return number of cached azimuths, including those in any mapped binary cache files which haven't been
+	 * loaded yet (which are counted without loading them)
+	 */
 	public int getNumCachedAzimuths() {
 		int count = 0;
-		for (double[] cache : azCache) {
-			if (cache == null)
-				continue;
-			for (double val : cache)
-				if (Double.isFinite(val))
-					count++;
+		synchronized (azCache) {
+			for (int id1=0; id1<azCache.length; id1++) {
+				double[] cache = azCache[id1];
+				if (cache != null) {
+					for (double val : cache)
+						if (Double.isFinite(val))
+							count++;
+				} else {
+					for (int id2=0; id2<azCache.length; id2++)
+						for (MappedCacheFile mapped : mappedCaches)
+							if (mapped.isAzimuthCached(id1, id2)) {
+								count++;
+								break;
+							}
+				}
+			}
 		}
 		return count;
 	}
 	
+	/**
+	 * Writes all cached distances and azimuths to the given file. If the file name ends with .bin, the binary format
+	 * will be used, otherwise CSV.
+	 * 
+	 * @param cacheFile
+	 * @throws IOException
+	 */
 	public void writeCacheFile(File cacheFile) throws IOException {
+		// load everything from any mapped files first, as we may be about to overwrite one
+		loadAllMapped();
+		if (cacheFile.getName().toLowerCase().endsWith(".bin")) {
+			writeBinaryCacheFile(cacheFile);
+			return;
+		}
 		CSVFile<String> csv = new CSVFile<>(true);
 		csv.addLine("ID1", "ID2", "Distance", "Azimuth");
 		int numDist = 0;
@@ -254,7 +494,19 @@ public class SectionDistanceAzimuthCalculator {
 		System.out.println("Wrote cache file for "+numDist+" distances and "+numAz+" azimuths");
 	}
 	
+	/**
+	 * Loads cached distances and azimuths from the given file, which can be either binary or CSV. Binary files are
+	 * memory mapped and values are loaded lazily as they are needed. Values already cached are retained, so partial
+	 * caches (e.g., from parallel workers) can be merged by loading each then writing the result.
+	 * 
+	 * @param cacheFile
+	 * @throws IOException
+	 */
 	public void loadCacheFile(File cacheFile) throws IOException {
+		if (isBinaryCacheFile(cacheFile)) {
+			mapBinaryCacheFile(cacheFile);
+			return;
+		}
 		CSVFile<String> csv = CSVFile.readFile(cacheFile, true);
 		int numAz = 0;
 		int numDist = 0;
@@ -278,6 +530,206 @@ public class SectionDistanceAzimuthCalculator {
 		System.out.println("Loaded cache file for "+numDist+" distances and "+numAz+" azimuths");
 	}
 	
+	/*
+	 * Binary cache file format, which is memory mapped and loaded lazily. All values are little endian (except for
+	 * the magic number):
+	 * 
+	 * header (32 bytes): magic number, int version, int number of sections, int zero padding, double surface
+	 * discretization, long zero padding
+	 * distances: triangular matrix of doubles, for each ID1 the distances to all larger ID2
+	 * azimuths: full matrix of doubles, for each ID1 the azimuths to all ID2
+	 * 
+	 * Values which have not been computed are NaN.
+	 */
+	private static final int BINARY_MAGIC = 0x89444143; // 0x89 'D' 'A' 'C'
+	private static final int BINARY_VERSION = 1;
+	private static final int BINARY_HEADER_BYTES = 32;
+	// values per mapped chunk (1 GB)
+	private static final int BINARY_CHUNK_SHIFT = 27;
+	
+	private void writeBinaryCacheFile(File cacheFile) throws IOException {
+		int num = subSects.size();
+		int numDist = 0;
+		int numAz = 0;
+		// write to a temporary file first, as other processes may have the existing file mapped
+		File tempFile = new File(cacheFile.getAbsolutePath()+".tmp");
+		try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1024*64);
+			buffer.order(ByteOrder.BIG_ENDIAN).putInt(BINARY_MAGIC);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(BINARY_VERSION);
+			buffer.putInt(num);
+			buffer.putInt(0);
+			buffer.putDouble(SURF_DISCRETIZATION);
+			buffer.putLong(0l);
+			for (int id1=0; id1<num; id1++) {
+				double[] cache = getDistRow(id1, false);
+				for (int id2=id1+1; id2<num; id2++) {
+					double val = cache == null ? Double.NaN : cache[calcDistIndexOffset(id1, id2)];
+					if (Double.isFinite(val))
+						numDist++;
+					else
+						val = Double.NaN;
+					if (buffer.remaining() < 8)
+						flush(channel, buffer);
+					buffer.putDouble(val);
+				}
+			}
+			for (int id1=0; id1<num; id1++) {
+				double[] cache = getAzRow(id1, false);
+				for (int id2=0; id2<num; id2++) {
+					double val = cache == null ? Double.NaN : cache[id2];
+					if (Double.isFinite(val))
+						numAz++;
+					else
+						val = Double.NaN;
+					if (buffer.remaining() < 8)
+						flush(channel, buffer);
+					buffer.putDouble(val);
+				}
+			}
+			flush(channel, buffer);
+		}
+		Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("Wrote binary cache file for "+numDist+" distances and "+numAz+" azimuths");
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+	
+	private static boolean isBinaryCacheFile(File file) throws IOException {
+		if (file.length() < BINARY_HEADER_BYTES)
+			return false;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == BINARY_MAGIC;
+		}
+	}
+	
+	private void mapBinaryCacheFile(File cacheFile) throws IOException {
+		MappedCacheFile mapped = new MappedCacheFile(cacheFile, subSects.size());
+		// merge into any rows which are already loaded, others will be loaded from the file when first needed
+		synchronized (distCache) {
+			synchronized (azCache) {
+				for (int id1=0; id1<subSects.size(); id1++) {
+					if (distCache[id1] != null)
+						mapped.fillDistances(id1, distCache[id1]);
+					if (azCache[id1] != null)
+						mapped.fillAzimuths(id1, azCache[id1]);
+				}
+				mappedCaches.add(mapped);
+			}
+		}
+		System.out.println("Mapped binary cache file for "+subSects.size()+" sections");
+	}
+	
+	/**
+	 * Loads all rows from mapped cache files into memory, after which the mapped files are no longer needed
+	 */
+	private void loadAllMapped() {
+		if (mappedCaches.isEmpty())
+			return;
+		for (int id1=0; id1<subSects.size(); id1++) {
+			getDistRow(id1, false);
+			getAzRow(id1, false);
+		}
+		synchronized (distCache) {
+			synchronized (azCache) {
+				mappedCaches.clear();
+			}
+		}
+	}
+	
+	private static class MappedCacheFile {
+		
+		private final int numSects;
+		private final DoubleBuffer[] chunks;
+		// index of the first azimuth value
+		private final long azStart;
+		
+		public MappedCacheFile(File file, int numSects) throws IOException {
+			this.numSects = numSects;
+			// mappings stay valid after the channel is closed
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				Preconditions.checkState(channel.size() >= BINARY_HEADER_BYTES,
+						"Not a binary distance/azimuth cache file: %s", file);
+				ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, BINARY_HEADER_BYTES);
+				Preconditions.checkState(header.order(ByteOrder.BIG_ENDIAN).getInt() == BINARY_MAGIC,
+						"Not a binary distance/azimuth cache file: %s", file);
+				header.order(ByteOrder.LITTLE_ENDIAN);
+				int version = header.getInt();
+				Preconditions.checkState(version == BINARY_VERSION, "Unsupported cache file version: %s", version);
+				int fileSects = header.getInt();
+				Preconditions.checkState(fileSects == numSects,
+						"Cache file is for %s sections, but we have %s", fileSects, numSects);
+				header.getInt();
+				double discr = header.getDouble();
+				Preconditions.checkState((float)discr == (float)SURF_DISCRETIZATION,
+						"Cache file surface discretization (%s) doesn't match ours (%s)", discr, SURF_DISCRETIZATION);
+				
+				azStart = (long)numSects*(numSects-1)/2;
+				long numVals = azStart + (long)numSects*numSects;
+				Preconditions.checkState(channel.size() >= BINARY_HEADER_BYTES + 8l*numVals,
+						"Cache file is truncated: %s", file);
+				
+				long chunkSize = 1l << BINARY_CHUNK_SHIFT;
+				int numChunks = (int)((numVals + chunkSize - 1) / chunkSize);
+				chunks = new DoubleBuffer[numChunks];
+				for (int c=0; c<numChunks; c++) {
+					long start = c*chunkSize;
+					long num = Long.min(chunkSize, numVals - start);
+					chunks[c] = channel.map(MapMode.READ_ONLY, BINARY_HEADER_BYTES + 8l*start, 8l*num)
+							.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+				}
+			}
+		}
+		
+		private boolean isFinite(long index) {
+			long mask = (1l << BINARY_CHUNK_SHIFT) - 1;
+			return Double.isFinite(chunks[(int)(index >> BINARY_CHUNK_SHIFT)].get((int)(index & mask)));
+		}
+		
+		private long distRowStart(int id1) {
+			// rows for smaller IDs each hold (numSects-1-id) values
+			return (long)id1*(numSects-1) - (long)id1*(id1-1)/2;
+		}
+		
+		public boolean isDistanceCached(int id1, int id2) {
+			return isFinite(distRowStart(id1) + id2 - (id1 + 1));
+		}
+		
+		public boolean isAzimuthCached(int id1, int id2) {
+			return isFinite(azStart + (long)id1*numSects + id2);
+		}
+		
+		/**
+		 * Fills in any non-finite values in dest from this file, starting at the given value index
+		 */
+		private void fill(long start, double[] dest, int num) {
+			long mask = (1l << BINARY_CHUNK_SHIFT) - 1;
+			for (int i=0; i<num; i++) {
+				if (Double.isFinite(dest[i]))
+					continue;
+				long index = start + i;
+				double val = chunks[(int)(index >> BINARY_CHUNK_SHIFT)].get((int)(index & mask));
+				if (Double.isFinite(val))
+					dest[i] = val;
+			}
+		}
+		
+		public void fillDistances(int id1, double[] row) {
+			fill(distRowStart(id1), row, numSects-id1-1);
+		}
+		
+		public void fillAzimuths(int id1, double[] row) {
+			fill(azStart + (long)id1*numSects, row, numSects);
+		}
+	}
+	
 	public static void main(String[] args) throws ZipException, IOException, DocumentException {
 		File rupSetFile = new File("/home/kevin/OpenSHA/UCERF4/rup_sets/fm3_1_ucerf3.zip");
 		FaultSystemRupSet rupSet = FaultSystemIO.loadRupSet(rupSetFile);
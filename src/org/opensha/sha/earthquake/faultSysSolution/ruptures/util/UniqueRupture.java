@@ -3,75 +3,168 @@ package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.FaultSubsectionCluster;
 import org.opensha.sha.faultSurface.FaultSection;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 
 /**
  * Unique rupture as defined only by the set of subsection IDs included (regardless of order)
- * 
+ * <br>
+ * ID ranges are stored packed in a single int array, sorted by start ID, as [start0, end0, start1, end1, ...].
+ * Adjacent ranges are always combined, so that the packed array (and the hash code, which is precomputed from it)
+ * is identical for any two ruptures with the same set of IDs.
+ *
  * @author kevin
  *
  */
 public class UniqueRupture {
-	
-	private final SectIDRange[] ranges;
-	private int size;
-	
+
+	private final int[] ranges;
+	private final int size;
+	private final long hash;
+
 	public static UniqueRupture forIDs(Collection<Integer> sectIDs) {
 		return new Builder().add(sectIDs).build();
 	}
-	
+
 	public static UniqueRupture forSects(Collection<? extends FaultSection> sects) {
 		List<Integer> ids = new ArrayList<>(sects.size());
 		for (FaultSection sect : sects)
 			ids.add(sect.getSectionId());
 		return new Builder().add(ids).build();
 	}
-	
+
 	public static UniqueRupture forClusters(FaultSubsectionCluster... clusters) {
+		if (clusters.length == 1)
+			return clusters[0].unique;
 		Builder builder = new Builder();
 		for (FaultSubsectionCluster cluster : clusters)
-			for (SectIDRange range : cluster.unique.ranges)
-				builder.add(range);
+			builder.add(cluster.unique);
 		return builder.build();
 	}
-	
+
 	public static UniqueRupture add(UniqueRupture... uniques) {
+		if (uniques.length == 1)
+			return uniques[0];
+		if (uniques.length == 2)
+			return add(uniques[0], uniques[1]);
 		Builder builder = new Builder();
 		for (UniqueRupture unique : uniques)
-			for (SectIDRange range : unique.ranges)
-				builder.add(range);
+			builder.add(unique);
 		return builder.build();
 	}
-	
+
+	/**
+	 * Fast path for the common case of adding a cluster to a rupture: the two sorted range arrays are merged
+	 * directly into the new packed array without an intermediate builder.
+	 *
+	 * @param unique1
+	 * @param unique2
+	 * @return union of the two
+	 * @throws IllegalStateException if the two overlap
+	 */
+	public static UniqueRupture add(UniqueRupture unique1, UniqueRupture unique2) {
+		int[] merged = new int[unique1.ranges.length + unique2.ranges.length];
+		int len = merge(unique1.ranges, unique1.ranges.length, unique2.ranges, unique2.ranges.length, merged);
+		Preconditions.checkState(len >= 0, "Overlappping ID ranges detected: %s %s", unique1, unique2);
+		if (len < merged.length)
+			merged = Arrays.copyOf(merged, len);
+		return new UniqueRupture(merged, unique1.size + unique2.size);
+	}
+
+	/**
+	 * Merges two sorted packed range arrays into dest, combining adjacent ranges.
+	 *
+	 * @return number of values written to dest, or -1 if any ranges overlap
+	 */
+	private static int merge(int[] ranges1, int len1, int[] ranges2, int len2, int[] dest) {
+		int i1 = 0;
+		int i2 = 0;
+		int len = 0;
+		while (i1 < len1 || i2 < len2) {
+			int start, end;
+			if (i2 >= len2 || (i1 < len1 && ranges1[i1] < ranges2[i2])) {
+				start = ranges1[i1++];
+				end = ranges1[i1++];
+			} else {
+				start = ranges2[i2++];
+				end = ranges2[i2++];
+			}
+			if (len > 0) {
+				int prevEnd = dest[len-1];
+				if (start <= prevEnd)
+					return -1;
+				if (start == prevEnd+1) {
+					// combine them
+					dest[len-1] = end;
+					continue;
+				}
+			}
+			dest[len++] = start;
+			dest[len++] = end;
+		}
+		return len;
+	}
+
+	private static long hash(int[] ranges, int len) {
+		long h = len;
+		for (int i=0; i<len; i++)
+			h = h*0x9E3779B97F4A7C15L + ranges[i];
+		// final avalanche mix (from MurmurHash3)
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int intHash(long hash) {
+		return (int)(hash ^ (hash >>> 32));
+	}
+
+	private static boolean rangesEqual(int[] ranges1, int[] ranges2, int len) {
+		for (int i=0; i<len; i++)
+			if (ranges1[i] != ranges2[i])
+				return false;
+		return true;
+	}
+
 	public static Builder builder() {
 		return new Builder();
 	}
-	
+
 	public static class Builder {
-		
-		private List<SectIDRange> list;
+
+		private int[] ranges;
+		private int numRanges;
 		private int size;
-		
+
 		private Builder() {
-			list = new ArrayList<>();
+			ranges = new int[8];
+			numRanges = 0;
 			size = 0;
 		}
-		
-		private int insertionIndex(SectIDRange range) {
-			int index = Collections.binarySearch(list, range);
-			if (index < 0)
-				index = -(index + 1);
-			return index;
+
+		/**
+		 * @return index of the first range with a start ID greater than the given ID
+		 */
+		private int insertionIndex(int startID) {
+			int low = 0;
+			int high = numRanges;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (ranges[2*mid] > startID)
+					high = mid;
+				else
+					low = mid+1;
+			}
+			return low;
 		}
-		
+
 		private boolean contiguous(List<Integer> ids, boolean increasing) {
 			if (increasing) {
 				int prev = ids.get(0);
@@ -93,13 +186,14 @@ public class UniqueRupture {
 				return true;
 			}
 		}
-		
+
 		public Builder add(Collection<Integer> ids) {
 			if (ids.size() == 1) {
 				int id = ids.iterator().next();
-				add(SectIDRange.build(id, id));
+				add(id, id);
 				return this;
 			}
+			int prevSize = size;
 			if (ids instanceof List<?>) {
 				// look for special case of contiguous
 				List<Integer> list = (List<Integer>)ids;
@@ -108,17 +202,15 @@ public class UniqueRupture {
 				int last = list.get(lastIndex);
 				if (last == first+lastIndex && contiguous(list, true)) {
 					// increasing and contiguous
-					add(SectIDRange.build(first, last));
+					add(first, last);
 					return this;
 				}
 				if (first == last+lastIndex && contiguous(list, false)) {
 					// decreasing and contiguous
-					add(SectIDRange.build(last, first));
+					add(last, first);
 					return this;
 				}
 			}
-//			Preconditions.checkState(size == 0, // TODO I don't think this is the case. check?
-//					"buildFrom can only be called when empty, have %s already", size);
 			int rangeStartID = Integer.MIN_VALUE;
 			int rangeEndID = -2;
 			boolean backwards = false;
@@ -137,9 +229,9 @@ public class UniqueRupture {
 					// it's a break in the range
 					if (rangeStartID != Integer.MIN_VALUE) {
 						if (backwards)
-							add(SectIDRange.build(rangeEndID, rangeStartID));
+							add(rangeEndID, rangeStartID);
 						else
-							add(SectIDRange.build(rangeStartID, rangeEndID));
+							add(rangeStartID, rangeEndID);
 					}
 					rangeStartID = id;
 					rangeEndID = id;
@@ -148,101 +240,198 @@ public class UniqueRupture {
 			}
 			if (rangeStartID != Integer.MIN_VALUE) {
 				if (backwards)
-					add(SectIDRange.build(rangeEndID, rangeStartID));
+					add(rangeEndID, rangeStartID);
 				else
-					add(SectIDRange.build(rangeStartID, rangeEndID));
+					add(rangeStartID, rangeEndID);
 			}
-			Preconditions.checkState(ids.size() == size,
-					"Size mismatch, duplicates? Expected %s, have %s", ids.size(), size);
-			
+			Preconditions.checkState(ids.size() == size - prevSize,
+					"Size mismatch, duplicates? Expected %s, have %s", ids.size(), size - prevSize);
+
 			return this;
 		}
-		
+
 		public Builder add(SectIDRange range) {
-			if (list.isEmpty()) {
-				list.add(range);
-				size += range.size();
+			return add(range.getStartID(), range.getEndID());
+		}
+
+		/**
+		 * Adds all ranges from the given unique rupture, which must not overlap with any already added
+		 * @param unique
+		 * @return this builder
+		 */
+		public Builder add(UniqueRupture unique) {
+			if (numRanges == 0) {
+				// simple copy
+				ensureCapacity(unique.ranges.length);
+				System.arraycopy(unique.ranges, 0, ranges, 0, unique.ranges.length);
+				numRanges = unique.ranges.length/2;
+				size = unique.size;
 				return this;
 			}
-			int index = insertionIndex(range);
-			int sizeAdd = range.size();
+			for (int i=0; i<unique.ranges.length; i+=2)
+				add(unique.ranges[i], unique.ranges[i+1]);
+			return this;
+		}
+
+		private void ensureCapacity(int length) {
+			if (length > ranges.length)
+				ranges = Arrays.copyOf(ranges, Integer.max(length, 2*ranges.length));
+		}
+
+		private Builder add(int startID, int endID) {
+			Preconditions.checkArgument(startID >= 0, "startID=%s must be >= 0", startID);
+			Preconditions.checkArgument(endID >= startID, "startID=%s must be >= endID=%s", startID, endID);
+			int index = insertionIndex(startID);
+			boolean combineBefore = false;
 			if (index > 0) {
-				SectIDRange before = list.get(index-1);
-				Preconditions.checkState(range.getStartID() > before.getEndID(),
-						"Overlappping ID ranges detected: %s %s", before, range);
-				if (range.getStartID() == before.getEndID()+1) {
-					// combine them
-					list.remove(index-1);
-					index--;
-					range = SectIDRange.build(before.getStartID(), range.getEndID());
-				}
+				int beforeEnd = ranges[2*index-1];
+				Preconditions.checkState(startID > beforeEnd, "Overlappping ID ranges detected: [%s,%s] [%s,%s]",
+						ranges[2*index-2], beforeEnd, startID, endID);
+				combineBefore = startID == beforeEnd+1;
 			}
-			if (index < list.size()) {
-				SectIDRange after = list.get(index);
-				Preconditions.checkState(range.getEndID() < after.getStartID(),
-						"Overlappping ID ranges detected: %s %s", range, after);
-				if (range.getEndID() == after.getStartID()-1) {
-					// combine them
-					list.remove(index);
-					range = SectIDRange.build(range.getStartID(), after.getEndID());
-				}
+			boolean combineAfter = false;
+			if (index < numRanges) {
+				int afterStart = ranges[2*index];
+				Preconditions.checkState(endID < afterStart, "Overlappping ID ranges detected: [%s,%s] [%s,%s]",
+						startID, endID, afterStart, ranges[2*index+1]);
+				combineAfter = endID == afterStart-1;
+			}
+			if (combineBefore && combineAfter) {
+				// fills the gap between two ranges, combine all three
+				ranges[2*index-1] = ranges[2*index+1];
+				System.arraycopy(ranges, 2*index+2, ranges, 2*index, 2*(numRanges-index-1));
+				numRanges--;
+			} else if (combineBefore) {
+				ranges[2*index-1] = endID;
+			} else if (combineAfter) {
+				ranges[2*index] = startID;
+			} else {
+				// insert it
+				ensureCapacity(2*numRanges+2);
+				System.arraycopy(ranges, 2*index, ranges, 2*index+2, 2*(numRanges-index));
+				ranges[2*index] = startID;
+				ranges[2*index+1] = endID;
+				numRanges++;
 			}
-			list.add(index, range);
-			size += sizeAdd;
-			
+			size += 1 + endID - startID;
+
 			return this;
 		}
-		
+
 		public UniqueRupture build() {
-			return new UniqueRupture(list.toArray(new SectIDRange[list.size()]), size);
+			return new UniqueRupture(Arrays.copyOf(ranges, 2*numRanges), size);
 		}
 	}
 
-	private UniqueRupture(SectIDRange[] ranges, int size) {
+	/**
+	 * Lookup key for the union of two unique ruptures, which can be used to test membership in a hash based
+	 * collection of {@link UniqueRupture}'s (e.g., <code>set.contains(probe)</code>) without materializing the union.
+	 * The merged ranges are written to a scratch buffer which is reused across calls, so a single probe can be
+	 * reused by one thread for many lookups. A probe is never equal to another probe, and should only be used for
+	 * lookups (never stored in a collection).
+	 *
+	 * @author kevin
+	 *
+	 */
+	public static class Probe {
+
+		private int[] scratch = new int[16];
+		private int len;
+		private int size;
+		private long hash;
+
+		/**
+		 * Sets this probe to the union of the given unique ruptures
+		 *
+		 * @param unique1
+		 * @param unique2
+		 * @return false if the two overlap (and thus the union is not a valid rupture), true otherwise
+		 */
+		public boolean set(UniqueRupture unique1, UniqueRupture unique2) {
+			int maxLen = unique1.ranges.length + unique2.ranges.length;
+			if (maxLen > scratch.length)
+				scratch = new int[Integer.max(maxLen, 2*scratch.length)];
+			len = merge(unique1.ranges, unique1.ranges.length, unique2.ranges, unique2.ranges.length, scratch);
+			if (len < 0) {
+				size = -1;
+				hash = 0l;
+				return false;
+			}
+			size = unique1.size + unique2.size;
+			hash = UniqueRupture.hash(scratch, len);
+			return true;
+		}
+
+		/**
+		 * @return the current union as a new unique rupture
+		 */
+		public UniqueRupture build() {
+			Preconditions.checkState(len >= 0, "Probe is not set to a valid rupture");
+			return new UniqueRupture(Arrays.copyOf(scratch, len), size, hash);
+		}
+
+		public long longHashCode() {
+			return hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return intHash(hash);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof UniqueRupture) || len < 0)
+				return false;
+			UniqueRupture other = (UniqueRupture)obj;
+			return size == other.size && hash == other.hash && len == other.ranges.length
+					&& rangesEqual(scratch, other.ranges, len);
+		}
+	}
+
+	private UniqueRupture(int[] ranges, int size) {
+		this(ranges, size, hash(ranges, ranges.length));
+	}
+
+	private UniqueRupture(int[] ranges, int size, long hash) {
 		this.ranges = ranges;
 		this.size = size;
+		this.hash = hash;
 	}
-	
+
 	public int size() {
 		return size;
 	}
-	
-	private static final Comparator<SectIDRange> containsCompare = new Comparator<SectIDRange>() {
 
-		@Override
-		public int compare(SectIDRange o1, SectIDRange o2) {
-			if (o1.size() == 1 && o2.contains(o1.getStartID()) || o2.size() == 1 && o1.contains(o2.getStartID()))
-				return 0;
-			return Integer.compare(o1.getStartID(), o2.getStartID());
-		}
-		
-	};
-	
 	public boolean contains(int id) {
-		if (ranges.length == 0)
+		int numRanges = ranges.length/2;
+		if (numRanges == 0)
 			return false;
-		if (ranges.length == 1)
-			return ranges[0].contains(id);
-		int index = Arrays.binarySearch(ranges, SectIDRange.build(id, id), containsCompare);
-		return index >= 0;
+		if (numRanges == 1)
+			return id >= ranges[0] && id <= ranges[1];
+		// find the last range with start ID <= id
+		int low = 0;
+		int high = numRanges-1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (ranges[2*mid] > id)
+				high = mid-1;
+			else
+				low = mid;
+		}
+		return id >= ranges[2*low] && id <= ranges[2*low+1];
+	}
+
+	/**
+	 * @return precomputed 64-bit hash of the ID ranges
+	 */
+	public long longHashCode() {
+		return hash;
 	}
-	
-	private int hashCode = -1;
 
 	@Override
 	public int hashCode() {
-		if (hashCode == -1) {
-			synchronized (this) {
-				if (hashCode == -1) {
-					final int prime = 31;
-					int result = 1;
-					for (SectIDRange range : ranges)
-					     result = prime * result + (range == null ? 0 : range.hashCode());
-					hashCode = result;
-				}
-			}
-		}
-		return hashCode;
+		return intHash(hash);
 	}
 
 	@Override
@@ -254,31 +443,29 @@ public class UniqueRupture {
 		if (getClass() != obj.getClass())
 			return false;
 		UniqueRupture other = (UniqueRupture) obj;
-		if (size != other.size)
+		if (size != other.size || hash != other.hash)
 			return false;
-		if (ranges == null) {
-			if (other.ranges != null)
-				return false;
-		} else if (!Arrays.equals(ranges, other.ranges))
-			return false;
-		return true;
+		return Arrays.equals(ranges, other.ranges);
 	}
-	
+
 	/**
-	 * @return immutable view of the list of ID ranges
+	 * @return copy of the list of ID ranges
 	 */
 	public SectIDRange[] getRanges() {
-		return Arrays.copyOf(ranges, ranges.length);
+		SectIDRange[] ret = new SectIDRange[ranges.length/2];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = SectIDRange.build(ranges[2*i], ranges[2*i+1]);
+		return ret;
 	}
-	
+
 	@Override
 	public String toString() {
 		StringBuilder str = new StringBuilder();
 		str.append("UniqueRupture(size="+size+"): ");
-		for (int i=0; i<ranges.length; i++) {
+		for (int i=0; i<ranges.length; i+=2) {
 			if (i > 0)
 				str.append(",");
-			str.append(ranges[i]);
+			str.append("[").append(ranges[i]).append(",").append(ranges[i+1]).append("]");
 		}
 		return str.toString();
 	}
@@ -1,16 +1,27 @@
 package org.opensha.sha.simulators.stiffness;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.opensha.commons.data.CSVFile;
 import org.opensha.sha.faultSurface.FaultSection;
@@ -31,6 +42,9 @@ public class AggregatedStiffnessCache {
 	private List<? extends FaultSection> sects;
 	private StiffnessType type;
 	
+	// binary cache files which rows are lazily loaded from
+	private List<MappedCacheFile> mappedCaches = new CopyOnWriteArrayList<>();
+	
 	AggregatedStiffnessCache(SubSectStiffnessCalculator calc, StiffnessType type) {
 		this.calc = calc;
 		this.type = type;
@@ -43,6 +57,7 @@ public class AggregatedStiffnessCache {
 	}
 	
 	public synchronized void clear() {
+		mappedCaches.clear();
 		fullDistCache = null;
 		patchSectAggregatedCache.clear();
 		patchAggregatedCache.clear();
@@ -68,14 +83,43 @@ public class AggregatedStiffnessCache {
 	}
 	
 	public StiffnessAggregation getSectAggregated(AggregationMethod patchAggMethod, FaultSection source, FaultSection receiver) {
-		StiffnessAggregation[][] cache;
-		if (patchAggMethod == null)
-			cache = fullDistCache;
-		else
-			cache = patchSectAggregatedCache.get(patchAggMethod);
-		if (cache == null || cache[receiver.getSectionId()] == null)
+		int receiverID = receiver.getSectionId();
+		StiffnessAggregation[][] cache = getSectAggregatedCache(patchAggMethod);
+		if ((cache == null || cache[receiverID] == null) && !mappedCaches.isEmpty())
+			cache = loadMappedRow(patchAggMethod, receiverID);
+		if (cache == null || cache[receiverID] == null)
 			return null;
-		return cache[receiver.getSectionId()][source.getSectionId()];
+		return cache[receiverID][source.getSectionId()];
+	}
+	
+	private StiffnessAggregation[][] getSectAggregatedCache(AggregationMethod patchAggMethod) {
+		if (patchAggMethod == null)
+			return fullDistCache;
+		return patchSectAggregatedCache.get(patchAggMethod);
+	}
+	
+	/**
+	 * Loads the given receiver row from any mapped binary cache files which contain this patch aggregation method.
+	 * The row is created (empty if needed) if any file has this method, so that we don't check again.
+	 * 
+	 * @return the cache for this patch aggregation method
+	 */
+	private synchronized StiffnessAggregation[][] loadMappedRow(AggregationMethod patchAggMethod, int receiverID) {
+		StiffnessAggregation[][] cache = getSectAggregatedCache(patchAggMethod);
+		if (cache != null && cache[receiverID] != null)
+			// already loaded by another thread
+			return cache;
+		boolean found = false;
+		for (MappedCacheFile mapped : mappedCaches) {
+			MappedBlock block = mapped.blocks.get(patchAggMethod);
+			if (block != null) {
+				found = true;
+				block.loadRow(receiverID);
+			}
+		}
+		if (found)
+			getRow(patchAggMethod, receiverID);
+		return getSectAggregatedCache(patchAggMethod);
 	}
 	
 	public synchronized void putSectAggregated(AggregationMethod patchAggMethod, FaultSection source,
@@ -84,6 +128,13 @@ public class AggregatedStiffnessCache {
 	}
 	
 	private void putSectAggregated(AggregationMethod patchAggMethod, int sourceID, int receiverID, StiffnessAggregation aggregated) {
+		getRow(patchAggMethod, receiverID)[sourceID] = aggregated;
+	}
+	
+	/**
+	 * @return the row for the given receiver and patch aggregation method, creating it if needed
+	 */
+	private StiffnessAggregation[] getRow(AggregationMethod patchAggMethod, int receiverID) {
 		StiffnessAggregation[][] cache;
 		if (patchAggMethod == null) {
 			if (fullDistCache == null)
@@ -100,42 +151,109 @@ public class AggregatedStiffnessCache {
 		}
 		if (cache[receiverID] == null)
 			cache[receiverID] = new StiffnessAggregation[sects.size()];
-		cache[receiverID][sourceID] = aggregated;
+		return cache[receiverID];
 	}
 	
-	public int calcCacheSize() {
-		int size = calcCacheSize(fullDistCache);
-		for (StiffnessAggregation[][] cache : patchSectAggregatedCache.values())
-			size += calcCacheSize(cache);
+	/**
+	 * @return number of cached values, including those in any mapped binary cache files which haven't been loaded
+	 * yet (which are counted without loading them)
+	 */
+	public synchronized int calcCacheSize() {
+		// HashSet allows the null key (full distribution)
+		HashSet<AggregationMethod> patchMethods = new HashSet<>();
+		if (fullDistCache != null)
+			patchMethods.add(null);
+		patchMethods.addAll(patchSectAggregatedCache.keySet());
+		for (MappedCacheFile mapped : mappedCaches)
+			patchMethods.addAll(mapped.blocks.keySet());
+		int size = 0;
+		for (AggregationMethod patchMethod : patchMethods)
+			size += calcCacheSize(patchMethod);
 		return size;
 	}
 	
-	private int calcCacheSize(StiffnessAggregation[][] cache) {
-		if (cache == null)
-			return 0;
+	private int calcCacheSize(AggregationMethod patchAggMethod) {
+		StiffnessAggregation[][] cache = getSectAggregatedCache(patchAggMethod);
+		List<MappedBlock> unloaded = new ArrayList<>();
+		boolean[] counted = null;
 		int cached = 0;
-		for (int i=0; i<cache.length; i++) {
-			if (cache[i] == null)
+		for (int r=0; r<sects.size(); r++) {
+			StiffnessAggregation[] row = cache == null ? null : cache[r];
+			unloaded.clear();
+			for (MappedCacheFile mapped : mappedCaches) {
+				MappedBlock block = mapped.blocks.get(patchAggMethod);
+				if (block != null && !block.rowLoaded[r])
+					unloaded.add(block);
+			}
+			if (row == null && unloaded.size() == 1) {
+				// only in a single mapped file, we can use the count directly
+				cached += unloaded.get(0).getRowCount(r);
+				continue;
+			}
+			if (unloaded.isEmpty()) {
+				if (row != null)
+					for (StiffnessAggregation agg : row)
+						if (agg != null)
+							cached++;
 				continue;
-			for (int j=0; j<cache.length; j++) {
-				if (cache[i][j] != null)
-					cached++;
 			}
+			// need the union of sources from memory and each mapped file
+			if (counted == null)
+				counted = new boolean[sects.size()];
+			else
+				Arrays.fill(counted, false);
+			if (row != null)
+				for (int s=0; s<row.length; s++)
+					counted[s] = row[s] != null;
+			for (MappedBlock block : unloaded)
+				block.markRowSources(r, counted);
+			for (boolean val : counted)
+				if (val)
+					cached++;
 		}
 		return cached;
 	}
 	
+	/**
+	 * @return CSV cache file name which is specific to the parameters of this cache
+	 */
 	public String getCacheFileName() {
+		return getCacheFileName(false);
+	}
+	
+	/**
+	 * @param binary
+	 * @return cache file name which is specific to the parameters of this cache, with a .bin extension if binary
+	 * or .csv otherwise
+	 */
+	public String getCacheFileName(boolean binary) {
+		return getCacheKey()+(binary ? ".bin" : ".csv");
+	}
+	
+	private String getCacheKey() {
 		DecimalFormat df = new DecimalFormat("0.##");
 		String ret = type.name().toLowerCase()+"_cache_"+sects.size()+"sects_"+df.format(calc.getGridSpacing())
 			+"km_lambda"+df.format(calc.getLameLambda())+"_mu"+df.format(calc.getLameMu())+"_coeff"+(float)calc.getCoeffOfFriction()
 			+"_align"+calc.getPatchAlignment().name();
 		if (calc.getSelfStiffnessCap() > 0)
 			ret += "_stiffCap"+df.format(calc.getSelfStiffnessCap())+"x";
-		return ret+".csv";
+		return ret;
 	}
 	
-	public void writeCacheFile(File cacheFile) throws IOException {
+	/**
+	 * Writes all cached section aggregations to the given file. If the file name ends with .bin, the binary format
+	 * will be used, otherwise CSV.
+	 * 
+	 * @param cacheFile
+	 * @throws IOException
+	 */
+	public synchronized void writeCacheFile(File cacheFile) throws IOException {
+		// load everything from any mapped files first, as we may be about to overwrite one
+		loadAllMapped();
+		if (cacheFile.getName().toLowerCase().endsWith(".bin")) {
+			writeBinaryCacheFile(cacheFile);
+			return;
+		}
 		CSVFile<String> csv = new CSVFile<>(true);
 		List<String> line = new ArrayList<>();
 		line.add("Source ID");
@@ -171,7 +289,18 @@ public class AggregatedStiffnessCache {
 		}
 	}
 	
+	/**
+	 * Loads cached section aggregations from the given file, which can be either binary or CSV. Binary files are
+	 * memory mapped and rows are loaded lazily as they are needed. Values already cached are retained, so partial
+	 * caches (e.g., from parallel workers) can be merged by loading each then writing the result.
+	 * 
+	 * @param cacheFile
+	 * @return the number of values in the file, or zero if the file is not compatible with this cache
+	 * @throws IOException
+	 */
 	public int loadCacheFile(File cacheFile) throws IOException {
+		if (isBinaryCacheFile(cacheFile))
+			return mapBinaryCacheFile(cacheFile);
 		System.out.println("Loading "+type+" cache from "+cacheFile.getAbsolutePath()+"...");
 //		CSVFile<String> csv = CSVFile.readFile(cacheFile, true);
 		BufferedInputStream bis = new BufferedInputStream(new FileInputStream(cacheFile), 1024*64);
@@ -229,6 +358,9 @@ public class AggregatedStiffnessCache {
 	public void copyCacheFrom(AggregatedStiffnessCache o) {
 		Preconditions.checkState(type == o.type);
 		Preconditions.checkState(sects.size() == o.sects.size());
+		synchronized (o) {
+			o.loadAllMapped();
+		}
 		
 		copyCacheFrom(null, o.fullDistCache);
 		for (AggregationMethod aggMethod : patchSectAggregatedCache.keySet())
@@ -247,4 +379,332 @@ public class AggregatedStiffnessCache {
 		}
 	}
 
+	/*
+	 * Binary cache file format, which is memory mapped and loaded lazily by receiver. All values are little endian
+	 * (except for the magic number). Strings are stored as an int byte count followed by UTF-8 bytes.
+	 * 
+	 * header: magic number, int version, int number of sections, string cache key (see getCacheKey()), int number of
+	 * aggregation methods, method name strings, int number of blocks
+	 * each block: string patch aggregation method name (empty for the full distribution), long number of values,
+	 * (sections+1) longs of file offsets to the start of each receiver's values, then the values for each receiver.
+	 * Each value is an int source ID followed by a double for each aggregation method
+	 */
+	private static final int BINARY_MAGIC = 0x89535443; // 0x89 'S' 'T' 'C'
+	private static final int BINARY_VERSION = 1;
+	// maximum size of each mapped chunk (1 GB)
+	private static final long BINARY_MAX_CHUNK_BYTES = 1l << 30;
+	
+	private void writeBinaryCacheFile(File cacheFile) throws IOException {
+		AggregationMethod[] methods = AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS.toArray(new AggregationMethod[0]);
+		int valueBytes = 4 + 8*methods.length;
+		
+		List<AggregationMethod> blockMethods = new ArrayList<>();
+		List<StiffnessAggregation[][]> blockCaches = new ArrayList<>();
+		if (fullDistCache != null) {
+			blockMethods.add(null);
+			blockCaches.add(fullDistCache);
+		}
+		for (AggregationMethod patchMethod : patchSectAggregatedCache.keySet()) {
+			blockMethods.add(patchMethod);
+			blockCaches.add(patchSectAggregatedCache.get(patchMethod));
+		}
+		
+		int num = sects.size();
+		long numValues = 0;
+		// write to a temporary file first, as other processes may have the existing file mapped
+		File tempFile = new File(cacheFile.getAbsolutePath()+".tmp");
+		try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1024*64);
+			buffer.order(ByteOrder.BIG_ENDIAN).putInt(BINARY_MAGIC);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(BINARY_VERSION);
+			buffer.putInt(num);
+			putString(buffer, getCacheKey());
+			buffer.putInt(methods.length);
+			for (AggregationMethod method : methods)
+				putString(buffer, method.name());
+			buffer.putInt(blockCaches.size());
+			// track the file position ourselves for the row offsets
+			long pos = buffer.position();
+			
+			for (int b=0; b<blockCaches.size(); b++) {
+				StiffnessAggregation[][] cache = blockCaches.get(b);
+				int[] counts = new int[num];
+				long blockValues = 0;
+				for (int r=0; r<num; r++) {
+					if (cache[r] == null)
+						continue;
+					for (StiffnessAggregation agg : cache[r])
+						if (agg != null)
+							counts[r]++;
+					blockValues += counts[r];
+				}
+				String name = blockMethods.get(b) == null ? "" : blockMethods.get(b).name();
+				flushIfNeeded(channel, buffer, 4 + 4*name.length() + 8);
+				int headerStart = buffer.position();
+				putString(buffer, name);
+				buffer.putLong(blockValues);
+				pos += buffer.position() - headerStart;
+				long offset = pos + 8l*(num+1);
+				for (int r=0; r<=num; r++) {
+					flushIfNeeded(channel, buffer, 8);
+					buffer.putLong(offset);
+					if (r < num)
+						offset += (long)counts[r]*valueBytes;
+				}
+				for (int r=0; r<num; r++) {
+					if (counts[r] == 0)
+						continue;
+					for (int s=0; s<num; s++) {
+						StiffnessAggregation agg = cache[r][s];
+						if (agg == null)
+							continue;
+						flushIfNeeded(channel, buffer, valueBytes);
+						buffer.putInt(s);
+						for (AggregationMethod method : methods)
+							buffer.putDouble(agg.get(method));
+					}
+				}
+				pos = offset;
+				numValues += blockValues;
+			}
+			flush(channel, buffer);
+			Preconditions.checkState(channel.position() == pos, "Binary cache file size mismatch: %s != %s",
+					channel.position(), pos);
+		}
+		Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("Wrote binary "+type+" cache with "+numValues+" values");
+	}
+	
+	private static void putString(ByteBuffer buffer, String str) {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+	
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static void flushIfNeeded(FileChannel channel, ByteBuffer buffer, int bytesNeeded) throws IOException {
+		if (buffer.remaining() < bytesNeeded)
+			flush(channel, buffer);
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+	
+	private static boolean isBinaryCacheFile(File file) throws IOException {
+		if (file.length() < 8)
+			return false;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == BINARY_MAGIC;
+		}
+	}
+	
+	private int mapBinaryCacheFile(File cacheFile) throws IOException {
+		System.out.println("Mapping "+type+" cache from "+cacheFile.getAbsolutePath()+"...");
+		MappedCacheFile mapped;
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+			// header and block indexes are small, read them into memory
+			ByteBuffer header = ByteBuffer.allocate((int)Long.min(channel.size(), 1024*64));
+			channel.read(header, 0l);
+			header.flip();
+			header.order(ByteOrder.BIG_ENDIAN).getInt();
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			int version = header.getInt();
+			Preconditions.checkState(version == BINARY_VERSION, "Unsupported stiffness cache file version: %s", version);
+			int num = header.getInt();
+			String key = getString(header);
+			if (num != sects.size() || !key.equals(getCacheKey())) {
+				System.err.println("Warning: stiffness cache file is for different parameters ("+key+"), skipping loading");
+				return 0;
+			}
+			AggregationMethod[] methods = new AggregationMethod[header.getInt()];
+			HashSet<AggregationMethod> prevMethods = new HashSet<>();
+			for (int i=0; i<methods.length; i++) {
+				String name = getString(header);
+				try {
+					methods[i] = AggregationMethod.valueOf(name);
+				} catch (IllegalArgumentException e) {
+					System.err.println("Warning: aggregation methods have changed (can't find '"+name+"') and cache is now invalid, skipping loading");
+					return 0;
+				}
+				prevMethods.add(methods[i]);
+			}
+			if (!prevMethods.equals(AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS)
+					|| prevMethods.size() != methods.length) {
+				System.err.println("Warning: aggregation methods have changed and cache is now invalid, skipping loading");
+				return 0;
+			}
+			int numBlocks = header.getInt();
+			long pos = header.position();
+			
+			mapped = new MappedCacheFile(methods);
+			int valueBytes = 4 + 8*methods.length;
+			for (int b=0; b<numBlocks; b++) {
+				ByteBuffer blockHeader = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+				channel.read(blockHeader, pos);
+				blockHeader.flip();
+				String name = getString(blockHeader);
+				AggregationMethod patchMethod = name.isEmpty() ? null : AggregationMethod.valueOf(name);
+				long blockValues = blockHeader.getLong();
+				pos += blockHeader.position();
+				
+				ByteBuffer offsetBuffer = ByteBuffer.allocate(8*(num+1)).order(ByteOrder.LITTLE_ENDIAN);
+				while (offsetBuffer.hasRemaining())
+					Preconditions.checkState(channel.read(offsetBuffer, pos + offsetBuffer.position()) >= 0,
+							"Stiffness cache file is truncated: %s", cacheFile);
+				offsetBuffer.flip();
+				long[] offsets = new long[num+1];
+				offsetBuffer.asLongBuffer().get(offsets);
+				Preconditions.checkState(offsets[num] - offsets[0] == blockValues*valueBytes
+						&& offsets[num] <= channel.size(), "Stiffness cache file is truncated: %s", cacheFile);
+				
+				mapped.blocks.put(patchMethod, new MappedBlock(mapped, channel, patchMethod, offsets, valueBytes));
+				mapped.numValues += blockValues;
+				pos = offsets[num];
+			}
+		}
+		// merge into any rows which are already loaded, others will be loaded from the file when first needed
+		synchronized (this) {
+			for (MappedBlock block : mapped.blocks.values()) {
+				StiffnessAggregation[][] cache = getSectAggregatedCache(block.patchMethod);
+				if (cache == null)
+					continue;
+				for (int r=0; r<cache.length; r++)
+					if (cache[r] != null)
+						block.loadRow(r);
+			}
+			mappedCaches.add(mapped);
+		}
+		System.out.println("Mapped "+mapped.numValues+" values");
+		return (int)Long.min(Integer.MAX_VALUE, mapped.numValues);
+	}
+	
+	/**
+	 * Loads all rows from mapped cache files into memory, after which the mapped files are no longer needed. Must be
+	 * called while synchronized on this cache.
+	 */
+	private void loadAllMapped() {
+		if (mappedCaches.isEmpty())
+			return;
+		for (MappedCacheFile mapped : mappedCaches)
+			for (MappedBlock block : mapped.blocks.values())
+				for (int r=0; r<sects.size(); r++)
+					block.loadRow(r);
+		mappedCaches.clear();
+	}
+	
+	private class MappedCacheFile {
+		
+		private final AggregationMethod[] methods;
+		private final Map<AggregationMethod, MappedBlock> blocks;
+		private long numValues;
+		
+		public MappedCacheFile(AggregationMethod[] methods) {
+			this.methods = methods;
+			// HashMap allows the null key (full distribution)
+			this.blocks = new HashMap<>();
+		}
+	}
+	
+	private class MappedBlock {
+		
+		private final MappedCacheFile file;
+		private final AggregationMethod patchMethod;
+		private final long[] offsets;
+		private final int valueBytes;
+		private final boolean[] rowLoaded;
+		
+		// mapped chunks, each of which contains whole rows
+		private final ByteBuffer[] chunks;
+		private final long[] chunkStarts;
+		private final int[] rowChunks;
+		
+		public MappedBlock(MappedCacheFile file, FileChannel channel, AggregationMethod patchMethod,
+				long[] offsets, int valueBytes) throws IOException {
+			this.file = file;
+			this.patchMethod = patchMethod;
+			this.offsets = offsets;
+			this.valueBytes = valueBytes;
+			int num = offsets.length-1;
+			this.rowLoaded = new boolean[num];
+			
+			// group rows into chunks
+			rowChunks = new int[num];
+			List<Long> starts = new ArrayList<>();
+			List<Long> ends = new ArrayList<>();
+			starts.add(offsets[0]);
+			ends.add(offsets[0]);
+			for (int r=0; r<num; r++) {
+				if (offsets[r+1] - starts.get(starts.size()-1) > BINARY_MAX_CHUNK_BYTES) {
+					starts.add(offsets[r]);
+					ends.add(offsets[r]);
+				}
+				rowChunks[r] = starts.size()-1;
+				ends.set(ends.size()-1, offsets[r+1]);
+			}
+			chunks = new ByteBuffer[starts.size()];
+			chunkStarts = new long[starts.size()];
+			for (int c=0; c<chunks.length; c++) {
+				chunkStarts[c] = starts.get(c);
+				// mappings stay valid after the channel is closed
+				chunks[c] = channel.map(MapMode.READ_ONLY, chunkStarts[c], ends.get(c) - chunkStarts[c])
+						.order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		
+		public int getRowCount(int receiverID) {
+			return (int)((offsets[receiverID+1] - offsets[receiverID])/valueBytes);
+		}
+		
+		/**
+		 * Flags each source ID in the given receiver row of this block, without loading any values
+		 */
+		public void markRowSources(int receiverID, boolean[] sources) {
+			int count = getRowCount(receiverID);
+			ByteBuffer chunk = chunks[rowChunks[receiverID]];
+			int pos = (int)(offsets[receiverID] - chunkStarts[rowChunks[receiverID]]);
+			for (int i=0; i<count; i++) {
+				sources[chunk.getInt(pos)] = true;
+				pos += valueBytes;
+			}
+		}
+		
+		/**
+		 * Loads the given receiver row into the cache (retaining any existing values), if not already loaded.
+		 * Must be called while synchronized on this cache.
+		 */
+		public void loadRow(int receiverID) {
+			if (rowLoaded[receiverID])
+				return;
+			rowLoaded[receiverID] = true;
+			int count = getRowCount(receiverID);
+			if (count == 0)
+				return;
+			StiffnessAggregation[] row = getRow(patchMethod, receiverID);
+			ByteBuffer chunk = chunks[rowChunks[receiverID]];
+			int pos = (int)(offsets[receiverID] - chunkStarts[rowChunks[receiverID]]);
+			for (int i=0; i<count; i++) {
+				int sourceID = chunk.getInt(pos);
+				pos += 4;
+				double[] values = new double[file.methods.length];
+				for (int m=0; m<values.length; m++) {
+					values[m] = chunk.getDouble(pos);
+					pos += 8;
+				}
+				if (row[sourceID] == null)
+					row[sourceID] = new StiffnessAggregation(file.methods, values);
+			}
+		}
+	}
+
 }
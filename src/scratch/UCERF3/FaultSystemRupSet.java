@@ -199,7 +199,9 @@ public class FaultSystemRupSet implements Serializable {
 	public void clearCache() {
 		rupturesForSectionCache.clear();
 		rupturesForParentSectionCache.clear();
-		fractRupsInsideRegions.clear();
+		synchronized (fractRupsInsideRegions) {
+			fractRupsInsideRegions.clear();
+		}
 	}
 	
 	public void copyCacheFrom(FaultSystemRupSet rupSet) {
@@ -626,7 +628,7 @@ public class FaultSystemRupSet implements Serializable {
 	private Table<Region, Boolean, double[]> fractRupsInsideRegions = HashBasedTable.create();
 	
 	/**
-	 * 
+	 * This is thread safe, as constraints using it may be encoded in parallel
 	 * @param region
 	 * @param traceOnly
 	 * @return
@@ -638,11 +640,13 @@ public class FaultSystemRupSet implements Serializable {
 				ret[r] = 1d;
 			return ret;
 		}
-		if (!fractRupsInsideRegions.contains(region, traceOnly)) {
-			if (fractRupsInsideRegions.size() > 10) { // max cache size
-				Set<Cell<Region, Boolean, double[]>> cells = fractRupsInsideRegions.cellSet();
-				cells.remove(cells.iterator().next());
-			}
+		// the cache can be shared with other rupture sets, see copyCacheFrom(...)
+		Table<Region, Boolean, double[]> cache = fractRupsInsideRegions;
+		double[] fractRupsInside;
+		synchronized (cache) {
+			fractRupsInside = cache.get(region, traceOnly);
+		}
+		if (fractRupsInside == null) {
 			double[] fractSectsInside = new double[getNumSections()];
 			double gridSpacing=1;
 			int[] numPtsInSection = new int[getNumSections()];
@@ -661,7 +665,7 @@ public class FaultSystemRupSet implements Serializable {
 				}
 			}
 			
-			double[] fractRupsInside = new double[numRuptures];
+			fractRupsInside = new double[numRuptures];
 			
 			for(int rup=0; rup<numRuptures; rup++) {
 				List<Integer> sectionsIndicesForRup = getSectionsIndicesForRup(rup);
@@ -672,9 +676,19 @@ public class FaultSystemRupSet implements Serializable {
 				}
 				fractRupsInside[rup] /= totNumPts;
 			}
-			fractRupsInsideRegions.put(region, traceOnly, fractRupsInside);
+			synchronized (cache) {
+				// calculated outside of the lock, another thread may have beaten us to it
+				double[] prev = cache.get(region, traceOnly);
+				if (prev != null)
+					return prev;
+				if (cache.size() > 10) { // max cache size
+					Set<Cell<Region, Boolean, double[]>> cells = cache.cellSet();
+					cells.remove(cells.iterator().next());
+				}
+				cache.put(region, traceOnly, fractRupsInside);
+			}
 		}
-		return fractRupsInsideRegions.get(region, traceOnly);
+		return fractRupsInside;
 	}
 	
 	/**
@@ -3,10 +3,13 @@ package scratch.UCERF3.erf.ETAS;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -16,6 +19,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -483,30 +488,7 @@ public class ETAS_CatalogIO {
 		if (catalog instanceof ETAS_Catalog && ((ETAS_Catalog)catalog).getSimulationMetadata() != null) {
 			// we have metadata
 			out.writeShort(3);
-			ETAS_SimulationMetadata meta = ((ETAS_Catalog)catalog).getSimulationMetadata();
-			out.writeInt(meta.totalNumRuptures);
-			out.writeLong(meta.randomSeed);
-			out.writeInt(meta.catalogIndex);
-			if (meta.rangeHistCatalogIDs == null) {
-				out.writeInt(-1);
-				out.writeInt(-1);
-			} else {
-				out.writeInt(meta.rangeHistCatalogIDs.lowerEndpoint());
-				out.writeInt(meta.rangeHistCatalogIDs.upperEndpoint());
-			}
-			if (meta.rangeTriggerRupIDs == null) {
-				out.writeInt(-1);
-				out.writeInt(-1);
-			} else {
-				out.writeInt(meta.rangeTriggerRupIDs.lowerEndpoint());
-				out.writeInt(meta.rangeTriggerRupIDs.upperEndpoint());
-			}
-			out.writeLong(meta.simulationStartTime);
-			out.writeLong(meta.simulationStartTime);
-			out.writeInt(meta.numSpontaneousRuptures);
-			out.writeInt(meta.numSupraSeis);
-			out.writeDouble(meta.minMag);
-			out.writeDouble(meta.maxMag);
+			writeBinaryMetadata(out, ((ETAS_Catalog)catalog).getSimulationMetadata());
 		} else {
 			// no metadata
 			out.writeShort(2);
@@ -532,21 +514,179 @@ public class ETAS_CatalogIO {
 		// grid node index - int
 		// [version 2+] etas k - double
 
-		for (ETAS_EqkRupture rup : catalog) {
-			out.writeInt(rup.getID());
-			out.writeInt(rup.getParentID());
-			out.writeShort(rup.getGeneration());
-			out.writeLong(rup.getOriginTime());
-			Location hypo = rup.getHypocenterLocation();
-			out.writeDouble(hypo.getLatitude());
-			out.writeDouble(hypo.getLongitude());
-			out.writeDouble(hypo.getDepth());
-			out.writeDouble(rup.getMag());
-			out.writeDouble(rup.getDistanceToParent());
-			out.writeInt(rup.getNthERF_Index());
-			out.writeInt(rup.getFSSIndex());
-			out.writeInt(rup.getGridNodeIndex());
-			out.writeDouble(rup.getETAS_k());
+		for (ETAS_EqkRupture rup : catalog)
+			writeRuptureBinary(out, rup);
+	}
+	
+	static void writeBinaryMetadata(DataOutput out, ETAS_SimulationMetadata meta) throws IOException {
+		out.writeInt(meta.totalNumRuptures);
+		out.writeLong(meta.randomSeed);
+		out.writeInt(meta.catalogIndex);
+		if (meta.rangeHistCatalogIDs == null) {
+			out.writeInt(-1);
+			out.writeInt(-1);
+		} else {
+			out.writeInt(meta.rangeHistCatalogIDs.lowerEndpoint());
+			out.writeInt(meta.rangeHistCatalogIDs.upperEndpoint());
+		}
+		if (meta.rangeTriggerRupIDs == null) {
+			out.writeInt(-1);
+			out.writeInt(-1);
+		} else {
+			out.writeInt(meta.rangeTriggerRupIDs.lowerEndpoint());
+			out.writeInt(meta.rangeTriggerRupIDs.upperEndpoint());
+		}
+		out.writeLong(meta.simulationStartTime);
+		out.writeLong(meta.simulationStartTime);
+		out.writeInt(meta.numSpontaneousRuptures);
+		out.writeInt(meta.numSupraSeis);
+		out.writeDouble(meta.minMag);
+		out.writeDouble(meta.maxMag);
+	}
+	
+	private static void writeRuptureBinary(DataOutput out, ETAS_EqkRupture rup) throws IOException {
+		out.writeInt(rup.getID());
+		out.writeInt(rup.getParentID());
+		out.writeShort(rup.getGeneration());
+		out.writeLong(rup.getOriginTime());
+		Location hypo = rup.getHypocenterLocation();
+		out.writeDouble(hypo.getLatitude());
+		out.writeDouble(hypo.getLongitude());
+		out.writeDouble(hypo.getDepth());
+		out.writeDouble(rup.getMag());
+		out.writeDouble(rup.getDistanceToParent());
+		out.writeInt(rup.getNthERF_Index());
+		out.writeInt(rup.getFSSIndex());
+		out.writeInt(rup.getGridNodeIndex());
+		out.writeDouble(rup.getETAS_k());
+	}
+	
+	/**
+	 * Rewrites the metadata of an existing version 3 binary catalog file in place (e.g., to set the catalog index after
+	 * a simulation has been written). The metadata block is fixed length, so events are not touched.
+	 * @param file
+	 * @param meta
+	 * @throws IOException
+	 */
+	public static void updateBinaryCatalogMetadata(File file, ETAS_SimulationMetadata meta) throws IOException {
+		Preconditions.checkNotNull(meta, "Metadata cannot be null!");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			short version = raf.readShort();
+			Preconditions.checkState(version == 3, "Can only update metadata for version 3 files, version=%s", version);
+			writeBinaryMetadata(raf, meta);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Writes a single binary (version 3) catalog as events are generated, rather than from a fully populated list.
+	 * Events are written to a partial file (name + ".partial") with placeholder metadata, and the metadata and
+	 * rupture count are back-patched when the writer is closed before it is moved to the final location.
+	 * <br>
+	 * If the simulation dies before the writer is closed, the partial file will fail
+	 * {@link ETAS_CatalogIO#isBinaryCatalogFileComplete(File)}, and can be recovered with
+	 * {@link ETAS_CatalogIO#recoverPartialBinaryCatalogFile(File)}.
+	 */
+	public static class BinaryCatalogWriter implements Closeable {
+		
+		private File file;
+		private File partialFile;
+		private DataOutputStream out;
+		private int numRuptures = 0;
+		
+		public BinaryCatalogWriter(File file, long randomSeed, long simulationStartTime) throws IOException {
+			Preconditions.checkNotNull(file, "File cannot be null!");
+			this.file = file;
+			this.partialFile = getPartialFile(file);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partialFile), buffer_len));
+			// placeholder metadata, valid for reading but with an unknown rupture count
+			out.writeShort(3);
+			writeBinaryMetadata(out, ETAS_SimulationMetadata.instance(-1, randomSeed, -1, null, null,
+					simulationStartTime, simulationStartTime, 0, 0, Double.NaN, Double.NaN));
+			out.writeInt(0);
+		}
+		
+		public void write(ETAS_EqkRupture rup) throws IOException {
+			Preconditions.checkState(out != null, "Writer already closed");
+			writeRuptureBinary(out, rup);
+			numRuptures++;
+		}
+		
+		/**
+		 * 
+		 * @return number of ruptures written so far
+		 */
+		public int getNumRuptures() {
+			return numRuptures;
+		}
+		
+		/**
+		 * Back-patches the given metadata and the rupture count, then moves the partial file to its final location
+		 * @param meta
+		 * @throws IOException
+		 */
+		public void close(ETAS_SimulationMetadata meta) throws IOException {
+			Preconditions.checkNotNull(meta, "Metadata cannot be null!");
+			Preconditions.checkState(out != null, "Writer already closed");
+			out.close();
+			out = null;
+			RandomAccessFile raf = new RandomAccessFile(partialFile, "rw");
+			try {
+				raf.seek(2);
+				writeBinaryMetadata(raf, meta);
+				raf.writeInt(numRuptures);
+			} finally {
+				raf.close();
+			}
+			Preconditions.checkState(partialFile.length() == getCatalogLengthBytes(numRuptures, 3, true),
+					"Unexpected binary catalog length after writing %s ruptures", numRuptures);
+			if (file.exists())
+				file.delete();
+			Files.move(partialFile, file);
+		}
+
+		/**
+		 * Closes the underlying stream, leaving only the partial file. Has no effect if already closed.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		}
+	}
+	
+	public static File getPartialFile(File file) {
+		return new File(file.getParentFile(), file.getName()+".partial");
+	}
+	
+	/**
+	 * Recovers a partial binary catalog left by a {@link BinaryCatalogWriter} that was never closed: any trailing
+	 * incomplete event is truncated and the rupture count is set from the file length. The metadata will still contain
+	 * the placeholder values (unknown total rupture count and magnitude range).
+	 * @param partialFile
+	 * @return the number of recovered ruptures
+	 * @throws IOException
+	 */
+	public static int recoverPartialBinaryCatalogFile(File partialFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(partialFile, "rw");
+		try {
+			short version = raf.readShort();
+			Preconditions.checkState(version == 3, "Can only recover version 3 files, version=%s", version);
+			long headerLen = getCatalogLengthBytes(0, version, true);
+			long rupLen = getCatalogLengthBytes(1, version, false);
+			Preconditions.checkState(raf.length() >= headerLen, "Partial file is shorter than the header");
+			long numRuptures = (raf.length() - headerLen)/rupLen;
+			Preconditions.checkState(numRuptures <= Integer.MAX_VALUE);
+			raf.setLength(getCatalogLengthBytes((int)numRuptures, version, true));
+			raf.seek(headerLen-4);
+			raf.writeInt((int)numRuptures);
+			return (int)numRuptures;
+		} finally {
+			raf.close();
 		}
 	}
 
@@ -1074,6 +1214,64 @@ public class ETAS_CatalogIO {
 		
 	}
 	
+	/**
+	 * Computes the byte offsets of each fully written catalog in a (non gzipped) binary catalogs file, for use with
+	 * {@link #loadCatalogBinary(FileChannel, long, long, double)}. Catalog i spans [offsets[i], offsets[i+1]), so
+	 * the returned array has one more element than the number of complete catalogs. Only catalog headers are read.
+	 * @param binFile
+	 * @return catalog offsets
+	 * @throws IOException
+	 */
+	public static long[] getBinaryCatalogOffsets(File binFile) throws IOException {
+		Preconditions.checkArgument(!binFile.getName().toLowerCase().endsWith(".gz"),
+				"Can't compute offsets for gzipped files");
+		BinarayCatalogsMetadataIterator it = getBinaryCatalogsMetadataIterator(binFile);
+		List<Long> offsets = new ArrayList<>();
+		// first catalog starts after the number of catalogs
+		offsets.add(4l);
+		try {
+			while (it.hasNext()) {
+				long endPos = it.getNextEndPos();
+				if (!it.isNextFullyWritten())
+					break;
+				offsets.add(endPos);
+				it.next();
+			}
+		} finally {
+			it.close();
+		}
+		long[] ret = new long[offsets.size()];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = offsets.get(i);
+		return ret;
+	}
+	
+	/**
+	 * Loads a single catalog from the given byte range of a binary catalogs file using positional reads, so multiple
+	 * threads can load catalogs from a shared channel concurrently.
+	 * @param channel
+	 * @param startPos start of the catalog (file version)
+	 * @param endPos end of the catalog (exclusive)
+	 * @param minMag
+	 * @return
+	 * @throws IOException
+	 */
+	public static ETAS_Catalog loadCatalogBinary(FileChannel channel, long startPos, long endPos, double minMag)
+			throws IOException {
+		Preconditions.checkArgument(endPos > startPos && endPos - startPos <= Integer.MAX_VALUE,
+				"Bad catalog range: [%s, %s)", startPos, endPos);
+		ByteBuffer buffer = ByteBuffer.allocate((int)(endPos - startPos));
+		long pos = startPos;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, pos);
+			if (read < 0)
+				throw new EOFException("Unexpected end of file at position "+pos);
+			pos += read;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+		return doLoadCatalogBinary(in, minMag);
+	}
+	
 	public static void consolidateResultsDirBinary(File resultsDir, File outputFile, double minMag)
 			throws IOException {
 		consolidateResultsDirBinary(new File[] {resultsDir}, outputFile, minMag);
@@ -0,0 +1,570 @@
+package scratch.UCERF3.erf.ETAS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.ETAS_Catalog;
+
+/**
+ * Columnar archive format for large sets of ETAS catalogs, as an alternative to the row oriented binary format
+ * (results_complete.bin) where every field of every rupture must be decoded. Each catalog is stored as a block
+ * containing its metadata, the magnitude range of its ruptures, and then each {@link Column} separately compressed.
+ * Readers can request a subset of columns and a minimum magnitude: unused columns are skipped without decompressing
+ * them, as are all columns of catalogs with no ruptures above the minimum magnitude.
+ * <br>
+ * Encoding is lossy for floating point fields, which are stored as floats (about 1 m precision for locations).
+ * IDs and origin times are delta encoded as variable length integers.
+ * <br>
+ * File layout (big endian):
+ * <pre>
+ * int magic, short version, int number of catalogs
+ * for each catalog:
+ *   int block length in bytes (not including this int)
+ *   boolean has metadata, [binary version 3 metadata]
+ *   int number of ruptures, double min mag, double max mag
+ *   for each column: int uncompressed length, int compressed length
+ *   for each column: compressed column data
+ * </pre>
+ */
+public class ETAS_ColumnarCatalogIO {
+
+	private static final int MAGIC = 0x45544343; // "ETCC"
+	private static final short VERSION = 1;
+
+	public enum Column {
+		ID,
+		PARENT_ID,
+		GENERATION,
+		ORIGIN_TIME,
+		LATITUDE,
+		LONGITUDE,
+		DEPTH,
+		MAGNITUDE,
+		DIST_TO_PARENT,
+		NTH_ERF_INDEX,
+		FSS_INDEX,
+		GRID_NODE_INDEX,
+		ETAS_K;
+
+		private boolean isFloat() {
+			switch (this) {
+			case LATITUDE:
+			case LONGITUDE:
+			case DEPTH:
+			case MAGNITUDE:
+			case DIST_TO_PARENT:
+			case ETAS_K:
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		private boolean isDelta() {
+			return this == ID || this == PARENT_ID || this == ORIGIN_TIME;
+		}
+	}
+
+	private static final Column[] columns = Column.values();
+
+	/**
+	 * Writes catalogs to a columnar archive, one block per catalog. The number of catalogs is written when the
+	 * writer is closed.
+	 */
+	public static class ColumnarCatalogWriter implements Closeable {
+
+		private File file;
+		private DataOutputStream out;
+		private int numCatalogs = 0;
+
+		public ColumnarCatalogWriter(File file) throws IOException {
+			Preconditions.checkNotNull(file, "File cannot be null!");
+			this.file = file;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), ETAS_CatalogIO.buffer_len));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			// placeholder, set on close
+			out.writeInt(0);
+		}
+
+		public void write(List<ETAS_EqkRupture> catalog) throws IOException {
+			Preconditions.checkState(out != null, "Writer already closed");
+			ETAS_SimulationMetadata meta = null;
+			if (catalog instanceof ETAS_Catalog)
+				meta = ((ETAS_Catalog)catalog).getSimulationMetadata();
+
+			ColumnBuffer[] buffers = new ColumnBuffer[columns.length];
+			for (int c=0; c<columns.length; c++)
+				buffers[c] = new ColumnBuffer(columns[c].isFloat() ? 4*catalog.size() : 2*catalog.size());
+
+			double minMag = Double.NaN;
+			double maxMag = Double.NaN;
+			long prevID = 0l;
+			long prevParentID = 0l;
+			long prevOT = 0l;
+			for (ETAS_EqkRupture rup : catalog) {
+				buffers[Column.ID.ordinal()].writeSigned(rup.getID() - prevID);
+				prevID = rup.getID();
+				buffers[Column.PARENT_ID.ordinal()].writeSigned(rup.getParentID() - prevParentID);
+				prevParentID = rup.getParentID();
+				buffers[Column.GENERATION.ordinal()].writeSigned(rup.getGeneration());
+				buffers[Column.ORIGIN_TIME.ordinal()].writeSigned(rup.getOriginTime() - prevOT);
+				prevOT = rup.getOriginTime();
+				Location hypo = rup.getHypocenterLocation();
+				buffers[Column.LATITUDE.ordinal()].writeFloat((float)hypo.getLatitude());
+				buffers[Column.LONGITUDE.ordinal()].writeFloat((float)hypo.getLongitude());
+				buffers[Column.DEPTH.ordinal()].writeFloat((float)hypo.getDepth());
+				double mag = rup.getMag();
+				buffers[Column.MAGNITUDE.ordinal()].writeFloat((float)mag);
+				buffers[Column.DIST_TO_PARENT.ordinal()].writeFloat((float)rup.getDistanceToParent());
+				buffers[Column.NTH_ERF_INDEX.ordinal()].writeSigned(rup.getNthERF_Index());
+				buffers[Column.FSS_INDEX.ordinal()].writeSigned(rup.getFSSIndex());
+				buffers[Column.GRID_NODE_INDEX.ordinal()].writeSigned(rup.getGridNodeIndex());
+				buffers[Column.ETAS_K.ordinal()].writeFloat((float)rup.getETAS_k());
+
+				// block statistics use the stored (float) precision so that filtering is consistent on read
+				double storedMag = (float)mag;
+				if (Double.isNaN(minMag) || storedMag < minMag)
+					minMag = storedMag;
+				if (Double.isNaN(maxMag) || storedMag > maxMag)
+					maxMag = storedMag;
+			}
+
+			ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+			DataOutputStream block = new DataOutputStream(blockBytes);
+			block.writeBoolean(meta != null);
+			if (meta != null)
+				ETAS_CatalogIO.writeBinaryMetadata(block, meta);
+			block.writeInt(catalog.size());
+			block.writeDouble(minMag);
+			block.writeDouble(maxMag);
+			byte[][] compressed = new byte[columns.length][];
+			for (int c=0; c<columns.length; c++) {
+				compressed[c] = buffers[c].compress();
+				block.writeInt(buffers[c].size());
+				block.writeInt(compressed[c].length);
+			}
+			for (int c=0; c<columns.length; c++)
+				block.write(compressed[c]);
+			block.flush();
+
+			out.writeInt(blockBytes.size());
+			blockBytes.writeTo(out);
+			numCatalogs++;
+		}
+
+		public int getNumCatalogs() {
+			return numCatalogs;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out == null)
+				return;
+			out.close();
+			out = null;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(6);
+				raf.writeInt(numCatalogs);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	private static class ColumnBuffer extends ByteArrayOutputStream {
+
+		public ColumnBuffer(int size) {
+			super(Integer.max(size, 32));
+		}
+
+		/**
+		 * Writes a zig-zag encoded variable length integer (small magnitudes take fewer bytes, regardless of sign)
+		 * @param val
+		 */
+		public void writeSigned(long val) {
+			long zigZag = (val << 1) ^ (val >> 63);
+			while ((zigZag & ~0x7FL) != 0l) {
+				write((int)((zigZag & 0x7F) | 0x80));
+				zigZag >>>= 7;
+			}
+			write((int)zigZag);
+		}
+
+		public void writeFloat(float val) {
+			int bits = Float.floatToIntBits(val);
+			write(bits >>> 24);
+			write(bits >>> 16);
+			write(bits >>> 8);
+			write(bits);
+		}
+
+		public byte[] compress() {
+			Deflater deflater = new Deflater();
+			deflater.setInput(buf, 0, count);
+			deflater.finish();
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(count/2 + 64);
+			byte[] chunk = new byte[8192];
+			while (!deflater.finished()) {
+				int len = deflater.deflate(chunk);
+				compressed.write(chunk, 0, len);
+			}
+			deflater.end();
+			return compressed.toByteArray();
+		}
+	}
+
+	private static class ColumnDecoder {
+
+		private byte[] data;
+		private int pos = 0;
+
+		public ColumnDecoder(byte[] compressed, int rawLength) throws IOException {
+			data = new byte[rawLength];
+			Inflater inflater = new Inflater();
+			inflater.setInput(compressed);
+			try {
+				int len = 0;
+				while (len < rawLength && !inflater.finished()) {
+					int read = inflater.inflate(data, len, rawLength - len);
+					if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						throw new IOException("Truncated column data");
+					len += read;
+				}
+				if (len != rawLength)
+					throw new IOException("Column length mismatch, expected "+rawLength+", got "+len);
+			} catch (DataFormatException e) {
+				throw new IOException(e);
+			} finally {
+				inflater.end();
+			}
+		}
+
+		public long readSigned() {
+			long zigZag = 0l;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[pos++];
+				zigZag |= (long)(b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			return (zigZag >>> 1) ^ -(zigZag & 1);
+		}
+
+		public float readFloat() {
+			int bits = ((data[pos] & 0xFF) << 24) | ((data[pos+1] & 0xFF) << 16)
+					| ((data[pos+2] & 0xFF) << 8) | (data[pos+3] & 0xFF);
+			pos += 4;
+			return Float.intBitsToFloat(bits);
+		}
+	}
+
+	private static boolean isColumnarFile(DataInputStream in) throws IOException {
+		return in.readInt() == MAGIC;
+	}
+
+	private static DataInputStream openFile(File file) throws IOException {
+		Preconditions.checkNotNull(file, "File cannot be null!");
+		Preconditions.checkArgument(file.exists(), "File doesn't exist!");
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(file), ETAS_CatalogIO.buffer_len));
+	}
+
+	/**
+	 * Reads the next catalog block from the given stream. Only the given columns will be populated in the returned
+	 * ruptures. If any of latitude, longitude, or depth are requested, all three will be loaded and set as the
+	 * hypocenter. Catalogs with no ruptures at or above minMag are returned empty (but with metadata) without
+	 * decompressing any columns.
+	 */
+	private static ETAS_Catalog readCatalogBlock(DataInputStream in, double minMag, Set<Column> toLoad)
+			throws IOException {
+		int blockLength = in.readInt();
+		Preconditions.checkState(blockLength > 0, "Bad block length: %s", blockLength);
+		ETAS_SimulationMetadata meta = null;
+		if (in.readBoolean()) {
+			meta = ETAS_CatalogIO.readBinaryMetadata(in, (short)3);
+			double metaMinMag = meta.minMag;
+			if (minMag > metaMinMag || (minMag > 0 && !Double.isFinite(metaMinMag)))
+				// if we're loading this in at a higher minMag, use that
+				meta = meta.getModMinMag(minMag);
+		}
+		int numRups = in.readInt();
+		Preconditions.checkState(numRups >= 0, "Bad num rups: %s", numRups);
+		double blockMinMag = in.readDouble();
+		double blockMaxMag = in.readDouble();
+		int[] rawLengths = new int[columns.length];
+		int[] compressedLengths = new int[columns.length];
+		long totCompressed = 0l;
+		for (int c=0; c<columns.length; c++) {
+			rawLengths[c] = in.readInt();
+			compressedLengths[c] = in.readInt();
+			totCompressed += compressedLengths[c];
+		}
+
+		ETAS_Catalog catalog = new ETAS_Catalog(meta);
+
+		// magnitudes (and block statistics) are stored at float precision, so filter at that precision as well.
+		// otherwise a rupture exactly at the minimum magnitude could be dropped if its float value rounded down
+		float storedMinMag = (float)minMag;
+		if (numRups == 0 || blockMaxMag < storedMinMag) {
+			// nothing passes the filter, skip all columns
+			ByteStreams.skipFully(in, totCompressed);
+			return catalog;
+		}
+
+		EnumSet<Column> decode = toLoad.isEmpty() ? EnumSet.noneOf(Column.class) : EnumSet.copyOf(toLoad);
+		if (decode.contains(Column.LATITUDE) || decode.contains(Column.LONGITUDE) || decode.contains(Column.DEPTH)) {
+			decode.add(Column.LATITUDE);
+			decode.add(Column.LONGITUDE);
+			decode.add(Column.DEPTH);
+		}
+		boolean filter = blockMinMag < storedMinMag;
+		if (filter)
+			// need magnitudes to filter, even if not requested
+			decode.add(Column.MAGNITUDE);
+
+		long[][] longVals = new long[columns.length][];
+		float[][] floatVals = new float[columns.length][];
+		for (int c=0; c<columns.length; c++) {
+			Column column = columns[c];
+			if (!decode.contains(column)) {
+				ByteStreams.skipFully(in, compressedLengths[c]);
+				continue;
+			}
+			byte[] compressed = new byte[compressedLengths[c]];
+			in.readFully(compressed);
+			ColumnDecoder decoder = new ColumnDecoder(compressed, rawLengths[c]);
+			if (column.isFloat()) {
+				float[] vals = new float[numRups];
+				for (int i=0; i<numRups; i++)
+					vals[i] = decoder.readFloat();
+				floatVals[c] = vals;
+			} else {
+				long[] vals = new long[numRups];
+				long prev = 0l;
+				for (int i=0; i<numRups; i++) {
+					long val = decoder.readSigned();
+					if (column.isDelta()) {
+						val += prev;
+						prev = val;
+					}
+					vals[i] = val;
+				}
+				longVals[c] = vals;
+			}
+		}
+
+		long[] ids = longVals[Column.ID.ordinal()];
+		long[] parentIDs = longVals[Column.PARENT_ID.ordinal()];
+		long[] gens = longVals[Column.GENERATION.ordinal()];
+		long[] times = longVals[Column.ORIGIN_TIME.ordinal()];
+		float[] lats = floatVals[Column.LATITUDE.ordinal()];
+		float[] lons = floatVals[Column.LONGITUDE.ordinal()];
+		float[] depths = floatVals[Column.DEPTH.ordinal()];
+		float[] mags = floatVals[Column.MAGNITUDE.ordinal()];
+		float[] dists = floatVals[Column.DIST_TO_PARENT.ordinal()];
+		long[] nthIndexes = longVals[Column.NTH_ERF_INDEX.ordinal()];
+		long[] fssIndexes = longVals[Column.FSS_INDEX.ordinal()];
+		long[] gridIndexes = longVals[Column.GRID_NODE_INDEX.ordinal()];
+		float[] ks = floatVals[Column.ETAS_K.ordinal()];
+		boolean setMag = toLoad.contains(Column.MAGNITUDE);
+
+		for (int i=0; i<numRups; i++) {
+			if (filter && mags[i] < storedMinMag)
+				continue;
+			ETAS_EqkRupture rup = new ETAS_EqkRupture();
+			if (ids != null)
+				rup.setID((int)ids[i]);
+			if (parentIDs != null)
+				rup.setParentID((int)parentIDs[i]);
+			if (gens != null)
+				rup.setGeneration((int)gens[i]);
+			if (times != null)
+				rup.setOriginTime(times[i]);
+			if (lats != null)
+				rup.setHypocenterLocation(new Location(lats[i], lons[i], depths[i]));
+			if (setMag)
+				rup.setMag(mags[i]);
+			if (dists != null)
+				rup.setDistanceToParent(dists[i]);
+			if (nthIndexes != null)
+				rup.setNthERF_Index((int)nthIndexes[i]);
+			if (fssIndexes != null)
+				rup.setFSSIndex((int)fssIndexes[i]);
+			if (gridIndexes != null)
+				rup.setGridNodeIndex((int)gridIndexes[i]);
+			if (ks != null)
+				rup.setETAS_k(ks[i]);
+			catalog.add(rup);
+		}
+
+		return catalog;
+	}
+
+	public static List<ETAS_Catalog> loadCatalogs(File file) throws IOException {
+		return loadCatalogs(file, -10d, EnumSet.allOf(Column.class));
+	}
+
+	public static List<ETAS_Catalog> loadCatalogs(File file, double minMag, Set<Column> columns) throws IOException {
+		List<ETAS_Catalog> catalogs = new ArrayList<>();
+		for (ETAS_Catalog catalog : getCatalogsIterable(file, minMag, columns))
+			catalogs.add(catalog);
+		return catalogs;
+	}
+
+	public static ColumnarCatalogsIterable getCatalogsIterable(File file, double minMag, Set<Column> columns) {
+		return new ColumnarCatalogsIterable(file, minMag, columns);
+	}
+
+	/**
+	 * Iterable over catalogs in a columnar archive, with only the given columns loaded. Each iterator opens its own
+	 * stream, which is closed once all catalogs have been read.
+	 */
+	public static class ColumnarCatalogsIterable implements Iterable<ETAS_Catalog> {
+
+		private final File file;
+		private final double minMag;
+		private final EnumSet<Column> columns;
+
+		private ColumnarCatalogsIterable(File file, double minMag, Set<Column> columns) {
+			this.file = file;
+			this.minMag = minMag;
+			this.columns = columns.isEmpty() ? EnumSet.noneOf(Column.class) : EnumSet.copyOf(columns);
+		}
+
+		@Override
+		public Iterator<ETAS_Catalog> iterator() {
+			try {
+				return new ColumnarCatalogsIterator(openFile(file), minMag, columns);
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+
+		public int getNumCatalogs() {
+			try {
+				DataInputStream in = openFile(file);
+				try {
+					return readHeader(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Reads and validates the file header
+	 * @return the number of catalogs
+	 */
+	private static int readHeader(DataInputStream in) throws IOException {
+		Preconditions.checkState(isColumnarFile(in), "Not a columnar catalog file");
+		short version = in.readShort();
+		Preconditions.checkState(version == VERSION, "Unknown columnar catalog file version: %s", version);
+		int numCatalogs = in.readInt();
+		Preconditions.checkState(numCatalogs >= 0, "Bad num catalogs: %s", numCatalogs);
+		return numCatalogs;
+	}
+
+	private static class ColumnarCatalogsIterator implements Iterator<ETAS_Catalog> {
+
+		private DataInputStream in;
+		private final double minMag;
+		private final EnumSet<Column> columns;
+		private final int numCatalogs;
+		private int index = 0;
+
+		public ColumnarCatalogsIterator(DataInputStream in, double minMag, EnumSet<Column> columns) throws IOException {
+			this.in = in;
+			this.minMag = minMag;
+			this.columns = columns;
+			this.numCatalogs = readHeader(in);
+			if (numCatalogs == 0)
+				in.close();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < numCatalogs;
+		}
+
+		@Override
+		public ETAS_Catalog next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			try {
+				ETAS_Catalog catalog = readCatalogBlock(in, minMag, columns);
+				index++;
+				if (index == numCatalogs)
+					in.close();
+				return catalog;
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Converts a binary catalogs file (e.g., results_complete.bin) to the columnar format, keeping all ruptures
+	 * @param binFile
+	 * @param outputFile
+	 * @return number of catalogs written
+	 * @throws IOException
+	 */
+	public static int convertBinaryCatalogs(File binFile, File outputFile) throws IOException {
+		ColumnarCatalogWriter writer = new ColumnarCatalogWriter(outputFile);
+		try {
+			for (ETAS_Catalog catalog : ETAS_CatalogIO.getBinaryCatalogsIterable(binFile, -10d))
+				writer.write(catalog);
+		} finally {
+			writer.close();
+		}
+		return writer.getNumCatalogs();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(ETAS_ColumnarCatalogIO.class)
+					+" <input-binary-file> <output-columnar-file>");
+			System.exit(2);
+		}
+		File binFile = new File(args[0]);
+		File outputFile = new File(args[1]);
+
+		Stopwatch watch = Stopwatch.createStarted();
+		int numCatalogs = convertBinaryCatalogs(binFile, outputFile);
+		watch.stop();
+		System.out.println("Converted "+numCatalogs+" catalogs in "+watch);
+		System.out.println("Input size: "+binFile.length()+" bytes, output size: "+outputFile.length()+" bytes");
+	}
+
+}
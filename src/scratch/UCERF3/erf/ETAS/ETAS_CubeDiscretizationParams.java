@@ -1,5 +1,7 @@
 package scratch.UCERF3.erf.ETAS;
 
+import java.util.List;
+
 import org.opensha.commons.geo.BorderType;
 import org.opensha.commons.geo.GriddedRegion;
 import org.opensha.commons.geo.Location;
@@ -32,6 +34,7 @@ public class ETAS_CubeDiscretizationParams {
 	private final GriddedRegion gridRegForParentLocs;
 	
 	private ETAS_LocationWeightCalculator locWeightCalc;
+	private ETAS_CubeGeometry cubeGeometry;
 	
 	public ETAS_CubeDiscretizationParams(GriddedRegion griddedRegion) {
 		this(griddedRegion, DEFAULT_MAX_DEPTH, DEFAULT_NUM_PT_SRC_SUB_PTS, DEFAULT_DEPTH_DISCR);
@@ -109,5 +112,34 @@ public class ETAS_CubeDiscretizationParams {
 		}
 		return locWeightCalc;
 	}
+	
+	/**
+	 * Returns the cube geometry for the given section in cube caches, building it if needed. This is shared among all
+	 * callers, so cube and fault section geometry is only stored once no matter how many simulations are run.
+	 * 
+	 * If the caches are null, the previously built geometry is returned if it is for the given number of sections,
+	 * otherwise null.
+	 * @param numSections
+	 * @param sectDistForCubeList
+	 * @param sectInCubeList
+	 * @param isCubeInsideFaultPolygon
+	 * @return
+	 */
+	public synchronized ETAS_CubeGeometry getCubeGeometry(int numSections, List<float[]> sectDistForCubeList,
+			List<int[]> sectInCubeList, int[] isCubeInsideFaultPolygon) {
+		if (sectDistForCubeList == null || sectInCubeList == null || isCubeInsideFaultPolygon == null) {
+			if (cubeGeometry != null && cubeGeometry.getNumSections() == numSections)
+				return cubeGeometry;
+			return null;
+		}
+		if (cubeGeometry == null || !cubeGeometry.isFor(numSections, sectDistForCubeList, sectInCubeList, isCubeInsideFaultPolygon)) {
+			if(D) System.out.println("Creating ETAS_CubeGeometry");
+			long startTime= System.currentTimeMillis();
+			cubeGeometry = new ETAS_CubeGeometry(this, numSections, sectDistForCubeList, sectInCubeList, isCubeInsideFaultPolygon);
+			double runtime = ((double)(System.currentTimeMillis()-startTime))/1000;
+			if(D) System.out.println("Done creating ETAS_CubeGeometry; it took (sec): "+runtime);
+		}
+		return cubeGeometry;
+	}
 
 }
@@ -0,0 +1,329 @@
+package scratch.UCERF3.erf.ETAS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+
+import scratch.UCERF3.utils.CSRFloatArraysList;
+import scratch.UCERF3.utils.CSRIntArraysList;
+
+/**
+ * Static geometry of the ETAS cubes and their association with fault sections: cube centers, the sections in
+ * each cube (and their distances), the cubes inside each section polygon, and the fraction of each section
+ * nucleating in each cube. None of this depends on the rates of a given simulation, so a single instance can be
+ * shared (read only) among all ETAS_PrimaryEventSampler instances in a JVM, which then only hold their own rates.
+ * <br><br>
+ * Per cube section data are stored in CSR form (see {@link CSRIntArraysList}), which is used directly if the
+ * caches were memory mapped and is otherwise built once from the input lists. The fraction list shares its offsets
+ * with the section in cube list, so the same value index can be used for both.
+ * <br><br>
+ * Instances should be obtained via {@link ETAS_CubeDiscretizationParams#getCubeGeometry}. Arrays and lists
+ * returned here are used directly (not copied) and must not be modified.
+ *
+ */
+public class ETAS_CubeGeometry {
+
+	private final int numCubeDepths, numCubesPerDepth, numCubes, numSections;
+
+	// this is for each cube
+	private final double[] latForCubeCenter, lonForCubeCenter, depthForCubeCenter;
+
+	private final CSRFloatArraysList sectDistForCubeList;
+	private final CSRIntArraysList sectInCubeList;
+	private final int[] isCubeInsideFaultPolygon;	// independent of depth, so number of elements the equal to numCubesPerDepth
+	// index in the original (gridded seismicity) region for each cube region index, or -1 if outside
+	private final int[] gridNodeForCubeRegIndex;
+	// identity hashes of the caches that this was built from (before conversion to CSR), so that we can tell if this
+	// is for a given set of caches without keeping the input lists in memory
+	private final int inputSectDistForCubeHash, inputSectInCubeHash;
+
+	// cubes (increasing) and distances for each section, the inverse of sectInCubeList/sectDistForCubeList
+	private final int[][] cubesForSectArray;
+	private final float[][] cubeDistsForSectArray;
+
+	// cube region indexes sorted by latitude and then longitude (cubeRowStarts[i] is the first for the ith
+	// latitude, cubeRowLats), used to quickly find cubes within the support of the spatial decay kernel
+	private final int[] cubeRegIndexesByLatLon;
+	private final double[] cubeLonsByLatLon;
+	private final double[] cubeRowLats;
+	private final int[] cubeRowStarts;
+
+	// fraction of each section in each cube, depends on the long term MFDs and whether the GR correction is applied
+	private ETAS_LongTermMFDs fractLongTermMFDs;
+	private boolean fractApplyGR_Corr;
+	private CSRFloatArraysList fractionSectInCubeList;
+
+	ETAS_CubeGeometry(ETAS_CubeDiscretizationParams cubeParams, int numSections,
+			List<float[]> sectDistForCubeList, List<int[]> sectInCubeList, int[] isCubeInsideFaultPolygon) {
+		GriddedRegion gridRegForCubes = cubeParams.getGridRegForCubes();
+		double depthDiscr = cubeParams.getDepthDiscr();
+		numCubeDepths = (int)Math.round(cubeParams.getMaxDepth()/depthDiscr);
+		numCubesPerDepth = gridRegForCubes.getNumLocations();
+		numCubes = numCubesPerDepth*numCubeDepths;
+		this.numSections = numSections;
+		Preconditions.checkArgument(sectInCubeList.size() == numCubes && sectDistForCubeList.size() == numCubes,
+				"Section in cube caches are for %s cubes, expected %s", sectInCubeList.size(), numCubes);
+		Preconditions.checkArgument(isCubeInsideFaultPolygon.length == numCubesPerDepth,
+				"Cube inside polygon cache is for %s locations, expected %s", isCubeInsideFaultPolygon.length, numCubesPerDepth);
+		this.inputSectDistForCubeHash = System.identityHashCode(sectDistForCubeList);
+		this.inputSectInCubeHash = System.identityHashCode(sectInCubeList);
+		this.sectDistForCubeList = CSRFloatArraysList.from(sectDistForCubeList);
+		this.sectInCubeList = CSRIntArraysList.from(sectInCubeList);
+		Preconditions.checkArgument(this.sectInCubeList.getNumValues() == this.sectDistForCubeList.getNumValues(),
+				"Section in cube and distance caches are inconsistent");
+		this.isCubeInsideFaultPolygon = isCubeInsideFaultPolygon;
+
+		latForCubeCenter = new double[numCubes];
+		lonForCubeCenter = new double[numCubes];
+		depthForCubeCenter = new double[numCubes];
+		for(int i=0;i<numCubes;i++) {
+			int depIndex = i/numCubesPerDepth;
+			Location loc = gridRegForCubes.getLocation(i - depIndex*numCubesPerDepth);
+			latForCubeCenter[i] = loc.getLatitude();
+			lonForCubeCenter[i] = loc.getLongitude();
+			depthForCubeCenter[i] = (double)depIndex*depthDiscr + depthDiscr/2;
+		}
+
+		// the gridded seismicity node is independent of depth, so only needs to be found for each region index
+		GriddedRegion origGriddedRegion = cubeParams.getGriddedRegion();
+		gridNodeForCubeRegIndex = new int[numCubesPerDepth];
+		for(int i=0; i<numCubesPerDepth; i++)
+			gridNodeForCubeRegIndex[i] = origGriddedRegion.indexForLocation(gridRegForCubes.getLocation(i));
+
+		// invert the section in cube lists, first count so that each section array is only allocated once
+		int[] numCubesForSect = new int[numSections];
+		for(int i=0; i<this.sectInCubeList.getNumValues(); i++)
+			numCubesForSect[this.sectInCubeList.getValue(i)]++;
+		cubesForSectArray = new int[numSections][];
+		cubeDistsForSectArray = new float[numSections][];
+		for(int s=0; s<numSections; s++) {
+			cubesForSectArray[s] = new int[numCubesForSect[s]];
+			cubeDistsForSectArray[s] = new float[numCubesForSect[s]];
+		}
+		int[] counts = new int[numSections];
+		for(int c=0; c<numCubes;c++) {
+			int start = this.sectInCubeList.getStart(c);
+			int end = start + this.sectInCubeList.getLength(c);
+			Preconditions.checkArgument(this.sectDistForCubeList.getStart(c) == start,
+					"Section in cube and distance caches are inconsistent");
+			for(int i=start;i<end;i++) {
+				int s = this.sectInCubeList.getValue(i);
+				cubesForSectArray[s][counts[s]] = c;
+				cubeDistsForSectArray[s][counts[s]++] = this.sectDistForCubeList.getValue(i);
+			}
+		}
+
+		// sort the cube region indexes by latitude and then longitude
+		List<Integer> sorted = new ArrayList<Integer>(numCubesPerDepth);
+		for(int i=0; i<numCubesPerDepth; i++)
+			sorted.add(i);
+		Collections.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int cmp = Double.compare(latForCubeCenter[o1], latForCubeCenter[o2]);
+				if(cmp == 0)
+					cmp = Double.compare(lonForCubeCenter[o1], lonForCubeCenter[o2]);
+				return cmp;
+			}
+		});
+		cubeRegIndexesByLatLon = new int[numCubesPerDepth];
+		cubeLonsByLatLon = new double[numCubesPerDepth];
+		List<Double> rowLats = new ArrayList<Double>();
+		List<Integer> rowStarts = new ArrayList<Integer>();
+		for(int i=0; i<numCubesPerDepth; i++) {
+			cubeRegIndexesByLatLon[i] = sorted.get(i);
+			cubeLonsByLatLon[i] = lonForCubeCenter[cubeRegIndexesByLatLon[i]];
+			double lat = latForCubeCenter[cubeRegIndexesByLatLon[i]];
+			if(rowLats.isEmpty() || lat != rowLats.get(rowLats.size()-1)) {
+				rowLats.add(lat);
+				rowStarts.add(i);
+			}
+		}
+		rowStarts.add(numCubesPerDepth);
+		cubeRowLats = Doubles.toArray(rowLats);
+		cubeRowStarts = Ints.toArray(rowStarts);
+	}
+
+	/**
+	 * @return true if this geometry was built from the given caches, compared by size and identity hash
+	 */
+	boolean isFor(int numSections, List<float[]> sectDistForCubeList, List<int[]> sectInCubeList,
+			int[] isCubeInsideFaultPolygon) {
+		return this.numSections == numSections && this.isCubeInsideFaultPolygon == isCubeInsideFaultPolygon
+				&& sectDistForCubeList.size() == numCubes && sectInCubeList.size() == numCubes
+				&& System.identityHashCode(sectDistForCubeList) == inputSectDistForCubeHash
+				&& System.identityHashCode(sectInCubeList) == inputSectInCubeHash;
+	}
+
+	public int getNumCubes() {
+		return numCubes;
+	}
+
+	public int getNumCubesPerDepth() {
+		return numCubesPerDepth;
+	}
+
+	public int getNumCubeDepths() {
+		return numCubeDepths;
+	}
+
+	public int getNumSections() {
+		return numSections;
+	}
+
+	public double[] getLatForCubeCenter() {
+		return latForCubeCenter;
+	}
+
+	public double[] getLonForCubeCenter() {
+		return lonForCubeCenter;
+	}
+
+	public double[] getDepthForCubeCenter() {
+		return depthForCubeCenter;
+	}
+
+	public CSRFloatArraysList getSectDistForCubeList() {
+		return sectDistForCubeList;
+	}
+
+	public CSRIntArraysList getSectInCubeList() {
+		return sectInCubeList;
+	}
+
+	/**
+	 * @param cubeIndex
+	 * @return region index for the given cube (independent of depth)
+	 */
+	public int getCubeRegIndex(int cubeIndex) {
+		return cubeIndex % numCubesPerDepth;
+	}
+
+	/**
+	 * @param cubeIndex
+	 * @return depth index for the given cube
+	 */
+	public int getCubeDepthIndex(int cubeIndex) {
+		return cubeIndex / numCubesPerDepth;
+	}
+
+	/**
+	 * @param cubeIndex
+	 * @return index of the gridded seismicity node containing the given cube, or -1 if none
+	 */
+	public int getGridNodeIndexForCube(int cubeIndex) {
+		return gridNodeForCubeRegIndex[cubeIndex % numCubesPerDepth];
+	}
+
+	public int[] getIsCubeInsideFaultPolygon() {
+		return isCubeInsideFaultPolygon;
+	}
+
+	/**
+	 * @param sectIndex
+	 * @return cube indexes (increasing) inside the polygon of the given section
+	 */
+	public int[] getCubesForSection(int sectIndex) {
+		return cubesForSectArray[sectIndex];
+	}
+
+	/**
+	 * @param sectIndex
+	 * @return distances from the given section for each cube in getCubesForSection(sectIndex)
+	 */
+	public float[] getCubeDistsForSection(int sectIndex) {
+		return cubeDistsForSectArray[sectIndex];
+	}
+
+	/**
+	 * @return the number of cubes inside the polygon of each section
+	 */
+	public int[] getNumCubesInsideFaultPolygonArray() {
+		int[] nums = new int[numSections];
+		for(int s=0; s<numSections; s++)
+			nums[s] = cubesForSectArray[s].length;
+		return nums;
+	}
+
+	/**
+	 * This returns the region indexes (increasing) of all cubes whose centers are within maxRelLatLon degrees
+	 * of the given location in both latitude and longitude
+	 * @param lat
+	 * @param lon
+	 * @param maxRelLatLon
+	 * @return
+	 */
+	public int[] getCubeRegIndexesWithin(double lat, double lon, double maxRelLatLon) {
+		int firstRow = getFirstIndexAtLeast(cubeRowLats, 0, cubeRowLats.length, lat-maxRelLatLon);
+		int endRow = getFirstIndexAtLeast(cubeRowLats, firstRow, cubeRowLats.length, lat+maxRelLatLon);
+
+		int[] regIndexes = new int[0];
+		int numReg = 0;
+		for(int row=firstRow; row<endRow; row++) {
+			int start = getFirstIndexAtLeast(cubeLonsByLatLon, cubeRowStarts[row], cubeRowStarts[row+1], lon-maxRelLatLon);
+			int end = getFirstIndexAtLeast(cubeLonsByLatLon, start, cubeRowStarts[row+1], lon+maxRelLatLon);
+			if(numReg+end-start > regIndexes.length)
+				regIndexes = Arrays.copyOf(regIndexes, Math.max(numReg+end-start, 2*regIndexes.length));
+			System.arraycopy(cubeRegIndexesByLatLon, start, regIndexes, numReg, end-start);
+			numReg += end-start;
+		}
+		regIndexes = Arrays.copyOf(regIndexes, numReg);
+		Arrays.sort(regIndexes);
+		return regIndexes;
+	}
+
+	/**
+	 * @return the first index from fromIndex (inclusive) to toIndex (exclusive) where the (increasing) values are at
+	 * least the given value, or toIndex if none
+	 */
+	private static int getFirstIndexAtLeast(double[] vals, int fromIndex, int toIndex, double val) {
+		int low = fromIndex;
+		int high = toIndex;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(vals[mid] < val)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * @param longTermMFDs
+	 * @param applyGR_Corr
+	 * @return the fraction of each section in each cube (with the same offsets as getSectInCubeList()) previously computed for
+	 * the given long term MFDs and GR correction setting, or null if not yet computed. Callers should synchronize
+	 * on this object between calling this and {@link #setFractionSectInCubeList} to avoid duplicate work.
+	 */
+	public synchronized CSRFloatArraysList getFractionSectInCubeList(ETAS_LongTermMFDs longTermMFDs, boolean applyGR_Corr) {
+		if(fractionSectInCubeList != null && fractLongTermMFDs == longTermMFDs && fractApplyGR_Corr == applyGR_Corr)
+			return fractionSectInCubeList;
+		return null;
+	}
+
+	/**
+	 * Stores the fraction of each section in each cube for the given long term MFDs and GR correction setting
+	 * @param longTermMFDs
+	 * @param applyGR_Corr
+	 * @param fractionSectInCubeList
+	 */
+	public synchronized void setFractionSectInCubeList(ETAS_LongTermMFDs longTermMFDs, boolean applyGR_Corr,
+			CSRFloatArraysList fractionSectInCubeList) {
+		Preconditions.checkArgument(fractionSectInCubeList.getOffsets() == sectInCubeList.getOffsets(),
+				"Fractions must use the section in cube offsets");
+		this.fractLongTermMFDs = longTermMFDs;
+		this.fractApplyGR_Corr = applyGR_Corr;
+		this.fractionSectInCubeList = fractionSectInCubeList;
+	}
+
+}
@@ -449,7 +449,16 @@ public class ETAS_LocationWeightCalculator {
 		}
 		return this.pointWtList.get(getParDepthIndex(parDep))[relLatIndex][relLonIndex][relDepIndex];
 	}
-	
+
+	/**
+	 * This gives the extent (in degrees) of the spatial decay kernel, beyond which getProbAtPoint(...) is zero
+	 * for any relative latitude or longitude
+	 * @return
+	 */
+	public double getMaxRelLatLon() {
+		return numLatLon*latLonDiscrDeg;
+	}
+
 	private double getLat(int iLat) {
 		return iLat*latLonDiscrDeg+latLonDiscrDeg/2.0;
 	}
@@ -9,6 +9,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -45,6 +46,7 @@ import org.opensha.commons.mapping.gmt.gui.GMT_MapGuiBean;
 import org.opensha.commons.mapping.gmt.gui.ImageViewerWindow;
 import org.opensha.commons.param.Parameter;
 import org.opensha.commons.param.impl.CPTParameter;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileUtils;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
@@ -78,6 +80,8 @@ import scratch.UCERF3.griddedSeismicity.GridSourceProvider;
 import scratch.UCERF3.griddedSeismicity.UCERF3_GridSourceGenerator;
 import scratch.UCERF3.inversion.InversionFaultSystemRupSet;
 import scratch.UCERF3.inversion.InversionTargetMFDs;
+import scratch.UCERF3.utils.CSRFloatArraysList;
+import scratch.UCERF3.utils.CSRIntArraysList;
 import scratch.UCERF3.utils.MatrixIO;
 import scratch.UCERF3.utils.RELM_RegionUtils;
 
@@ -144,6 +148,10 @@ public class ETAS_PrimaryEventSampler {
 	int numPtSrcSubPts;
 	double pointSrcDiscr;
 	
+	// static cube/section geometry, shared with other samplers for the same cubeParams (fields below that are
+	// part of the geometry are just references to arrays/lists in this object)
+	ETAS_CubeGeometry cubeGeometry;
+	
 	// this is for each cube
 	double[] latForCubeCenter, lonForCubeCenter, depthForCubeCenter;
 	
@@ -152,6 +160,10 @@ public class ETAS_PrimaryEventSampler {
 	double totSectNuclRateArray[];
 	double totalSectRateInCubeArray[];
 	SectionSourceNuclRates[] srcNuclRateOnSects;
+	// incremented for a section whenever its value in totSectNuclRateArray changes
+	int[] totSectNuclRateVersions;
+	// cached samplers for choosing a section within a cube, built lazily and rebuilt when a section rate changes
+	private CubeSectSampler[] cubeSectSamplers;
 	
 	private ETAS_LongTermMFDs longTermMFDs;
 
@@ -161,9 +173,10 @@ public class ETAS_PrimaryEventSampler {
 	
 	double totRate;
 	
-	List<float[]> fractionSectInCubeList;
-	List<float[]> sectDistForCubeList;
-	List<int[]> sectInCubeList;
+	// per cube section data, in CSR form with identical offsets (so a value index applies to all three)
+	CSRFloatArraysList fractionSectInCubeList;
+	CSRFloatArraysList sectDistForCubeList;
+	CSRIntArraysList sectInCubeList;
 	int[] isCubeInsideFaultPolygon;	// independent of depth, so number of elements the equal to numCubesPerDepth
 	int[] numCubesInsideFaultPolygonArray;
 	
@@ -175,6 +188,9 @@ public class ETAS_PrimaryEventSampler {
 	
 	IntegerPDF_FunctionSampler cubeSamplerGriddedRatesOnly; 
 	
+	// if true, cube samplers with spatial decay only include cubes within the support of the decay kernel
+	boolean useSparseCubeSamplers = true;
+	
 	Map<Integer,ArrayList<ETAS_EqkRupture>> eventListForParLocIndexMap;  // key is the parLocIndex and value is a list of ruptures to process
 //	int[] numForthcomingEventsAtParentLoc;
 //	int numCachedSamplers=0;
@@ -313,123 +329,78 @@ public class ETAS_PrimaryEventSampler {
 		
 		if(D)  ETAS_SimAnalysisTools.writeMemoryUse("Memory before making data");
 		
-		latForCubeCenter = new double[numCubes];
-		lonForCubeCenter = new double[numCubes];
-		depthForCubeCenter = new double[numCubes];
-		for(int i=0;i<numCubes;i++) {
-			int[] regAndDepIndex = getCubeRegAndDepIndicesForIndex(i);
-			Location loc = gridRegForCubes.getLocation(regAndDepIndex[0]);
-			latForCubeCenter[i] = loc.getLatitude();
-			lonForCubeCenter[i] = loc.getLongitude();
-			depthForCubeCenter[i] = getCubeDepth(regAndDepIndex[1]);
-			
-			// test - turn off once done once
-//			Location testLoc = this.getLocationForSamplerIndex(i);
-//			if(Math.abs(testLoc.getLatitude()-latForPoint[i]) > 0.00001)
-//				throw new RuntimeException("Lats diff by more than 0.00001");
-//			if(Math.abs(testLoc.getLongitude()-lonForPoint[i]) > 0.00001)
-//				throw new RuntimeException("Lons diff by more than 0.00001");
-//			if(Math.abs(testLoc.getDepth()-depthForPoint[i]) > 0.00001)
-//				throw new RuntimeException("Depths diff by more than 0.00001");
-			
-		}
-				
 		origGridSeisTrulyOffVsSubSeisStatus = getOrigGridSeisTrulyOffVsSubSeisStatus();
 		
-		// read or make cache data if needed
-		if(inputSectDistForCubeList!=null && inputSectInCubeList != null && inputIsCubeInsideFaultPolygon != null) {
-				sectInCubeList = inputSectInCubeList;
-				sectDistForCubeList = inputSectDistForCubeList;
-				isCubeInsideFaultPolygon = inputIsCubeInsideFaultPolygon;
-		}
-		else {
+		// the cube/section geometry is shared with any other samplers using the same cubeParams and caches
+		cubeGeometry = cubeParams.getCubeGeometry(rupSet.getNumSections(),
+				inputSectDistForCubeList, inputSectInCubeList, inputIsCubeInsideFaultPolygon);
+		if(cubeGeometry == null) {
+			// read or make cache data
 			File sectInCubeCacheFilename = new File(defaultSectInCubeCacheFilename);
 			File sectDistForCubeCacheFilename = new File(defaultSectDistForCubeCacheFilename);	
 			File cubeInsidePolyCacheFilename = new File(defaultCubeInsidePolyCacheFilename);	
-			if (sectInCubeCacheFilename.exists() && sectDistForCubeCacheFilename.exists() && cubeInsidePolyCacheFilename.exists()) { // read from file if it exists
-				try {
-					if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before reading "+sectDistForCubeCacheFilename);
-					sectDistForCubeList = MatrixIO.floatArraysListFromFile(sectDistForCubeCacheFilename);
-					if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before reading "+sectInCubeCacheFilename);
-					sectInCubeList = MatrixIO.intArraysListFromFile(sectInCubeCacheFilename);
-					if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before reading "+cubeInsidePolyCacheFilename);
-					isCubeInsideFaultPolygon = MatrixIO.intArrayFromFile(cubeInsidePolyCacheFilename);
-					if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory after reading isCubeInsideFaultPolygon");
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			else {  // make cache file if they don't exist
+			if (!sectInCubeCacheFilename.exists() || !sectDistForCubeCacheFilename.exists() || !cubeInsidePolyCacheFilename.exists()) {
+				// make cache file if they don't exist
 				if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before running generateAndWriteCacheDataToFiles()");
 				generateAndWriteCacheDataToFiles();
 				if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory after running generateAndWriteCacheDataToFiles()");
 				System.gc();
-				// now read the data from files (because the generate method above does not set these)
-				try {
-					sectDistForCubeList = MatrixIO.floatArraysListFromFile(sectDistForCubeCacheFilename);
-					sectInCubeList = MatrixIO.intArraysListFromFile(sectInCubeCacheFilename);
-					isCubeInsideFaultPolygon = MatrixIO.intArrayFromFile(cubeInsidePolyCacheFilename);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-		
-		// make fractionSectInCubeList
-		// first make lists of cubes and dists for each section
-		if(D) System.out.println("Starting to make fractionSectInCubeList");
-		long startTime= System.currentTimeMillis();
-		ArrayList<ArrayList<Integer>> cubesForSectionList = new ArrayList<ArrayList<Integer>>();
-		ArrayList<ArrayList<Float>> cubeDistsForSectionList = new ArrayList<ArrayList<Float>>();
-		for(int s=0;s<rupSet.getNumSections();s++) {
-			cubesForSectionList.add(new ArrayList<Integer>());
-			cubeDistsForSectionList.add(new ArrayList<Float>());
-		}
-		for(int c=0; c<numCubes;c++) {
-			int[] sectInCubeArray=sectInCubeList.get(c);
-			float[] sectDistForCubeArray = sectDistForCubeList.get(c);
-			for(int i=0;i<sectInCubeArray.length;i++) {
-				int s = sectInCubeArray[i];
-				float dist = sectDistForCubeArray[i];
-				cubesForSectionList.get(s).add(c);
-				cubeDistsForSectionList.get(s).add(dist);
 			}
-		}
-		
-		// make temporary list of fraction hash maps
-		ArrayList<HashMap<Integer,Float>> hashMapForSectList = new ArrayList<HashMap<Integer,Float>>();
-		for(int s=0;s<rupSet.getNumSections();s++) {
-			hashMapForSectList.add(getCubesAndFractForFaultSection_BoatRamp(s, cubesForSectionList, cubeDistsForSectionList));
-		}
-		fractionSectInCubeList = new ArrayList<float[]>();
-		for(int c=0; c<numCubes;c++) {
-			int[] sectInCubeArray = sectInCubeList.get(c);
-			float[] fracsForCubeArray = new float[sectInCubeArray.length];
-			for(int i=0;i<sectInCubeArray.length;i++) {
-				int s=sectInCubeArray[i];
-				fracsForCubeArray[i]=hashMapForSectList.get(s).get(c);
+			// now read the data from files (because the generate method above does not set these)
+			try {
+				if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before reading "+sectDistForCubeCacheFilename);
+				List<float[]> sectDistForCubeList = CSRFloatArraysList.from(MatrixIO.floatArraysListFromFile(sectDistForCubeCacheFilename));
+				if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before reading "+sectInCubeCacheFilename);
+				List<int[]> sectInCubeList = CSRIntArraysList.from(MatrixIO.intArraysListFromFile(sectInCubeCacheFilename));
+				if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before reading "+cubeInsidePolyCacheFilename);
+				int[] isCubeInsideFaultPolygon = MatrixIO.intArrayFromFile(cubeInsidePolyCacheFilename);
+				if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory after reading isCubeInsideFaultPolygon");
+				cubeGeometry = cubeParams.getCubeGeometry(rupSet.getNumSections(),
+						sectDistForCubeList, sectInCubeList, isCubeInsideFaultPolygon);
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+		latForCubeCenter = cubeGeometry.getLatForCubeCenter();
+		lonForCubeCenter = cubeGeometry.getLonForCubeCenter();
+		depthForCubeCenter = cubeGeometry.getDepthForCubeCenter();
+		sectInCubeList = cubeGeometry.getSectInCubeList();
+		sectDistForCubeList = cubeGeometry.getSectDistForCubeList();
+		isCubeInsideFaultPolygon = cubeGeometry.getIsCubeInsideFaultPolygon();
+		numCubesInsideFaultPolygonArray = cubeGeometry.getNumCubesInsideFaultPolygonArray();
+		
+		// make fractionSectInCubeList, which is only done once for a given set of long term MFDs
+		synchronized (cubeGeometry) {
+			fractionSectInCubeList = cubeGeometry.getFractionSectInCubeList(longTermMFDs, applyGR_Corr);
+			if(fractionSectInCubeList == null) {
+				if(D) System.out.println("Starting to make fractionSectInCubeList");
+				long startTime= System.currentTimeMillis();
+				// make temporary list of fraction hash maps
+				ArrayList<HashMap<Integer,Float>> hashMapForSectList = new ArrayList<HashMap<Integer,Float>>();
+				for(int s=0;s<rupSet.getNumSections();s++) {
+					hashMapForSectList.add(getCubesAndFractForFaultSection_BoatRamp(s,
+							cubeGeometry.getCubesForSection(s), cubeGeometry.getCubeDistsForSection(s)));
+				}
+				float[] fracs = new float[sectInCubeList.getNumValues()];
+				for(int c=0; c<numCubes;c++) {
+					int start = sectInCubeList.getStart(c);
+					int end = start + sectInCubeList.getLength(c);
+					for(int i=start;i<end;i++) {
+						int s=sectInCubeList.getValue(i);
+						fracs[i]=hashMapForSectList.get(s).get(c);
+					}
+				}
+				fractionSectInCubeList = new CSRFloatArraysList(sectInCubeList.getOffsets(), FloatBuffer.wrap(fracs));
+				cubeGeometry.setFractionSectInCubeList(longTermMFDs, applyGR_Corr, fractionSectInCubeList);
+				double runtime = ((double)(System.currentTimeMillis()-startTime))/1000;
+				if(D) System.out.println("fractionSectInCubeList took (sec): "+runtime);
 			}
-			fractionSectInCubeList.add(fracsForCubeArray);
-		}
-		double runtime = ((double)(System.currentTimeMillis()-startTime))/1000;
-		if(D) System.out.println("fractionSectInCubeList took (sec): "+runtime);
-
-		
-		
-		// Compute numCubesInsideFaultPolygonArray 
-		if(D) System.out.println("Starting to build numCubesInsideFaultPolygonArray");
-		startTime= System.currentTimeMillis();
-		numCubesInsideFaultPolygonArray = new int[rupSet.getNumSections()];
-		for(int s=0;s<rupSet.getNumSections();s++) {
-			numCubesInsideFaultPolygonArray[s] = cubesForSectionList.get(s).size();
 		}
-		runtime = ((double)(System.currentTimeMillis()-startTime))/1000;
-		if(D) System.out.println("numCubesInsideFaultPolygonArray took (sec): "+runtime);
-		
 		
 		if(erf instanceof FaultSystemSolutionERF) {
 			// create the arrays that will store section nucleation info
 			totSectNuclRateArray = new double[rupSet.getNumSections()];
+			totSectNuclRateVersions = new int[rupSet.getNumSections()];
 			// this is a hashmap for each section, which contains the source index (key) and nucleation rate (value)
 			srcNuclRateOnSects = new SectionSourceNuclRates[rupSet.getNumSections()];
 			for (int sect=0; sect<srcNuclRateOnSects.length; sect++) {
@@ -476,6 +447,7 @@ public class ETAS_PrimaryEventSampler {
 		
 		long st= System.currentTimeMillis();
 		
+		double[] prevTotSectNuclRateArray = totSectNuclRateArray.clone();
 		for(int s=0;s<totSectNuclRateArray.length;s++) {	// intialized totals to zero
 			totSectNuclRateArray[s] = 0d;
 		}
@@ -484,86 +456,182 @@ public class ETAS_PrimaryEventSampler {
 		
 		double[] totLongTermSubSeisRateOnSectArray = longTermMFDs.getTotLongTermSubSeisRateOnSectArray();
 			
-		for(int src=0; src<numFltSystSources; src++) {
-			int fltSysRupIndex = fssERF.getFltSysRupIndexForSource(src);
-			List<Integer> sectIndexList = rupSet.getSectionsIndicesForRup(fltSysRupIndex);
-			
-			// Needed if weighting by susbseis rates
-			int numSubRates=0;
-			double aveSubRates=0;	// this will be used where there are no subseis ruptures
-			for(int sect:sectIndexList) {
-				if(totLongTermSubSeisRateOnSectArray[sect]>0) {
-					numSubRates+=1;
-					aveSubRates+=totLongTermSubSeisRateOnSectArray[sect];
-				}
+		for(int src=0; src<numFltSystSources; src++)
+			computeSectNucleationRatesForSource(src, sectNormTimeSince, totLongTermSubSeisRateOnSectArray);
+		
+		// invalidate cached cube section samplers for any sections that changed
+		for(int sect=0;sect<totSectNuclRateArray.length; sect++)
+			if(totSectNuclRateArray[sect] != prevTotSectNuclRateArray[sect])
+				totSectNuclRateVersions[sect]++;
+		
+		// this is much cheaper than the full recompute above, so always do it
+		testSectNucleationRates(null, null);
+		
+		if(D) {
+			double timeSec = (double)(System.currentTimeMillis()-st)/1000d;
+			System.out.println("computeSectNucleationRates runtime(sec) = "+timeSec);			
+		}
+		
+
+
+	}
+
+	/**
+	 * This maps the rate of the given source onto its sections (see computeSectNucleationRates()), adding
+	 * the section rates to totSectNuclRateArray
+	 */
+	private void computeSectNucleationRatesForSource(int src, double[] sectNormTimeSince,
+			double[] totLongTermSubSeisRateOnSectArray) {
+		int fltSysRupIndex = fssERF.getFltSysRupIndexForSource(src);
+		List<Integer> sectIndexList = rupSet.getSectionsIndicesForRup(fltSysRupIndex);
+		
+		// Needed if weighting by susbseis rates
+		int numSubRates=0;
+		double aveSubRates=0;	// this will be used where there are no subseis ruptures
+		for(int sect:sectIndexList) {
+			if(totLongTermSubSeisRateOnSectArray[sect]>0) {
+				numSubRates+=1;
+				aveSubRates+=totLongTermSubSeisRateOnSectArray[sect];
+			}
+		}
+		if(aveSubRates==0)	// all were outside relm region; give all the same weight
+			aveSubRates=1;
+		else
+			aveSubRates /= numSubRates;
+		
+		
+		double[] relSectNuclRateArray = new double[sectIndexList.size()];	
+		double sum=0;
+		for(int s=0;s<relSectNuclRateArray.length;s++) {
+			int sectIndex = sectIndexList.get(s);
+			double sectWt1;
+			
+			if(wtSupraNuclBySubSeisRates) {
+				// WEIGHT BY SUBSEIS RATE
+				if(totLongTermSubSeisRateOnSectArray[sectIndex] != 0)
+					sectWt1 = totLongTermSubSeisRateOnSectArray[sectIndex];
+				else
+					sectWt1 = aveSubRates;
+				
+			}
+			else {
+				// WEIGHT BY AREA
+				sectWt1 = rupSet.getAreaForSection(sectIndex);
 			}
-			if(aveSubRates==0)	// all were outside relm region; give all the same weight
-				aveSubRates=1;
-			else
-				aveSubRates /= numSubRates;
 			
 			
-			double[] relSectNuclRateArray = new double[sectIndexList.size()];	
-			double sum=0;
-			for(int s=0;s<relSectNuclRateArray.length;s++) {
-				int sectIndex = sectIndexList.get(s);
-				double sectWt1;
-				
-				if(wtSupraNuclBySubSeisRates) {
-					// WEIGHT BY SUBSEIS RATE
-					if(totLongTermSubSeisRateOnSectArray[sectIndex] != 0)
-						sectWt1 = totLongTermSubSeisRateOnSectArray[sectIndex];
-					else
-						sectWt1 = aveSubRates;
-					
-				}
-				else {
-					// WEIGHT BY AREA
-					sectWt1 = rupSet.getAreaForSection(sectIndex);
-				}
-				
-				
-				
-				double normTS=Double.NaN;
-				if(sectNormTimeSince!=null)
-					normTS = sectNormTimeSince[sectIndex];
-				if(Double.isNaN(normTS)) 
-					relSectNuclRateArray[s] = 1.0*sectWt1;	// assume it's 1.0 if value unavailable
-				else {
-					if(APPLY_ERT_FAULTS)
-						relSectNuclRateArray[s]=normTS*sectWt1;
-					else
-						relSectNuclRateArray[s]=1.0*sectWt1;	// test
-				}
-				sum += relSectNuclRateArray[s];	// this will be used to avoid dividing by zero later
+			
+			double normTS=Double.NaN;
+			if(sectNormTimeSince!=null)
+				normTS = sectNormTimeSince[sectIndex];
+			if(Double.isNaN(normTS)) 
+				relSectNuclRateArray[s] = 1.0*sectWt1;	// assume it's 1.0 if value unavailable
+			else {
+				if(APPLY_ERT_FAULTS)
+					relSectNuclRateArray[s]=normTS*sectWt1;
+				else
+					relSectNuclRateArray[s]=1.0*sectWt1;	// test
 			}
-			for(int s=0;s<relSectNuclRateArray.length;s++) {
-				int sectIndex = sectIndexList.get(s);
-				double sectNuclRate;
-				if(sum>0) {
-					sectNuclRate = grCorrFactorForSectArray[sectIndex]*relSectNuclRateArray[s]*sourceRates[src]/sum;
+			sum += relSectNuclRateArray[s];	// this will be used to avoid dividing by zero later
+		}
+		for(int s=0;s<relSectNuclRateArray.length;s++) {
+			int sectIndex = sectIndexList.get(s);
+			double sectNuclRate;
+			if(sum>0) {
+				sectNuclRate = grCorrFactorForSectArray[sectIndex]*relSectNuclRateArray[s]*sourceRates[src]/sum;
 //System.out.println("RIGHTHERE: "+grCorrFactorForSectArray[sectIndex]);
-				}
-				else {
-					sectNuclRate = 0d;
-				}
-				int index = srcNuclRateOnSects[sectIndex].indexOf(src);
-				srcNuclRateOnSects[sectIndex].setSourceNucleationRate(index, (float)sectNuclRate);
-				totSectNuclRateArray[sectIndex] += sectNuclRate;
-				
+			}
+			else {
+				sectNuclRate = 0d;
+			}
+			int index = srcNuclRateOnSects[sectIndex].indexOf(src);
+			srcNuclRateOnSects[sectIndex].setSourceNucleationRate(index, (float)sectNuclRate);
+			totSectNuclRateArray[sectIndex] += sectNuclRate;
+			
 //double tempTest = (float)sectNuclRate;
 //	if(tempTest == 0) {
 //		System.out.println("TEST HERE: "+sectIndex+"\t"+sum+"\t"+normTimeSinceOnSectArray[s]+"\t"+grCorrFactorForSectArray[sectIndex]
 //				+"\t"+sourceRates[src]+"\t"+tempTest+"\t"+sectNuclRate+"\t"+erf.getSource(src).getName());
 //	}
+		}
+	}
+	
+	/**
+	 * This updates section nucleation rates after only the given sources have changed (e.g., after dates of last
+	 * event were reset on their sections). Nucleation rates are recomputed for every source on the sections of
+	 * the updated sources (as their time-dependent weights on those sections may have changed), and section
+	 * totals are recomputed for every section of those sources. Other sources keep their previous nucleation rates.
+	 * @param updatedSources
+	 * @return the sections for which totals were recomputed
+	 */
+	private int[] computeSectNucleationRates(int[] updatedSources) {
+		int numSects = totSectNuclRateArray.length;
+		boolean[] resetSects = new boolean[numSects];
+		for(int src : updatedSources)
+			for(int sect : rupSet.getSectionsIndicesForRup(fssERF.getFltSysRupIndexForSource(src)))
+				resetSects[sect] = true;
+		// all sources on those sections, and all sections of those sources
+		boolean[] srcsToCompute = new boolean[numFltSystSources];
+		for(int sect=0; sect<numSects; sect++)
+			if(resetSects[sect])
+				for(int i=0; i<srcNuclRateOnSects[sect].size(); i++)
+					srcsToCompute[srcNuclRateOnSects[sect].getSourceIndex(i)] = true;
+		boolean[] sectsToSum = new boolean[numSects];
+		List<Integer> srcs = new ArrayList<>();
+		for(int src=0; src<numFltSystSources; src++) {
+			if(srcsToCompute[src]) {
+				srcs.add(src);
+				for(int sect : rupSet.getSectionsIndicesForRup(fssERF.getFltSysRupIndexForSource(src)))
+					sectsToSum[sect] = true;
 			}
 		}
+		List<Integer> sectList = new ArrayList<>();
+		for(int sect=0; sect<numSects; sect++)
+			if(sectsToSum[sect])
+				sectList.add(sect);
+		int[] sects = new int[sectList.size()];
+		double[] prevTotSectNuclRates = new double[sects.length];
+		for(int i=0; i<sects.length; i++) {
+			sects[i] = sectList.get(i);
+			prevTotSectNuclRates[i] = totSectNuclRateArray[sects[i]];
+			totSectNuclRateArray[sects[i]] = 0d;
+		}
+		
+		double[] sectNormTimeSince = fssERF.getNormTimeSinceLastForSections();
+		double[] totLongTermSubSeisRateOnSectArray = longTermMFDs.getTotLongTermSubSeisRateOnSectArray();
+		for(int src : srcs)
+			computeSectNucleationRatesForSource(src, sectNormTimeSince, totLongTermSubSeisRateOnSectArray);
+		// add in unchanged contributions from other sources on those sections
+		for(int sect : sects) {
+			for(int i=0; i<srcNuclRateOnSects[sect].size(); i++)
+				if(!srcsToCompute[srcNuclRateOnSects[sect].getSourceIndex(i)])
+					totSectNuclRateArray[sect] += srcNuclRateOnSects[sect].getSourceNucleationRate(i);
+		}
+		
+		// invalidate cached cube section samplers for any sections that changed
+		for(int i=0; i<sects.length; i++)
+			if(totSectNuclRateArray[sects[i]] != prevTotSectNuclRates[i])
+				totSectNuclRateVersions[sects[i]]++;
+		
+		testSectNucleationRates(sects, srcs);
 		
-		// TESTS TODO do this only in debug mode?
-		for(int sect=0;sect<rupSet.getNumSections(); sect++) {
+		return sects;
+	}
+	
+	/**
+	 * Tests that section nucleation rates sum to section totals, and give back source rates. Only the given
+	 * sections are visited, so the cost of a targeted update's test scales with the size of that update.
+	 * @param sects sections to test, or null for all
+	 * @param srcs sources to test (must include all sources on the given sections, and the given sections must
+	 * include all sections of those sources), or null for all
+	 */
+	private void testSectNucleationRates(int[] sects, List<Integer> srcs) {
+		int numSects = sects == null ? rupSet.getNumSections() : sects.length;
+		for(int i=0;i<numSects; i++) {
+			int sect = sects == null ? i : sects[i];
 			double testTotRate = 0;
-			for (int i=0; i<srcNuclRateOnSects[sect].size(); i++)
-				testTotRate += srcNuclRateOnSects[sect].getSourceNucleationRate(i);
+			for (int j=0; j<srcNuclRateOnSects[sect].size(); j++)
+				testTotRate += srcNuclRateOnSects[sect].getSourceNucleationRate(j);
 			double ratio = testTotRate/totSectNuclRateArray[sect];
 			if(ratio<0.9999 || ratio>1.0001) {
 				throw new RuntimeException("Test failed in computeSectNucleationRates(); ratio ="+ratio+" for sect "+sect);
@@ -571,27 +639,22 @@ public class ETAS_PrimaryEventSampler {
 		}
 		// test that nucleation rates give back source rates
 		double[] testSrcRates = new double[numFltSystSources];
-		for(int sectIndex=0;sectIndex<rupSet.getNumSections();sectIndex++) {
+		for(int s=0;s<numSects;s++) {
+			int sectIndex = sects == null ? s : sects[s];
 			for (int i=0; i<srcNuclRateOnSects[sectIndex].size(); i++) {
 				int srcIndex = srcNuclRateOnSects[sectIndex].getSourceIndex(i);
 				testSrcRates[srcIndex] += srcNuclRateOnSects[sectIndex].getSourceNucleationRate(i)/(grCorrFactorForSectArray[sectIndex]);
 			}
 		}
-		for(int srcIndex=0;srcIndex<this.numFltSystSources;srcIndex++) {
+		int numSrcs = srcs == null ? numFltSystSources : srcs.size();
+		for(int i=0;i<numSrcs;i++) {
+			int srcIndex = srcs == null ? i : srcs.get(i);
 			double testRatio = testSrcRates[srcIndex]/sourceRates[srcIndex];
 			if(testRatio<0.9999 || testRatio>1.0001) {
 				throw new RuntimeException("Source rate test failed in computeSectNucleationRates(); testRatio ="+
 			testRatio+" for srcIndex "+srcIndex+"\ntestSrcRates="+testSrcRates[srcIndex]+"\nsourceRates="+sourceRates[srcIndex]);
 			}
 		}
-		
-		if(D) {
-			double timeSec = (double)(System.currentTimeMillis()-st)/1000d;
-			System.out.println("computeSectNucleationRates runtime(sec) = "+timeSec);			
-		}
-		
-
-
 	}
 	
 	
@@ -605,10 +668,10 @@ public class ETAS_PrimaryEventSampler {
 		long st = System.currentTimeMillis();
 		totalSectRateInCubeArray = new double[numCubes];
 		for(int c=0;c<numCubes;c++) {
-			int[] sectInCubeArray = sectInCubeList.get(c);
-			float[] fracts = fractionSectInCubeList.get(c);
-			for(int s=0; s<sectInCubeArray.length;s++) {
-				totalSectRateInCubeArray[c] += totSectNuclRateArray[sectInCubeArray[s]]*(double)fracts[s];
+			int start = sectInCubeList.getStart(c);
+			int end = start + sectInCubeList.getLength(c);
+			for(int i=start; i<end;i++) {
+				totalSectRateInCubeArray[c] += totSectNuclRateArray[sectInCubeList.getValue(i)]*(double)fractionSectInCubeList.getValue(i);
 			}
 		}
 		
@@ -619,10 +682,29 @@ public class ETAS_PrimaryEventSampler {
 
 	}
 	
+	/**
+	 * This recomputes the total rate of all sections that nucleate inside each cube, only for cubes
+	 * containing any of the given sections
+	 * @param sects
+	 */
+	private void computeTotSectRateInCubesArray(int[] sects) {
+		for(int s : sects) {
+			for(int c : cubeGeometry.getCubesForSection(s)) {
+				int start = sectInCubeList.getStart(c);
+				int end = start + sectInCubeList.getLength(c);
+				double rate = 0d;
+				for(int i=start; i<end;i++) {
+					rate += totSectNuclRateArray[sectInCubeList.getValue(i)]*(double)fractionSectInCubeList.getValue(i);
+				}
+				totalSectRateInCubeArray[c] = rate;
+			}
+		}
+	}
+	
 	
 	public void setSectInCubeCaches(List<float[]> sectDistForCubeList, List<int[]> sectInCubeList) {
-		this.sectDistForCubeList = sectDistForCubeList;
-		this.sectInCubeList = sectInCubeList;
+		this.sectDistForCubeList = CSRFloatArraysList.from(sectDistForCubeList);
+		this.sectInCubeList = CSRIntArraysList.from(sectInCubeList);
 	}
 	
 	
@@ -825,21 +907,21 @@ public class ETAS_PrimaryEventSampler {
 	 * 
 	 * DistThreshold is hard coded at 10 km.
 	 * @param sectionIndex
-	 * @param cubesForSectionList
-	 * @param cubeDistsForSectionList
+	 * @param cubesForSection - cubes inside the section polygon
+	 * @param cubeDistsForSection - distance of each cube from the section surface
 	 * @return
 	 */
-	private HashMap<Integer,Float> getCubesAndFractForFaultSection_BoatRamp(int sectionIndex, ArrayList<ArrayList<Integer>> cubesForSectionList, 
-			ArrayList<ArrayList<Float>> cubeDistsForSectionList) {
+	private HashMap<Integer,Float> getCubesAndFractForFaultSection_BoatRamp(int sectionIndex, int[] cubesForSection, 
+			float[] cubeDistsForSection) {
 		
-		double numCubes = (double)cubesForSectionList.get(sectionIndex).size();
+		double numCubes = (double)cubesForSection.length;
 		
 		HashMap<Integer,Float> wtMap = new HashMap<Integer,Float>();
 		
 		if(applyGR_Corr || charFactorForSectArray[sectionIndex]<=1.0) {	// distribute evenly among cubes
 			float wt = 1f/(float)numCubes;
-			for(int i=0; i<cubesForSectionList.get(sectionIndex).size();i++) {
-				int cubeIndex = cubesForSectionList.get(sectionIndex).get(i);
+			for(int i=0; i<cubesForSection.length;i++) {
+				int cubeIndex = cubesForSection[i];
 				wtMap.put(cubeIndex, wt);
 			}
 			return wtMap;
@@ -854,8 +936,8 @@ public class ETAS_PrimaryEventSampler {
 		double sumDistWithinDistThresh = 0.0;
 		double minDist=Double.MAX_VALUE;
 		double maxDist=0.0;
-		for(int i=0; i<cubesForSectionList.get(sectionIndex).size();i++) {
-			double dist = cubeDistsForSectionList.get(sectionIndex).get(i);
+		for(int i=0; i<cubesForSection.length;i++) {
+			double dist = cubeDistsForSection[i];
 			if(dist<=distThresh) {
 				numCubesWithinDistThresh += 1.0;
 				sumDistWithinDistThresh += dist;
@@ -874,9 +956,9 @@ public class ETAS_PrimaryEventSampler {
 		double minRate=Double.MAX_VALUE;
 		double maxRate=0.0;
 		float totWt=0;
-		for(int i=0; i<cubesForSectionList.get(sectionIndex).size();i++) {
-			int cubeIndex = cubesForSectionList.get(sectionIndex).get(i);
-			double dist = cubeDistsForSectionList.get(sectionIndex).get(i);
+		for(int i=0; i<cubesForSection.length;i++) {
+			int cubeIndex = cubesForSection[i];
+			double dist = cubeDistsForSection[i];
 			double rate;
 			if(dist<=distThresh)
 				rate = (slope*dist+intercept);
@@ -1363,7 +1445,7 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		// compute nucleation rate of gridded-seis source in this cube
 		int gridSrcIndex = -1;
 		double gridSrcRate=0;
-		int griddeSeisRegionIndex = origGriddedRegion.indexForLocation(getCubeLocationForIndex(cubeIndex));
+		int griddeSeisRegionIndex = cubeGeometry.getGridNodeIndexForCube(cubeIndex);
 		if(griddeSeisRegionIndex != -1)	{
 			gridSrcIndex = numFltSystSources + griddeSeisRegionIndex;
 			// OLD WAY:
@@ -1373,13 +1455,14 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			gridSrcRate = cubeSamplerGriddedRatesOnly.getY(cubeIndex);	
 		}
 		
-		int[] sectInCubeArray = sectInCubeList.get(cubeIndex);
+		int sectStart = sectInCubeList.getStart(cubeIndex);
+		int numSectInCube = sectInCubeList.getLength(cubeIndex);
 		
-		if(gridSrcIndex == -1 && sectInCubeArray.length==0) {
+		if(gridSrcIndex == -1 && numSectInCube==0) {
 			return null;
 		}
 		
-		if(gridSrcIndex != -1 && (sectInCubeArray.length==0 || fracSupra==0.0)) {
+		if(gridSrcIndex != -1 && (numSectInCube==0 || fracSupra==0.0)) {
 			rateForSrcHashtable.put(gridSrcIndex, gridSrcRate);	// only gridded source in this cube
 			return rateForSrcHashtable;
 		}
@@ -1388,10 +1471,9 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			rateForSrcHashtable.put(gridSrcIndex, gridSrcRate);	// add gridded source rate
 		
 		// now fill in nucleation rate of remaining sources
-		float[] fracts = fractionSectInCubeList.get(cubeIndex);
-		for(int s=0;s<sectInCubeArray.length;s++) {
-			int sectIndex = sectInCubeArray[s];
-			double fracSectInCube = fracts[s];
+		for(int s=sectStart;s<sectStart+numSectInCube;s++) {
+			int sectIndex = sectInCubeList.getValue(s);
+			double fracSectInCube = fractionSectInCubeList.getValue(s);
 			for (int i=0; i<srcNuclRateOnSects[sectIndex].size(); i++) {
 				int srcIndex = srcNuclRateOnSects[sectIndex].getSourceIndex(i);
 				double srcNuclRateInCube = srcNuclRateOnSects[sectIndex].getSourceNucleationRate(i)*fracSectInCube*fracSupra;
@@ -1773,7 +1855,8 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 					continue;
 				}
 				
-				int[] sectInCubeArray = sectInCubeList.get(i);
+				int sectStart = sectInCubeList.getStart(i);
+				int numSectInCube = sectInCubeList.getLength(i);
 				
 				
 				// TEST for just ERT effect with no time dep probabilities
@@ -1791,19 +1874,18 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 				
 				
 
-				float[] fractInCubeArray = fractionSectInCubeList.get(i);
 				double sum = 0;
-				for(int s=0;s<sectInCubeArray.length;s++) {
-					int sectIndex = sectInCubeArray[s];
-					sum += totSectNuclRateArray[sectIndex]*fractInCubeArray[s]*fracSupra;
+				for(int s=sectStart;s<sectStart+numSectInCube;s++) {
+					int sectIndex = sectInCubeList.getValue(s);
+					sum += totSectNuclRateArray[sectIndex]*fractionSectInCubeList.getValue(s)*fracSupra;
 				}
 				double gridCubeRate=cubeSamplerGriddedRatesOnly.getY(i);
 				sum += gridCubeRate;	// to make it the total nucleation rate in cube
 				if(sum > 0) {	// avoid division by zero if all rates are zero
 					totGridProb += sampler.getY(i)*gridCubeRate/sum;
-					for(int s=0;s<sectInCubeArray.length;s++) {
-						int sectIndex = sectInCubeArray[s];
-						double val = totSectNuclRateArray[sectIndex]*fractInCubeArray[s]*fracSupra*sampler.getY(i)/sum;
+					for(int s=sectStart;s<sectStart+numSectInCube;s++) {
+						int sectIndex = sectInCubeList.getValue(s);
+						double val = totSectNuclRateArray[sectIndex]*fractionSectInCubeList.getValue(s)*fracSupra*sampler.getY(i)/sum;
 						sectProbArray[sectIndex] += val;
 
 // cubes for sections off ends of Mojave scenario						
@@ -4084,10 +4166,18 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		if(includeERF_Rates) {
 			aftShCubeIndex = rupToFillIn.getCubeIndex();
 			if(aftShCubeIndex == -1) {	
-				IntegerPDF_FunctionSampler sampler = getCubeSampler(parLocIndex);
 				// fill in the cube locations for all events with this parent location for efficiency
-				for(ETAS_EqkRupture tempRup: eventListForParLocIndexMap.get(parLocIndex)) {
-					tempRup.setCubeIndex(sampler.getRandomInt(etas_utils.getRandomDouble()));
+				if(useSparseCubeSamplers && includeSpatialDecay) {
+					SparseCubeSampler sampler = getSparseCubeSamplerWithDistDecay(parLocIndex);
+					for(ETAS_EqkRupture tempRup: eventListForParLocIndexMap.get(parLocIndex)) {
+						tempRup.setCubeIndex(sampler.getRandomInt(etas_utils.getRandomDouble()));
+					}
+				}
+				else {
+					IntegerPDF_FunctionSampler sampler = getCubeSampler(parLocIndex);
+					for(ETAS_EqkRupture tempRup: eventListForParLocIndexMap.get(parLocIndex)) {
+						tempRup.setCubeIndex(sampler.getRandomInt(etas_utils.getRandomDouble()));
+					}
 				}
 				eventListForParLocIndexMap.remove(parLocIndex);
 				aftShCubeIndex = rupToFillIn.getCubeIndex();
@@ -4111,7 +4201,7 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			aftShCubeIndex = getCubeIndexForLocation(cubeLoc);
 			if(aftShCubeIndex == -1)
 				return false;	// triggered location outside of the region
-			int griddeSeisRegionIndex = origGriddedRegion.indexForLocation(getCubeLocationForIndex(aftShCubeIndex));
+			int griddeSeisRegionIndex = cubeGeometry.getGridNodeIndexForCube(aftShCubeIndex);
 			if(griddeSeisRegionIndex == -1)	// check whether the cube has any gridded seismicity
 				return false;
 		}
@@ -4199,8 +4289,7 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			int gridRegionIndex = randSrcIndex-numFltSystSources;
 			ProbEqkSource src=null;
 			if(origGridSeisTrulyOffVsSubSeisStatus[gridRegionIndex] == 2) {	// it has both truly off and sub-seismo components
-				int[] regAndDepIndex = getCubeRegAndDepIndicesForIndex(aftShCubeIndex);
-				int isSubSeismo = isCubeInsideFaultPolygon[regAndDepIndex[0]];
+				int isSubSeismo = isCubeInsideFaultPolygon[cubeGeometry.getCubeRegIndex(aftShCubeIndex)];
 				if(isSubSeismo == 1) {
 					src = ((FaultSystemSolutionERF)erf).getSourceSubSeisOnly(randSrcIndex);
 				}
@@ -4372,6 +4461,31 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		if (D) ETAS_SimAnalysisTools.writeMemoryUse("Memory after discarding chached Samplers");
 	}
 	
+	/**
+	 * This is a faster alternative to declareRateChange() for when only the given fault system sources have
+	 * changed (e.g., FaultSystemSolutionERF.getFltSysSourcesUpdated() after dates of last event were reset).
+	 * Only sections and cubes affected by those sources are recomputed, as are MFDs for only those sources.
+	 * The sourceRates array must already have been updated for these sources.
+	 * @param updatedSources
+	 */
+	public void declareRateChange(int[] updatedSources) {
+		if(updatedSources.length == 0)
+			return;
+		long st = System.currentTimeMillis();
+		int[] sects = computeSectNucleationRates(updatedSources);
+		computeTotSectRateInCubesArray(sects);
+		if(mfdForSrcArray != null) {
+			for(int s : updatedSources) {
+				mfdForSrcArray[s] = ERF_Calculator.getTotalMFD_ForSource(erf.getSource(s), erf.getTimeSpan().getDuration(), 5.05, 8.95, 40, true);
+			}
+		}
+		if(D) {
+			double timeSec = (double)(System.currentTimeMillis()-st)/1000d;
+			System.out.println("declareRateChange for "+updatedSources.length+" sources, "+sects.length
+					+" sections, runtime(sec) = "+timeSec);
+		}
+	}
+	
 	
 	
 	/**
@@ -4440,6 +4554,52 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		return sampler;
 	}
 
+	/**
+	 * Sets whether cube samplers with spatial decay should only include cubes within the support of the
+	 * decay kernel when sampling primary aftershock locations (true by default). Samples are the same either
+	 * way, but sparse samplers are much faster to build and use less memory.
+	 * @param useSparseCubeSamplers
+	 */
+	public void setUseSparseCubeSamplers(boolean useSparseCubeSamplers) {
+		this.useSparseCubeSamplers = useSparseCubeSamplers;
+	}
+	
+	/**
+	 * This is equivalent to getCubeSamplerWithDistDecay(parLocIndex), but only includes cubes within the
+	 * extent of the spatial decay kernel (where locWeightCalc.getProbAtPoint(...) is nonzero). The weight of all
+	 * other cubes is exactly zero, so nothing is lost.
+	 * @param parLocIndex
+	 * @return
+	 */
+	private SparseCubeSampler getSparseCubeSamplerWithDistDecay(int parLocIndex) {
+		Location parLoc = this.getParLocationForIndex(parLocIndex);
+		getCubeSamplerWithERF_GriddedRatesOnly();	// this makes sure cubeSamplerRatesOnly (rates only) is updated
+		
+		// region indexes for the cubes within the kernel (padded slightly, cubes just outside will have zero weight),
+		// sorted so that cube indexes are in the same order as in the full sampler
+		double parLat = parLoc.getLatitude();
+		double parLon = parLoc.getLongitude();
+		int[] regIndexes = cubeGeometry.getCubeRegIndexesWithin(parLat, parLon, locWeightCalc.getMaxRelLatLon() + 1e-6);
+		int numReg = regIndexes.length;
+		
+		int[] cubeIndexes = new int[numReg*numCubeDepths];
+		double[] weights = new double[cubeIndexes.length];
+		int num = 0;
+		for(int depIndex=0; depIndex<numCubeDepths; depIndex++) {
+			for(int i=0; i<numReg; i++) {
+				int index = depIndex*numCubesPerDepth+regIndexes[i];
+				double relLat = Math.abs(parLat-latForCubeCenter[index]);
+				double relLon = Math.abs(parLon-lonForCubeCenter[index]);
+				double weight = locWeightCalc.getProbAtPoint(relLat, relLon, depthForCubeCenter[index], parLoc.getDepth())*cubeSamplerGriddedRatesOnly.getY(index);
+				if(weight > 0) {
+					cubeIndexes[num] = index;
+					weights[num++] = weight;
+				}
+			}
+		}
+		return new SparseCubeSampler(cubeIndexes, weights, num);
+	}
+	
 	/**
 	 * This sampler ignores the long-term rates
 	 * @param mainshock
@@ -4478,16 +4638,18 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 	public double getGridSourcRateInCube(int cubeIndex, boolean debug) {
 		List<? extends IncrementalMagFreqDist> longTermSubSeisMFD_OnSectList = longTermMFDs.getLongTermSubSeisMFD_OnSectList();
 		
-		int griddeSeisRegionIndex = origGriddedRegion.indexForLocation(getCubeLocationForIndex(cubeIndex));
+		int griddeSeisRegionIndex = cubeGeometry.getGridNodeIndexForCube(cubeIndex);
 		if(griddeSeisRegionIndex != -1) {
-			int cubeRegIndex = getCubeRegAndDepIndicesForIndex(cubeIndex)[0];
+			int cubeRegIndex = cubeGeometry.getCubeRegIndex(cubeIndex);
 			if(isCubeInsideFaultPolygon[cubeRegIndex]==1) {
 				// need to construct this carefully because not all sections in cell influence all cubes in cell
-				int[] sectInCubeArray = sectInCubeList.get(cubeIndex);	// TODO this assumes that supra sect rates are spread to all cubes in polygon, and not to those on the main fault surface
+				// TODO this assumes that supra sect rates are spread to all cubes in polygon, and not to those on the main fault surface
+				int sectStart = sectInCubeList.getStart(cubeIndex);
+				int numSectInCube = sectInCubeList.getLength(cubeIndex);
 				// can't use fracSectInCubeArray because rates may not have been distributed evenly
 				double totCubeRate=0;
-				for(int i=0;i<sectInCubeArray.length;i++) {
-					int sectID = sectInCubeArray[i];
+				for(int i=sectStart;i<sectStart+numSectInCube;i++) {
+					int sectID = sectInCubeList.getValue(i);
 					double cubeRate = longTermSubSeisMFD_OnSectList.get(sectID).getCumRate(2.55)/(double)numCubesInsideFaultPolygonArray[sectID]; // TODO remove hard coded mag
 					totCubeRate += cubeRate;	
 					if(debug)
@@ -4524,7 +4686,7 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 	public int getRandomSourceIndexInCube_OLD(int cubeIndex) {
 		
 		// compute rate of gridded-seis source in this cube
-		int griddeSeisRegionIndex = origGriddedRegion.indexForLocation(getCubeLocationForIndex(cubeIndex));
+		int griddeSeisRegionIndex = cubeGeometry.getGridNodeIndexForCube(cubeIndex);
 		if(griddeSeisRegionIndex == -1)	// TODO THROW EXCEPTION FOR NOW UNTIL I UNDERSTAND CONDITIONS BETTER
 			throw new RuntimeException("No gridded source index for cube at: "+getCubeLocationForIndex(cubeIndex).toString());
 		
@@ -4553,7 +4715,7 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 				
 				int sectIndex = sectInCubeArray[randSampleIndex-1];
 //				HashMap<Integer,Float> srcNuclRateHashMap = srcNuclRateOnSectList.get(sectIndex);
-				IntegerPDF_FunctionSampler srcSampler = srcNuclRateOnSects[sectIndex].buildSampler();
+				WalkerAliasSampler srcSampler = srcNuclRateOnSects[sectIndex].getSampler();
 				int index = srcSampler.getRandomInt(etas_utils.getRandomDouble());
 				return srcNuclRateOnSects[sectIndex].getSourceIndex(index);
 			}
@@ -4574,7 +4736,7 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 	public int getRandomSourceIndexInCube(int cubeIndex, double fractionSupra) {
 		
 		// get gridded region index for the cube
-		int griddeSeisRegionIndex = origGriddedRegion.indexForLocation(getCubeLocationForIndex(cubeIndex));
+		int griddeSeisRegionIndex = cubeGeometry.getGridNodeIndexForCube(cubeIndex);
 		if(griddeSeisRegionIndex == -1)	// TODO THROW EXCEPTION FOR NOW UNTIL I UNDERSTAND CONDITIONS BETTER
 			throw new RuntimeException("No gridded source index for cube at: "+getCubeLocationForIndex(cubeIndex).toString());
 		
@@ -4592,20 +4754,51 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			}
 			else {
 				// randomly sample a section first
-				int[] sectInCubeArray = sectInCubeList.get(cubeIndex);
-				float[] fracts = fractionSectInCubeList.get(cubeIndex);
-				IntegerPDF_FunctionSampler sectSampler = new IntegerPDF_FunctionSampler(sectInCubeArray.length);  // plus 1 for gridded source
-				for(int s=0; s<sectInCubeArray.length;s++) {
-					sectSampler.set(s,totSectNuclRateArray[sectInCubeArray[s]]*(double)fracts[s]);		
-				}
-				int randSectIndex = sectSampler.getRandomInt(etas_utils.getRandomDouble());
-				int sectIndex = sectInCubeArray[randSectIndex];
-				int index = srcNuclRateOnSects[sectIndex].buildSampler().getRandomInt(etas_utils.getRandomDouble());
+				int randSectIndex = getCubeSectSampler(cubeIndex).getRandomInt(etas_utils.getRandomDouble());
+				int sectIndex = sectInCubeList.getValue(sectInCubeList.getStart(cubeIndex)+randSectIndex);
+				int index = srcNuclRateOnSects[sectIndex].getSampler().getRandomInt(etas_utils.getRandomDouble());
 				return srcNuclRateOnSects[sectIndex].getSourceIndex(index);
 			}
 		}
 	}
 	
+	/**
+	 * Returns a sampler for choosing a section in the given cube, with weights equal to the section nucleation rate
+	 * times the fraction of the section in the cube. This is cached for each cube, and rebuilt only if the nucleation
+	 * rate of one of the sections in the cube has changed since it was built.
+	 * @param cubeIndex
+	 * @return
+	 */
+	private WalkerAliasSampler getCubeSectSampler(int cubeIndex) {
+		int sectStart = sectInCubeList.getStart(cubeIndex);
+		int numSectInCube = sectInCubeList.getLength(cubeIndex);
+		// section versions only increase, so this sum changes whenever any of them do
+		long version = 0l;
+		for(int s=0; s<numSectInCube;s++)
+			version += totSectNuclRateVersions[sectInCubeList.getValue(sectStart+s)];
+		if(cubeSectSamplers == null)
+			cubeSectSamplers = new CubeSectSampler[numCubes];
+		CubeSectSampler cached = cubeSectSamplers[cubeIndex];
+		if(cached == null || cached.version != version) {
+			double[] weights = new double[numSectInCube];
+			for(int s=0; s<numSectInCube;s++)
+				weights[s] = totSectNuclRateArray[sectInCubeList.getValue(sectStart+s)]*(double)fractionSectInCubeList.getValue(sectStart+s);
+			cached = new CubeSectSampler(version, new WalkerAliasSampler(weights));
+			cubeSectSamplers[cubeIndex] = cached;
+		}
+		return cached.sampler;
+	}
+	
+	private static class CubeSectSampler {
+		private final long version;
+		private final WalkerAliasSampler sampler;
+		
+		public CubeSectSampler(long version, WalkerAliasSampler sampler) {
+			this.version = version;
+			this.sampler = sampler;
+		}
+	}
+	
 	/**
 	 * This computes a scale factor for each fault section, whereby multiplying the associate supra-seismogenic MFD
 	 * by this factor will produced the same ??????? as for a perfect GR
@@ -4687,9 +4880,14 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 	}
 	
 	public Location getCubeLocationForIndex(int cubeIndex) {
-		int[] regAndDepIndex = getCubeRegAndDepIndicesForIndex(cubeIndex);
-		Location regLoc = gridRegForCubes.getLocation(regAndDepIndex[0]);
-		return new Location(regLoc.getLatitude(),regLoc.getLongitude(),getCubeDepth(regAndDepIndex[1]));
+		if(latForCubeCenter == null) {
+			// shared geometry not yet available (e.g., when generating the cache files)
+			int[] regAndDepIndex = getCubeRegAndDepIndicesForIndex(cubeIndex);
+			Location regLoc = gridRegForCubes.getLocation(regAndDepIndex[0]);
+			return new Location(regLoc.getLatitude(),regLoc.getLongitude(),getCubeDepth(regAndDepIndex[1]));
+		}
+		// cube centers are precomputed in the shared geometry
+		return new Location(latForCubeCenter[cubeIndex],lonForCubeCenter[cubeIndex],depthForCubeCenter[cubeIndex]);
 	}
 	
 	/**
@@ -5015,7 +5213,7 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			SummedMagFreqDist mfd=null;
 			double srcNuclRate = rateForSrcHashtable.get(srcIndex);
 			int gridIndex = srcIndex-numFltSystSources;
-			int cubeRegIndex = getCubeRegAndDepIndicesForIndex(cubeIndex)[0];
+			int cubeRegIndex = cubeGeometry.getCubeRegIndex(cubeIndex);
 			if(srcIndex >= numFltSystSources && origGridSeisTrulyOffVsSubSeisStatus[gridIndex] == 2) { // gridded seismicity and cell has both types
 				if(isCubeInsideFaultPolygon[cubeRegIndex] == 1) {
 					mfd = mfdForSrcSubSeisOnlyArray[srcIndex];
@@ -5083,7 +5281,7 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			double srcNuclRate = rateForSrcInCubeHashtable.get(srcIndex);
 			int gridIndex = srcIndex-numFltSystSources;
 			
-			int cubeRegIndex = getCubeRegAndDepIndicesForIndex(cubeIndex)[0];
+			int cubeRegIndex = cubeGeometry.getCubeRegIndex(cubeIndex);
 			if(origGridSeisTrulyOffVsSubSeisStatus[gridIndex] == 2) { // gridded seismicity and cell has both types
 				if(isCubeInsideFaultPolygon[cubeRegIndex] == 1) {
 					mfd = mfdForSrcSubSeisOnlyArray[srcIndex];
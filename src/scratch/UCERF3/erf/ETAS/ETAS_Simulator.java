@@ -29,7 +29,6 @@ import org.opensha.commons.data.TimeSpan;
 import org.opensha.commons.data.function.DefaultXY_DataSet;
 import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
 import org.opensha.commons.data.function.HistogramFunction;
-import org.opensha.commons.data.function.IntegerPDF_FunctionSampler;
 import org.opensha.commons.data.function.XY_DataSet;
 import org.opensha.commons.data.region.CaliforniaRegions;
 import org.opensha.commons.data.region.CaliforniaRegions.RELM_TESTING_GRIDDED;
@@ -114,6 +113,7 @@ import scratch.UCERF3.analysis.GMT_CA_Maps;
 import scratch.UCERF3.enumTreeBranches.FaultModels;
 import scratch.UCERF3.enumTreeBranches.ScalingRelationships;
 import scratch.UCERF3.erf.FaultSystemSolutionERF;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.BinaryCatalogWriter;
 import scratch.UCERF3.erf.ETAS.ETAS_SimAnalysisTools.EpicenterMapThread;
 import scratch.UCERF3.erf.ETAS.association.FiniteFaultMappingData;
 import scratch.UCERF3.erf.ETAS.ETAS_Params.ETAS_ParameterList;
@@ -226,6 +226,29 @@ public class ETAS_Simulator {
 			boolean includeIndirectTriggering, double gridSeisDiscr, String simulationName,
 			Long randomSeed, List<float[]> fractionSrcInCubeList, List<int[]> srcInCubeList, int[] inputIsCubeInsideFaultPolygon, 
 			ETAS_ParameterList etasParams, ETAS_CubeDiscretizationParams cubeParams, ETAS_LongTermMFDs longTermMFDs) throws IOException {
+		return runETAS_Simulation(
+				resultsDir, erf, griddedRegion, scenarioRups, histQkList, includeSpontEvents,
+				includeIndirectTriggering, gridSeisDiscr, simulationName, randomSeed,
+				fractionSrcInCubeList, srcInCubeList, inputIsCubeInsideFaultPolygon, etasParams,
+				cubeParams, longTermMFDs, false);
+	}
+	
+	
+	
+	/**
+	 * Same as the other runETAS_Simulation methods, but can write simulated events directly to the binary catalog
+	 * format (simulatedEvents.bin) as they are generated instead of to simulatedEvents.txt. See
+	 * {@link ETAS_CatalogIO.BinaryCatalogWriter}.
+	 * @param binaryOutput - if true, events are streamed to simulatedEvents.bin, otherwise simulatedEvents.txt
+	 * @return simulation metadata object
+	 * @throws IOException
+	 */
+	public static ETAS_SimulationMetadata runETAS_Simulation(File resultsDir, AbstractNthRupERF erf,
+			GriddedRegion griddedRegion, List<ETAS_EqkRupture> scenarioRups, List<? extends ObsEqkRupture> histQkList, boolean includeSpontEvents,
+			boolean includeIndirectTriggering, double gridSeisDiscr, String simulationName,
+			Long randomSeed, List<float[]> fractionSrcInCubeList, List<int[]> srcInCubeList, int[] inputIsCubeInsideFaultPolygon, 
+			ETAS_ParameterList etasParams, ETAS_CubeDiscretizationParams cubeParams, ETAS_LongTermMFDs longTermMFDs,
+			boolean binaryOutput) throws IOException {
 		long simulationStartTime = System.currentTimeMillis();
 		
 		// Overide to Poisson if needed
@@ -265,541 +288,211 @@ public class ETAS_Simulator {
 		// TODO this is closed below; why the warning?
 		int bufferSize = 1000000;
 		Writer info_fr = new BufferedWriter(new FileWriter(new File(resultsDir, "infoString.txt")), bufferSize);
-		Writer simulatedEventsFileWriter = new BufferedWriter(new FileWriter(new File(resultsDir, "simulatedEvents.txt")), bufferSize);
-		ETAS_CatalogIO.writeEventHeaderToFile(simulatedEventsFileWriter);
-
-		info_fr.write(simulationName+"\n");
-		info_fr.write("\nrandomSeed="+etas_utils.getRandomSeed()+"\n");
-		if(D) System.out.println("\nrandomSeed="+etas_utils.getRandomSeed());
-		if(histQkList == null)
-			info_fr.write("\nhistQkList.size()=null"+"\n");
-		else
-			info_fr.write("\nhistQkList.size()="+histQkList.size()+"\n");
-		info_fr.write("includeSpontEvents="+includeSpontEvents+"\n");
-		info_fr.write("includeIndirectTriggering="+includeIndirectTriggering+"\n");
-		
-		info_fr.write("\nERF Adjustable Paramteres:\n\n");
-		for(Parameter param : erf.getAdjustableParameterList()) {
-			info_fr.write("\t"+param.getName()+" = "+param.getValue()+"\n");
+		Writer simulatedEventsFileWriter = null;
+		BinaryCatalogWriter simulatedEventsBinaryWriter = null;
+		if (binaryOutput) {
+			simulatedEventsBinaryWriter = new BinaryCatalogWriter(new File(resultsDir, "simulatedEvents.bin"),
+					randomSeed, simulationStartTime);
+		} else {
+			simulatedEventsFileWriter = new BufferedWriter(new FileWriter(new File(resultsDir, "simulatedEvents.txt")), bufferSize);
+			ETAS_CatalogIO.writeEventHeaderToFile(simulatedEventsFileWriter);
 		}
-		TimeSpan tsp = erf.getTimeSpan();
-		String startTimeString = tsp.getStartTimeMonth()+"/"+tsp.getStartTimeDay()+"/"+tsp.getStartTimeYear()+"; hr="+tsp.getStartTimeHour()+"; min="+tsp.getStartTimeMinute()+"; sec="+tsp.getStartTimeSecond();
-		info_fr.write("\nERF StartTime: "+startTimeString+"\n");
-		info_fr.write("\nERF TimeSpan Duration: "+erf.getTimeSpan().getDuration()+" years\n");
-		
-		info_fr.write("\nETAS Paramteres:\n\n");
-		if(D) System.out.println("\nETAS Paramteres:\n\n");
-		for(Parameter param : etasParams) {
-			info_fr.write("\t"+param.getName()+" = "+param.getValue()+"\n");
-			if(D) System.out.println("\t"+param.getName()+" = "+param.getValue());
-		}
-		
-		info_fr.flush();	// this writes the above out now in case of crash
 		
-		// Make the list of observed ruptures, plus scenario if that was included
-		ArrayList<ETAS_EqkRupture> obsEqkRuptureList = new ArrayList<ETAS_EqkRupture>();
-		
-		Range<Integer> rangeHistCatalogParentIDs = null;
-		if(histQkList != null) {
-			// zero is reserved for scenarios if included
-			int id;
-			if (scenarioRups != null && !scenarioRups.isEmpty())
-				id = scenarioRups.size();
+		try {
+			info_fr.write(simulationName+"\n");
+			info_fr.write("\nrandomSeed="+etas_utils.getRandomSeed()+"\n");
+			if(D) System.out.println("\nrandomSeed="+etas_utils.getRandomSeed());
+			if(histQkList == null)
+				info_fr.write("\nhistQkList.size()=null"+"\n");
 			else
-				id = 1;
-			int startID = id;
-			for(ObsEqkRupture qk : histQkList) {
-				Location hyp = qk.getHypocenterLocation();
-				if(griddedRegion.contains(hyp) && hyp.getDepth() < 24.0) {	//TODO remove hard-coded 24.0 (get from depth dist)
-					ETAS_EqkRupture etasRup;
-					if (qk instanceof ETAS_EqkRupture)
-						// keep original, may have FSS Index set
-						etasRup = (ETAS_EqkRupture)qk;
-					else
-						etasRup = new ETAS_EqkRupture(qk);
-					etasRup.setID(id);
-					obsEqkRuptureList.add(etasRup);
-					id+=1;
-				}
-			}
-			if (id > startID)
-				rangeHistCatalogParentIDs = Range.closed(startID, id-1);
-			if (D) System.out.println("histQkList.size()="+histQkList.size());
-			if (D) System.out.println("obsEqkRuptureList.size()="+obsEqkRuptureList.size());
-		}
-		
-		// add scenario rup to beginning of obsEqkRuptureList
-		int[] scenarioRupIDs = null;
-		Map<Integer, Integer> numPrimaryAshockForScenarios = null;
-		Range<Integer> rangeTriggerRupIDs = null;
-		if(scenarioRups != null && !scenarioRups.isEmpty()) {
-//			scenarioRupID = obsEqkRuptureList.size();
-			// zero is reserved for scenario rupture
-			scenarioRupIDs = new int[scenarioRups.size()];
-			numPrimaryAshockForScenarios = new HashMap<>();
+				info_fr.write("\nhistQkList.size()="+histQkList.size()+"\n");
+			info_fr.write("includeSpontEvents="+includeSpontEvents+"\n");
+			info_fr.write("includeIndirectTriggering="+includeIndirectTriggering+"\n");
 			
-			for (int i=0; i<scenarioRups.size(); i++) {
-				ETAS_EqkRupture scenarioRup = scenarioRups.get(i);
-				scenarioRupIDs[i] = i;
-				scenarioRup.setID(i);
-				obsEqkRuptureList.add(scenarioRup);		
-				if(D) {
-					System.out.println("Num locs on scenario "+i+" rup surface: "
-							+scenarioRup.getRuptureSurface().getEvenlyDiscritizedListOfLocsOnSurface().size());
-				}
+			info_fr.write("\nERF Adjustable Paramteres:\n\n");
+			for(Parameter param : erf.getAdjustableParameterList()) {
+				info_fr.write("\t"+param.getName()+" = "+param.getValue()+"\n");
 			}
-			rangeTriggerRupIDs = Range.closed(0, scenarioRups.size()-1);
-		}
-		
-		// this will store the simulated aftershocks & spontaneous events (in order of occurrence) - ObsEqkRuptureList? (they're added in order anyway)
-		ObsEqkRupOrigTimeComparator oigTimeComparator = new ObsEqkRupOrigTimeComparator();	// this will keep the event in order of origin time
-		PriorityQueue<ETAS_EqkRupture>  simulatedRupsQueue = new PriorityQueue<ETAS_EqkRupture>(1000, oigTimeComparator);
-		
-		// this is for keeping track of aftershocks on the fault system
-		ArrayList<Integer> nthFaultSysRupAftershocks = D ? new ArrayList<Integer>() : null;
-		
-		// get simulation timespan info
-		long simStartTimeMillis = erf.getTimeSpan().getStartTimeCalendar().getTimeInMillis();
-		long simEndTimeMillis = erf.getTimeSpan().getEndTimeCalendar().getTimeInMillis();
-		double simDurationYrs = erf.getTimeSpan().getDuration();
-		
-		if(D) System.out.println("Updating forecast in testETAS_Simulation");
-		// set to yearly probabilities for simulation forecast (in case input was not a 1-year forecast)
-		erf.getTimeSpan().setDuration(1.0);	// TODO make duration expected time to next supra seis event?
-		erf.updateForecast();	// do this to get annual rate over the entire forecast (used to sample spontaneous events)
-		if(D) System.out.println("Done updating forecast in testETAS_Simulation");
-		
-		//Compute origTotRate; this calculation includes any ruptures outside region, 
-				// but this is dominated by gridded seis so shouldn't matter; using 
-				// ERF_Calculator.getTotalRateInRegion(erf, griddedRegion, 0.0) takes way too long.
-		if(D) System.out.println("Computing original spontaneousRupSampler & sourceRates[s]");
-		long st = System.currentTimeMillis();
-		double origTotRate=0;
-		double sourceRates[] = new double[erf.getNumSources()];
-		double duration = erf.getTimeSpan().getDuration();
-		IntegerPDF_FunctionSampler spontaneousRupSampler = new IntegerPDF_FunctionSampler(erf.getTotNumRups());
-		int nthRup=0;
-		if(D) System.out.println("total number of ruptures: "+erf.getTotNumRups());
-		for(int s=0;s<erf.getNumSources();s++) {
-			ProbEqkSource src = erf.getSource(s);
-			sourceRates[s] = src.computeTotalEquivMeanAnnualRate(duration);
-			if(D && sourceRates[s]==0) {
-				double rate = fssERF.getSolution().getRateForRup(fssERF.getFltSysRupIndexForSource(s));
-				System.out.println("ZERO RATE FAULT SOURCE: "+rate+"\t"+src.getRupture(0).getProbability()+"\t"+src.getName());
-			}
-			for (int r=0; r<src.getNumRuptures(); r++) {
-				ProbEqkRupture rup = src.getRupture(r);
-				if (nthRup >= spontaneousRupSampler.size())
-					throw new RuntimeException("Weird...tot num="+erf.getTotNumRups()+", nth="+nthRup);
-				double rupRate = rup.getMeanAnnualRate(duration);
-				if (!Double.isFinite(rupRate)) {
-					Preconditions.checkState(Doubles.isFinite(rupRate),
-							"Non fininte rup rate: %s, prob=%s, src=%s, rup=%s, mag=%s, ptSource=%s",
-							rupRate, rup.getProbability(), s, r, rup.getMag(), rup.getRuptureSurface().isPointSurface());
-				}
-				origTotRate += rupRate;
-				spontaneousRupSampler.set(nthRup, rupRate);
-				nthRup+=1;
-			}
-		}
-		info_fr.write("\nExpected mean annual rate over timeSpan (per year) = "+(float)origTotRate+"\n");
-//		info_fr.flush();
-		if(D) System.out.println("\tspontaneousRupSampler.calcSumOfY_Vals()="+(float)spontaneousRupSampler.calcSumOfY_Vals() +
-				"; that took (sec): "+(float)(System.currentTimeMillis()-st)/1000f);
-		
-		
-		if(D) System.out.println("Making ETAS_PrimaryEventSampler");
-		st = System.currentTimeMillis();
-		
-		// Create the ETAS_PrimaryEventSampler
-		if (cubeParams == null)
-			cubeParams = new ETAS_CubeDiscretizationParams(griddedRegion);
-		if (longTermMFDs == null)
-			longTermMFDs = new ETAS_LongTermMFDs(fssERF, etasParams.getApplySubSeisForSupraNucl());
-		ETAS_PrimaryEventSampler etas_PrimEventSampler = new ETAS_PrimaryEventSampler(cubeParams, erf, longTermMFDs, sourceRates, null, etasParams,
-				etas_utils, fractionSrcInCubeList, srcInCubeList, inputIsCubeInsideFaultPolygon);
-		if(D) System.out.println("ETAS_PrimaryEventSampler creation took "+(float)(System.currentTimeMillis()-st)/60000f+ " min");
-		info_fr.write("\nMaking ETAS_PrimaryEventSampler took "+(System.currentTimeMillis()-st)/60000+ " min");
-//		info_fr.flush();
-		
-		// Make list of primary aftershocks for given list of obs quakes 
-		// (filling in origin time ID, parentID, and location on parent that does triggering, with the rest to be filled in later)
-		if (D) System.out.println("Making primary aftershocks from input obsEqkRuptureList, size = "+obsEqkRuptureList.size());
-		PriorityQueue<ETAS_EqkRupture>  eventsToProcess = new PriorityQueue<ETAS_EqkRupture>(1000, oigTimeComparator);	// not sure about the first field
-//		int testParID=0;	// this will be used to test IDs
-		int eventID = obsEqkRuptureList.size();	// start IDs after input events
-		for(ETAS_EqkRupture parRup: obsEqkRuptureList) {
-			int parID = parRup.getID();
-//			if(parID != testParID) 
-//				throw new RuntimeException("problem with ID");
-			long rupOT = parRup.getOriginTime();
-			double startDay = (double)(simStartTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;	// convert epoch to days from event origin time
-			double endDay = (double)(simEndTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;
-			// get a list of random primary event times, in units of days since main shock
+			TimeSpan tsp = erf.getTimeSpan();
+			String startTimeString = tsp.getStartTimeMonth()+"/"+tsp.getStartTimeDay()+"/"+tsp.getStartTimeYear()+"; hr="+tsp.getStartTimeHour()+"; min="+tsp.getStartTimeMinute()+"; sec="+tsp.getStartTimeSecond();
+			info_fr.write("\nERF StartTime: "+startTimeString+"\n");
+			info_fr.write("\nERF TimeSpan Duration: "+erf.getTimeSpan().getDuration()+" years\n");
 			
-			// set the etas parameters for this rupture (if not already set), and randomize k if it's not already set and kCOV>0
-			etas_utils.setETAS_ParamsForRupture(parRup, etasParams);
-
-			// get the random direct aftershock times
-			double[] randomAftShockTimes = etas_utils.getRandomEventTimes(parRup.getETAS_k(), parRup.getETAS_p(), parRup.getMag(), ETAS_Utils.magMin_DEFAULT, parRup.getETAS_c(), startDay, endDay);
-
-			if (scenarioRupIDs != null && rangeTriggerRupIDs.contains(parRup.getID()))
-				numPrimaryAshockForScenarios.put(parRup.getID(), randomAftShockTimes.length);
-			RuptureSurface surf = null;
-			if(randomAftShockTimes.length>0) {
-				for(int i=0; i<randomAftShockTimes.length;i++) {
-					long ot = rupOT +  (long)(randomAftShockTimes[i]*(double)ProbabilityModelsCalc.MILLISEC_PER_DAY);	// convert to milliseconds
-					ETAS_EqkRupture newRup = new ETAS_EqkRupture(parRup, eventID, ot);
-					newRup.setParentID(parID);	// TODO don't need this if it's set from parent rup in above constructor
-					newRup.setGeneration(1);	// TODO shouldn't need this either since it's 1 plus that of parent (also set in costructor)
-					if(parRup.getFSSIndex()==-1)
-						newRup.setParentTriggerLoc(etas_utils.getRandomLocationOnRupSurface(parRup));
-					else {
-						// this produces too few aftershocks on highly creeping faults:
-//						Location tempLoc = etas_utils.getRandomLocationOnRupSurface(parRup);
-						
-						// for no creep/aseis reduction:
-						if(surf == null) // make reusable surface
-							surf = etas_utils.getRuptureSurfaceWithNoCreepReduction(parRup.getFSSIndex(), fssERF, 0.05);
-						int tempIndex = etas_utils.getRandomInt(surf.getEvenlyDiscretizedNumLocs()-1);
-						Location tempLoc = surf.getEvenlyDiscretizedLocation(tempIndex);
-						
-						if(tempLoc.getDepth()>etas_PrimEventSampler.maxDepth) {
-							Location newLoc = new Location(tempLoc.getLatitude(),tempLoc.getLongitude(), etas_PrimEventSampler.maxDepth);
-							tempLoc=newLoc;
-						}
-
-						// now add some randomness for numerical stability:
-						newRup.setParentTriggerLoc(etas_PrimEventSampler.getRandomFuzzyLocation(tempLoc));
-					}
-					etas_PrimEventSampler.addRuptureToProcess(newRup); // for efficiency
-					eventsToProcess.add(newRup);
-					eventID +=1;
-				}
+			info_fr.write("\nETAS Paramteres:\n\n");
+			if(D) System.out.println("\nETAS Paramteres:\n\n");
+			for(Parameter param : etasParams) {
+				info_fr.write("\t"+param.getName()+" = "+param.getValue()+"\n");
+				if(D) System.out.println("\t"+param.getName()+" = "+param.getValue());
 			}
-//			testParID += 1;				
-		}
-		if (D) System.out.println("The "+obsEqkRuptureList.size()+" input events produced "+eventsToProcess.size()+" primary aftershocks");
-		info_fr.write("\nThe "+obsEqkRuptureList.size()+" input observed events produced "+eventsToProcess.size()+" primary aftershocks\n");
-//		info_fr.flush();
-
-		
-		// make the list of spontaneous events, filling in only event IDs and origin times for now
-		if(includeSpontEvents) {
-			if (D) System.out.println("Making spontaneous events and times of primary aftershocks...");
-			
-//			// OLD WAY
-//			double fractionNonTriggered=etasParams.getFractSpont();	// one minus branching ratio TODO fix this; this is not what branching ratio is
-//			double expectedNum = origTotRate*simDuration*fractionNonTriggered;
-//			int numSpontEvents = etas_utils.getPoissonRandomNumber(expectedNum);
-//			for(int r=0;r<numSpontEvents;r++) {
-//				ETAS_EqkRupture rup = new ETAS_EqkRupture();
-//				double ot = simStartTimeMillis+etas_utils.getRandomDouble()*(simEndTimeMillis-simStartTimeMillis);	// random time over time span
-//				rup.setOriginTime((long)ot);
-//				rup.setID(eventID);
-//				rup.setGeneration(0);
-//				eventsToProcess.add(rup);
-//				eventID += 1;
-//			}
-//			String spEvStringInfo = "Spontaneous Events:\n\n\tAssumed fraction non-triggered = "+fractionNonTriggered+
-//					"\n\texpectedNum="+expectedNum+"\n\tnumSampled="+numSpontEvents+"\n";
-//			if(D) System.out.println(spEvStringInfo);
-//			info_fr.write("\n"+spEvStringInfo);
-//			info_fr.flush();
-			
-			
-			// NEW WAY (time-dep rate of spont events)
-			long histCatStartTime = simStartTimeMillis; // this is the default if histQkList==null
-			long[] spontEventTimes;
-			IncrementalMagFreqDist mfd = etas_PrimEventSampler.getLongTermTotalERF_MFD().deepClone();
-			// Apply scale factor
-			mfd.scale(etasParams.getTotalRateScaleFactor());
-			if (histQkList == null || histQkList.isEmpty())
-				spontEventTimes = etas_utils.getRandomSpontanousEventTimes(mfd, histCatStartTime, simStartTimeMillis, simEndTimeMillis, 1000, 
-						etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
-			else
-				spontEventTimes = etas_utils.getRandomSpontanousEventTimes(
-						mfd, etasParams.getStatewideCompletenessModel().getEvenlyDiscretizedMagYearFunc(), simStartTimeMillis, 
-						simEndTimeMillis, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
 			
+			info_fr.flush();	// this writes the above out now in case of crash
 			
-			//********************
-//			EvenlyDiscretizedFunc funcCatIncompl = etas_utils.getSpontanousEventRateFunction(mfd, U3_EqkCatalogStatewideCompleteness.load().getEvenlyDiscretizedMagYearFunc(), simStartTimeMillis, 
-//					simEndTimeMillis, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
-//			funcCatIncompl.setName("funcCatIncompl");
-//			
-////			histCatStartTime = simStartTimeMillis - (long)(12.0*(double)ProbabilityModelsCalc.MILLISEC_PER_YEAR); // 12 years prior
-//			EvenlyDiscretizedFunc funcNoCat = etas_utils.getSpontanousEventRateFunction(mfd, histCatStartTime, simStartTimeMillis, 
-//					simEndTimeMillis, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
-//			funcNoCat.setName("funcNoCat");
-//			ArrayList<EvenlyDiscretizedFunc> funcList = new ArrayList<EvenlyDiscretizedFunc>();
-//			funcList.add(funcCatIncompl);
-//			funcList.add(funcNoCat);
-//			ArrayList<PlotCurveCharacterstics> plotCharList = new ArrayList<PlotCurveCharacterstics>();
-//			plotCharList.add(new PlotCurveCharacterstics(PlotLineType.SOLID, 2f, Color.BLACK));
-//			plotCharList.add(new PlotCurveCharacterstics(PlotLineType.SOLID, 2f, Color.BLUE));
-//			GraphWindow graph = new GraphWindow(funcList, "Year vs Mag", plotCharList); 
-//			graph.setX_AxisLabel("Time");
-//			graph.setY_AxisLabel("Rate");
+			// Make the list of observed ruptures, plus scenario if that was included
+			ArrayList<ETAS_EqkRupture> obsEqkRuptureList = new ArrayList<ETAS_EqkRupture>();
 			
-			
-			
-//			long simEnd = simStartTimeMillis + (long)(1.0*(double)ProbabilityModelsCalc.MILLISEC_PER_YEAR);
-//			histCatStartTime = simStartTimeMillis;
-//			EvenlyDiscretizedFunc funcNoCat1 = etas_utils.getSpontanousEventRateFunction(mfd, histCatStartTime, simStartTimeMillis, 
-//					simEnd, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
-//			funcNoCat1.setName("funcNoCat1");
-//
-//			
-//			histCatStartTime = simStartTimeMillis - (long)(12.0*(double)ProbabilityModelsCalc.MILLISEC_PER_YEAR);
-//			EvenlyDiscretizedFunc funcNoCat2 = etas_utils.getSpontanousEventRateFunction(mfd, histCatStartTime, simStartTimeMillis, 
-//					simEnd, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
-//			funcNoCat2.setName("funcNoCat2");
-//
-//
-//			ArrayList<EvenlyDiscretizedFunc> funcList = new ArrayList<EvenlyDiscretizedFunc>();
-//			funcList.add(funcNoCat1);
-//			funcList.add(funcNoCat2);
-//			ArrayList<PlotCurveCharacterstics> plotCharList = new ArrayList<PlotCurveCharacterstics>();
-//			plotCharList.add(new PlotCurveCharacterstics(PlotLineType.SOLID, 2f, Color.BLACK));
-//			plotCharList.add(new PlotCurveCharacterstics(PlotLineType.SOLID, 2f, Color.BLUE));
-//			GraphWindow graph = new GraphWindow(funcList, "Year vs Mag", plotCharList); 
-//			graph.setX_AxisLabel("Time");
-//			graph.setY_AxisLabel("Rate");
-
-			//************************
-
-	
-			// This is to write out the fraction spontaneous as a funcation of time
-//			EvenlyDiscretizedFunc rateFunc = etas_utils.getSpontanousEventRateFunction(mfd, U3_EqkCatalogStatewideCompleteness.load().getEvenlyDiscretizedMagYearFunc(), simStartTimeMillis, 
-//					simEndTimeMillis, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
-//			for(int i=0;i<rateFunc.size();i++) {
-//				double year = (rateFunc.getX(i)-(double)simStartTimeMillis)/ProbabilityModelsCalc.MILLISEC_PER_YEAR;
-//				double fractRate = rateFunc.getY(i)/mfd.getTotalIncrRate();
-//				System.out.println(year+"\t"+fractRate);
-//			}
-//			System.exit(-1);
-
-
-			for(int r=0;r<spontEventTimes.length;r++) {
-				ETAS_EqkRupture rup = new ETAS_EqkRupture();
-				rup.setOriginTime(spontEventTimes[r]);
-				rup.setID(eventID);
-				rup.setGeneration(0);
-				eventsToProcess.add(rup);
-				eventID += 1;
+			Range<Integer> rangeHistCatalogParentIDs = null;
+			if(histQkList != null) {
+				// zero is reserved for scenarios if included
+				int id;
+				if (scenarioRups != null && !scenarioRups.isEmpty())
+					id = scenarioRups.size();
+				else
+					id = 1;
+				int startID = id;
+				for(ObsEqkRupture qk : histQkList) {
+					Location hyp = qk.getHypocenterLocation();
+					if(griddedRegion.contains(hyp) && hyp.getDepth() < 24.0) {	//TODO remove hard-coded 24.0 (get from depth dist)
+						ETAS_EqkRupture etasRup;
+						if (qk instanceof ETAS_EqkRupture)
+							// keep original, may have FSS Index set
+							etasRup = (ETAS_EqkRupture)qk;
+						else
+							etasRup = new ETAS_EqkRupture(qk);
+						etasRup.setID(id);
+						obsEqkRuptureList.add(etasRup);
+						id+=1;
+					}
+				}
+				if (id > startID)
+					rangeHistCatalogParentIDs = Range.closed(startID, id-1);
+				if (D) System.out.println("histQkList.size()="+histQkList.size());
+				if (D) System.out.println("obsEqkRuptureList.size()="+obsEqkRuptureList.size());
 			}
-			double fractionNonTriggered = (double)spontEventTimes.length/(origTotRate*simDurationYrs);
-			String spEvStringInfo = "Spontaneous Events:\n\n\tFraction non-triggered = "+fractionNonTriggered+
-					"\t(sample num over total expected num)"+"\n\tnumSpontEventsSampled="+spontEventTimes.length+"\n";
-			if(D) System.out.println(spEvStringInfo);
-			info_fr.write("\n"+spEvStringInfo);
-//			info_fr.flush();
-		}
-		
-
-		// If scenarioRup != null, generate  diagnostics if in debug mode!
-		List<EvenlyDiscretizedFunc> expectedPrimaryMFDsForScenarioList=null;
-		if(scenarioRups !=null) {
-			for (int i=0; i<scenarioRups.size(); i++) {
-				ETAS_EqkRupture scenarioRup = scenarioRups.get(i);
-				boolean scenWrite = (D || scenarioRups.size() < 100 || scenarioRup.getMag() >= 5d);
-				if (!scenWrite)
-					continue;
-				long rupOT = scenarioRup.getOriginTime();
-				
-				double startDay = (double)(simStartTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;	// convert epoch to days from event origin time
-				double endDay = (double)(simEndTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;
+			
+			// add scenario rup to beginning of obsEqkRuptureList
+			int[] scenarioRupIDs = null;
+			Map<Integer, Integer> numPrimaryAshockForScenarios = null;
+			Range<Integer> rangeTriggerRupIDs = null;
+			if(scenarioRups != null && !scenarioRups.isEmpty()) {
+	//			scenarioRupID = obsEqkRuptureList.size();
+				// zero is reserved for scenario rupture
+				scenarioRupIDs = new int[scenarioRups.size()];
+				numPrimaryAshockForScenarios = new HashMap<>();
 				
-				info_fr.write("\nMagnitude of Scenario: "+(float)scenarioRup.getMag()+"\n");
-				if (D) System.out.println("\nMagnitude of Scenario: "+(float)scenarioRup.getMag());
-				double k = scenarioRup.getETAS_k();
-				double p = scenarioRup.getETAS_p();
-				double c = scenarioRup.getETAS_c();
-				if (k != etasParams.get_k()) {
-					info_fr.write("\tCustom k-value for Scenario: "+k+"\n");
-					if (D) System.out.println("\tCustom k-value for Scenario: "+k+"\n");
-				}
-				if (p != etasParams.get_p()) {
-					info_fr.write("\tCustom p-value for Scenario: "+p+"\n");
-					if (D) System.out.println("\tCustom p-value for Scenario: "+p+"\n");
-				}
-				if (c != etasParams.get_c()) {
-					info_fr.write("\tCustom c-value for Scenario: "+c+"\n");
-					if (D) System.out.println("\tCustom c-value for Scenario: "+c+"\n");
-				}
-				double expNum = ETAS_Utils.getExpectedNumEvents(k, p, scenarioRup.getMag(), ETAS_Utils.magMin_DEFAULT, c, startDay, endDay);
-				info_fr.write("Expected number of primary events for Scenario: "+expNum+"\n");
-				int numPrimaryAftershocks = numPrimaryAshockForScenarios.get(scenarioRup.getID());
-				info_fr.write("Observed number of primary events for Scenario: "+numPrimaryAftershocks+"\n");
-				if (D) {
-					System.out.println("Expected number of primary events for Scenario: "+expNum);
-					System.out.println("Observed number of primary events for Scenario: "+numPrimaryAftershocks+"\n");
+				for (int i=0; i<scenarioRups.size(); i++) {
+					ETAS_EqkRupture scenarioRup = scenarioRups.get(i);
+					scenarioRupIDs[i] = i;
+					scenarioRup.setID(i);
+					obsEqkRuptureList.add(scenarioRup);		
+					if(D) {
+						System.out.println("Num locs on scenario "+i+" rup surface: "
+								+scenarioRup.getRuptureSurface().getEvenlyDiscritizedListOfLocsOnSurface().size());
+					}
 				}
-//				info_fr.flush();
+				rangeTriggerRupIDs = Range.closed(0, scenarioRups.size()-1);
 			}
-		}
-		
-		if(D) {
-			System.out.println("Testing the etas_PrimEventSampler");
-			etas_PrimEventSampler.testRates();
-//			etas_PrimEventSampler.testMagFreqDist();	// this is time consuming
-		}
-		
-		CalcProgressBar progressBar;
-		try {
-			progressBar = new CalcProgressBar("Primary aftershocks to process", "junk");
-			progressBar.showProgress(true);
-		} catch (Throwable t) {
-			// headless, don't show it
-			progressBar = null;
-		}
-		
-
-		
-		if (D) System.out.println("Looping over eventsToProcess (initial num = "+eventsToProcess.size()+")...\n");
-		if (D) System.out.println("\tFault system ruptures triggered (date\tmag\tname\tnthRup,src,rupInSrc,fltSysRup):");
-		info_fr.write("\nFault system ruptures triggered (date\tmag\tname\tnthRup,src,rupInSrc,fltSysRup):\n");
-//		info_fr.flush();
-
-		st = System.currentTimeMillis();
-		
-		int numSimulatedEvents = 0;
-		
-		EpicenterMapThread mapThread;
-		if (D && live_map)
-			mapThread = ETAS_SimAnalysisTools.plotUpdatingEpicenterMap(
-				simulationName, null, simulatedRupsQueue, griddedRegion.getBorder());
-		else
-			mapThread = null;
-		
-		if (D && pause_for_events) {	// this is demo mode for talks; so it can be set to go when the button hit
-			try {
-				JOptionPane.showMessageDialog(null, "Continue", "Ready To Generate Events", JOptionPane.PLAIN_MESSAGE);
-			} catch (HeadlessException e) {
-				// do nothing if Headless
-			}
-		}
-		
-		if (D) info_fr.flush();	// this writes the above out now in case of crash
-		
-		final double maxPointSourceMag = etasParams.getMaxPointSourceMag();
-		
-		while(eventsToProcess.size()>0) {
 			
-			if (progressBar != null) progressBar.updateProgress(numSimulatedEvents, eventsToProcess.size()+numSimulatedEvents);
+			// this will store the simulated aftershocks & spontaneous events (in order of occurrence) - ObsEqkRuptureList? (they're added in order anyway)
+			ObsEqkRupOrigTimeComparator oigTimeComparator = new ObsEqkRupOrigTimeComparator();	// this will keep the event in order of origin time
+			PriorityQueue<ETAS_EqkRupture>  simulatedRupsQueue = new PriorityQueue<ETAS_EqkRupture>(1000, oigTimeComparator);
 			
-			ETAS_EqkRupture rup = eventsToProcess.poll();	//Retrieves and removes the head of this queue, or returns null if this queue is empty.
+			// this is for keeping track of aftershocks on the fault system
+			ArrayList<Integer> nthFaultSysRupAftershocks = D ? new ArrayList<Integer>() : null;
 			
-			boolean succeededInSettingRupture=true;	// used later to indicate whether ETAS Primary event sampler succeeded in sampling an event
+			// get simulation timespan info
+			long simStartTimeMillis = erf.getTimeSpan().getStartTimeCalendar().getTimeInMillis();
+			long simEndTimeMillis = erf.getTimeSpan().getEndTimeCalendar().getTimeInMillis();
+			double simDurationYrs = erf.getTimeSpan().getDuration();
 			
-			if(rup.getParentID() == -1)	{ // it's a spontaneous event TODO
-//			if(rup.getParentRup() == null)	{ // it's a spontaneous event
-				Location hypoLoc = null;
-				ProbEqkRupture erf_rup;
-				nthRup = spontaneousRupSampler.getRandomInt(etas_utils.getRandomDouble());	// sample from long-term model
-				erf_rup = erf.getNthRupture(nthRup);
-				LocationList surfPts = erf_rup.getRuptureSurface().getEvenlyDiscritizedListOfLocsOnSurface();
-				if(surfPts.size() == 1) {// point source
-					Location ptLoc = surfPts.get(0);
-					// FOLLOWING ASSUMES A GRID SPACING OF 0.1 FOR BACKGROUND SEIS; "0.99" is to keep it in cell
-					hypoLoc = new Location(ptLoc.getLatitude()+(etas_utils.getRandomDouble()-0.5)*0.1*0.99,
-							ptLoc.getLongitude()+(etas_utils.getRandomDouble()-0.5)*0.1*0.99,
-							seisDepthDistribution.getRandomDepth(etas_utils));
-					
-					if(erf_rup.getMag()<maxPointSourceMag)
-						rup.setPointSurface(hypoLoc);
-					else {
-						double aveDip = erf_rup.getRuptureSurface().getAveDip(); // confirm this works
-						rup.setRuptureSurface(etas_utils.getRandomFiniteRupSurface(erf_rup.getMag(), hypoLoc, aveDip));
-					}
-					
-//					if(erf_rup.getRuptureSurface() instanceof PointSurface13b) {
-//						PointSurface13b ptSurf = (PointSurface13b)erf_rup.getRuptureSurface();
-//						System.out.println(
-//								erf_rup.getMag()+"\t"+
-//								erf_rup.getAveRake()+"\t"+
-//								ptSurf.getAveDip()+"\t"+
-//								ptSurf.getAveRupTopDepth()+"\t"+
-//								ptSurf.getAveStrike()+"\t"+
-//								ptSurf.getAveWidth());
-//					}
-						
-
+			if(D) System.out.println("Updating forecast in testETAS_Simulation");
+			// set to yearly probabilities for simulation forecast (in case input was not a 1-year forecast)
+			erf.getTimeSpan().setDuration(1.0);	// TODO make duration expected time to next supra seis event?
+			erf.updateForecast();	// do this to get annual rate over the entire forecast (used to sample spontaneous events)
+			if(D) System.out.println("Done updating forecast in testETAS_Simulation");
+			
+			//Compute origTotRate; this calculation includes any ruptures outside region, 
+					// but this is dominated by gridded seis so shouldn't matter; using 
+					// ERF_Calculator.getTotalRateInRegion(erf, griddedRegion, 0.0) takes way too long.
+			if(D) System.out.println("Computing original spontaneousRupSampler & sourceRates[s]");
+			long st = System.currentTimeMillis();
+			double origTotRate=0;
+			double sourceRates[] = new double[erf.getNumSources()];
+			double duration = erf.getTimeSpan().getDuration();
+			// this is updated after each fault system rupture in time dependent simulations, so use a sampler with fast updates
+			FenwickTreeSampler spontaneousRupSampler = new FenwickTreeSampler(erf.getTotNumRups());
+			int nthRup=0;
+			if(D) System.out.println("total number of ruptures: "+erf.getTotNumRups());
+			for(int s=0;s<erf.getNumSources();s++) {
+				ProbEqkSource src = erf.getSource(s);
+				sourceRates[s] = src.computeTotalEquivMeanAnnualRate(duration);
+				if(D && sourceRates[s]==0) {
+					double rate = fssERF.getSolution().getRateForRup(fssERF.getFltSysRupIndexForSource(s));
+					System.out.println("ZERO RATE FAULT SOURCE: "+rate+"\t"+src.getRupture(0).getProbability()+"\t"+src.getName());
 				}
-				else {
-					int hypIndex = etas_utils.getRandomInt(surfPts.size()-1);	// choose random loc assuming uniform probability among points
-					hypoLoc = surfPts.get(hypIndex);
-					rup.setRuptureSurface(erf_rup.getRuptureSurface());
+				for (int r=0; r<src.getNumRuptures(); r++) {
+					ProbEqkRupture rup = src.getRupture(r);
+					if (nthRup >= spontaneousRupSampler.size())
+						throw new RuntimeException("Weird...tot num="+erf.getTotNumRups()+", nth="+nthRup);
+					double rupRate = rup.getMeanAnnualRate(duration);
+					if (!Double.isFinite(rupRate)) {
+						Preconditions.checkState(Doubles.isFinite(rupRate),
+								"Non fininte rup rate: %s, prob=%s, src=%s, rup=%s, mag=%s, ptSource=%s",
+								rupRate, rup.getProbability(), s, r, rup.getMag(), rup.getRuptureSurface().isPointSurface());
+					}
+					origTotRate += rupRate;
+					spontaneousRupSampler.set(nthRup, rupRate);
+					nthRup+=1;
 				}
-				rup.setAveRake(erf_rup.getAveRake());
-				rup.setMag(erf_rup.getMag());
-				rup.setNthERF_Index(nthRup);
-				rup.setHypocenterLocation(hypoLoc);
-				int sourceIndex = erf.getSrcIndexForNthRup(nthRup);
-				if (sourceIndex < numFaultSysSources)
-					rup.setFSSIndex(fssERF.getFltSysRupIndexForNthRup(nthRup));
-				else
-					rup.setGridNodeIndex(sourceIndex - numFaultSysSources);
-			}
-			// Not spontaneous, so set as a primary aftershock
-			else {
-				succeededInSettingRupture = etas_PrimEventSampler.setRandomPrimaryEvent(rup, maxPointSourceMag);
 			}
+			info_fr.write("\nExpected mean annual rate over timeSpan (per year) = "+(float)origTotRate+"\n");
+	//		info_fr.flush();
+			if(D) System.out.println("\tspontaneousRupSampler.calcSumOfY_Vals()="+(float)spontaneousRupSampler.calcSumOfY_Vals() +
+					"; that took (sec): "+(float)(System.currentTimeMillis()-st)/1000f);
 			
-			// break out if we failed to set the rupture
-			if(!succeededInSettingRupture) // TODO shouldn't following chunk of code be in the else statement directly above?
-				continue;
-			nthRup = rup.getNthERF_Index();
-			int srcIndex = erf.getSrcIndexForNthRup(nthRup);
-			int fltSysRupIndex = -1;
-			if(srcIndex<numFaultSysSources) {
-				fltSysRupIndex = fssERF.getFltSysRupIndexForNthRup(nthRup);
-				rup.setFSSIndex(fltSysRupIndex);
-			}
-				
-
-			// add the rupture to the list
-			simulatedRupsQueue.add(rup);	// this storage does not take much memory during the simulations
-			numSimulatedEvents += 1;
-			
-			if (includeIndirectTriggering) {
-				// set the etas parameters for this rupture, randomizing k if kCOV>0
-				// do this before writing it to the file
-				etas_utils.setETAS_ParamsForRupture(rup, etasParams);
-			}
 			
-			ETAS_CatalogIO.writeEventToFile(simulatedEventsFileWriter, rup);
+			if(D) System.out.println("Making ETAS_PrimaryEventSampler");
+			st = System.currentTimeMillis();
 			
-			long rupOT = rup.getOriginTime();
+			// Create the ETAS_PrimaryEventSampler
+			if (cubeParams == null)
+				cubeParams = new ETAS_CubeDiscretizationParams(griddedRegion);
+			if (longTermMFDs == null)
+				longTermMFDs = new ETAS_LongTermMFDs(fssERF, etasParams.getApplySubSeisForSupraNucl());
+			ETAS_PrimaryEventSampler etas_PrimEventSampler = new ETAS_PrimaryEventSampler(cubeParams, erf, longTermMFDs, sourceRates, null, etasParams,
+					etas_utils, fractionSrcInCubeList, srcInCubeList, inputIsCubeInsideFaultPolygon);
+			if(D) System.out.println("ETAS_PrimaryEventSampler creation took "+(float)(System.currentTimeMillis()-st)/60000f+ " min");
+			info_fr.write("\nMaking ETAS_PrimaryEventSampler took "+(System.currentTimeMillis()-st)/60000+ " min");
+	//		info_fr.flush();
 			
-			// now sample primary aftershock times for this event (this should be in a method because it's redundant with code above)
-			if(includeIndirectTriggering) {
-				int parID = rup.getID();	// rupture is now the parent
-				int gen = rup.getGeneration()+1;
-				double startDay = 0;	// starting at origin time since we're within the timespan
+			// Make list of primary aftershocks for given list of obs quakes 
+			// (filling in origin time ID, parentID, and location on parent that does triggering, with the rest to be filled in later)
+			if (D) System.out.println("Making primary aftershocks from input obsEqkRuptureList, size = "+obsEqkRuptureList.size());
+			PriorityQueue<ETAS_EqkRupture>  eventsToProcess = new PriorityQueue<ETAS_EqkRupture>(1000, oigTimeComparator);	// not sure about the first field
+	//		int testParID=0;	// this will be used to test IDs
+			int eventID = obsEqkRuptureList.size();	// start IDs after input events
+			for(ETAS_EqkRupture parRup: obsEqkRuptureList) {
+				int parID = parRup.getID();
+	//			if(parID != testParID) 
+	//				throw new RuntimeException("problem with ID");
+				long rupOT = parRup.getOriginTime();
+				double startDay = (double)(simStartTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;	// convert epoch to days from event origin time
 				double endDay = (double)(simEndTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;
-//				double[] eventTimes = etas_utils.getDefaultRandomEventTimes(rup.getMag(), startDay, endDay);
+				// get a list of random primary event times, in units of days since main shock
 				
-				// get primary aftershock event times
-				double[] eventTimes = etas_utils.getRandomEventTimes(rup.getETAS_k(), rup.getETAS_p(), rup.getMag(), ETAS_Utils.magMin_DEFAULT, rup.getETAS_c(), startDay, endDay);
+				// set the etas parameters for this rupture (if not already set), and randomize k if it's not already set and kCOV>0
+				etas_utils.setETAS_ParamsForRupture(parRup, etasParams);
 
+				// get the random direct aftershock times
+				double[] randomAftShockTimes = etas_utils.getRandomEventTimes(parRup.getETAS_k(), parRup.getETAS_p(), parRup.getMag(), ETAS_Utils.magMin_DEFAULT, parRup.getETAS_c(), startDay, endDay);
+
+				if (scenarioRupIDs != null && rangeTriggerRupIDs.contains(parRup.getID()))
+					numPrimaryAshockForScenarios.put(parRup.getID(), randomAftShockTimes.length);
 				RuptureSurface surf = null;
-				if(eventTimes.length>0) {
-					for(int i=0; i<eventTimes.length;i++) {
-						long ot = rupOT +  (long)(eventTimes[i]*(double)ProbabilityModelsCalc.MILLISEC_PER_DAY);
-						ETAS_EqkRupture newRup = new ETAS_EqkRupture(rup, eventID, ot);
-						newRup.setGeneration(gen);	// TODO have set in above constructor?
-						newRup.setParentID(parID);	// TODO have set in above constructor?
-						if(rup.getFSSIndex()==-1)
-							newRup.setParentTriggerLoc(etas_utils.getRandomLocationOnRupSurface(rup));
+				if(randomAftShockTimes.length>0) {
+					for(int i=0; i<randomAftShockTimes.length;i++) {
+						long ot = rupOT +  (long)(randomAftShockTimes[i]*(double)ProbabilityModelsCalc.MILLISEC_PER_DAY);	// convert to milliseconds
+						ETAS_EqkRupture newRup = new ETAS_EqkRupture(parRup, eventID, ot);
+						newRup.setParentID(parID);	// TODO don't need this if it's set from parent rup in above constructor
+						newRup.setGeneration(1);	// TODO shouldn't need this either since it's 1 plus that of parent (also set in costructor)
+						if(parRup.getFSSIndex()==-1)
+							newRup.setParentTriggerLoc(etas_utils.getRandomLocationOnRupSurface(parRup));
 						else {
 							// this produces too few aftershocks on highly creeping faults:
-//							Location tempLoc = etas_utils.getRandomLocationOnRupSurface(rup);
+	//						Location tempLoc = etas_utils.getRandomLocationOnRupSurface(parRup);
 							
 							// for no creep/aseis reduction:
 							if(surf == null) // make reusable surface
-								surf = etas_utils.getRuptureSurfaceWithNoCreepReduction(rup.getFSSIndex(), fssERF, 0.05);
+								surf = etas_utils.getRuptureSurfaceWithNoCreepReduction(parRup.getFSSIndex(), fssERF, 0.05);
 							int tempIndex = etas_utils.getRandomInt(surf.getEvenlyDiscretizedNumLocs()-1);
 							Location tempLoc = surf.getEvenlyDiscretizedLocation(tempIndex);
 							
@@ -811,186 +504,542 @@ public class ETAS_Simulator {
 							// now add some randomness for numerical stability:
 							newRup.setParentTriggerLoc(etas_PrimEventSampler.getRandomFuzzyLocation(tempLoc));
 						}
-						etas_PrimEventSampler.addRuptureToProcess(newRup);
+						etas_PrimEventSampler.addRuptureToProcess(newRup); // for efficiency
 						eventsToProcess.add(newRup);
 						eventID +=1;
 					}
-				}		
+				}
+	//			testParID += 1;				
 			}
+			if (D) System.out.println("The "+obsEqkRuptureList.size()+" input events produced "+eventsToProcess.size()+" primary aftershocks");
+			info_fr.write("\nThe "+obsEqkRuptureList.size()+" input observed events produced "+eventsToProcess.size()+" primary aftershocks\n");
+	//		info_fr.flush();
+
 			
+			// make the list of spontaneous events, filling in only event IDs and origin times for now
+			if(includeSpontEvents) {
+				if (D) System.out.println("Making spontaneous events and times of primary aftershocks...");
+				
+	//			// OLD WAY
+	//			double fractionNonTriggered=etasParams.getFractSpont();	// one minus branching ratio TODO fix this; this is not what branching ratio is
+	//			double expectedNum = origTotRate*simDuration*fractionNonTriggered;
+	//			int numSpontEvents = etas_utils.getPoissonRandomNumber(expectedNum);
+	//			for(int r=0;r<numSpontEvents;r++) {
+	//				ETAS_EqkRupture rup = new ETAS_EqkRupture();
+	//				double ot = simStartTimeMillis+etas_utils.getRandomDouble()*(simEndTimeMillis-simStartTimeMillis);	// random time over time span
+	//				rup.setOriginTime((long)ot);
+	//				rup.setID(eventID);
+	//				rup.setGeneration(0);
+	//				eventsToProcess.add(rup);
+	//				eventID += 1;
+	//			}
+	//			String spEvStringInfo = "Spontaneous Events:\n\n\tAssumed fraction non-triggered = "+fractionNonTriggered+
+	//					"\n\texpectedNum="+expectedNum+"\n\tnumSampled="+numSpontEvents+"\n";
+	//			if(D) System.out.println(spEvStringInfo);
+	//			info_fr.write("\n"+spEvStringInfo);
+	//			info_fr.flush();
+				
+				
+				// NEW WAY (time-dep rate of spont events)
+				long histCatStartTime = simStartTimeMillis; // this is the default if histQkList==null
+				long[] spontEventTimes;
+				IncrementalMagFreqDist mfd = etas_PrimEventSampler.getLongTermTotalERF_MFD().deepClone();
+				// Apply scale factor
+				mfd.scale(etasParams.getTotalRateScaleFactor());
+				if (histQkList == null || histQkList.isEmpty())
+					spontEventTimes = etas_utils.getRandomSpontanousEventTimes(mfd, histCatStartTime, simStartTimeMillis, simEndTimeMillis, 1000, 
+							etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
+				else
+					spontEventTimes = etas_utils.getRandomSpontanousEventTimes(
+							mfd, etasParams.getStatewideCompletenessModel().getEvenlyDiscretizedMagYearFunc(), simStartTimeMillis, 
+							simEndTimeMillis, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
+				
+				
+				//********************
+	//			EvenlyDiscretizedFunc funcCatIncompl = etas_utils.getSpontanousEventRateFunction(mfd, U3_EqkCatalogStatewideCompleteness.load().getEvenlyDiscretizedMagYearFunc(), simStartTimeMillis, 
+	//					simEndTimeMillis, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
+	//			funcCatIncompl.setName("funcCatIncompl");
+	//			
+	////			histCatStartTime = simStartTimeMillis - (long)(12.0*(double)ProbabilityModelsCalc.MILLISEC_PER_YEAR); // 12 years prior
+	//			EvenlyDiscretizedFunc funcNoCat = etas_utils.getSpontanousEventRateFunction(mfd, histCatStartTime, simStartTimeMillis, 
+	//					simEndTimeMillis, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
+	//			funcNoCat.setName("funcNoCat");
+	//			ArrayList<EvenlyDiscretizedFunc> funcList = new ArrayList<EvenlyDiscretizedFunc>();
+	//			funcList.add(funcCatIncompl);
+	//			funcList.add(funcNoCat);
+	//			ArrayList<PlotCurveCharacterstics> plotCharList = new ArrayList<PlotCurveCharacterstics>();
+	//			plotCharList.add(new PlotCurveCharacterstics(PlotLineType.SOLID, 2f, Color.BLACK));
+	//			plotCharList.add(new PlotCurveCharacterstics(PlotLineType.SOLID, 2f, Color.BLUE));
+	//			GraphWindow graph = new GraphWindow(funcList, "Year vs Mag", plotCharList); 
+	//			graph.setX_AxisLabel("Time");
+	//			graph.setY_AxisLabel("Rate");
+				
+				
+				
+	//			long simEnd = simStartTimeMillis + (long)(1.0*(double)ProbabilityModelsCalc.MILLISEC_PER_YEAR);
+	//			histCatStartTime = simStartTimeMillis;
+	//			EvenlyDiscretizedFunc funcNoCat1 = etas_utils.getSpontanousEventRateFunction(mfd, histCatStartTime, simStartTimeMillis, 
+	//					simEnd, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
+	//			funcNoCat1.setName("funcNoCat1");
+	//
+	//			
+	//			histCatStartTime = simStartTimeMillis - (long)(12.0*(double)ProbabilityModelsCalc.MILLISEC_PER_YEAR);
+	//			EvenlyDiscretizedFunc funcNoCat2 = etas_utils.getSpontanousEventRateFunction(mfd, histCatStartTime, simStartTimeMillis, 
+	//					simEnd, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
+	//			funcNoCat2.setName("funcNoCat2");
+	//
+	//
+	//			ArrayList<EvenlyDiscretizedFunc> funcList = new ArrayList<EvenlyDiscretizedFunc>();
+	//			funcList.add(funcNoCat1);
+	//			funcList.add(funcNoCat2);
+	//			ArrayList<PlotCurveCharacterstics> plotCharList = new ArrayList<PlotCurveCharacterstics>();
+	//			plotCharList.add(new PlotCurveCharacterstics(PlotLineType.SOLID, 2f, Color.BLACK));
+	//			plotCharList.add(new PlotCurveCharacterstics(PlotLineType.SOLID, 2f, Color.BLUE));
+	//			GraphWindow graph = new GraphWindow(funcList, "Year vs Mag", plotCharList); 
+	//			graph.setX_AxisLabel("Time");
+	//			graph.setY_AxisLabel("Rate");
+
+				//************************
+
+		
+				// This is to write out the fraction spontaneous as a funcation of time
+	//			EvenlyDiscretizedFunc rateFunc = etas_utils.getSpontanousEventRateFunction(mfd, U3_EqkCatalogStatewideCompleteness.load().getEvenlyDiscretizedMagYearFunc(), simStartTimeMillis, 
+	//					simEndTimeMillis, 1000, etasParams.get_k(), etasParams.get_p(), ETAS_Utils.magMin_DEFAULT, etasParams.get_c());
+	//			for(int i=0;i<rateFunc.size();i++) {
+	//				double year = (rateFunc.getX(i)-(double)simStartTimeMillis)/ProbabilityModelsCalc.MILLISEC_PER_YEAR;
+	//				double fractRate = rateFunc.getY(i)/mfd.getTotalIncrRate();
+	//				System.out.println(year+"\t"+fractRate);
+	//			}
+	//			System.exit(-1);
+
+
+				for(int r=0;r<spontEventTimes.length;r++) {
+					ETAS_EqkRupture rup = new ETAS_EqkRupture();
+					rup.setOriginTime(spontEventTimes[r]);
+					rup.setID(eventID);
+					rup.setGeneration(0);
+					eventsToProcess.add(rup);
+					eventID += 1;
+				}
+				double fractionNonTriggered = (double)spontEventTimes.length/(origTotRate*simDurationYrs);
+				String spEvStringInfo = "Spontaneous Events:\n\n\tFraction non-triggered = "+fractionNonTriggered+
+						"\t(sample num over total expected num)"+"\n\tnumSpontEventsSampled="+spontEventTimes.length+"\n";
+				if(D) System.out.println(spEvStringInfo);
+				info_fr.write("\n"+spEvStringInfo);
+	//			info_fr.flush();
+			}
 			
-			// if it was a fault system rupture, need to update time span, rup rates, block, and samplers.
-
-			if(srcIndex<numFaultSysSources) {
 
-				// set the start time for the time dependent calcs
-				erf.getTimeSpan().setStartTimeInMillis(rupOT);	
-				
-				if(D) {
-					nthFaultSysRupAftershocks.add(nthRup);
+			// If scenarioRup != null, generate  diagnostics if in debug mode!
+			List<EvenlyDiscretizedFunc> expectedPrimaryMFDsForScenarioList=null;
+			if(scenarioRups !=null) {
+				for (int i=0; i<scenarioRups.size(); i++) {
+					ETAS_EqkRupture scenarioRup = scenarioRups.get(i);
+					boolean scenWrite = (D || scenarioRups.size() < 100 || scenarioRup.getMag() >= 5d);
+					if (!scenWrite)
+						continue;
+					long rupOT = scenarioRup.getOriginTime();
+					
+					double startDay = (double)(simStartTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;	// convert epoch to days from event origin time
+					double endDay = (double)(simEndTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;
 					
-					Toolkit.getDefaultToolkit().beep();
-					System.out.println("GOT A FAULT SYSTEM RUPTURE!");
+					info_fr.write("\nMagnitude of Scenario: "+(float)scenarioRup.getMag()+"\n");
+					if (D) System.out.println("\nMagnitude of Scenario: "+(float)scenarioRup.getMag());
+					double k = scenarioRup.getETAS_k();
+					double p = scenarioRup.getETAS_p();
+					double c = scenarioRup.getETAS_c();
+					if (k != etasParams.get_k()) {
+						info_fr.write("\tCustom k-value for Scenario: "+k+"\n");
+						if (D) System.out.println("\tCustom k-value for Scenario: "+k+"\n");
+					}
+					if (p != etasParams.get_p()) {
+						info_fr.write("\tCustom p-value for Scenario: "+p+"\n");
+						if (D) System.out.println("\tCustom p-value for Scenario: "+p+"\n");
+					}
+					if (c != etasParams.get_c()) {
+						info_fr.write("\tCustom c-value for Scenario: "+c+"\n");
+						if (D) System.out.println("\tCustom c-value for Scenario: "+c+"\n");
+					}
+					double expNum = ETAS_Utils.getExpectedNumEvents(k, p, scenarioRup.getMag(), ETAS_Utils.magMin_DEFAULT, c, startDay, endDay);
+					info_fr.write("Expected number of primary events for Scenario: "+expNum+"\n");
+					int numPrimaryAftershocks = numPrimaryAshockForScenarios.get(scenarioRup.getID());
+					info_fr.write("Observed number of primary events for Scenario: "+numPrimaryAftershocks+"\n");
+					if (D) {
+						System.out.println("Expected number of primary events for Scenario: "+expNum);
+						System.out.println("Observed number of primary events for Scenario: "+numPrimaryAftershocks+"\n");
+					}
+	//				info_fr.flush();
 				}
-				
-				TimeSpan ts = erf.getTimeSpan();
-				String rupString = "\t"+ts.getStartTimeMonth()+"/"+ts.getStartTimeDay()+"/"+ts.getStartTimeYear()+"\tmag="+
-						(float)rup.getMag()+"\t"+erf.getSource(srcIndex).getName()+
-						"\n\tnthRup="+nthRup+", srcIndex="+srcIndex+", RupIndexInSource="+
-						erf.getRupIndexInSourceForNthRup(nthRup)+", fltSysRupIndex="+fltSysRupIndex+"\tgen="+rup.getGeneration();
-				if (rup.getParentRup() != null)
-					rupString += "\tparID="+rup.getParentRup().getID()+"\tparMag="+rup.getParentRup().getMag();
-				else {
-					rupString += "\tparID=-1 (spontaneous)";
+			}
+			
+			if(D) {
+				System.out.println("Testing the etas_PrimEventSampler");
+				etas_PrimEventSampler.testRates();
+	//			etas_PrimEventSampler.testMagFreqDist();	// this is time consuming
+			}
+			
+			CalcProgressBar progressBar;
+			try {
+				progressBar = new CalcProgressBar("Primary aftershocks to process", "junk");
+				progressBar.showProgress(true);
+			} catch (Throwable t) {
+				// headless, don't show it
+				progressBar = null;
+			}
+			
+
+			
+			if (D) System.out.println("Looping over eventsToProcess (initial num = "+eventsToProcess.size()+")...\n");
+			if (D) System.out.println("\tFault system ruptures triggered (date\tmag\tname\tnthRup,src,rupInSrc,fltSysRup):");
+			info_fr.write("\nFault system ruptures triggered (date\tmag\tname\tnthRup,src,rupInSrc,fltSysRup):\n");
+	//		info_fr.flush();
+
+			st = System.currentTimeMillis();
+			
+			int numSimulatedEvents = 0;
+			
+			EpicenterMapThread mapThread;
+			if (D && live_map)
+				mapThread = ETAS_SimAnalysisTools.plotUpdatingEpicenterMap(
+					simulationName, null, simulatedRupsQueue, griddedRegion.getBorder());
+			else
+				mapThread = null;
+			
+			if (D && pause_for_events) {	// this is demo mode for talks; so it can be set to go when the button hit
+				try {
+					JOptionPane.showMessageDialog(null, "Continue", "Ready To Generate Events", JOptionPane.PLAIN_MESSAGE);
+				} catch (HeadlessException e) {
+					// do nothing if Headless
 				}
-				if(D) System.out.println(rupString);
-				info_fr.write(rupString+"\n");
-
-				// set the date of last event for this rupture
-				fssERF.setFltSystemSourceOccurranceTime(srcIndex, rupOT);
-
-				// now update source rates for etas_PrimEventSampler & spontaneousRupSampler
-				if(D) System.out.print("\tUpdating src rates for etas_PrimEventSampler & spontaneousRupSampler; ");
-				Long st2 = System.currentTimeMillis();
-				if(erf.getParameter(ProbabilityModelParam.NAME).getValue() != ProbabilityModelOptions.POISSON) {
-					erf.updateForecast();
-					for(int s=0;s<numFaultSysSources;s++) {
-						ProbEqkSource src = erf.getSource(s);
-						double oldRate = sourceRates[s];
-						sourceRates[s] = src.computeTotalEquivMeanAnnualRate(duration);
-						double newRate = sourceRates[s];
-						// TEST THAT RATE CHANGED PROPERLY
-						if(D) {
-							if(s == erf.getSrcIndexForNthRup(nthRup)) {
-								System.out.print("for rup that occurred, oldRate="+(float)oldRate+" & newRate = "+(float)newRate+"\n");			
-							}
-						}
-						// update the spontaneous event sampler with new rupture rates
-						for(int r=0 ; r<src.getNumRuptures(); r++) {
-							ProbEqkRupture rupInSrc = src.getRupture(r);
-							double rate = rupInSrc.getMeanAnnualRate(duration);
-							spontaneousRupSampler.set(erf.getIndexN_ForSrcAndRupIndices(s, r), rate);
+			}
+			
+			if (D) info_fr.flush();	// this writes the above out now in case of crash
+			
+			final double maxPointSourceMag = etasParams.getMaxPointSourceMag();
+			
+			while(eventsToProcess.size()>0) {
+				
+				if (progressBar != null) progressBar.updateProgress(numSimulatedEvents, eventsToProcess.size()+numSimulatedEvents);
+				
+				ETAS_EqkRupture rup = eventsToProcess.poll();	//Retrieves and removes the head of this queue, or returns null if this queue is empty.
+				
+				boolean succeededInSettingRupture=true;	// used later to indicate whether ETAS Primary event sampler succeeded in sampling an event
+				
+				if(rup.getParentID() == -1)	{ // it's a spontaneous event TODO
+	//			if(rup.getParentRup() == null)	{ // it's a spontaneous event
+					Location hypoLoc = null;
+					ProbEqkRupture erf_rup;
+					nthRup = spontaneousRupSampler.getRandomInt(etas_utils.getRandomDouble());	// sample from long-term model
+					erf_rup = erf.getNthRupture(nthRup);
+					LocationList surfPts = erf_rup.getRuptureSurface().getEvenlyDiscritizedListOfLocsOnSurface();
+					if(surfPts.size() == 1) {// point source
+						Location ptLoc = surfPts.get(0);
+						// FOLLOWING ASSUMES A GRID SPACING OF 0.1 FOR BACKGROUND SEIS; "0.99" is to keep it in cell
+						hypoLoc = new Location(ptLoc.getLatitude()+(etas_utils.getRandomDouble()-0.5)*0.1*0.99,
+								ptLoc.getLongitude()+(etas_utils.getRandomDouble()-0.5)*0.1*0.99,
+								seisDepthDistribution.getRandomDepth(etas_utils));
+						
+						if(erf_rup.getMag()<maxPointSourceMag)
+							rup.setPointSurface(hypoLoc);
+						else {
+							double aveDip = erf_rup.getRuptureSurface().getAveDip(); // confirm this works
+							rup.setRuptureSurface(etas_utils.getRandomFiniteRupSurface(erf_rup.getMag(), hypoLoc, aveDip));
 						}
+						
+	//					if(erf_rup.getRuptureSurface() instanceof PointSurface13b) {
+	//						PointSurface13b ptSurf = (PointSurface13b)erf_rup.getRuptureSurface();
+	//						System.out.println(
+	//								erf_rup.getMag()+"\t"+
+	//								erf_rup.getAveRake()+"\t"+
+	//								ptSurf.getAveDip()+"\t"+
+	//								ptSurf.getAveRupTopDepth()+"\t"+
+	//								ptSurf.getAveStrike()+"\t"+
+	//								ptSurf.getAveWidth());
+	//					}
+							
+
+					}
+					else {
+						int hypIndex = etas_utils.getRandomInt(surfPts.size()-1);	// choose random loc assuming uniform probability among points
+						hypoLoc = surfPts.get(hypIndex);
+						rup.setRuptureSurface(erf_rup.getRuptureSurface());
 					}
-					// now update the ETAS sampler
-					etas_PrimEventSampler.declareRateChange();
+					rup.setAveRake(erf_rup.getAveRake());
+					rup.setMag(erf_rup.getMag());
+					rup.setNthERF_Index(nthRup);
+					rup.setHypocenterLocation(hypoLoc);
+					int sourceIndex = erf.getSrcIndexForNthRup(nthRup);
+					if (sourceIndex < numFaultSysSources)
+						rup.setFSSIndex(fssERF.getFltSysRupIndexForNthRup(nthRup));
+					else
+						rup.setGridNodeIndex(sourceIndex - numFaultSysSources);
+				}
+				// Not spontaneous, so set as a primary aftershock
+				else {
+					succeededInSettingRupture = etas_PrimEventSampler.setRandomPrimaryEvent(rup, maxPointSourceMag);
+				}
+				
+				// break out if we failed to set the rupture
+				if(!succeededInSettingRupture) // TODO shouldn't following chunk of code be in the else statement directly above?
+					continue;
+				nthRup = rup.getNthERF_Index();
+				int srcIndex = erf.getSrcIndexForNthRup(nthRup);
+				int fltSysRupIndex = -1;
+				if(srcIndex<numFaultSysSources) {
+					fltSysRupIndex = fssERF.getFltSysRupIndexForNthRup(nthRup);
+					rup.setFSSIndex(fltSysRupIndex);
+				}
+					
 
+				// add the rupture to the list
+				simulatedRupsQueue.add(rup);	// this storage does not take much memory during the simulations
+				numSimulatedEvents += 1;
+				
+				if (includeIndirectTriggering) {
+					// set the etas parameters for this rupture, randomizing k if kCOV>0
+					// do this before writing it to the file
+					etas_utils.setETAS_ParamsForRupture(rup, etasParams);
 				}
-				if(D) {
-					System.out.println("Sampler update took "+(System.currentTimeMillis()-st2)/1000+" secs");					
-					System.out.println("Running generateRuptureDiagnostics(*)");
-					double startDay = 0.0;	// from the moment it occurs
+				
+				if (simulatedEventsBinaryWriter != null)
+					simulatedEventsBinaryWriter.write(rup);
+				else
+					ETAS_CatalogIO.writeEventToFile(simulatedEventsFileWriter, rup);
+				
+				long rupOT = rup.getOriginTime();
+				
+				// now sample primary aftershock times for this event (this should be in a method because it's redundant with code above)
+				if(includeIndirectTriggering) {
+					int parID = rup.getID();	// rupture is now the parent
+					int gen = rup.getGeneration()+1;
+					double startDay = 0;	// starting at origin time since we're within the timespan
 					double endDay = (double)(simEndTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;
+	//				double[] eventTimes = etas_utils.getDefaultRandomEventTimes(rup.getMag(), startDay, endDay);
+					
+					// get primary aftershock event times
+					double[] eventTimes = etas_utils.getRandomEventTimes(rup.getETAS_k(), rup.getETAS_p(), rup.getMag(), ETAS_Utils.magMin_DEFAULT, rup.getETAS_c(), startDay, endDay);
+
+					RuptureSurface surf = null;
+					if(eventTimes.length>0) {
+						for(int i=0; i<eventTimes.length;i++) {
+							long ot = rupOT +  (long)(eventTimes[i]*(double)ProbabilityModelsCalc.MILLISEC_PER_DAY);
+							ETAS_EqkRupture newRup = new ETAS_EqkRupture(rup, eventID, ot);
+							newRup.setGeneration(gen);	// TODO have set in above constructor?
+							newRup.setParentID(parID);	// TODO have set in above constructor?
+							if(rup.getFSSIndex()==-1)
+								newRup.setParentTriggerLoc(etas_utils.getRandomLocationOnRupSurface(rup));
+							else {
+								// this produces too few aftershocks on highly creeping faults:
+	//							Location tempLoc = etas_utils.getRandomLocationOnRupSurface(rup);
+								
+								// for no creep/aseis reduction:
+								if(surf == null) // make reusable surface
+									surf = etas_utils.getRuptureSurfaceWithNoCreepReduction(rup.getFSSIndex(), fssERF, 0.05);
+								int tempIndex = etas_utils.getRandomInt(surf.getEvenlyDiscretizedNumLocs()-1);
+								Location tempLoc = surf.getEvenlyDiscretizedLocation(tempIndex);
+								
+								if(tempLoc.getDepth()>etas_PrimEventSampler.maxDepth) {
+									Location newLoc = new Location(tempLoc.getLatitude(),tempLoc.getLongitude(), etas_PrimEventSampler.maxDepth);
+									tempLoc=newLoc;
+								}
+
+								// now add some randomness for numerical stability:
+								newRup.setParentTriggerLoc(etas_PrimEventSampler.getRandomFuzzyLocation(tempLoc));
+							}
+							etas_PrimEventSampler.addRuptureToProcess(newRup);
+							eventsToProcess.add(newRup);
+							eventID +=1;
+						}
+					}		
+				}
+				
+				
+				// if it was a fault system rupture, need to update time span, rup rates, block, and samplers.
+
+				if(srcIndex<numFaultSysSources) {
 
-					double expNum = ETAS_Utils.getExpectedNumEvents(rup.getETAS_k(), rup.getETAS_p(), rup.getMag(), ETAS_Utils.magMin_DEFAULT, rup.getETAS_c(), startDay, endDay);
+					// set the start time for the time dependent calcs (without flagging all sources for rebuilding; only
+					// those using sections with reset dates of last event will be updated below)
+					fssERF.setStartTimeForResetSections(rupOT);
 					
-					String rupInfo = "FltSysRup"+fltSysRupIndex+"_trigNum"+(nthFaultSysRupAftershocks.size()-1);
+					if(D) {
+						nthFaultSysRupAftershocks.add(nthRup);
+						
+						Toolkit.getDefaultToolkit().beep();
+						System.out.println("GOT A FAULT SYSTEM RUPTURE!");
+					}
 					
-					info_fr.write("\nExpected number of primary events for "+rupInfo+": "+expNum+"\n");
-					System.out.println("\nExpected number of primary events for "+rupInfo+": "+expNum);
+					TimeSpan ts = erf.getTimeSpan();
+					String rupString = "\t"+ts.getStartTimeMonth()+"/"+ts.getStartTimeDay()+"/"+ts.getStartTimeYear()+"\tmag="+
+							(float)rup.getMag()+"\t"+erf.getSource(srcIndex).getName()+
+							"\n\tnthRup="+nthRup+", srcIndex="+srcIndex+", RupIndexInSource="+
+							erf.getRupIndexInSourceForNthRup(nthRup)+", fltSysRupIndex="+fltSysRupIndex+"\tgen="+rup.getGeneration();
+					if (rup.getParentRup() != null)
+						rupString += "\tparID="+rup.getParentRup().getID()+"\tparMag="+rup.getParentRup().getMag();
+					else {
+						rupString += "\tparID=-1 (spontaneous)";
+					}
+					if(D) System.out.println(rupString);
+					info_fr.write(rupString+"\n");
+
+					// set the date of last event for this rupture
+					fssERF.setFltSystemSourceOccurranceTime(srcIndex, rupOT);
+
+					// now update source rates for etas_PrimEventSampler & spontaneousRupSampler
+					if(D) System.out.print("\tUpdating src rates for etas_PrimEventSampler & spontaneousRupSampler; ");
+					Long st2 = System.currentTimeMillis();
+					if(erf.getParameter(ProbabilityModelParam.NAME).getValue() != ProbabilityModelOptions.POISSON) {
+						erf.updateForecast();
+						// only sources that were rebuilt can have changed
+						int[] updatedSources = fssERF.getFltSysSourcesUpdated();
+						if(D) System.out.print(updatedSources.length+" of "+numFaultSysSources+" fault system sources updated; ");
+						for(int s : updatedSources) {
+							ProbEqkSource src = erf.getSource(s);
+							double oldRate = sourceRates[s];
+							sourceRates[s] = src.computeTotalEquivMeanAnnualRate(duration);
+							double newRate = sourceRates[s];
+							// TEST THAT RATE CHANGED PROPERLY
+							if(D) {
+								if(s == erf.getSrcIndexForNthRup(nthRup)) {
+									System.out.print("for rup that occurred, oldRate="+(float)oldRate+" & newRate = "+(float)newRate+"\n");			
+								}
+							}
+							// update the spontaneous event sampler with new rupture rates
+							for(int r=0 ; r<src.getNumRuptures(); r++) {
+								ProbEqkRupture rupInSrc = src.getRupture(r);
+								double rate = rupInSrc.getMeanAnnualRate(duration);
+								spontaneousRupSampler.set(erf.getIndexN_ForSrcAndRupIndices(s, r), rate);
+							}
+						}
+						// now update the ETAS sampler, only for those sources
+						etas_PrimEventSampler.declareRateChange(updatedSources);
 
-					if(generateDiagnostics)
-						etas_PrimEventSampler.generateRuptureDiagnostics(rup, expNum, rupInfo, resultsDir, info_fr);
+					}
+					if(D) {
+						System.out.println("Sampler update took "+(System.currentTimeMillis()-st2)/1000+" secs");					
+						System.out.println("Running generateRuptureDiagnostics(*)");
+						double startDay = 0.0;	// from the moment it occurs
+						double endDay = (double)(simEndTimeMillis-rupOT) / (double)ProbabilityModelsCalc.MILLISEC_PER_DAY;
+
+						double expNum = ETAS_Utils.getExpectedNumEvents(rup.getETAS_k(), rup.getETAS_p(), rup.getMag(), ETAS_Utils.magMin_DEFAULT, rup.getETAS_c(), startDay, endDay);
+						
+						String rupInfo = "FltSysRup"+fltSysRupIndex+"_trigNum"+(nthFaultSysRupAftershocks.size()-1);
+						
+						info_fr.write("\nExpected number of primary events for "+rupInfo+": "+expNum+"\n");
+						System.out.println("\nExpected number of primary events for "+rupInfo+": "+expNum);
 
+						if(generateDiagnostics)
+							etas_PrimEventSampler.generateRuptureDiagnostics(rup, expNum, rupInfo, resultsDir, info_fr);
+
+					}
 				}
+				
+				if (D) info_fr.flush();	// this writes the above out now in case of crash
+
 			}
 			
-			if (D) info_fr.flush();	// this writes the above out now in case of crash
-
-		}
-		
-		if (progressBar != null) progressBar.showProgress(false);
-		if (mapThread != null)
-			mapThread.kill();
+			if (progressBar != null) progressBar.showProgress(false);
+			if (mapThread != null)
+				mapThread.kill();
 
-		if(D) System.out.println("\nLooping over events took "+(System.currentTimeMillis()-st)/1000+" secs\n");
-		info_fr.write("\nLooping over events took "+(System.currentTimeMillis()-st)/1000+" secs\n\n");
-		
-		ETAS_SimAnalysisTools.writeMemoryUse("Memory after loop:");
-		
-		
-		int[] numInEachGeneration = ETAS_SimAnalysisTools.getNumAftershocksForEachGeneration(simulatedRupsQueue, 10);
-		String numInfo = "Total num ruptures: "+simulatedRupsQueue.size()+"\n";
-		numInfo += "Num spontaneous: "+numInEachGeneration[0]+"\n";
-		numInfo += "Num 1st Gen: "+numInEachGeneration[1]+"\n";
-		numInfo += "Num 2nd Gen: "+numInEachGeneration[2]+"\n";
-		numInfo += "Num 3rd Gen: "+numInEachGeneration[3]+"\n";
-		numInfo += "Num 4th Gen: "+numInEachGeneration[4]+"\n";
-		numInfo += "Num 5th Gen: "+numInEachGeneration[5]+"\n";
-		numInfo += "Num 6th Gen: "+numInEachGeneration[6]+"\n";
-		numInfo += "Num 7th Gen: "+numInEachGeneration[7]+"\n";
-		numInfo += "Num 8th Gen: "+numInEachGeneration[8]+"\n";
-		numInfo += "Num 9th Gen: "+numInEachGeneration[9]+"\n";
-		numInfo += "Num 10th Gen: "+numInEachGeneration[10]+"\n";
-		
-		if(D) System.out.println(numInfo);
-		info_fr.write(numInfo+"\n");
+			if(D) System.out.println("\nLooping over events took "+(System.currentTimeMillis()-st)/1000+" secs\n");
+			info_fr.write("\nLooping over events took "+(System.currentTimeMillis()-st)/1000+" secs\n\n");
+			
+			ETAS_SimAnalysisTools.writeMemoryUse("Memory after loop:");
+			
+			
+			int[] numInEachGeneration = ETAS_SimAnalysisTools.getNumAftershocksForEachGeneration(simulatedRupsQueue, 10);
+			String numInfo = "Total num ruptures: "+simulatedRupsQueue.size()+"\n";
+			numInfo += "Num spontaneous: "+numInEachGeneration[0]+"\n";
+			numInfo += "Num 1st Gen: "+numInEachGeneration[1]+"\n";
+			numInfo += "Num 2nd Gen: "+numInEachGeneration[2]+"\n";
+			numInfo += "Num 3rd Gen: "+numInEachGeneration[3]+"\n";
+			numInfo += "Num 4th Gen: "+numInEachGeneration[4]+"\n";
+			numInfo += "Num 5th Gen: "+numInEachGeneration[5]+"\n";
+			numInfo += "Num 6th Gen: "+numInEachGeneration[6]+"\n";
+			numInfo += "Num 7th Gen: "+numInEachGeneration[7]+"\n";
+			numInfo += "Num 8th Gen: "+numInEachGeneration[8]+"\n";
+			numInfo += "Num 9th Gen: "+numInEachGeneration[9]+"\n";
+			numInfo += "Num 10th Gen: "+numInEachGeneration[10]+"\n";
+			
+			if(D) System.out.println(numInfo);
+			info_fr.write(numInfo+"\n");
+
+
+			if(D && scenarioRups != null && !scenarioRups.isEmpty()) {	// scenario rupture included
+				for (ETAS_EqkRupture scenarioRup : scenarioRups) {
+					int inputRupID = scenarioRup.getID();	// TODO already defined above?
+					ETAS_SimAnalysisTools.plotRateVsLogTimeForPrimaryAshocksOfRup(simulationName, new File(resultsDir,"logRateDecayForScenarioPrimaryAftershocks.pdf").getAbsolutePath(), simulatedRupsQueue, scenarioRup,
+							etasParams.get_k(), etasParams.get_p(), etasParams.get_c());
+					ETAS_SimAnalysisTools.plotRateVsLogTimeForAllAshocksOfRup(simulationName, new File(resultsDir,"logRateDecayForScenarioAllAftershocks.pdf").getAbsolutePath(), simulatedRupsQueue, scenarioRup,
+							etasParams.get_k(), etasParams.get_p(), etasParams.get_c());
+
+					ETAS_SimAnalysisTools.plotEpicenterMap(simulationName, new File(resultsDir,"hypoMap.pdf").getAbsolutePath(), obsEqkRuptureList.get(0), simulatedRupsQueue, griddedRegion.getBorder());
+					ETAS_SimAnalysisTools.plotDistDecayDensityOfAshocksForRup("Scenario in "+simulationName, new File(resultsDir,"distDecayDensityForScenario.pdf").getAbsolutePath(), 
+							simulatedRupsQueue, etasParams.get_q(), etasParams.get_d(), scenarioRup);
+					ArrayList<IncrementalMagFreqDist> obsAshockMFDsForScenario = ETAS_SimAnalysisTools.getAftershockMFDsForRup(simulatedRupsQueue, inputRupID, simulationName);
+					if(generateDiagnosticsForScenario == true)
+						obsAshockMFDsForScenario.add((IncrementalMagFreqDist)expectedPrimaryMFDsForScenarioList.get(0));
+					ETAS_SimAnalysisTools.plotMagFreqDistsForRup("AshocksOfScenarioMFD", resultsDir, obsAshockMFDsForScenario);
+					
+					
+					// write stats for first rup
+					
+					double expPrimNumAtMainMag = Double.NaN;
+					double expPrimNumAtMainMagMinusOne = Double.NaN;
+					if(generateDiagnosticsForScenario && expectedPrimaryMFDsForScenarioList.get(1) != null) {
+						expPrimNumAtMainMag = expectedPrimaryMFDsForScenarioList.get(1).getInterpolatedY(scenarioRup.getMag());
+						expPrimNumAtMainMagMinusOne = expectedPrimaryMFDsForScenarioList.get(1).getInterpolatedY(scenarioRup.getMag()-1.0);				
+					}
+					EvenlyDiscretizedFunc obsPrimCumMFD = obsAshockMFDsForScenario.get(1).getCumRateDistWithOffset();
+					double obsPrimNumAtMainMag = obsPrimCumMFD.getInterpolatedY(scenarioRup.getMag());
+					double obsPrimNumAtMainMagMinusOne = obsPrimCumMFD.getInterpolatedY(scenarioRup.getMag()-1.0);
+					EvenlyDiscretizedFunc obsAllCumMFD = obsAshockMFDsForScenario.get(1).getCumRateDistWithOffset();
+					double obsAllNumAtMainMag = obsAllCumMFD.getInterpolatedY(scenarioRup.getMag());
+					double obsAllNumAtMainMagMinusOne = obsAllCumMFD.getInterpolatedY(scenarioRup.getMag()-1.0);
+					String testEventStats="\nAftershock Stats for Scenario event (only):\n";
+					testEventStats+="\tNum Primary Aftershocks at main shock mag("+(float)scenarioRup.getMag()+"):\n\t\tExpected="+expPrimNumAtMainMag+"\n\t\tObserved="+obsPrimNumAtMainMag+"\n";
+					testEventStats+="\tNum Primary Aftershocks at one minus main-shock mag("+(float)(scenarioRup.getMag()-1.0)+"):\n\t\tExpected="+expPrimNumAtMainMagMinusOne+"\n\t\tObserved="+obsPrimNumAtMainMagMinusOne+"\n";
+					testEventStats+="\tTotal Observed Num Aftershocks:\n\t\tAt main-shock mag = "+obsAllNumAtMainMag+"\n\t\tAt one minus main-shock mag = "+obsAllNumAtMainMagMinusOne+"\n";
+					if(D) System.out.println(testEventStats);
+					info_fr.write(testEventStats);
+				}
+			} else if (D) {
+				ETAS_SimAnalysisTools.plotEpicenterMap(simulationName, new File(resultsDir,"hypoMap.pdf").getAbsolutePath(), null, simulatedRupsQueue, griddedRegion.getBorder());
 
+				ArrayList<ETAS_EqkRupture> bigGridSeisEventsList = new ArrayList<ETAS_EqkRupture>();
+				for(ETAS_EqkRupture rup:simulatedRupsQueue)
+					if(rup.getFSSIndex()==-1 && rup.getMag()>maxPointSourceMag)
+						bigGridSeisEventsList.add(rup);
+				ETAS_SimAnalysisTools.plotFiniteGridSeisRupMap(simulationName, new File(resultsDir,"hypoMapBigGridSeisEvents.pdf").getAbsolutePath(), bigGridSeisEventsList, griddedRegion.getBorder());
 
-		if(D && scenarioRups != null && !scenarioRups.isEmpty()) {	// scenario rupture included
-			for (ETAS_EqkRupture scenarioRup : scenarioRups) {
-				int inputRupID = scenarioRup.getID();	// TODO already defined above?
-				ETAS_SimAnalysisTools.plotRateVsLogTimeForPrimaryAshocksOfRup(simulationName, new File(resultsDir,"logRateDecayForScenarioPrimaryAftershocks.pdf").getAbsolutePath(), simulatedRupsQueue, scenarioRup,
-						etasParams.get_k(), etasParams.get_p(), etasParams.get_c());
-				ETAS_SimAnalysisTools.plotRateVsLogTimeForAllAshocksOfRup(simulationName, new File(resultsDir,"logRateDecayForScenarioAllAftershocks.pdf").getAbsolutePath(), simulatedRupsQueue, scenarioRup,
+			}
+			
+			if(D) {
+				ETAS_SimAnalysisTools.plotRateVsLogTimeForPrimaryAshocks(simulationName, new File(resultsDir,"logRateDecayPDF_ForAllPrimaryEvents.pdf").getAbsolutePath(), simulatedRupsQueue,
 						etasParams.get_k(), etasParams.get_p(), etasParams.get_c());
-
-				ETAS_SimAnalysisTools.plotEpicenterMap(simulationName, new File(resultsDir,"hypoMap.pdf").getAbsolutePath(), obsEqkRuptureList.get(0), simulatedRupsQueue, griddedRegion.getBorder());
-				ETAS_SimAnalysisTools.plotDistDecayDensityOfAshocksForRup("Scenario in "+simulationName, new File(resultsDir,"distDecayDensityForScenario.pdf").getAbsolutePath(), 
-						simulatedRupsQueue, etasParams.get_q(), etasParams.get_d(), scenarioRup);
-				ArrayList<IncrementalMagFreqDist> obsAshockMFDsForScenario = ETAS_SimAnalysisTools.getAftershockMFDsForRup(simulatedRupsQueue, inputRupID, simulationName);
-				if(generateDiagnosticsForScenario == true)
-					obsAshockMFDsForScenario.add((IncrementalMagFreqDist)expectedPrimaryMFDsForScenarioList.get(0));
-				ETAS_SimAnalysisTools.plotMagFreqDistsForRup("AshocksOfScenarioMFD", resultsDir, obsAshockMFDsForScenario);
-				
-				
-				// write stats for first rup
-				
-				double expPrimNumAtMainMag = Double.NaN;
-				double expPrimNumAtMainMagMinusOne = Double.NaN;
-				if(generateDiagnosticsForScenario && expectedPrimaryMFDsForScenarioList.get(1) != null) {
-					expPrimNumAtMainMag = expectedPrimaryMFDsForScenarioList.get(1).getInterpolatedY(scenarioRup.getMag());
-					expPrimNumAtMainMagMinusOne = expectedPrimaryMFDsForScenarioList.get(1).getInterpolatedY(scenarioRup.getMag()-1.0);				
-				}
-				EvenlyDiscretizedFunc obsPrimCumMFD = obsAshockMFDsForScenario.get(1).getCumRateDistWithOffset();
-				double obsPrimNumAtMainMag = obsPrimCumMFD.getInterpolatedY(scenarioRup.getMag());
-				double obsPrimNumAtMainMagMinusOne = obsPrimCumMFD.getInterpolatedY(scenarioRup.getMag()-1.0);
-				EvenlyDiscretizedFunc obsAllCumMFD = obsAshockMFDsForScenario.get(1).getCumRateDistWithOffset();
-				double obsAllNumAtMainMag = obsAllCumMFD.getInterpolatedY(scenarioRup.getMag());
-				double obsAllNumAtMainMagMinusOne = obsAllCumMFD.getInterpolatedY(scenarioRup.getMag()-1.0);
-				String testEventStats="\nAftershock Stats for Scenario event (only):\n";
-				testEventStats+="\tNum Primary Aftershocks at main shock mag("+(float)scenarioRup.getMag()+"):\n\t\tExpected="+expPrimNumAtMainMag+"\n\t\tObserved="+obsPrimNumAtMainMag+"\n";
-				testEventStats+="\tNum Primary Aftershocks at one minus main-shock mag("+(float)(scenarioRup.getMag()-1.0)+"):\n\t\tExpected="+expPrimNumAtMainMagMinusOne+"\n\t\tObserved="+obsPrimNumAtMainMagMinusOne+"\n";
-				testEventStats+="\tTotal Observed Num Aftershocks:\n\t\tAt main-shock mag = "+obsAllNumAtMainMag+"\n\t\tAt one minus main-shock mag = "+obsAllNumAtMainMagMinusOne+"\n";
-				if(D) System.out.println(testEventStats);
-				info_fr.write(testEventStats);
+				ETAS_SimAnalysisTools.plotDistDecayDensityFromParentTriggerLocHist(simulationName, new File(resultsDir,"distDecayForAllPrimaryEvents.pdf").getAbsolutePath(), simulatedRupsQueue, etasParams.get_q(), etasParams.get_d());
+				ETAS_SimAnalysisTools.plotMagFreqDists(simulationName, resultsDir, simulatedRupsQueue);
+			}
+			
+			info_fr.close();
+			ETAS_SimulationMetadata meta = ETAS_SimulationMetadata.instance(randomSeed, -1, rangeHistCatalogParentIDs, rangeTriggerRupIDs,
+					simulationStartTime, System.currentTimeMillis(), ETAS_Utils.magMin_DEFAULT, simulatedRupsQueue);
+			if (simulatedEventsBinaryWriter != null) {
+				simulatedEventsBinaryWriter.close(meta);
+			} else {
+				ETAS_CatalogIO.writeMetadataToFile(simulatedEventsFileWriter, meta);
+				simulatedEventsFileWriter.close();
 			}
-		} else if (D) {
-			ETAS_SimAnalysisTools.plotEpicenterMap(simulationName, new File(resultsDir,"hypoMap.pdf").getAbsolutePath(), null, simulatedRupsQueue, griddedRegion.getBorder());
-
-			ArrayList<ETAS_EqkRupture> bigGridSeisEventsList = new ArrayList<ETAS_EqkRupture>();
-			for(ETAS_EqkRupture rup:simulatedRupsQueue)
-				if(rup.getFSSIndex()==-1 && rup.getMag()>maxPointSourceMag)
-					bigGridSeisEventsList.add(rup);
-			ETAS_SimAnalysisTools.plotFiniteGridSeisRupMap(simulationName, new File(resultsDir,"hypoMapBigGridSeisEvents.pdf").getAbsolutePath(), bigGridSeisEventsList, griddedRegion.getBorder());
 
+			ETAS_SimAnalysisTools.writeMemoryUse("Memory at end of simultation");
+			return meta;
+		} finally {
+			// only has an effect if the simulation failed, in which case the partial file is left in place for
+			// ETAS_CatalogIO.recoverPartialBinaryCatalogFile(...)
+			if (simulatedEventsBinaryWriter != null)
+				simulatedEventsBinaryWriter.close();
 		}
-		
-		if(D) {
-			ETAS_SimAnalysisTools.plotRateVsLogTimeForPrimaryAshocks(simulationName, new File(resultsDir,"logRateDecayPDF_ForAllPrimaryEvents.pdf").getAbsolutePath(), simulatedRupsQueue,
-					etasParams.get_k(), etasParams.get_p(), etasParams.get_c());
-			ETAS_SimAnalysisTools.plotDistDecayDensityFromParentTriggerLocHist(simulationName, new File(resultsDir,"distDecayForAllPrimaryEvents.pdf").getAbsolutePath(), simulatedRupsQueue, etasParams.get_q(), etasParams.get_d());
-			ETAS_SimAnalysisTools.plotMagFreqDists(simulationName, resultsDir, simulatedRupsQueue);
-		}
-		
-		info_fr.close();
-		ETAS_SimulationMetadata meta = ETAS_SimulationMetadata.instance(randomSeed, -1, rangeHistCatalogParentIDs, rangeTriggerRupIDs,
-				simulationStartTime, System.currentTimeMillis(), ETAS_Utils.magMin_DEFAULT, simulatedRupsQueue);
-		ETAS_CatalogIO.writeMetadataToFile(simulatedEventsFileWriter, meta);
-		simulatedEventsFileWriter.close();
-
-		ETAS_SimAnalysisTools.writeMemoryUse("Memory at end of simultation");
-		return meta;
 	}
 	
 	
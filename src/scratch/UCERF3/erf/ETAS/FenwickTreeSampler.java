@@ -0,0 +1,136 @@
+package scratch.UCERF3.erf.ETAS;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Weighted random sampler for integer indexes which supports efficient updates, intended as a replacement for
+ * IntegerPDF_FunctionSampler where weights change between samples (e.g., rupture rates after each fault system
+ * event in a time dependent ETAS simulation). IntegerPDF_FunctionSampler recomputes the full cumulative
+ * distribution after any change, which is O(N) for the next sample. Here partial sums are stored in a
+ * binary-indexed (Fenwick) tree, so each update and sample is O(log N).
+ *
+ * The tree is built lazily on the first sample, so initially populating the weights via set(...) is O(1) each.
+ * The tree is also periodically rebuilt from the weights to avoid accumulating floating point error from updates.
+ *
+ */
+public class FenwickTreeSampler {
+
+	private double[] weights;
+	// 1-based partial sums, tree[i] is the sum of weights[i-lowestOneBit(i), i-1]
+	private double[] tree;
+	private int highestStep;
+
+	private boolean treeBuilt = false;
+	private int updatesSinceBuild = 0;
+
+	/**
+	 * Creates a sampler with the given number of indexes, all with zero weight
+	 * @param num
+	 */
+	public FenwickTreeSampler(int num) {
+		this(new double[num]);
+	}
+
+	/**
+	 * Creates a sampler with the given weights. The array is used directly (not copied).
+	 * @param weights
+	 */
+	public FenwickTreeSampler(double[] weights) {
+		this.weights = weights;
+		this.tree = new double[weights.length+1];
+		this.highestStep = weights.length == 0 ? 0 : Integer.highestOneBit(weights.length);
+	}
+
+	/**
+	 *
+	 * @return the number of indexes
+	 */
+	public int size() {
+		return weights.length;
+	}
+
+	/**
+	 *
+	 * @param index
+	 * @return weight for the given index
+	 */
+	public double getY(int index) {
+		return weights[index];
+	}
+
+	/**
+	 * Sets the weight for the given index
+	 * @param index
+	 * @param weight
+	 */
+	public void set(int index, double weight) {
+		Preconditions.checkArgument(weight >= 0, "Weights must be non-negative: %s", weight);
+		double delta = weight - weights[index];
+		weights[index] = weight;
+		if (!treeBuilt || delta == 0d)
+			return;
+		if (++updatesSinceBuild > weights.length) {
+			// rebuild on the next sample to clear any accumulated rounding error
+			treeBuilt = false;
+			return;
+		}
+		for (int i=index+1; i<tree.length; i+=Integer.lowestOneBit(i))
+			tree[i] += delta;
+	}
+
+	private void buildTree() {
+		// O(N) construction, pushing each partial sum up to its parent
+		for (int i=1; i<tree.length; i++)
+			tree[i] = weights[i-1];
+		for (int i=1; i<tree.length; i++) {
+			int parent = i + Integer.lowestOneBit(i);
+			if (parent < tree.length)
+				tree[parent] += tree[i];
+		}
+		treeBuilt = true;
+		updatesSinceBuild = 0;
+	}
+
+	/**
+	 *
+	 * @return the sum of all weights
+	 */
+	public double calcSumOfY_Vals() {
+		if (!treeBuilt)
+			buildTree();
+		double sum = 0d;
+		for (int i=weights.length; i>0; i-=Integer.lowestOneBit(i))
+			sum += tree[i];
+		return sum;
+	}
+
+	/**
+	 * This returns a random index, sampled according to the weights
+	 * @param randDouble - a random number between 0 and 1
+	 * @return
+	 */
+	public int getRandomInt(double randDouble) {
+		double sum = calcSumOfY_Vals();
+		Preconditions.checkState(sum > 0, "Can't sample, all weights are zero");
+		double remaining = randDouble*sum;
+		// find the first index where the cumulative weight exceeds the random value
+		int pos = 0;
+		for (int step=highestStep; step>0; step >>= 1) {
+			int next = pos + step;
+			if (next < tree.length && tree[next] <= remaining) {
+				pos = next;
+				remaining -= tree[next];
+			}
+		}
+		// guard against landing on a zero weight index (or past the end) due to rounding
+		while (pos < weights.length && weights[pos] == 0d)
+			pos++;
+		if (pos == weights.length) {
+			pos--;
+			while (weights[pos] == 0d)
+				pos--;
+		}
+		return pos;
+	}
+
+}
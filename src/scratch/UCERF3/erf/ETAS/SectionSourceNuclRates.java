@@ -3,8 +3,6 @@ package scratch.UCERF3.erf.ETAS;
 import java.util.Arrays;
 import java.util.Collection;
 
-import org.opensha.commons.data.function.IntegerPDF_FunctionSampler;
-
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
 
@@ -21,6 +19,9 @@ class SectionSourceNuclRates {
 	private int[] sourceIndexes;
 	private float[] nuclRates;
 	
+	// alias table for the current rates, built lazily and cleared whenever a rate changes
+	private WalkerAliasSampler sampler;
+	
 	public SectionSourceNuclRates(Collection<Integer> sourceIndexes) {
 		this(Ints.toArray(sourceIndexes));
 	}
@@ -64,7 +65,10 @@ class SectionSourceNuclRates {
 	 * @param rate
 	 */
 	public void setSourceNucleationRate(int index, float rate) {
-		nuclRates[index] = rate;
+		if (nuclRates[index] != rate) {
+			nuclRates[index] = rate;
+			sampler = null;
+		}
 	}
 	
 	/**
@@ -80,11 +84,18 @@ class SectionSourceNuclRates {
 	}
 	
 	/**
-	 * Builds an IntegerPDF_FunctionSampler for this section
+	 * Returns a sampler for the sources on this section. This is built on the first call and then reused until a
+	 * rate changes. Sampled indexes are internal to this datastore, use getSourceIndex(index) for the source index.
 	 * @return
 	 */
-	public IntegerPDF_FunctionSampler buildSampler() {
-		return new IntegerPDF_FunctionSampler(nuclRates);
+	public WalkerAliasSampler getSampler() {
+		if (sampler == null) {
+			double[] weights = new double[nuclRates.length];
+			for (int i=0; i<weights.length; i++)
+				weights[i] = nuclRates[i];
+			sampler = new WalkerAliasSampler(weights);
+		}
+		return sampler;
 	}
 
 }
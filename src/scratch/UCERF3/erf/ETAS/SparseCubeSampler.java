@@ -0,0 +1,76 @@
+package scratch.UCERF3.erf.ETAS;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Sparse alternative to an IntegerPDF_FunctionSampler over all cubes, which only stores the cubes with nonzero
+ * weight (e.g., those within the support of the spatial decay kernel for a given parent location).
+ *
+ * cubeIndexes[i] contains the ith cube index (increasing), and cumWeights[i] the sum of the weights for
+ * cubes 0 through i. Cubes outside of this sampler have zero weight, so samples are identical to those from a
+ * full sampler with the same weights given the same random number.
+ *
+ */
+class SparseCubeSampler {
+
+	private int[] cubeIndexes;
+	private double[] cumWeights;
+
+	/**
+	 * @param cubeIndexes cube indexes, in increasing order
+	 * @param weights weight for each cube
+	 * @param num number of cubes to use from the given arrays
+	 */
+	public SparseCubeSampler(int[] cubeIndexes, double[] weights, int num) {
+		Preconditions.checkArgument(num <= cubeIndexes.length && num <= weights.length);
+		this.cubeIndexes = num == cubeIndexes.length ? cubeIndexes : Arrays.copyOf(cubeIndexes, num);
+		this.cumWeights = new double[num];
+		double sum = 0d;
+		for (int i=0; i<num; i++) {
+			Preconditions.checkArgument(i == 0 || cubeIndexes[i] > cubeIndexes[i-1], "Cube indexes must be increasing");
+			sum += weights[i];
+			cumWeights[i] = sum;
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of cubes with nonzero weight
+	 */
+	public int size() {
+		return cubeIndexes.length;
+	}
+
+	/**
+	 *
+	 * @return the sum of all weights
+	 */
+	public double getSumOfWeights() {
+		return cumWeights.length == 0 ? 0d : cumWeights[cumWeights.length-1];
+	}
+
+	/**
+	 *
+	 * @param randDouble random number between 0 and 1
+	 * @return randomly sampled cube index
+	 */
+	public int getRandomInt(double randDouble) {
+		double sum = getSumOfWeights();
+		Preconditions.checkState(sum > 0, "Can't sample, all weights are zero");
+		double target = randDouble*sum;
+		// first index where the cumulative weight exceeds the target
+		int low = 0;
+		int high = cumWeights.length-1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (cumWeights[mid] > target)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return cubeIndexes[low];
+	}
+
+}
@@ -0,0 +1,113 @@
+package scratch.UCERF3.erf.ETAS;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Weighted random sampler for integer indexes using Walker's alias method (with Vose's construction). Building the
+ * table is O(N), after which each sample is O(1) and allocation free. Weights are fixed once built, so this is
+ * intended for distributions which are sampled many times between changes (e.g., source nucleation rates on a
+ * fault section, which only change when rates are updated after a fault system event). Use
+ * {@link FenwickTreeSampler} for distributions which change between samples.
+ *
+ * Note that, unlike IntegerPDF_FunctionSampler, the index returned for a given random number does not follow
+ * cumulative order, though the distribution of returned indexes is the same.
+ *
+ */
+public class WalkerAliasSampler {
+
+	// probability of keeping each column (rather than returning its alias)
+	private double[] prob;
+	private int[] alias;
+	private double sumOfWeights;
+
+	/**
+	 * Builds an alias table for the given weights. The array is not retained.
+	 * @param weights non-negative weights, at least one of which must be positive
+	 */
+	public WalkerAliasSampler(double[] weights) {
+		int num = weights.length;
+		Preconditions.checkArgument(num > 0, "Must have at least one weight");
+		double sum = 0d;
+		for (double weight : weights) {
+			Preconditions.checkArgument(weight >= 0, "Weights must be non-negative: %s", weight);
+			sum += weight;
+		}
+		Preconditions.checkArgument(sum > 0, "Sum of weights must be positive");
+		this.sumOfWeights = sum;
+
+		prob = new double[num];
+		alias = new int[num];
+
+		// scaled such that the average column is 1
+		double[] scaled = new double[num];
+		// small and large stacks share one array, filled from either end
+		int[] work = new int[num];
+		int numSmall = 0;
+		int largeStart = num;
+		for (int i=0; i<num; i++) {
+			scaled[i] = weights[i]*num/sum;
+			if (scaled[i] < 1d)
+				work[numSmall++] = i;
+			else
+				work[--largeStart] = i;
+		}
+
+		while (numSmall > 0 && largeStart < num) {
+			int small = work[--numSmall];
+			int large = work[largeStart++];
+			prob[small] = scaled[small];
+			alias[small] = large;
+			scaled[large] = (scaled[large] + scaled[small]) - 1d;
+			if (scaled[large] < 1d)
+				work[numSmall++] = large;
+			else
+				work[--largeStart] = large;
+		}
+		// anything left over is 1 to within rounding error
+		while (largeStart < num) {
+			int i = work[largeStart++];
+			prob[i] = 1d;
+			alias[i] = i;
+		}
+		while (numSmall > 0) {
+			int i = work[--numSmall];
+			prob[i] = 1d;
+			alias[i] = i;
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of indexes
+	 */
+	public int size() {
+		return prob.length;
+	}
+
+	/**
+	 *
+	 * @return sum of the weights used to build this sampler
+	 */
+	public double getSumOfWeights() {
+		return sumOfWeights;
+	}
+
+	/**
+	 * Returns a random index, with probability proportional to its weight. The given random number selects both the
+	 * column (integer part after scaling by the number of indexes) and whether to use the column or its alias
+	 * (fractional part).
+	 * @param randDouble random number in the range [0,1)
+	 * @return
+	 */
+	public int getRandomInt(double randDouble) {
+		double scaled = randDouble*prob.length;
+		int column = (int)scaled;
+		if (column >= prob.length)
+			// randDouble == 1
+			column = prob.length-1;
+		if (scaled - column < prob[column])
+			return column;
+		return alias[column];
+	}
+
+}
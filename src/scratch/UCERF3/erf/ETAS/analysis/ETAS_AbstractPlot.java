@@ -3,6 +3,8 @@ package scratch.UCERF3.erf.ETAS.analysis;
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -13,6 +15,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opensha.commons.gui.plot.HeadlessGraphPanel;
 import org.opensha.commons.gui.plot.PlotPreferences;
@@ -37,6 +40,7 @@ public abstract class ETAS_AbstractPlot {
 	private ETAS_Launcher launcher;
 	
 	private Stopwatch processStopwatch;
+	private AtomicLong processCPUNanos = new AtomicLong();
 	
 	private AsyncManager asyncManager;
 	
@@ -104,20 +108,26 @@ public abstract class ETAS_AbstractPlot {
 	}
 	
 	public final void processCatalog(ETAS_Catalog catalog, FaultSystemSolution fss) {
-		ETAS_Catalog triggeredOnlyCatalog = null;
-		if (isFilterSpontaneous())
-			triggeredOnlyCatalog = ETAS_Launcher.getFilteredNoSpontaneous(config, catalog);
-		processCatalog(catalog, triggeredOnlyCatalog, fss);
+		processCatalog(new ETAS_DerivedCatalogData(config, catalog, isFilterSpontaneous()), fss);
 	}
 	
 	public final void processCatalog(ETAS_Catalog completeCatalog,
 			ETAS_Catalog triggeredOnlyCatalog, FaultSystemSolution fss) {
+		processCatalog(new ETAS_DerivedCatalogData(completeCatalog, triggeredOnlyCatalog), fss);
+	}
+	
+	/**
+	 * Processes the given catalog, using derived data that may be shared with other plots
+	 * @param data
+	 * @param fss
+	 */
+	public final void processCatalog(ETAS_DerivedCatalogData data, FaultSystemSolution fss) {
 		processStopwatch.start();
 		try {
 			if (asyncManager == null)
-				doProcessCatalog(completeCatalog, triggeredOnlyCatalog, fss);
+				timedProcessCatalog(data, fss);
 			else
-				asyncManager.processAsync(completeCatalog, triggeredOnlyCatalog, fss);
+				asyncManager.processAsync(data, fss);
 		} catch (RuntimeException e) {
 			throw e;
 		} finally {
@@ -126,6 +136,23 @@ public abstract class ETAS_AbstractPlot {
 		numProcessed++;
 	}
 	
+	private void timedProcessCatalog(ETAS_DerivedCatalogData data, FaultSystemSolution fss) {
+		long cpuStart = getCurrentThreadCPUNanos();
+		try {
+			doProcessCatalog(data, fss);
+		} finally {
+			if (cpuStart >= 0)
+				processCPUNanos.addAndGet(getCurrentThreadCPUNanos() - cpuStart);
+		}
+	}
+	
+	private static long getCurrentThreadCPUNanos() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!bean.isCurrentThreadCpuTimeSupported())
+			return -1l;
+		return bean.getCurrentThreadCpuTime();
+	}
+	
 	/**
 	 * @return the number of catalogs processed, assuming that any asynchronous ones have already completed
 	 */
@@ -137,6 +164,25 @@ public abstract class ETAS_AbstractPlot {
 		return processStopwatch.elapsed(TimeUnit.MILLISECONDS);
 	}
 	
+	/**
+	 * @return CPU time spent in doProcessCatalog (including asynchronous processing), or zero if thread CPU time
+	 * is not supported by this JVM
+	 */
+	public long getProcessCPUTimeMS() {
+		return TimeUnit.NANOSECONDS.toMillis(processCPUNanos.get());
+	}
+	
+	/**
+	 * Processes a single catalog. The default implementation calls
+	 * {@link #doProcessCatalog(ETAS_Catalog, ETAS_Catalog, FaultSystemSolution)}, but plots can override this to use
+	 * other derived data (which is computed once and shared between plots).
+	 * @param data
+	 * @param fss
+	 */
+	protected void doProcessCatalog(ETAS_DerivedCatalogData data, FaultSystemSolution fss) {
+		doProcessCatalog(data.getCompleteCatalog(), data.getTriggeredOnlyCatalog(), fss);
+	}
+	
 	protected abstract void doProcessCatalog(ETAS_Catalog completeCatalog,
 			ETAS_Catalog triggeredOnlyCatalog, FaultSystemSolution fss);
 	
@@ -382,9 +428,8 @@ public abstract class ETAS_AbstractPlot {
 			futures = new ArrayList<>(config.getNumSimulations());
 		}
 		
-		public void processAsync(ETAS_Catalog completeCatalog,
-				ETAS_Catalog triggeredOnlyCatalog, FaultSystemSolution fss) {
-			futures.add(exec.submit(new ProcessRunnable(completeCatalog, triggeredOnlyCatalog, fss)));
+		public void processAsync(ETAS_DerivedCatalogData data, FaultSystemSolution fss) {
+			futures.add(exec.submit(new ProcessRunnable(data, fss)));
 		}
 		
 		public void waitOnFutures() {
@@ -399,20 +444,17 @@ public abstract class ETAS_AbstractPlot {
 	}
 	
 	private class ProcessRunnable implements Runnable {
-		private final ETAS_Catalog completeCatalog;
-		private final ETAS_Catalog triggeredOnlyCatalog;
+		private final ETAS_DerivedCatalogData data;
 		private final FaultSystemSolution fss;
 		
-		public ProcessRunnable(ETAS_Catalog completeCatalog, ETAS_Catalog triggeredOnlyCatalog,
-				FaultSystemSolution fss) {
-			this.completeCatalog = completeCatalog;
-			this.triggeredOnlyCatalog = triggeredOnlyCatalog;
+		public ProcessRunnable(ETAS_DerivedCatalogData data, FaultSystemSolution fss) {
+			this.data = data;
 			this.fss = fss;
 		}
 
 		@Override
 		public void run() {
-			doProcessCatalog(completeCatalog, triggeredOnlyCatalog, fss);
+			timedProcessCatalog(data, fss);
 		}
 	}
 	
@@ -0,0 +1,241 @@
+package scratch.UCERF3.erf.ETAS.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opensha.sha.magdist.IncrementalMagFreqDist;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.ETAS_Catalog;
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+import scratch.UCERF3.erf.ETAS.launcher.ETAS_Config;
+import scratch.UCERF3.erf.ETAS.launcher.ETAS_Launcher;
+
+/**
+ * Data derived from a single catalog which is shared by all plots processing that catalog, so that it is only
+ * computed once. Everything is computed lazily on first request, and is thread safe (for asynchronous plots).
+ * Returned lists and distributions are shared and must not be modified.
+ */
+public class ETAS_DerivedCatalogData {
+
+	private final ETAS_Config config;
+	private final ETAS_Catalog completeCatalog;
+	private final boolean filterSpontaneous;
+
+	private boolean triggeredOnlyComputed;
+	private ETAS_Catalog triggeredOnlyCatalog;
+
+	private List<ETAS_EqkRupture> completeFSSRuptures;
+	private List<ETAS_EqkRupture> triggeredOnlyFSSRuptures;
+
+	private List<ETAS_EqkRupture> timeSortedCatalog;
+
+	private Map<MagBinKey, IncrementalMagFreqDist> magNumDists;
+
+	private long computeNanos = 0l;
+	private final LongAdder totalComputeNanos;
+
+	/**
+	 * @param config
+	 * @param completeCatalog
+	 * @param filterSpontaneous if true, the triggered only catalog will be computed when requested
+	 */
+	public ETAS_DerivedCatalogData(ETAS_Config config, ETAS_Catalog completeCatalog, boolean filterSpontaneous) {
+		this(config, completeCatalog, filterSpontaneous, null);
+	}
+
+	/**
+	 * @param config
+	 * @param completeCatalog
+	 * @param filterSpontaneous if true, the triggered only catalog will be computed when requested
+	 * @param totalComputeNanos if non null, time spent computing derived data will also be added to this as it is
+	 * computed. This includes data computed later by asynchronous plots, so it should only be read once those are done.
+	 */
+	public ETAS_DerivedCatalogData(ETAS_Config config, ETAS_Catalog completeCatalog, boolean filterSpontaneous,
+			LongAdder totalComputeNanos) {
+		Preconditions.checkNotNull(completeCatalog);
+		this.config = config;
+		this.completeCatalog = completeCatalog;
+		this.filterSpontaneous = filterSpontaneous;
+		this.totalComputeNanos = totalComputeNanos;
+	}
+
+	/**
+	 * @param completeCatalog
+	 * @param triggeredOnlyCatalog already computed triggered only catalog, can be null
+	 */
+	public ETAS_DerivedCatalogData(ETAS_Catalog completeCatalog, ETAS_Catalog triggeredOnlyCatalog) {
+		this(null, completeCatalog, false);
+		this.triggeredOnlyCatalog = triggeredOnlyCatalog;
+		this.triggeredOnlyComputed = true;
+	}
+
+	public ETAS_Catalog getCompleteCatalog() {
+		return completeCatalog;
+	}
+
+	/**
+	 *
+	 * @return catalog without spontaneous ruptures or their descendants, or null if spontaneous filtering was not
+	 * requested or can't be done for this simulation
+	 */
+	public synchronized ETAS_Catalog getTriggeredOnlyCatalog() {
+		if (!triggeredOnlyComputed) {
+			long start = System.nanoTime();
+			if (filterSpontaneous)
+				triggeredOnlyCatalog = ETAS_Launcher.getFilteredNoSpontaneous(config, completeCatalog);
+			triggeredOnlyComputed = true;
+			addComputeTime(start);
+		}
+		return triggeredOnlyCatalog;
+	}
+
+	/**
+	 *
+	 * @param triggeredOnly
+	 * @return ruptures with a fault system solution index, in catalog order, or null if triggeredOnly is true and
+	 * there is no triggered only catalog
+	 */
+	public synchronized List<ETAS_EqkRupture> getFSSRuptures(boolean triggeredOnly) {
+		if (triggeredOnly) {
+			ETAS_Catalog catalog = getTriggeredOnlyCatalog();
+			if (catalog == null)
+				return null;
+			if (catalog == completeCatalog)
+				return getFSSRuptures(false);
+			if (triggeredOnlyFSSRuptures == null)
+				triggeredOnlyFSSRuptures = buildFSSRuptures(catalog);
+			return triggeredOnlyFSSRuptures;
+		}
+		if (completeFSSRuptures == null)
+			completeFSSRuptures = buildFSSRuptures(completeCatalog);
+		return completeFSSRuptures;
+	}
+
+	private List<ETAS_EqkRupture> buildFSSRuptures(List<ETAS_EqkRupture> catalog) {
+		long start = System.nanoTime();
+		List<ETAS_EqkRupture> ret = new ArrayList<>();
+		for (ETAS_EqkRupture rup : catalog)
+			if (rup.getFSSIndex() >= 0)
+				ret.add(rup);
+		addComputeTime(start);
+		return ret;
+	}
+
+	/**
+	 *
+	 * @return the complete catalog sorted by origin time. This will be the catalog itself if already sorted, which
+	 * is the case for simulated catalogs.
+	 */
+	public synchronized List<ETAS_EqkRupture> getTimeSortedCatalog() {
+		if (timeSortedCatalog == null) {
+			long start = System.nanoTime();
+			boolean sorted = true;
+			for (int i=1; sorted && i<completeCatalog.size(); i++)
+				sorted = completeCatalog.get(i).getOriginTime() >= completeCatalog.get(i-1).getOriginTime();
+			if (sorted) {
+				timeSortedCatalog = completeCatalog;
+			} else {
+				List<ETAS_EqkRupture> copy = new ArrayList<>(completeCatalog);
+				Collections.sort(copy, new Comparator<ETAS_EqkRupture>() {
+
+					@Override
+					public int compare(ETAS_EqkRupture o1, ETAS_EqkRupture o2) {
+						return Long.compare(o1.getOriginTime(), o2.getOriginTime());
+					}
+				});
+				timeSortedCatalog = copy;
+			}
+			addComputeTime(start);
+		}
+		return timeSortedCatalog;
+	}
+
+	/**
+	 * Magnitude number distribution (count of events in each magnitude bin, using the closest bin) for this catalog.
+	 * Results are cached by discretization, so plots using the same bins share the same distribution.
+	 * @param minMag
+	 * @param numMag
+	 * @param deltaMag
+	 * @param triggeredOnly
+	 * @return magnitude number distribution, or null if triggeredOnly is true and there is no triggered only catalog
+	 */
+	public synchronized IncrementalMagFreqDist getMagNumDist(double minMag, int numMag, double deltaMag,
+			boolean triggeredOnly) {
+		List<ETAS_EqkRupture> catalog = triggeredOnly ? getTriggeredOnlyCatalog() : completeCatalog;
+		if (catalog == null)
+			return null;
+		if (magNumDists == null)
+			magNumDists = new HashMap<>();
+		MagBinKey key = new MagBinKey(minMag, numMag, deltaMag, triggeredOnly);
+		IncrementalMagFreqDist mnd = magNumDists.get(key);
+		if (mnd == null) {
+			long start = System.nanoTime();
+			mnd = new IncrementalMagFreqDist(minMag, numMag, deltaMag);
+			for (ETAS_EqkRupture rup : catalog)
+				mnd.add(mnd.getClosestXIndex(rup.getMag()), 1d);
+			magNumDists.put(key, mnd);
+			addComputeTime(start);
+		}
+		return mnd;
+	}
+
+	private void addComputeTime(long startNanos) {
+		long delta = System.nanoTime() - startNanos;
+		computeNanos += delta;
+		if (totalComputeNanos != null)
+			totalComputeNanos.add(delta);
+	}
+
+	/**
+	 *
+	 * @return time spent computing derived data for this catalog so far in nanoseconds
+	 */
+	public synchronized long getComputeTimeNanos() {
+		return computeNanos;
+	}
+
+	private static class MagBinKey {
+		private final double minMag;
+		private final int numMag;
+		private final double deltaMag;
+		private final boolean triggeredOnly;
+
+		public MagBinKey(double minMag, int numMag, double deltaMag, boolean triggeredOnly) {
+			this.minMag = minMag;
+			this.numMag = numMag;
+			this.deltaMag = deltaMag;
+			this.triggeredOnly = triggeredOnly;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + Double.hashCode(deltaMag);
+			result = prime * result + Double.hashCode(minMag);
+			result = prime * result + numMag;
+			result = prime * result + (triggeredOnly ? 1231 : 1237);
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof MagBinKey))
+				return false;
+			MagBinKey other = (MagBinKey) obj;
+			return Double.doubleToLongBits(deltaMag) == Double.doubleToLongBits(other.deltaMag)
+					&& Double.doubleToLongBits(minMag) == Double.doubleToLongBits(other.minMag)
+					&& numMag == other.numMag && triggeredOnly == other.triggeredOnly;
+		}
+	}
+
+}
@@ -157,8 +157,13 @@ public class ETAS_FaultParticipationPlot extends ETAS_AbstractPlot {
 	}
 
 	@Override
-	protected synchronized void doProcessCatalog(ETAS_Catalog completeCatalog,
+	protected void doProcessCatalog(ETAS_Catalog completeCatalog,
 			ETAS_Catalog triggeredOnlyCatalog, FaultSystemSolution fss) {
+		doProcessCatalog(new ETAS_DerivedCatalogData(completeCatalog, triggeredOnlyCatalog), fss);
+	}
+
+	@Override
+	protected synchronized void doProcessCatalog(ETAS_DerivedCatalogData data, FaultSystemSolution fss) {
 		if (subSectStats == null) {
 			System.out.println("Initializing section stats/mappings");
 			// initialize
@@ -189,14 +194,17 @@ public class ETAS_FaultParticipationPlot extends ETAS_AbstractPlot {
 			tdCalcThread.start();
 		}
 		
+		// only fault system ruptures are used, so skip everything else in each stat
+		List<ETAS_EqkRupture> completeFSSRups = data.getFSSRuptures(false);
+		List<ETAS_EqkRupture> triggeredOnlyFSSRups = data.getFSSRuptures(true);
+		
 		HashSet<FaultStats> statsToProcess = new HashSet<>();
-		for (ETAS_EqkRupture rup : completeCatalog)
-			if (rup.getFSSIndex() >= 0)
-				statsToProcess.addAll(fssIndexToStatsMap.get(rup.getFSSIndex()));
+		for (ETAS_EqkRupture rup : completeFSSRups)
+			statsToProcess.addAll(fssIndexToStatsMap.get(rup.getFSSIndex()));
 		hasAny = hasAny || !statsToProcess.isEmpty();
 		
 		for (FaultStats stats : statsToProcess)
-			stats.processCatalog(completeCatalog, triggeredOnlyCatalog);
+			stats.processCatalog(completeFSSRups, triggeredOnlyFSSRups);
 		
 		catalogCount++;
 	}
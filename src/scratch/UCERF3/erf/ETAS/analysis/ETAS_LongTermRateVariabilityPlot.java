@@ -156,6 +156,13 @@ public class ETAS_LongTermRateVariabilityPlot extends ETAS_AbstractPlot {
 	@Override
 	protected void doProcessCatalog(ETAS_Catalog completeCatalog, ETAS_Catalog triggeredOnlyCatalog,
 			FaultSystemSolution fss) {
+		doProcessCatalog(new ETAS_DerivedCatalogData(completeCatalog, triggeredOnlyCatalog), fss);
+	}
+
+	@Override
+	protected void doProcessCatalog(ETAS_DerivedCatalogData data, FaultSystemSolution fss) {
+		// sub MFDs stop at the end of each sweep window, so this must be sorted
+		List<ETAS_EqkRupture> catalog = data.getTimeSortedCatalog();
 		long simStartTime = getConfig().getSimulationStartTimeMillis();
 		double simDuration = getConfig().getDuration();
 		// pad by 1s for rounding errors
@@ -187,15 +194,17 @@ public class ETAS_LongTermRateVariabilityPlot extends ETAS_AbstractPlot {
 			int numProcessed = 0;
 			for (long startTime=sweepStartTime; startTime+durationMillis<=simEndTime; startTime+=sweepDeltaMillis) {
 				long endTime = startTime+durationMillis;
-				mfdList.add(calcSubMFD(completeCatalog, startTime, endTime));
+				mfdList.add(calcSubMFD(catalog, startTime, endTime));
 				numProcessed++;
 			}
 			Preconditions.checkState(numProcessed > 0, "Sub-duration of %s is too long for simulation?", duration);
 		}
 		
-		// now keep track of total count to determine if this catalog is filtered
-		for (ETAS_EqkRupture rup : completeCatalog)
-			totalCountHist.add(totalCountHist.getClosestXIndex(rup.getMag()), 1d);
+		// now keep track of total count to determine if this catalog is filtered (shared with the other MFD plots)
+		IncrementalMagFreqDist mnd = data.getMagNumDist(ETAS_MFD_Plot.mfdMinMag, ETAS_MFD_Plot.mfdNumMag,
+				ETAS_MFD_Plot.mfdDelta, false);
+		for (int i=0; i<mnd.size(); i++)
+			totalCountHist.add(i, mnd.getY(i));
 	}
 	
 	private IncrementalMagFreqDist calcSubMFD(List<ETAS_EqkRupture> catalog, long startTime, long endTime) {
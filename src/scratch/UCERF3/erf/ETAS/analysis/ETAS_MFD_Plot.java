@@ -137,6 +137,14 @@ public class ETAS_MFD_Plot extends ETAS_AbstractPlot {
 
 	@Override
 	protected void doProcessCatalog(ETAS_Catalog completeCatalog, ETAS_Catalog triggeredOnlyCatalog, FaultSystemSolution fss) {
+		doProcessCatalog(new ETAS_DerivedCatalogData(completeCatalog, triggeredOnlyCatalog), fss);
+	}
+
+	@Override
+	protected void doProcessCatalog(ETAS_DerivedCatalogData data, FaultSystemSolution fss) {
+		// ruptures are processed in time order up to the end of each duration
+		List<ETAS_EqkRupture> completeCatalog = data.getTimeSortedCatalog();
+		ETAS_Catalog triggeredOnlyCatalog = data.getTriggeredOnlyCatalog();
 		for (int i=0; i<durations.length; i++) {
 			long maxOT = getConfig().getSimulationStartTimeMillis() + (long)(ProbabilityModelsCalc.MILLISEC_PER_YEAR*durations[i]+0.5);
 			if (totalWithSpontStats != null) {
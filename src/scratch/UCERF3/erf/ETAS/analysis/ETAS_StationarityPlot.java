@@ -20,6 +20,7 @@ import org.opensha.commons.gui.plot.PlotLineType;
 import org.opensha.commons.gui.plot.PlotSpec;
 import org.opensha.commons.mapping.gmt.elements.GMT_CPT_Files;
 import org.opensha.commons.util.cpt.CPT;
+import org.opensha.sha.magdist.IncrementalMagFreqDist;
 
 import com.google.common.base.Preconditions;
 
@@ -81,6 +82,12 @@ public class ETAS_StationarityPlot extends ETAS_AbstractPlot {
 	@Override
 	protected void doProcessCatalog(ETAS_Catalog completeCatalog, ETAS_Catalog triggeredOnlyCatalog,
 			FaultSystemSolution fss) {
+		doProcessCatalog(new ETAS_DerivedCatalogData(completeCatalog, triggeredOnlyCatalog), fss);
+	}
+
+	@Override
+	protected void doProcessCatalog(ETAS_DerivedCatalogData data, FaultSystemSolution fss) {
+		ETAS_Catalog completeCatalog = data.getCompleteCatalog();
 		long simStartTime = getConfig().getSimulationStartTimeMillis();
 		
 		EvenlyDiscretizedFunc[] magFuncs = new EvenlyDiscretizedFunc[mags.length];
@@ -91,9 +98,13 @@ public class ETAS_StationarityPlot extends ETAS_AbstractPlot {
 		
 		double maxX = xVals.getMaxX() + 0.5*xVals.getDelta();
 		
+		// shared with the other MFD plots
+		IncrementalMagFreqDist mnd = data.getMagNumDist(ETAS_MFD_Plot.mfdMinMag, ETAS_MFD_Plot.mfdNumMag,
+				ETAS_MFD_Plot.mfdDelta, false);
+		for (int i=0; i<mnd.size(); i++)
+			totalCountHist.add(i, mnd.getY(i));
+		
 		for (ETAS_EqkRupture rup : completeCatalog) {
-			totalCountHist.add(totalCountHist.getClosestXIndex(rup.getMag()), 1d);
-			
 			double relativeTime = (double)(rup.getOriginTime() - simStartTime) / ProbabilityModelsCalc.MILLISEC_PER_YEAR;
 			if (relativeTime > maxX)
 				continue;
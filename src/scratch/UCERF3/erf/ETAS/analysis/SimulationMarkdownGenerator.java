@@ -27,6 +27,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -512,17 +513,20 @@ public class SimulationMarkdownGenerator {
 		Stopwatch totalProcessWatch = Stopwatch.createStarted();
 		double loadMag = inputFile.isDirectory() && !config.hasTriggers() ? getPreferredMinMag(config) : 0d;
 		System.out.println("Processing "+config.getSimulationName());
-		int numProcessed = ETAS_CatalogIteration.processCatalogs(inputFile, new ETAS_CatalogIteration.Callback() {
+		// accumulated as derived data is computed, which continues after iteration for asynchronous plots
+		final LongAdder derivedNanos = new LongAdder();
+		// catalogs are decoded in parallel, but plots are updated serially and in order
+		int numProcessed = ETAS_CatalogIteration.processCatalogsParallel(inputFile, new ETAS_CatalogIteration.Callback() {
 			
 			@Override
 			public void processCatalog(ETAS_Catalog catalog, int index) {
-				ETAS_Catalog triggeredOnlyCatalog = null;
-				if (isFilterSpontaneous)
-					triggeredOnlyCatalog = ETAS_Launcher.getFilteredNoSpontaneous(config, catalog);
+				// derived data (e.g., the triggered only catalog) is computed once and shared by all plots
+				ETAS_DerivedCatalogData data = new ETAS_DerivedCatalogData(
+						config, catalog, isFilterSpontaneous, derivedNanos);
 				for (ETAS_AbstractPlot plot : plots) {
 					try {
 						if (plotsToProcess.contains(plot))
-							plot.processCatalog(catalog, triggeredOnlyCatalog, fss);
+							plot.processCatalog(data, fss);
 					} catch (Exception e) {
 						System.err.println("Error processing catalog with plot "
 								+ClassUtils.getClassNameWithoutPackage(plot.getClass())+", disabling plot");
@@ -531,7 +535,7 @@ public class SimulationMarkdownGenerator {
 					}
 				}
 			}
-		}, maxCatalogs, loadMag);
+		}, maxCatalogs, loadMag, threads, true);
 		
 		totalProcessWatch.stop();
 		
@@ -614,12 +618,18 @@ public class SimulationMarkdownGenerator {
 		DecimalFormat percentDF = new DecimalFormat("0.00 %");
 		double overhead = totProcessSeconds - sumProcessTimes;
 		System.out.println("\tI/O overhead: "+timeStr(overhead)+" ("+percentDF.format(overhead/totProcessSeconds)+")");
+		// all asynchronous processing is done now that plots have been finalized
+		double derivedSecs = seconds(TimeUnit.NANOSECONDS.toMillis(derivedNanos.sum()));
+		System.out.println("\tShared derived data (included in plot times): "+timeStr(derivedSecs)
+				+" ("+percentDF.format(derivedSecs/totProcessSeconds)+")");
 		for (ETAS_AbstractPlot plot : plots) {
 			if (prevDoneResults.containsKey(plot))
 				continue;
 			double plotSecs = seconds(plot.getProcessTimeMS());
+			double plotCPUSecs = seconds(plot.getProcessCPUTimeMS());
 			System.out.println("\t"+ClassUtils.getClassNameWithoutPackage(plot.getClass())+" "
-					+timeStr(plotSecs)+" ("+percentDF.format(plotSecs/totProcessSeconds)+")");
+					+timeStr(plotSecs)+" ("+percentDF.format(plotSecs/totProcessSeconds)+"), CPU time: "
+					+timeStr(plotCPUSecs));
 		}
 		System.out.println();
 		System.out.println("Total finalize time: "+timeStr(totFinalizeTime));
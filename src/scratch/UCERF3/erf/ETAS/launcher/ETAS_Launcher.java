@@ -94,6 +94,8 @@ import scratch.UCERF3.erf.ETAS.launcher.ETAS_Config.BinaryFilteredOutputConfig;
 import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
 import scratch.UCERF3.griddedSeismicity.AbstractGridSourceProvider;
 import scratch.UCERF3.inversion.InversionFaultSystemSolution;
+import scratch.UCERF3.utils.CSRFloatArraysList;
+import scratch.UCERF3.utils.CSRIntArraysList;
 import scratch.UCERF3.utils.FaultSystemIO;
 import scratch.UCERF3.utils.LastEventData;
 import scratch.UCERF3.utils.MatrixIO;
@@ -761,9 +763,10 @@ public class ETAS_Launcher {
 			Preconditions.checkState(isCubeInsideFaultPolygonFile.exists(),
 					"cache file not found: "+isCubeInsideFaultPolygonFile.getAbsolutePath());
 			debug("loading cache from "+fractionSrcAtPointListFile.getAbsolutePath()+" ("+getMemoryDebug()+")");
-			fractionSrcAtPointList = MatrixIO.floatArraysListFromFile(fractionSrcAtPointListFile);
+			// these are memory mapped if in CSR format, otherwise converted to CSR to avoid an array per cube
+			fractionSrcAtPointList = CSRFloatArraysList.from(MatrixIO.floatArraysListFromFile(fractionSrcAtPointListFile));
 			debug("loading cache from "+srcAtPointListFile.getAbsolutePath()+" ("+getMemoryDebug()+")");
-			srcAtPointList = MatrixIO.intArraysListFromFile(srcAtPointListFile);
+			srcAtPointList = CSRIntArraysList.from(MatrixIO.intArraysListFromFile(srcAtPointListFile));
 			debug("loading cache from "+srcAtPointListFile.getAbsolutePath()+" ("+getMemoryDebug()+")");
 			isCubeInsideFaultPolygon = MatrixIO.intArrayFromFile(isCubeInsideFaultPolygonFile);
 			debug("done loading caches ("+getMemoryDebug()+")");
@@ -899,6 +902,8 @@ public class ETAS_Launcher {
 					List<ETAS_EqkRupture> histQkList = threadSafeInputs(getHistQkList());
 					List<ETAS_EqkRupture> triggers = threadSafeInputs(getTriggerRuptures());
 					ETAS_SimulationMetadata meta;
+					// fault based simulations stream binary output directly, gridded only are converted from ASCII
+					boolean streamBinary = config.isBinaryOutput() && !config.isGriddedOnly();
 					if (config.isGriddedOnly()) {
 						meta = ETAS_Simulator_NoFaults.runETAS_Simulation(tempResultsDir, (UCERF3_GriddedSeisOnlyERF_ETAS)erf, griddedRegion,
 								triggers, histQkList, config.isIncludeSpontaneous(), config.isIncludeIndirectTriggering(),
@@ -908,7 +913,8 @@ public class ETAS_Launcher {
 						meta = ETAS_Simulator.runETAS_Simulation(tempResultsDir, (FaultSystemSolutionERF_ETAS)erf, griddedRegion,
 								triggers, histQkList, config.isIncludeSpontaneous(), config.isIncludeIndirectTriggering(),
 								config.getGridSeisDiscr(), simulationName, randSeed,
-								fractionSrcAtPointList, srcAtPointList, isCubeInsideFaultPolygon, params, cubeParams, longTermMFDs);
+								fractionSrcAtPointList, srcAtPointList, isCubeInsideFaultPolygon, params, cubeParams, longTermMFDs,
+								streamBinary);
 					}
 					meta = meta.getModCatalogIndex(index);
 					
@@ -916,7 +922,20 @@ public class ETAS_Launcher {
 					File asciiFile = new File(tempResultsDir, "simulatedEvents.txt");
 					ETAS_Catalog catalog = null;
 					waitOnDirCreation(resultsDir, 5, 2000);
-					if (config.isBinaryOutput()) {
+					if (streamBinary) {
+						// already written as binary, just needs the catalog index
+						File tempBinaryFile = new File(tempResultsDir, "simulatedEvents.bin");
+						ETAS_CatalogIO.updateBinaryCatalogMetadata(tempBinaryFile, meta);
+						File binaryFile = new File(resultsDir, "simulatedEvents.bin");
+						if (!tempResultsDir.equals(resultsDir)) {
+							if (binaryFile.exists())
+								binaryFile.delete();
+							Files.move(tempBinaryFile, binaryFile);
+						}
+						if (binaryPreStage)
+							catalog = ETAS_CatalogIO.loadCatalogBinary(binaryFile);
+						debug("completed binary output "+index);
+					} else if (config.isBinaryOutput()) {
 						// convert to binary
 						catalog = ETAS_CatalogIO.loadCatalog(asciiFile);
 						catalog.setSimulationMetadata(meta);
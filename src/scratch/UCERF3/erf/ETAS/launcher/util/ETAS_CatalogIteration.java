@@ -8,12 +8,23 @@ import scratch.UCERF3.erf.ETAS.launcher.ETAS_Launcher;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileNameComparator;
@@ -43,11 +54,212 @@ public class ETAS_CatalogIteration {
 		}
 		
 		int numProcessed = 0;
-		int modulus = 10;
-		Stopwatch watch = Stopwatch.createStarted();
-		DecimalFormat timeDF = new DecimalFormat("0.00");
-		DecimalFormat percentDF = new DecimalFormat("0.0%");
+		ProgressTracker progress = new ProgressTracker(totalNum);
 		while (catalogsIterator.hasNext()) {
+			progress.printProgress(numProcessed);
+			
+			ETAS_Catalog catalog;
+			try {
+				catalog = catalogsIterator.next();
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.err.flush();
+				System.out.println("Partial catalog detected or other error, stopping with "+numProcessed+" catalogs");
+				break;
+			}
+			
+			callback.processCatalog(catalog, numProcessed);
+			
+			numProcessed++;
+			
+			if (numProcessed == numToProcess)
+				break;
+		}
+		
+		return numProcessed;
+	}
+	
+	/**
+	 * Processes catalogs from a binary catalogs file, decoding catalogs in parallel with positional reads.
+	 * Directories and gzipped files are processed serially, as with
+	 * {@link #processCatalogs(File, Callback, int, double)}.
+	 * 
+	 * @param catalogsFile
+	 * @param callback
+	 * @param numToProcess maximum number of catalogs to process, or -1 for all
+	 * @param minMag
+	 * @param numThreads number of decoding threads
+	 * @param ordered if true, the callback will be called from the calling thread with catalogs in file order, and
+	 * need not be thread safe. Otherwise, the callback is called from the decoding threads as soon as each catalog is
+	 * loaded and must be thread safe.
+	 * @return number of catalogs processed
+	 */
+	public static int processCatalogsParallel(File catalogsFile, Callback callback, int numToProcess, double minMag,
+			int numThreads, boolean ordered) {
+		if (numThreads <= 1 || catalogsFile.isDirectory() || catalogsFile.getName().toLowerCase().endsWith(".gz"))
+			return processCatalogs(catalogsFile, callback, numToProcess, minMag);
+		
+		long[] offsets;
+		FileChannel channel;
+		try {
+			offsets = ETAS_CatalogIO.getBinaryCatalogOffsets(catalogsFile);
+			channel = FileChannel.open(catalogsFile.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		int totalNum = offsets.length-1;
+		if (numToProcess > 0 && numToProcess < totalNum)
+			totalNum = numToProcess;
+		
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		
+		try {
+			if (ordered)
+				return processOrdered(channel, offsets, totalNum, callback, minMag, numThreads, exec);
+			return processUnordered(channel, offsets, totalNum, callback, minMag, numThreads, exec);
+		} finally {
+			exec.shutdown();
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	private static class CatalogLoadCall implements Callable<ETAS_Catalog> {
+		
+		private FileChannel channel;
+		private long startPos;
+		private long endPos;
+		private double minMag;
+
+		public CatalogLoadCall(FileChannel channel, long startPos, long endPos, double minMag) {
+			this.channel = channel;
+			this.startPos = startPos;
+			this.endPos = endPos;
+			this.minMag = minMag;
+		}
+
+		@Override
+		public ETAS_Catalog call() throws Exception {
+			return ETAS_CatalogIO.loadCatalogBinary(channel, startPos, endPos, minMag);
+		}
+	}
+	
+	private static int processOrdered(FileChannel channel, long[] offsets, int totalNum, Callback callback,
+			double minMag, int numThreads, ExecutorService exec) {
+		// bound the number of decoded catalogs waiting to be processed
+		int maxPending = numThreads*4;
+		ArrayDeque<Future<ETAS_Catalog>> pending = new ArrayDeque<>(maxPending);
+		int numSubmitted = 0;
+		while (numSubmitted < totalNum && pending.size() < maxPending) {
+			pending.add(exec.submit(new CatalogLoadCall(channel, offsets[numSubmitted], offsets[numSubmitted+1], minMag)));
+			numSubmitted++;
+		}
+		
+		int numProcessed = 0;
+		ProgressTracker progress = new ProgressTracker(totalNum);
+		while (!pending.isEmpty()) {
+			progress.printProgress(numProcessed);
+			
+			ETAS_Catalog catalog;
+			try {
+				catalog = pending.removeFirst().get();
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.err.flush();
+				System.out.println("Error loading catalog, stopping with "+numProcessed+" catalogs");
+				for (Future<ETAS_Catalog> future : pending)
+					future.cancel(true);
+				break;
+			}
+			if (numSubmitted < totalNum) {
+				pending.add(exec.submit(new CatalogLoadCall(channel, offsets[numSubmitted], offsets[numSubmitted+1], minMag)));
+				numSubmitted++;
+			}
+			
+			callback.processCatalog(catalog, numProcessed);
+			
+			numProcessed++;
+		}
+		
+		return numProcessed;
+	}
+	
+	private static int processUnordered(final FileChannel channel, final long[] offsets, final int totalNum,
+			final Callback callback, final double minMag, int numThreads, ExecutorService exec) {
+		final AtomicInteger nextIndex = new AtomicInteger(0);
+		final AtomicInteger numProcessed = new AtomicInteger(0);
+		final AtomicBoolean loadFailed = new AtomicBoolean(false);
+		final ProgressTracker progress = new ProgressTracker(totalNum);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t=0; t<numThreads; t++) {
+			futures.add(exec.submit(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						int index;
+						while ((index = nextIndex.getAndIncrement()) < totalNum) {
+							ETAS_Catalog catalog;
+							try {
+								catalog = ETAS_CatalogIO.loadCatalogBinary(
+										channel, offsets[index], offsets[index+1], minMag);
+							} catch (Exception e) {
+								// partial catalog or other error, stop all threads but keep what we have so far
+								nextIndex.set(totalNum);
+								e.printStackTrace();
+								System.err.flush();
+								System.out.println("Error loading catalog "+index+", stopping");
+								loadFailed.set(true);
+								return;
+							}
+							callback.processCatalog(catalog, index);
+							progress.printProgress(numProcessed.getAndIncrement());
+						}
+					} catch (RuntimeException | Error e) {
+						// callback error, stop all threads
+						nextIndex.set(totalNum);
+						throw e;
+					}
+				}
+			}));
+		}
+		// wait on all threads before rethrowing any callback error so that none are still calling it
+		Throwable callbackError = null;
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (callbackError == null)
+					callbackError = e.getCause();
+			} catch (InterruptedException e) {
+				nextIndex.set(totalNum);
+				if (callbackError == null)
+					callbackError = e;
+			}
+		}
+		if (callbackError != null)
+			throw ExceptionUtils.asRuntimeException(callbackError);
+		if (loadFailed.get())
+			System.out.println("Error loading catalog, stopping with "+numProcessed.get()+" catalogs");
+		
+		return numProcessed.get();
+	}
+	
+	private static class ProgressTracker {
+		
+		private int totalNum;
+		private int modulus = 10;
+		private Stopwatch watch;
+		private DecimalFormat timeDF = new DecimalFormat("0.00");
+		private DecimalFormat percentDF = new DecimalFormat("0.0%");
+		
+		public ProgressTracker(int totalNum) {
+			this.totalNum = totalNum;
+			watch = Stopwatch.createStarted();
+		}
+		
+		public synchronized void printProgress(int numProcessed) {
 			if (numProcessed % modulus == 0) {
 				double fractProcessed = (double)numProcessed/(double)totalNum;
 				if (numProcessed > 0 && totalNum >= numProcessed
@@ -74,27 +286,7 @@ public class ETAS_CatalogIteration {
 				if (numProcessed == modulus*10)
 					modulus *= 10;
 			}
-			
-			ETAS_Catalog catalog;
-			try {
-				catalog = catalogsIterator.next();
-			} catch (Exception e) {
-				e.printStackTrace();
-				System.err.flush();
-				System.out.println("Partial catalog detected or other error, stopping with "+numProcessed+" catalogs");
-				break;
-			}
-			
-			callback.processCatalog(catalog, numProcessed);
-			
-			numProcessed++;
-			
-			if (numProcessed == numToProcess)
-				break;
 		}
-		watch.stop();
-		
-		return numProcessed;
 	}
 	
 	static class ETAS_ResultsDirIterator implements Iterator<ETAS_Catalog> {
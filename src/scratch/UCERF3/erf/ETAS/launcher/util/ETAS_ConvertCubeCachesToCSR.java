@@ -0,0 +1,59 @@
+package scratch.UCERF3.erf.ETAS.launcher.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import org.opensha.commons.util.ClassUtils;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.utils.CSRFloatArraysList;
+import scratch.UCERF3.utils.CSRIntArraysList;
+import scratch.UCERF3.utils.MatrixIO;
+
+/**
+ * Converts the sectInCubeCache and sectDistForCubeCache files in an ETAS cache directory to the CSR format, which
+ * is memory mapped (and shared between JVMs on the same node) when loaded by the launcher. Files are replaced in
+ * place, and files already in CSR format are skipped.
+ */
+public class ETAS_ConvertCubeCachesToCSR {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(ETAS_ConvertCubeCachesToCSR.class)
+						+" <cache-dir>");
+			System.exit(2);
+		}
+
+		File cacheDir = new File(args[0]);
+		Preconditions.checkState(cacheDir.isDirectory(), "Cache directory doesn't exist: %s", cacheDir.getAbsolutePath());
+
+		File sectInCubeFile = new File(cacheDir, "sectInCubeCache");
+		Preconditions.checkState(sectInCubeFile.exists(), "cache file not found: %s", sectInCubeFile.getAbsolutePath());
+		List<int[]> sectInCubeList = MatrixIO.intArraysListFromFile(sectInCubeFile);
+		if (sectInCubeList instanceof CSRIntArraysList) {
+			System.out.println(sectInCubeFile.getName()+" is already in CSR format");
+		} else {
+			File tempFile = new File(cacheDir, sectInCubeFile.getName()+".tmp");
+			MatrixIO.intArraysListToCSRFile(sectInCubeList, tempFile);
+			Files.move(tempFile.toPath(), sectInCubeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			System.out.println("Converted "+sectInCubeFile.getName()+" ("+sectInCubeList.size()+" cubes)");
+		}
+
+		File sectDistFile = new File(cacheDir, "sectDistForCubeCache");
+		Preconditions.checkState(sectDistFile.exists(), "cache file not found: %s", sectDistFile.getAbsolutePath());
+		List<float[]> sectDistList = MatrixIO.floatArraysListFromFile(sectDistFile);
+		if (sectDistList instanceof CSRFloatArraysList) {
+			System.out.println(sectDistFile.getName()+" is already in CSR format");
+		} else {
+			File tempFile = new File(cacheDir, sectDistFile.getName()+".tmp");
+			MatrixIO.floatArraysListToCSRFile(sectDistList, tempFile);
+			Files.move(tempFile.toPath(), sectDistFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			System.out.println("Converted "+sectDistFile.getName()+" ("+sectDistList.size()+" cubes)");
+		}
+	}
+
+}
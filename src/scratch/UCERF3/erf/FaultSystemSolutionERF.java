@@ -9,7 +9,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.EventObject;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -59,6 +62,7 @@ import scratch.UCERF3.utils.LastEventData;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 
 /**
  * This class represents an ERF for a given FaultSystemSolution (FSS).  Each "rupture" in the FaultSystemSolution
@@ -151,6 +155,8 @@ public class FaultSystemSolutionERF extends AbstractNthRupERF {
 //	protected boolean bpt_AperiodicityChanged=true;
 	protected boolean magDepAperiodicityChanged=true;
 	protected boolean histOpenIntervalChanged=true;
+	// sections whose date of last event has been reset since the last update
+	private HashSet<Integer> sectsWithResetDateOfLast = new HashSet<Integer>();
 	
 
 	// moment-rate reduction to remove aftershocks from supra-seis ruptures
@@ -183,6 +189,7 @@ public class FaultSystemSolutionERF extends AbstractNthRupERF {
 	protected double[] longTermRateOfFltSysRupInERF;	// this holds the long-term rate of FSS rups as used by this ERF (e.g., small mags set to rate of zero); these rates include aftershocks	
 	
 	protected List<FaultRuptureSource> faultSourceList;
+	private int[] fltSysSourcesUpdated;					// indexes of the fault-system sources rebuilt in the last update
 	
 	ProbabilityModelsCalc probModelsCalc;
 	
@@ -275,7 +282,8 @@ public class FaultSystemSolutionERF extends AbstractNthRupERF {
 			}
 		}
 		// do this to make sure the probability will be updated even if nothing else changes
-		probModelChanged = true;
+		// (the ProbModelCalc objects were updated above, so they don't need to be rebuilt)
+		sectsWithResetDateOfLast.addAll(sectIndexList);
 	}
 	
 	
@@ -298,7 +306,8 @@ public class FaultSystemSolutionERF extends AbstractNthRupERF {
 			}
 		}
 		// do this to make sure the probability will be updated even if nothing else changes
-		probModelChanged = true;
+		// (the ProbModelCalc objects were updated above, so they don't need to be rebuilt)
+		sectsWithResetDateOfLast.add(sectIndex);
 	}
 
 	
@@ -420,7 +429,12 @@ public class FaultSystemSolutionERF extends AbstractNthRupERF {
 		}
 		
 		// update prob model calculator if needed
-		if (faultSysSolutionChanged || magDepAperiodicityChanged || probModelChanged || probModelsCalc == null) {
+		boolean probModelsCalcMissing;
+		if (probModel == ProbabilityModelOptions.U3_PREF_BLEND)
+			probModelsCalcMissing = prefBlendProbModelsCalc == null;
+		else
+			probModelsCalcMissing = probModelsCalc == null;
+		if (faultSysSolutionChanged || magDepAperiodicityChanged || probModelChanged || probModelsCalcMissing) {
 			probModelsCalc = null;
 			prefBlendProbModelsCalc = null;
 			if(probModel != ProbabilityModelOptions.POISSON) {
@@ -472,7 +486,13 @@ public class FaultSystemSolutionERF extends AbstractNthRupERF {
 		if (faultSysSolutionChanged || faultGridSpacingChanged || aleatoryMagAreaStdDevChanged || applyAftershockFilterChanged || 
 				quadSurfacesChanged || probModelChanged || magDepAperiodicityChanged || timeSpanChangeFlag || histOpenIntervalChanged) {
 			makeAllFaultSystemSources();	// overrides all fault-based source objects; created even if not fault sources aren't wanted
+		} else if (!sectsWithResetDateOfLast.isEmpty()) {
+			// only dates of last event have changed, so only sources using those sections need to be rebuilt
+			makeFaultSystemSourcesForSections(sectsWithResetDateOfLast);
+		} else {
+			fltSysSourcesUpdated = new int[0];
 		}
+		sectsWithResetDateOfLast.clear();
 		
 		// update the following ERF rup-related fields: totNumRups, totNumRupsFromFaultSystem, nthRupIndicesForSource, srcIndexForNthRup[], rupIndexForNthRup[], fltSysRupIndexForNthRup[]
 		if(numOtherRupsChanged || numFaultRupsChanged) {
@@ -658,9 +678,60 @@ public class FaultSystemSolutionERF extends AbstractNthRupERF {
 	 */
 	private void makeAllFaultSystemSources() {
 		faultSourceList = Lists.newArrayList();
+		fltSysSourcesUpdated = new int[numNonZeroFaultSystemSources];
 		for (int i=0; i<numNonZeroFaultSystemSources; i++) {
 			faultSourceList.add(makeFaultSystemSource(i));
+			fltSysSourcesUpdated[i] = i;
+		}
+	}
+	
+	/**
+	 * This remakes only the fault-system sources that include any of the given sections (e.g., after
+	 * their dates of last event have been reset)
+	 * @param sectIndexes
+	 */
+	private void makeFaultSystemSourcesForSections(Collection<Integer> sectIndexes) {
+		FaultSystemRupSet rupSet = faultSysSolution.getRupSet();
+		HashSet<Integer> srcIndexes = new HashSet<Integer>();
+		for (int sectIndex : sectIndexes) {
+			for (int fltSysRupIndex : rupSet.getRupturesForSection(sectIndex)) {
+				int srcIndex = srcIndexForFltSysRup[fltSysRupIndex];
+				if (srcIndex >= 0)	// -1 if there is no source for this rupture
+					srcIndexes.add(srcIndex);
+			}
 		}
+		fltSysSourcesUpdated = Ints.toArray(srcIndexes);
+		Arrays.sort(fltSysSourcesUpdated);
+		for (int srcIndex : fltSysSourcesUpdated)
+			faultSourceList.set(srcIndex, makeFaultSystemSource(srcIndex));
+		if (D) System.out.println("Remade "+fltSysSourcesUpdated.length+" fault system sources for "
+				+sectIndexes.size()+" sections with reset dates of last event");
+	}
+	
+	/**
+	 * This returns the indexes of the fault-system sources that were rebuilt in the last call to updateForecast(),
+	 * which will be all fault-system sources unless only dates of last event were changed (in which case only
+	 * those sources that include the reset sections are rebuilt). The sources will have changed only if
+	 * their probabilities depend on the date of last event (i.e., not for Poisson models).
+	 * @return
+	 */
+	public int[] getFltSysSourcesUpdated() {
+		return fltSysSourcesUpdated;
+	}
+	
+	/**
+	 * This moves the timespan start time without flagging a time span change, so that the next call to
+	 * updateForecast() will only rebuild sources for sections with reset dates of last event (rather than all
+	 * fault-system sources). This is for simulations (e.g., ETAS) where the start time is advanced to the time of
+	 * each fault-system rupture: sources that are rebuilt are evaluated at the new start time, while all others
+	 * keep the probabilities from when they were last built. The duration is unchanged.
+	 * @param startTimeInMillis
+	 */
+	public void setStartTimeForResetSections(long startTimeInMillis) {
+		boolean prevTimeSpanChangeFlag = timeSpanChangeFlag;
+		timeSpan.setStartTimeInMillis(startTimeInMillis);
+		// keep any pending time span change from before (e.g., the duration was also changed)
+		timeSpanChangeFlag = prevTimeSpanChangeFlag;
 	}
 	
 	
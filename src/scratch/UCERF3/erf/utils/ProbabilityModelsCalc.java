@@ -4069,11 +4069,13 @@ public class ProbabilityModelsCalc {
 		for(int sectIndex : fltSysRupSet.getSectionsIndicesForRup(fltSysRupIndex)) {
 			dateOfLastForSect[sectIndex] = epoch;
 		}
+		sectionGainArray=null; // set this null so it gets updated
 	}
 
 	
 	public void setFltSectRupOccurranceTime(int sectIndex, Long epoch) {
 					dateOfLastForSect[sectIndex] = epoch;
+					sectionGainArray=null; // set this null so it gets updated
 			}
 
 	
@@ -412,9 +412,9 @@ public class CommandLineInversionRunner {
 			UCERF3InversionInputGenerator gen = new UCERF3InversionInputGenerator(rupSet, config,
 					paleoRateConstraints, aveSlipConstraints, null, paleoProbabilityModel);
 
-			// actually generate the inputs
+			// actually generate the inputs, encoding constraints in parallel with the annealing thread count
 			System.out.println("Building Inversion Inputs");
-			gen.generateInputs();
+			gen.generateInputsParallel(ThreadedSimulatedAnnealing.parseNumThreads(cmd.getOptionValue("t")), false);
 
 			// write out the rup set to a file so that we can clear it from memory
 			System.out.println("Writing RupSet");
@@ -428,7 +428,7 @@ public class CommandLineInversionRunner {
 			rupSet = null;
 			System.gc();
 
-			// this makes matrix multiplications more efficient
+			// this makes matrix multiplications more efficient (already done by the parallel encoder)
 			System.out.println("Column Compressing");
 			gen.columnCompress();
 
@@ -537,6 +537,7 @@ public class CommandLineInversionRunner {
 			// run the inversion
 			System.out.println("Starting Annealing");
 			tsa.iterate(criteria);
+			tsa.shutdown();
 			System.out.println("Annealing DONE");
 			
 			// add SA metadata to solution info string
@@ -0,0 +1,303 @@
+package scratch.UCERF3.simulatedAnnealing;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+import cern.colt.list.tdouble.DoubleArrayList;
+import cern.colt.list.tint.IntArrayList;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Immutable column compressed sparse matrix with a reduced memory footprint, intended for the A matrices used
+ * by simulated annealing. Values are stored with float precision, and row indexes can optionally be delta encoded
+ * within each column as unsigned 16-bit values (larger gaps are escaped and stored in full). This uses 6 bytes
+ * per nonzero value (8 without delta encoding) rather than the 12 bytes used by {@link SparseCCDoubleMatrix2D},
+ * so a single instance can be shared read only across more annealing threads with less memory bandwidth.
+ * <br><br>
+ * Values are rounded to float precision when the matrix is built.
+ */
+public class CompactCCDoubleMatrix2D extends ReadOnlyCCDoubleMatrix2D {
+
+	private static final long serialVersionUID = 1L;
+
+	// marks an escaped row in the delta encoded stream, followed by the full row index as two chars
+	private static final char ROW_ESCAPE = 0;
+
+	// index of the first value for each column, length is columns+1
+	private final int[] columnPointers;
+	private final float[] values;
+
+	// row indexes, either stored in full or delta encoded (the other will be null)
+	private final int[] rowIndexes;
+	private final char[] rowDeltas;
+	// index of the first encoded row delta for each column, length is columns+1
+	private final int[] rowDeltaPointers;
+
+	private final int maxColumnNonZeros;
+
+	/**
+	 * Builds a compact copy of the given matrix
+	 *
+	 * @param mat matrix to copy, ideally column compressed
+	 * @param deltaEncodeRows if true, row indexes will be delta encoded as 16-bit values
+	 * @return compact copy of the given matrix (or the matrix itself if already compact)
+	 */
+	public static CompactCCDoubleMatrix2D build(DoubleMatrix2D mat, boolean deltaEncodeRows) {
+		if (mat instanceof CompactCCDoubleMatrix2D
+				&& ((CompactCCDoubleMatrix2D)mat).isRowDeltaEncoded() == deltaEncodeRows)
+			return (CompactCCDoubleMatrix2D)mat;
+		if (mat instanceof SparseCCDoubleMatrix2D) {
+			Dcs dcs = ((SparseCCDoubleMatrix2D)mat).elements();
+			return new CompactCCDoubleMatrix2D(mat.rows(), mat.columns(), dcs.p, dcs.i, dcs.x, deltaEncodeRows);
+		}
+		IntArrayList rowList = new IntArrayList();
+		IntArrayList colList = new IntArrayList();
+		DoubleArrayList valList = new DoubleArrayList();
+		mat.getNonZeros(rowList, colList, valList);
+		int num = rowList.size();
+		int[] rows = new int[num];
+		int[] cols = new int[num];
+		double[] vals = new double[num];
+		for (int i=0; i<num; i++) {
+			rows[i] = rowList.get(i);
+			cols[i] = colList.get(i);
+			vals[i] = valList.get(i);
+		}
+		return build(mat.rows(), mat.columns(), rows, cols, vals, deltaEncodeRows);
+	}
+
+	/**
+	 * Builds a compact matrix from the given (row, column, value) triplets, in any order. Duplicate entries
+	 * are summed.
+	 *
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param rowIndexes row index for each value
+	 * @param columnIndexes column index for each value
+	 * @param values values
+	 * @param deltaEncodeRows if true, row indexes will be delta encoded as 16-bit values
+	 * @return compact matrix
+	 */
+	public static CompactCCDoubleMatrix2D build(int rows, int columns, int[] rowIndexes, int[] columnIndexes,
+			double[] values, boolean deltaEncodeRows) {
+		Preconditions.checkArgument(rowIndexes.length == columnIndexes.length && rowIndexes.length == values.length,
+				"row, column, and value arrays must be the same length");
+		// group by column
+		int[] columnPointers = new int[columns+1];
+		for (int col : columnIndexes) {
+			Preconditions.checkArgument(col >= 0 && col < columns, "bad column index: %s", col);
+			columnPointers[col+1]++;
+		}
+		for (int col=0; col<columns; col++)
+			columnPointers[col+1] += columnPointers[col];
+		int[] next = Arrays.copyOf(columnPointers, columns);
+		int[] groupedRows = new int[values.length];
+		double[] groupedValues = new double[values.length];
+		for (int i=0; i<values.length; i++) {
+			int k = next[columnIndexes[i]]++;
+			groupedRows[k] = rowIndexes[i];
+			groupedValues[k] = values[i];
+		}
+		return new CompactCCDoubleMatrix2D(rows, columns, columnPointers, groupedRows, groupedValues, deltaEncodeRows);
+	}
+
+	/**
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param groupedColumnPointers index of the first entry for each column in the grouped arrays (length columns+1)
+	 * @param groupedRows row indexes, grouped by column but not necessarily sorted within each column
+	 * @param groupedValues values, grouped by column
+	 * @param deltaEncodeRows if true, row indexes will be delta encoded as 16-bit values
+	 */
+	private CompactCCDoubleMatrix2D(int rows, int columns, int[] groupedColumnPointers, int[] groupedRows,
+			double[] groupedValues, boolean deltaEncodeRows) {
+		super(rows, columns);
+		int maxNum = groupedColumnPointers[columns];
+
+		int[] columnPointers = new int[columns+1];
+		float[] values = new float[maxNum];
+		int[] rowIndexes = deltaEncodeRows ? null : new int[maxNum];
+		char[] rowDeltas = deltaEncodeRows ? new char[maxNum] : null;
+		int[] rowDeltaPointers = deltaEncodeRows ? new int[columns+1] : null;
+
+		int count = 0;
+		int deltaCount = 0;
+		int maxColumnNonZeros = 0;
+		long[] sortBuffer = new long[0];
+		for (int col=0; col<columns; col++) {
+			int low = groupedColumnPointers[col];
+			int num = groupedColumnPointers[col+1] - low;
+			columnPointers[col] = count;
+			if (deltaEncodeRows)
+				rowDeltaPointers[col] = deltaCount;
+
+			// sort by row, keeping track of the original index in the lower bits
+			if (sortBuffer.length < num)
+				sortBuffer = new long[Integer.max(num, 2*sortBuffer.length)];
+			for (int i=0; i<num; i++) {
+				int row = groupedRows[low+i];
+				Preconditions.checkState(row >= 0 && row < rows, "bad row index: %s", row);
+				sortBuffer[i] = ((long)row << 32) | i;
+			}
+			Arrays.sort(sortBuffer, 0, num);
+
+			int colStart = count;
+			int prevRow = -1;
+			for (int i=0; i<num; i++) {
+				int row = (int)(sortBuffer[i] >>> 32);
+				double value = groupedValues[low + (int)sortBuffer[i]];
+				if (row == prevRow) {
+					// duplicate, sum them
+					values[count-1] = (float)(values[count-1] + value);
+					continue;
+				}
+				values[count] = (float)value;
+				if (deltaEncodeRows) {
+					if (deltaCount + 3 > rowDeltas.length)
+						rowDeltas = Arrays.copyOf(rowDeltas, Integer.max(deltaCount + 3, rowDeltas.length*3/2));
+					int delta = row - prevRow;
+					if (delta <= Character.MAX_VALUE) {
+						rowDeltas[deltaCount++] = (char)delta;
+					} else {
+						rowDeltas[deltaCount++] = ROW_ESCAPE;
+						rowDeltas[deltaCount++] = (char)(row >>> 16);
+						rowDeltas[deltaCount++] = (char)(row & 0xFFFF);
+					}
+				} else {
+					rowIndexes[count] = row;
+				}
+				prevRow = row;
+				count++;
+			}
+			maxColumnNonZeros = Integer.max(maxColumnNonZeros, count - colStart);
+		}
+		columnPointers[columns] = count;
+
+		this.columnPointers = columnPointers;
+		this.values = count < maxNum ? Arrays.copyOf(values, count) : values;
+		if (deltaEncodeRows) {
+			rowDeltaPointers[columns] = deltaCount;
+			this.rowIndexes = null;
+			this.rowDeltas = deltaCount < rowDeltas.length ? Arrays.copyOf(rowDeltas, deltaCount) : rowDeltas;
+			this.rowDeltaPointers = rowDeltaPointers;
+		} else {
+			this.rowIndexes = count < maxNum ? Arrays.copyOf(rowIndexes, count) : rowIndexes;
+			this.rowDeltas = null;
+			this.rowDeltaPointers = null;
+		}
+		this.maxColumnNonZeros = maxColumnNonZeros;
+	}
+
+	/**
+	 * @return true if row indexes are delta encoded
+	 */
+	public boolean isRowDeltaEncoded() {
+		return rowDeltas != null;
+	}
+
+	/**
+	 * @return number of stored entries
+	 */
+	public int getNumStored() {
+		return values.length;
+	}
+
+	/**
+	 * @return approximate memory used by the stored arrays, in bytes
+	 */
+	public long getStoredBytes() {
+		long bytes = 4l*columnPointers.length + 4l*values.length;
+		if (rowDeltas == null)
+			bytes += 4l*rowIndexes.length;
+		else
+			bytes += 2l*rowDeltas.length + 4l*rowDeltaPointers.length;
+		return bytes;
+	}
+
+	@Override
+	public int getMaxColumnNonZeros() {
+		return maxColumnNonZeros;
+	}
+
+	@Override
+	public int getColumnNonZeros(int column) {
+		return columnPointers[column+1] - columnPointers[column];
+	}
+
+	@Override
+	public int getColumn(int column, int[] rowBuffer, double[] valueBuffer) {
+		int low = columnPointers[column];
+		int num = columnPointers[column+1] - low;
+		if (rowDeltas == null) {
+			for (int i=0; i<num; i++) {
+				rowBuffer[i] = rowIndexes[low+i];
+				valueBuffer[i] = values[low+i];
+			}
+		} else {
+			int pos = rowDeltaPointers[column];
+			int row = -1;
+			for (int i=0; i<num; i++) {
+				char delta = rowDeltas[pos++];
+				if (delta == ROW_ESCAPE) {
+					row = (rowDeltas[pos] << 16) | rowDeltas[pos+1];
+					pos += 2;
+				} else {
+					row += delta;
+				}
+				rowBuffer[i] = row;
+				valueBuffer[i] = values[low+i];
+			}
+		}
+		return num;
+	}
+
+	@Override
+	public double getQuick(int row, int column) {
+		int low = columnPointers[column];
+		int high = columnPointers[column+1];
+		if (rowDeltas == null) {
+			int index = Arrays.binarySearch(rowIndexes, low, high, row);
+			return index >= 0 ? values[index] : 0d;
+		}
+		int pos = rowDeltaPointers[column];
+		int curRow = -1;
+		for (int k=low; k<high; k++) {
+			char delta = rowDeltas[pos++];
+			if (delta == ROW_ESCAPE) {
+				curRow = (rowDeltas[pos] << 16) | rowDeltas[pos+1];
+				pos += 2;
+			} else {
+				curRow += delta;
+			}
+			if (curRow == row)
+				return values[k];
+			if (curRow > row)
+				break;
+		}
+		return 0d;
+	}
+
+	@Override
+	public float[] elements() {
+		return values;
+	}
+
+	@Override
+	public int cardinality() {
+		int num = 0;
+		for (float value : values)
+			if (value != 0f)
+				num++;
+		return num;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+": "+rows+" x "+columns+", "+values.length+" stored values"
+				+(isRowDeltaEncoded() ? " (delta encoded rows)" : "");
+	}
+
+}
@@ -1,5 +1,10 @@
 package scratch.UCERF3.simulatedAnnealing;
 
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
 /**
  * Class to keep track of the rows in the inversion A matrix and data vector which
  * below to a given constraint
@@ -42,5 +47,35 @@ public class ConstraintRange {
 	public boolean contains(int row, boolean inequality) {
 		return this.inequality == inequality && row >= startRow && row < endRow;
 	}
+	
+	/**
+	 * Compiles the given constraint ranges into a flat lookup table from row index to the index of the range
+	 * (in the given list) which contains that row, or -1 if no range contains that row. Only ranges which
+	 * match the given inequality flag are considered, and they must not overlap (each row can only be attributed
+	 * to a single range).
+	 * 
+	 * @param ranges list of constraint ranges
+	 * @param numRows number of rows in the A matrix (or A_ineq matrix if inequality is true)
+	 * @param inequality true to build the index for inequality constraints, false for equality
+	 * @return row to range index lookup table
+	 */
+	public static int[] buildRowToRangeIndex(List<ConstraintRange> ranges, int numRows, boolean inequality) {
+		int[] rowToRange = new int[numRows];
+		Arrays.fill(rowToRange, -1);
+		for (int j=0; j<ranges.size(); j++) {
+			ConstraintRange range = ranges.get(j);
+			if (range.inequality != inequality)
+				continue;
+			Preconditions.checkState(range.startRow >= 0 && range.endRow <= numRows,
+					"Constraint range %s is outside of matrix with %s rows", range, numRows);
+			for (int row=range.startRow; row<range.endRow; row++) {
+				if (rowToRange[row] >= 0)
+					throw new IllegalStateException("Constraint range "+range+" overlaps with "
+							+ranges.get(rowToRange[row])+" at row "+row);
+				rowToRange[row] = j;
+			}
+		}
+		return rowToRange;
+	}
 
 }
@@ -413,6 +413,7 @@ public class DistributedSimulatedAnnealing {
 			File outputFile = new File(cmd.getOptionValue("solution-file"));
 			
 			dsa.run();
+			dsa.annealer.shutdown();
 			
 			if (dsa.isMaster()) {
 				dsa.annealer.writeBestSolution(outputFile);
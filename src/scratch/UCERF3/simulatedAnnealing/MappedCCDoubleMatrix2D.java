@@ -0,0 +1,123 @@
+package scratch.UCERF3.simulatedAnnealing;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.utils.MatrixIO;
+
+/**
+ * Read only column compressed sparse matrix which is backed directly by (typically memory mapped) buffers
+ * rather than Java arrays, such that a matrix saved with {@link MatrixIO#saveSparseCSC} can be used by the annealer
+ * without any parsing. The operating system page cache is shared, so multiple processes on the same node
+ * annealing the same inputs only hold one copy in memory.
+ * <br><br>
+ * Row index and value buffers are split into chunks of 2^chunkShift entries as individual mapped buffers
+ * are limited to 2 GB. Only absolute buffer reads are used, so instances are safe to use from multiple
+ * threads.
+ *
+ * @see MatrixIO#mapSparseCSC(java.io.File)
+ */
+public class MappedCCDoubleMatrix2D extends ReadOnlyCCDoubleMatrix2D {
+
+	private static final long serialVersionUID = 1L;
+
+	// index of the first value for each column, length is columns+1
+	private final LongBuffer columnPointers;
+	private final IntBuffer[] rowChunks;
+	private final DoubleBuffer[] valueChunks;
+	private final int chunkShift;
+	private final long chunkMask;
+
+	private final int maxColumnNonZeros;
+
+	/**
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param columnPointers index of the first value for each column (and the total number of values at
+	 * index columns)
+	 * @param rowChunks row indexes, increasing within each column, in chunks of 2^chunkShift
+	 * @param valueChunks values, in chunks of 2^chunkShift
+	 * @param chunkShift
+	 */
+	public MappedCCDoubleMatrix2D(int rows, int columns, LongBuffer columnPointers, IntBuffer[] rowChunks,
+			DoubleBuffer[] valueChunks, int chunkShift) {
+		super(rows, columns);
+		Preconditions.checkArgument(columnPointers.limit() == columns+1, "column pointers are the wrong size");
+		Preconditions.checkArgument(rowChunks.length == valueChunks.length, "chunk counts differ");
+		this.columnPointers = columnPointers;
+		this.rowChunks = rowChunks;
+		this.valueChunks = valueChunks;
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1l << chunkShift) - 1l;
+
+		int maxColumnNonZeros = 0;
+		for (int col=0; col<columns; col++)
+			maxColumnNonZeros = Integer.max(maxColumnNonZeros, getColumnNonZeros(col));
+		this.maxColumnNonZeros = maxColumnNonZeros;
+	}
+
+	/**
+	 * @return number of stored entries
+	 */
+	public long getNumStored() {
+		return columnPointers.get(columns);
+	}
+
+	@Override
+	public int getMaxColumnNonZeros() {
+		return maxColumnNonZeros;
+	}
+
+	@Override
+	public int getColumnNonZeros(int column) {
+		return (int)(columnPointers.get(column+1) - columnPointers.get(column));
+	}
+
+	@Override
+	public int getColumn(int column, int[] rowBuffer, double[] valueBuffer) {
+		long low = columnPointers.get(column);
+		int num = (int)(columnPointers.get(column+1) - low);
+		for (int i=0; i<num; i++) {
+			long k = low + i;
+			int chunk = (int)(k >>> chunkShift);
+			int index = (int)(k & chunkMask);
+			rowBuffer[i] = rowChunks[chunk].get(index);
+			valueBuffer[i] = valueChunks[chunk].get(index);
+		}
+		return num;
+	}
+
+	@Override
+	public double getQuick(int row, int column) {
+		// binary search, rows are increasing within each column
+		long low = columnPointers.get(column);
+		long high = columnPointers.get(column+1) - 1;
+		while (low <= high) {
+			long mid = (low + high) >>> 1;
+			int chunk = (int)(mid >>> chunkShift);
+			int index = (int)(mid & chunkMask);
+			int midRow = rowChunks[chunk].get(index);
+			if (midRow < row)
+				low = mid + 1;
+			else if (midRow > row)
+				high = mid - 1;
+			else
+				return valueChunks[chunk].get(index);
+		}
+		return 0d;
+	}
+
+	@Override
+	public DoubleBuffer[] elements() {
+		return valueChunks;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+": "+rows+" x "+columns+", "+getNumStored()+" stored values";
+	}
+
+}
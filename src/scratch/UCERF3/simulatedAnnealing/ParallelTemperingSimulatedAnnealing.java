@@ -0,0 +1,615 @@
+package scratch.UCERF3.simulatedAnnealing;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.MissingOptionException;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang3.time.StopWatch;
+import org.opensha.commons.data.function.IntegerPDF_FunctionSampler;
+import org.opensha.commons.util.ClassUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Doubles;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import scratch.UCERF3.simulatedAnnealing.completion.CompletionCriteria;
+import scratch.UCERF3.simulatedAnnealing.completion.IterationCompletionCriteria;
+import scratch.UCERF3.simulatedAnnealing.params.CoolingScheduleType;
+import scratch.UCERF3.simulatedAnnealing.params.GenerationFunctionType;
+import scratch.UCERF3.simulatedAnnealing.params.NonnegativityConstraintType;
+
+/**
+ * Parallel tempering (replica exchange) simulated annealing. Each replica is a {@link SerialSimulatedAnnealing}
+ * instance which runs at a fixed temperature from a geometric ladder between the minimum and maximum
+ * temperatures, rather than following a cooling schedule. Replicas always keep their current state (rather
+ * than the best seen) so that they form proper Markov chains. After each exchange interval (the sub completion
+ * criteria), states are swapped between neighboring temperatures with the Metropolis exchange probability:
+ *
+ * P = min(1, exp((E_i - E_j)*(1/T_i - 1/T_j)))
+ *
+ * Even and odd neighbor pairs are attempted in alternating rounds. The best solution seen at the end of any round
+ * is kept separately and returned by the getBest* methods.
+ *
+ * The main method runs an inversion from the same inputs as {@link ThreadedSimulatedAnnealing} (individual matrix
+ * files or a zip file), see {@link #createOptions()}.
+ */
+public class ParallelTemperingSimulatedAnnealing implements SimulatedAnnealing {
+
+	private static final boolean D = true;
+
+	private static double T_MIN_DEFAULT = 1e-6;
+	private static double T_MAX_DEFAULT = 1e-2;
+
+	private List<SerialSimulatedAnnealing> replicas;
+	private double[] temperatures;
+	private int numThreads;
+
+	private CompletionCriteria exchangeCriteria;
+
+	private double[] Ebest =  { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+			Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+	private double[] xbest = null;
+	private double[] misfit = null;
+	private double[] misfit_ineq = null;
+
+	private long[] exchangeAttempts;
+	private long[] exchangeAccepts;
+
+	private Random r = new Random();
+
+	// thread pool, created when first needed and reused across calls to iterate. threads are daemons so that an
+	// un-shutdown pool doesn't keep the JVM alive
+	private ExecutorService exec;
+
+	/**
+	 *
+	 * @param A A matrix, likely an instance of SparseCCDoubleMatrix2D
+	 * @param d d array
+	 * @param initialState initial state
+	 * @param relativeSmoothnessWt relative weight for smoothness (entropy) constraint, or zero to disable
+	 * @param A_ineq A matrix for inequality constraints
+	 * @param d_ineq d array for inequality constraints
+	 * @param numReplicas number of replicas in the temperature ladder
+	 * @param minTemperature lowest temperature in the ladder
+	 * @param maxTemperature highest temperature in the ladder
+	 * @param numThreads number of threads used to run replicas
+	 * @param exchangeCriteria sub completion criteria, after which replica exchanges are attempted
+	 */
+	public ParallelTemperingSimulatedAnnealing(DoubleMatrix2D A, double[] d, double[] initialState,
+			double relativeSmoothnessWt, DoubleMatrix2D A_ineq,  double[] d_ineq, int numReplicas,
+			double minTemperature, double maxTemperature, int numThreads, CompletionCriteria exchangeCriteria) {
+		Preconditions.checkArgument(numReplicas > 1, "must have at least 2 replicas");
+		Preconditions.checkArgument(numThreads > 0, "numThreads must be > 0");
+		Preconditions.checkArgument(minTemperature > 0 && maxTemperature > minTemperature,
+				"temperatures must be > 0 and maxTemperature must be > minTemperature");
+		Preconditions.checkNotNull(exchangeCriteria, "exchangeCriteria cannot be null");
+
+		this.numThreads = numThreads;
+		this.exchangeCriteria = exchangeCriteria;
+
+		temperatures = buildGeometricLadder(numReplicas, minTemperature, maxTemperature);
+
+		replicas = new ArrayList<>();
+		for (int i=0; i<numReplicas; i++) {
+			SerialSimulatedAnnealing sa = new SerialSimulatedAnnealing(
+					A, d, initialState, relativeSmoothnessWt, A_ineq, d_ineq);
+			sa.setFixedTemperature(temperatures[i]);
+			sa.setKeepCurrentAsBest(true);
+			replicas.add(sa);
+		}
+
+		exchangeAttempts = new long[numReplicas-1];
+		exchangeAccepts = new long[numReplicas-1];
+
+		updateBest();
+	}
+
+	/**
+	 * @return array of temperatures, evenly spaced in log space from min to max (inclusive)
+	 */
+	static double[] buildGeometricLadder(int num, double min, double max) {
+		double[] temps = new double[num];
+		double ratio = Math.pow(max/min, 1d/(num-1));
+		for (int i=0; i<num; i++)
+			temps[i] = min*Math.pow(ratio, i);
+		// make sure that we hit the max exactly
+		temps[num-1] = max;
+		return temps;
+	}
+
+	/**
+	 * Sets the random number generator used for replica exchanges - helpful for reproducing results
+	 * for testing purposes
+	 * @param r
+	 */
+	public void setRandom(Random r) {
+		this.r = r;
+	}
+
+	public double[] getTemperatures() {
+		return temperatures;
+	}
+
+	public int getNumReplicas() {
+		return replicas.size();
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public CompletionCriteria getExchangeCriteria() {
+		return exchangeCriteria;
+	}
+
+	public void setExchangeCriteria(CompletionCriteria exchangeCriteria) {
+		this.exchangeCriteria = exchangeCriteria;
+	}
+
+	/**
+	 * @return number of exchange attempts between each replica i and i+1
+	 */
+	public long[] getExchangeAttempts() {
+		return exchangeAttempts;
+	}
+
+	/**
+	 * @return number of accepted exchanges between each replica i and i+1
+	 */
+	public long[] getExchangeAccepts() {
+		return exchangeAccepts;
+	}
+
+	public void setConstraintRanges(List<ConstraintRange> constraintRanges) {
+		for (SerialSimulatedAnnealing sa : replicas)
+			sa.setConstraintRanges(constraintRanges);
+	}
+
+	@Override
+	public void setCalculationParams(CoolingScheduleType coolingFunc,
+			NonnegativityConstraintType nonnegativeityConstraintAlgorithm,
+			GenerationFunctionType perturbationFunc) {
+		for (SerialSimulatedAnnealing sa : replicas)
+			sa.setCalculationParams(coolingFunc, nonnegativeityConstraintAlgorithm, perturbationFunc);
+	}
+
+	@Override
+	public CoolingScheduleType getCoolingFunc() {
+		return replicas.get(0).getCoolingFunc();
+	}
+
+	@Override
+	public void setCoolingFunc(CoolingScheduleType coolingFunc) {
+		// temperatures are fixed, but keep this consistent in case they are reset
+		for (SerialSimulatedAnnealing sa : replicas)
+			sa.setCoolingFunc(coolingFunc);
+	}
+
+	@Override
+	public NonnegativityConstraintType getNonnegativeityConstraintAlgorithm() {
+		return replicas.get(0).getNonnegativeityConstraintAlgorithm();
+	}
+
+	@Override
+	public void setNonnegativeityConstraintAlgorithm(
+			NonnegativityConstraintType nonnegativeityConstraintAlgorithm) {
+		for (SerialSimulatedAnnealing sa : replicas)
+			sa.setNonnegativeityConstraintAlgorithm(nonnegativeityConstraintAlgorithm);
+	}
+
+	@Override
+	public GenerationFunctionType getPerturbationFunc() {
+		return replicas.get(0).getPerturbationFunc();
+	}
+
+	@Override
+	public void setPerturbationFunc(GenerationFunctionType perturbationFunc) {
+		for (SerialSimulatedAnnealing sa : replicas)
+			sa.setPerturbationFunc(perturbationFunc);
+	}
+
+	@Override
+	public void setVariablePerturbationBasis(double[] variablePerturbBasis) {
+		for (SerialSimulatedAnnealing sa : replicas)
+			sa.setVariablePerturbationBasis(variablePerturbBasis);
+	}
+
+	@Override
+	public void setRuptureSampler(IntegerPDF_FunctionSampler rupSampler) {
+		for (SerialSimulatedAnnealing sa : replicas)
+			sa.setRuptureSampler(rupSampler);
+	}
+
+	@Override
+	public double[] getBestSolution() {
+		return xbest;
+	}
+
+	@Override
+	public double[] getBestEnergy() {
+		return Ebest;
+	}
+
+	@Override
+	public double[] getBestMisfit() {
+		return misfit;
+	}
+
+	@Override
+	public double[] getBestInequalityMisfit() {
+		return misfit_ineq;
+	}
+
+	@Override
+	public void setResults(double[] Ebest, double[] xbest) {
+		setResults(Ebest, xbest, null, null);
+	}
+
+	@Override
+	public void setResults(double[] Ebest, double[] xbest, double[] misfit, double[] misfit_ineq) {
+		this.Ebest = Ebest;
+		this.xbest = xbest;
+		this.misfit = misfit;
+		this.misfit_ineq = misfit_ineq;
+		for (SerialSimulatedAnnealing sa : replicas)
+			sa.setResults(Ebest, xbest, misfit, misfit_ineq);
+	}
+
+	/**
+	 * Keeps a copy of the lowest energy replica state if it is better than the best seen so far
+	 * @return index of the replica with the lowest energy
+	 */
+	private int updateBest() {
+		int bestIndex = -1;
+		double bestE = Double.POSITIVE_INFINITY;
+		for (int i=0; i<replicas.size(); i++) {
+			double E = replicas.get(i).getBestEnergy()[0];
+			if (E < bestE) {
+				bestE = E;
+				bestIndex = i;
+			}
+		}
+		if (bestIndex >= 0 && bestE < Ebest[0]) {
+			// replicas modify their state arrays in place, so we need to store copies
+			SerialSimulatedAnnealing sa = replicas.get(bestIndex);
+			Ebest = copy(sa.getBestEnergy());
+			xbest = copy(sa.getBestSolution());
+			misfit = copy(sa.getBestMisfit());
+			misfit_ineq = copy(sa.getBestInequalityMisfit());
+		}
+		return bestIndex;
+	}
+
+	private static double[] copy(double[] array) {
+		if (array == null)
+			return null;
+		return Arrays.copyOf(array, array.length);
+	}
+
+	/**
+	 * Attempts Metropolis exchanges between neighboring replicas, starting with the given offset (0 for even
+	 * pairs, 1 for odd pairs).
+	 * @param offset
+	 * @return number of accepted exchanges
+	 */
+	private int attemptExchanges(int offset) {
+		int accepted = 0;
+		for (int i=offset; i+1<replicas.size(); i+=2) {
+			SerialSimulatedAnnealing sa1 = replicas.get(i);
+			SerialSimulatedAnnealing sa2 = replicas.get(i+1);
+			double[] E1 = sa1.getBestEnergy();
+			double[] E2 = sa2.getBestEnergy();
+			double delta = (E1[0] - E2[0])*(1d/temperatures[i] - 1d/temperatures[i+1]);
+			exchangeAttempts[i]++;
+			if (delta >= 0 || Math.exp(delta) > r.nextDouble()) {
+				// swap states. setResults copies the given arrays, so these references remain valid
+				double[] x1 = sa1.getBestSolution();
+				double[] misfit1 = sa1.getBestMisfit();
+				double[] misfit_ineq1 = sa1.getBestInequalityMisfit();
+				sa1.setResults(E2, sa2.getBestSolution(), sa2.getBestMisfit(), sa2.getBestInequalityMisfit());
+				sa2.setResults(E1, x1, misfit1, misfit_ineq1);
+				exchangeAccepts[i]++;
+				accepted++;
+			}
+		}
+		return accepted;
+	}
+
+	private class ReplicaCallable implements Callable<long[]> {
+		private SerialSimulatedAnnealing sa;
+		private long startIter;
+		private long startPerturbs;
+
+		public ReplicaCallable(SerialSimulatedAnnealing sa, long startIter, long startPerturbs) {
+			this.sa = sa;
+			this.startIter = startIter;
+			this.startPerturbs = startPerturbs;
+		}
+
+		@Override
+		public long[] call() throws Exception {
+			return sa.iterate(startIter, startPerturbs,
+					ThreadedSimulatedAnnealing.getForStartIter(startIter, exchangeCriteria));
+		}
+	}
+
+	@Override
+	public long iterate(long numIterations) {
+		return iterate(0l, 0l, new IterationCompletionCriteria(numIterations))[0];
+	}
+
+	@Override
+	public long iterate(CompletionCriteria completion) {
+		return iterate(0l, 0l, completion)[0];
+	}
+
+	@Override
+	public long[] iterate(long startIter, long startPerturbs, CompletionCriteria criteria) {
+		if (D) System.out.println("Parallel Tempering Simulated Annealing starting with "+replicas.size()
+				+" replicas on "+numThreads+" threads, temperatures: "+Doubles.join(", ", temperatures));
+
+		StopWatch watch = new StopWatch();
+		watch.start();
+
+		int numReplicas = replicas.size();
+		// iterations and perturbations for each replica chain
+		long[] iters = new long[numReplicas];
+		long[] perturbs = new long[numReplicas];
+		Arrays.fill(iters, startIter);
+		Arrays.fill(perturbs, startPerturbs);
+		long iter = startIter;
+		long totPerturbs = startPerturbs;
+
+		int rounds = 0;
+		// persistent pool, threads are kept across rounds and calls
+		ExecutorService exec = getExecutor();
+		while (!criteria.isSatisfied(watch, iter, Ebest, totPerturbs)) {
+			List<Future<long[]>> futures = new ArrayList<>();
+			for (int i=0; i<numReplicas; i++)
+				futures.add(exec.submit(new ReplicaCallable(replicas.get(i), iters[i], perturbs[i])));
+
+			iter = 0l;
+			totPerturbs = 0l;
+			for (int i=0; i<numReplicas; i++) {
+				long[] ret;
+				try {
+					ret = futures.get(i).get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+				iters[i] = ret[0];
+				perturbs[i] = ret[1];
+				iter += ret[0] - startIter;
+				totPerturbs += ret[1] - startPerturbs;
+			}
+			// report the total number of iterations across all replicas
+			iter += startIter;
+			totPerturbs += startPerturbs;
+
+			updateBest();
+
+			int accepted = attemptExchanges(rounds % 2);
+
+			rounds++;
+
+			if (D) {
+				double secs = watch.getTime() / 1000d;
+				System.out.println("Parallel tempering round "+rounds+" DONE after "
+						+(float)secs+" seconds, "+iter+" total iterations, "+accepted+" exchanges.");
+				System.out.println("Best energy: "+Doubles.join(", ", Ebest));
+			}
+		}
+
+		watch.stop();
+
+		if (D) {
+			System.out.println("Parallel tempering completed.");
+			double runSecs = watch.getTime() / 1000d;
+			System.out.println("Done with Inversion after " + (float)runSecs + " seconds.");
+			System.out.println("Rounds: "+rounds);
+			System.out.println("Total Iterations: "+iter);
+			System.out.println("Total Perturbations: "+totPerturbs);
+			System.out.println("Best energy: "+Doubles.join(", ", Ebest));
+			for (int i=0; i<exchangeAttempts.length; i++) {
+				float rate = exchangeAttempts[i] == 0 ? 0f : (float)exchangeAccepts[i]/(float)exchangeAttempts[i];
+				System.out.println("\tExchange acceptance rate, T="+(float)temperatures[i]+" <=> T="
+						+(float)temperatures[i+1]+": "+rate);
+			}
+		}
+
+		long[] ret = { iter, totPerturbs };
+		return ret;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (exec == null) {
+			exec = Executors.newFixedThreadPool(Integer.min(numThreads, replicas.size()), new ThreadFactory() {
+
+				private ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = defaultFactory.newThread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return exec;
+	}
+
+	/**
+	 * Shuts down the thread pool used to run replicas. It will be recreated if iterate is called again.
+	 */
+	public synchronized void shutdown() {
+		if (exec != null) {
+			exec.shutdown();
+			exec = null;
+		}
+	}
+
+	public static Options createOptions() {
+		Options ops = SerialSimulatedAnnealing.createOptions();
+
+		Option exchangeOption = new Option("s", "sub-completion", true, "exchange interval, as a number of"
+				+ " iterations. Optionally, append 's' to specify in seconds or 'm' to specify in minutes instead"
+				+ " of iterations.");
+		exchangeOption.setRequired(true);
+		ops.addOption(exchangeOption);
+
+		Option numThreadsOption = new Option("t", "num-threads", true, "number of threads (percentage of available" +
+				" can also be specified, for example, '50%')");
+		numThreadsOption.setRequired(true);
+		ops.addOption(numThreadsOption);
+
+		Option replicasOption = new Option("replicas", "num-replicas", true, "number of parallel tempering replicas."
+				+ " Default: same as the number of threads");
+		replicasOption.setRequired(false);
+		ops.addOption(replicasOption);
+
+		Option minTempOption = new Option("tmin", "min-temperature", true, "lowest replica temperature. Default: "
+				+T_MIN_DEFAULT);
+		minTempOption.setRequired(false);
+		ops.addOption(minTempOption);
+
+		Option maxTempOption = new Option("tmax", "max-temperature", true, "highest replica temperature. Default: "
+				+T_MAX_DEFAULT);
+		maxTempOption.setRequired(false);
+		ops.addOption(maxTempOption);
+
+		Option smoothnessWeightOption = new Option("smoothness", "smoothness-weight", true,
+				"weight for the entropy constraint");
+		smoothnessWeightOption.setRequired(false);
+		ops.addOption(smoothnessWeightOption);
+
+		Option solutionFileOption = new Option("sol", "solution-file", true, "file to store solution");
+		solutionFileOption.setRequired(true);
+		ops.addOption(solutionFileOption);
+
+		Option initial = new Option("i", "initial-state-file", true, "initial state file" +
+				" (optional...default is all zeros)");
+		initial.setRequired(false);
+		ops.addOption(initial);
+
+		ThreadedSimulatedAnnealing.addCompletionOptions(ops);
+		ThreadedSimulatedAnnealing.addInputOptions(ops);
+
+		return ops;
+	}
+
+	public static ParallelTemperingSimulatedAnnealing parseOptions(CommandLine cmd,
+			DoubleMatrix2D A,
+			double[] d,
+			double[] initialState,
+			DoubleMatrix2D A_ineq,
+			double[] d_ineq,
+			List<ConstraintRange> constraintRanges) {
+		double relativeSmoothnessWt;
+		if (cmd.hasOption("smoothness"))
+			relativeSmoothnessWt = Double.parseDouble(cmd.getOptionValue("smoothness"));
+		else
+			relativeSmoothnessWt = 0;
+
+		if (initialState ==  null)
+			// if we still don't have an initial state, use all zeros
+			initialState = new double[A.columns()];
+
+		CompletionCriteria exchangeCriteria = ThreadedSimulatedAnnealing.parseSubCompletionCriteria(
+				cmd.getOptionValue("s"));
+
+		int numThreads = ThreadedSimulatedAnnealing.parseNumThreads(cmd.getOptionValue("t"));
+
+		int numReplicas = numThreads;
+		if (cmd.hasOption("replicas"))
+			numReplicas = Integer.parseInt(cmd.getOptionValue("replicas"));
+
+		double minTemp = T_MIN_DEFAULT;
+		if (cmd.hasOption("tmin"))
+			minTemp = Double.parseDouble(cmd.getOptionValue("tmin"));
+		double maxTemp = T_MAX_DEFAULT;
+		if (cmd.hasOption("tmax"))
+			maxTemp = Double.parseDouble(cmd.getOptionValue("tmax"));
+
+		ParallelTemperingSimulatedAnnealing ptsa = new ParallelTemperingSimulatedAnnealing(A, d, initialState,
+				relativeSmoothnessWt, A_ineq, d_ineq, numReplicas, minTemp, maxTemp, numThreads, exchangeCriteria);
+
+		for (SerialSimulatedAnnealing sa : ptsa.replicas) {
+			sa.setCalculationParamsFromOptions(cmd);
+			// these are required for proper replica exchange, make sure that they weren't overridden
+			sa.setKeepCurrentAsBest(true);
+		}
+
+		ptsa.setConstraintRanges(constraintRanges);
+
+		return ptsa;
+	}
+
+	public static void main(String[] args) {
+		Options options = createOptions();
+
+		CommandLineParser parser = new GnuParser();
+
+		try {
+			CommandLine cmd = parser.parse(options, args);
+
+			ThreadedSimulatedAnnealing.AnnealingInputs inputs = ThreadedSimulatedAnnealing.loadInputs(cmd);
+			ParallelTemperingSimulatedAnnealing ptsa = parseOptions(cmd, inputs.A, inputs.d, inputs.initialState,
+					inputs.A_ineq, inputs.d_ineq, inputs.constraintRanges);
+
+			File outputFile = new File(cmd.getOptionValue("solution-file"));
+
+			CompletionCriteria criteria = ThreadedSimulatedAnnealing.parseCompletionCriteria(cmd);
+
+			ptsa.iterate(criteria);
+			ptsa.shutdown();
+
+			long[] attempts = ptsa.getExchangeAttempts();
+			long[] accepts = ptsa.getExchangeAccepts();
+			for (int i=0; i<attempts.length; i++)
+				System.out.println("Exchange "+i+" <-> "+(i+1)+" (T="+(float)ptsa.temperatures[i]+", "
+						+(float)ptsa.temperatures[i+1]+"): "+accepts[i]+"/"+attempts[i]+" accepted");
+
+			ThreadedSimulatedAnnealing.writeSolution(ptsa.getBestSolution(), inputs.minimumRuptureRates, outputFile);
+
+			System.out.println("DONE...exiting.");
+			System.exit(0);
+		} catch (MissingOptionException e) {
+			System.err.println(e.getMessage());
+			printHelp(options);
+		} catch (ParseException e) {
+			System.err.println("Error parsing command line arguments:");
+			e.printStackTrace();
+			printHelp(options);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	private static void printHelp(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(
+				ClassUtils.getClassNameWithoutPackage(ParallelTemperingSimulatedAnnealing.class),
+				options, true );
+		System.exit(2);
+	}
+
+}
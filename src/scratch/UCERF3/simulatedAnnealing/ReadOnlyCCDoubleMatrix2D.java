@@ -0,0 +1,185 @@
+package scratch.UCERF3.simulatedAnnealing;
+
+import com.google.common.base.Preconditions;
+
+import cern.colt.function.tdouble.IntIntDoubleFunction;
+import cern.colt.list.tdouble.DoubleArrayList;
+import cern.colt.list.tint.IntArrayList;
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix1D;
+
+/**
+ * Abstract read only column compressed sparse matrix whose columns are accessed by decoding them into
+ * buffers. Subclasses only need to implement column decoding (and {@link #getQuick(int, int)} and
+ * {@link #elements()}); multiplication and nonzero iteration are implemented here on top of that. These
+ * matrices are supported directly by {@link SerialSimulatedAnnealing}.
+ * <br><br>
+ * All methods which would modify the matrix throw an {@link UnsupportedOperationException}.
+ */
+public abstract class ReadOnlyCCDoubleMatrix2D extends DoubleMatrix2D {
+
+	private static final long serialVersionUID = 1L;
+
+	protected ReadOnlyCCDoubleMatrix2D(int rows, int columns) {
+		try {
+			setUp(rows, columns);
+		} catch (IllegalArgumentException e) {
+			// sparse matrices can have more than Integer.MAX_VALUE cells
+			if (!"matrix too large".equals(e.getMessage()))
+				throw e;
+		}
+	}
+
+	/**
+	 * @return the maximum number of stored entries in any single column
+	 */
+	public abstract int getMaxColumnNonZeros();
+
+	/**
+	 * @param column
+	 * @return the number of stored entries in the given column
+	 */
+	public abstract int getColumnNonZeros(int column);
+
+	/**
+	 * Decodes all stored entries of the given column into the given buffers, in increasing row order.
+	 * Must be safe to call concurrently from multiple threads.
+	 *
+	 * @param column
+	 * @param rowBuffer buffer for row indexes, must be at least of length getColumnNonZeros(column)
+	 * @param valueBuffer buffer for values, must be at least of length getColumnNonZeros(column)
+	 * @return the number of entries decoded
+	 */
+	public abstract int getColumn(int column, int[] rowBuffer, double[] valueBuffer);
+
+	@Override
+	public void setQuick(int row, int column, double value) {
+		throw new UnsupportedOperationException(getClass().getSimpleName()+" is read only");
+	}
+
+	@Override
+	public int cardinality() {
+		int[] rowBuffer = new int[getMaxColumnNonZeros()];
+		double[] valueBuffer = new double[rowBuffer.length];
+		int num = 0;
+		for (int col=0; col<columns; col++) {
+			int colNum = getColumn(col, rowBuffer, valueBuffer);
+			for (int i=0; i<colNum; i++)
+				if (valueBuffer[i] != 0d)
+					num++;
+		}
+		return num;
+	}
+
+	@Override
+	public void getNonZeros(IntArrayList rowList, IntArrayList columnList, DoubleArrayList valueList) {
+		rowList.clear();
+		columnList.clear();
+		valueList.clear();
+		int[] rowBuffer = new int[getMaxColumnNonZeros()];
+		double[] valueBuffer = new double[rowBuffer.length];
+		for (int col=0; col<columns; col++) {
+			int num = getColumn(col, rowBuffer, valueBuffer);
+			for (int i=0; i<num; i++) {
+				if (valueBuffer[i] != 0d) {
+					rowList.add(rowBuffer[i]);
+					columnList.add(col);
+					valueList.add(valueBuffer[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the given function to each nonzero value. As this matrix is read only, the function must
+	 * return the value it was passed.
+	 */
+	@Override
+	public DoubleMatrix2D forEachNonZero(IntIntDoubleFunction function) {
+		int[] rowBuffer = new int[getMaxColumnNonZeros()];
+		double[] valueBuffer = new double[rowBuffer.length];
+		for (int col=0; col<columns; col++) {
+			int num = getColumn(col, rowBuffer, valueBuffer);
+			for (int i=0; i<num; i++) {
+				if (valueBuffer[i] == 0d)
+					continue;
+				double ret = function.apply(rowBuffer[i], col, valueBuffer[i]);
+				if (ret != valueBuffer[i])
+					throw new UnsupportedOperationException(getClass().getSimpleName()+" is read only");
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public DoubleMatrix1D zMult(DoubleMatrix1D y, DoubleMatrix1D z) {
+		return zMult(y, z, 1d, 0d, false);
+	}
+
+	@Override
+	public DoubleMatrix1D zMult(DoubleMatrix1D y, DoubleMatrix1D z, double alpha, double beta,
+			boolean transposeA) {
+		int rowsA = transposeA ? columns : rows;
+		int columnsA = transposeA ? rows : columns;
+		if (z == null)
+			z = new DenseDoubleMatrix1D(rowsA);
+		Preconditions.checkArgument(y.size() == columnsA && z.size() == rowsA,
+				"Incompatible args: %sx%s, %s, %s", rows, columns, y.size(), z.size());
+
+		int[] rowBuffer = new int[getMaxColumnNonZeros()];
+		double[] valueBuffer = new double[rowBuffer.length];
+		double[] result = new double[rowsA];
+		for (int col=0; col<columns; col++) {
+			if (transposeA) {
+				int num = getColumn(col, rowBuffer, valueBuffer);
+				double sum = 0d;
+				for (int i=0; i<num; i++)
+					sum += valueBuffer[i] * y.getQuick(rowBuffer[i]);
+				result[col] = sum;
+			} else {
+				double yVal = y.getQuick(col);
+				if (yVal == 0d)
+					continue;
+				int num = getColumn(col, rowBuffer, valueBuffer);
+				for (int i=0; i<num; i++)
+					result[rowBuffer[i]] += valueBuffer[i] * yVal;
+			}
+		}
+		for (int i=0; i<rowsA; i++) {
+			if (beta == 0d)
+				z.setQuick(i, alpha*result[i]);
+			else
+				z.setQuick(i, alpha*result[i] + beta*z.getQuick(i));
+		}
+		return z;
+	}
+
+	@Override
+	public DoubleMatrix2D like(int rows, int columns) {
+		return new SparseCCDoubleMatrix2D(rows, columns);
+	}
+
+	@Override
+	public DoubleMatrix1D like1D(int size) {
+		return new SparseDoubleMatrix1D(size);
+	}
+
+	@Override
+	protected DoubleMatrix1D like1D(int size, int zero, int stride) {
+		throw new UnsupportedOperationException("Not supported by "+getClass().getSimpleName());
+	}
+
+	@Override
+	public DoubleMatrix1D vectorize() {
+		throw new UnsupportedOperationException("Not supported by "+getClass().getSimpleName());
+	}
+
+	@Override
+	protected DoubleMatrix2D viewSelectionLike(int[] rowOffsets, int[] columnOffsets) {
+		throw new UnsupportedOperationException("Not supported by "+getClass().getSimpleName());
+	}
+
+}
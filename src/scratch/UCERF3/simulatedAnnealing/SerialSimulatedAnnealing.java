@@ -1,5 +1,7 @@
 package scratch.UCERF3.simulatedAnnealing;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
@@ -65,9 +67,48 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 	
 	private boolean keepCurrentAsBest = false;
 	
+	// if not NaN, this temperature is used for every iteration instead of the cooling schedule
+	private double fixedTemperature = Double.NaN;
+	
+	/**
+	 * If true, energies are updated from the rows touched by each perturbation (plus the single changed
+	 * entropy term) rather than recomputed over every row. This is disabled by default, in which case
+	 * the original full energy calculation is used and results are reproduced exactly.
+	 */
+	private boolean incrementalEnergy = false;
+	private static long INCREMENTAL_RECOMPUTE_DEFAULT = 100000;
+	/**
+	 * Number of iterations between full energy recalculations when in incremental mode, to correct for
+	 * accumulated floating point drift in the running sums
+	 */
+	private long incrementalRecomputeInterval = INCREMENTAL_RECOMPUTE_DEFAULT;
+	// running entropy sums for the current and candidate models, only used in incremental mode
+	private double curTotalEntropy;
+	private double candidateTotalEntropy;
+	
+	/**
+	 * Number of proposals per batch in batched sweep mode, or 1 to disable (default). See
+	 * {@link #setBatchSize(int)}.
+	 */
+	private int batchSize = 1;
+	// maximum number of columns examined when building a batch, as a multiple of the batch size
+	private static final int BATCH_SCAN_FACTOR = 4;
+	/*
+	 * current batch: columns, perturbations, and the change in equality/inequality energy (total and for each
+	 * constraint range) that each perturbation would cause, relative to the misfit when the batch was built
+	 */
+	private int[] batchCols;
+	private double[] batchPerturbations, batchEqDeltas, batchIneqDeltas, batchRangeDeltas;
+	private int batchCount, batchPos;
+	// rows and columns claimed by the current batch have a stamp equal to batchStamp
+	private int[] rowStamps, rowStampsIneq, colStamps;
+	private int batchStamp;
+	
 	private double[] variablePerturbBasis;
 	
 	private DoubleMatrix2D A, A_ineq;
+	// direct column access for column compressed A matrices, null if not column compressed
+	private ColumnEntries colA, colA_ineq;
 	private double[] d, d_ineq;
 	private double relativeSmoothnessWt;
 	private boolean hasInequalityConstraint;
@@ -76,12 +117,27 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 	private int nRow;
 	
 	private double[] xbest;  // best model seen so far
-	private double[] perturb; // perturbation to current model
 	private double[] misfit_best, misfit_ineq_best; // misfit between data and synthetics
 	
+	/*
+	 * working buffers which are reused across calls to iterate so that the inner loop never allocates
+	 */
+	private double[] x_cur; // current model
+	private double[] misfit_cur, misfit_ineq_cur; // misfits of the current/candidate model, updated in place
+	private double[] misfit_undo, misfit_ineq_undo; // previous values of rows modified by the candidate
+	private double[] E_cur, E_cand; // energies of the current and candidate models
+	// entries modified since the best model was last stored
+	private DirtyTracker x_dirty, misfit_dirty, misfit_ineq_dirty;
+	
+	// allocation tracking
+	private long allocatedBytes = 0l;
+	private long allocationTrackedIters = 0l;
+	
 	private double[] Ebest; // [total, from A, from entropy, from A_ineq]
 
 	private List<ConstraintRange> constraintRanges;
+	// lookup tables from row to the index of the constraint range containing it (or -1)
+	private int[] rowToRange, rowToRangeIneq;
 	
 	private Random r = new Random();
 
@@ -132,10 +188,11 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 		
 		this.A = A;
 		this.d = d;
+		colA = ColumnEntries.forMatrix(A);
+		colA_ineq = hasInequalityConstraint ? ColumnEntries.forMatrix(A_ineq) : null;
 		
 
 		xbest = Arrays.copyOf(initialState, nCol);  // best model seen so far
-		perturb = new double[nCol]; // perturbation to current model
 		
 		misfit_best = new double[nRow];
 		calculateMisfit(A, d, null, xbest, -1, Double.NaN, misfit_best);
@@ -250,6 +307,239 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 	
 	public void setConstraintRanges(List<ConstraintRange> constraintRanges) {
 		this.constraintRanges = constraintRanges;
+		if (constraintRanges == null) {
+			rowToRange = null;
+			rowToRangeIneq = null;
+		} else {
+			rowToRange = ConstraintRange.buildRowToRangeIndex(constraintRanges, nRow, false);
+			if (hasInequalityConstraint)
+				rowToRangeIneq = ConstraintRange.buildRowToRangeIndex(constraintRanges, d_ineq.length, true);
+			else
+				rowToRangeIneq = null;
+		}
+	}
+	
+	public boolean isKeepCurrentAsBest() {
+		return keepCurrentAsBest;
+	}
+	
+	/**
+	 * If true, the current model will always be kept as the best model instead of the best model seen.
+	 * @param keepCurrentAsBest
+	 */
+	public void setKeepCurrentAsBest(boolean keepCurrentAsBest) {
+		this.keepCurrentAsBest = keepCurrentAsBest;
+	}
+	
+	public double getFixedTemperature() {
+		return fixedTemperature;
+	}
+	
+	/**
+	 * Sets a fixed annealing temperature which will be used for every iteration, overriding the cooling
+	 * schedule. Set to Double.NaN to use the cooling schedule (default).
+	 * @param fixedTemperature
+	 */
+	public void setFixedTemperature(double fixedTemperature) {
+		Preconditions.checkArgument(Double.isNaN(fixedTemperature) || fixedTemperature > 0d,
+				"fixed temperature must be > 0");
+		this.fixedTemperature = fixedTemperature;
+	}
+	
+	public boolean isIncrementalEnergy() {
+		return incrementalEnergy;
+	}
+	
+	/**
+	 * Enables or disables incremental energy calculation. When enabled, each iteration only visits the
+	 * rows of the perturbed column rather than every row of A and A_ineq. This requires that A (and A_ineq,
+	 * if present) are column compressed (instances of SparseCCDoubleMatrix2D or ReadOnlyCCDoubleMatrix2D).
+	 * @param incrementalEnergy
+	 */
+	public void setIncrementalEnergy(boolean incrementalEnergy) {
+		Preconditions.checkArgument(!incrementalEnergy || (colA != null
+				&& (!hasInequalityConstraint || colA_ineq != null)),
+				"Incremental energy calculation requires column compressed A matrices");
+		Preconditions.checkArgument(incrementalEnergy || batchSize == 1,
+				"Batched sweep mode requires incremental energy calculation");
+		this.incrementalEnergy = incrementalEnergy;
+	}
+	
+	public long getIncrementalRecomputeInterval() {
+		return incrementalRecomputeInterval;
+	}
+	
+	/**
+	 * Sets the number of iterations between full energy recalculations in incremental mode
+	 * @param incrementalRecomputeInterval
+	 */
+	public void setIncrementalRecomputeInterval(long incrementalRecomputeInterval) {
+		Preconditions.checkArgument(incrementalRecomputeInterval > 0, "recompute interval must be > 0");
+		this.incrementalRecomputeInterval = incrementalRecomputeInterval;
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * Enables batched "Monte Carlo sweep" perturbation mode. Each batch is a set of up to batchSize distinct
+	 * columns with disjoint row support in both A and A_ineq, found by walking contiguous columns from a random
+	 * start (or by drawing from the rupture sampler, if set). The perturbation for every member is drawn and its
+	 * change in misfit energy is evaluated in a single pass over those column slices, without modifying the current
+	 * model. Because row supports are disjoint, accepting one member doesn't change the misfit rows of any other,
+	 * so each is then accepted or rejected independently in its own iteration (only the entropy term, which
+	 * doesn't depend on the misfit, is updated in between). Perturbation functions, nonnegativity constraints,
+	 * temperatures and completion criteria are applied per proposal as in the default mode.
+	 * <p>
+	 * Energies are always updated incrementally in this mode, so this also enables incremental energy calculation
+	 * and requires that A (and A_ineq, if present) are column compressed.
+	 * 
+	 * @param batchSize number of proposals per batch, or 1 to disable
+	 */
+	public void setBatchSize(int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batch size must be > 0");
+		if (batchSize > 1)
+			setIncrementalEnergy(true);
+		this.batchSize = batchSize;
+		batchCount = 0;
+		batchPos = 0;
+	}
+	
+	/**
+	 * Builds a new batch of proposals, the first of which is for the given iteration
+	 */
+	private void buildBatch(long iter, double[] x, double[] misfit, double[] misfit_ineq) {
+		batchCount = 0;
+		batchPos = 0;
+		if (batchStamp == Integer.MAX_VALUE) {
+			Arrays.fill(rowStamps, 0);
+			if (rowStampsIneq != null)
+				Arrays.fill(rowStampsIneq, 0);
+			Arrays.fill(colStamps, 0);
+			batchStamp = 0;
+		}
+		batchStamp++;
+		Arrays.fill(batchRangeDeltas, 0d);
+		int numRanges = batchRangeDeltas.length/batchSize;
+		
+		int col = rupSampler == null ? (int)(r.nextDouble() * (double)nCol) : -1;
+		int maxScan = BATCH_SCAN_FACTOR*batchSize;
+		for (int i=0; i<maxScan && batchCount<batchSize; i++) {
+			int candidate;
+			if (rupSampler == null) {
+				if (col == nCol)
+					break;
+				candidate = col++;
+			} else {
+				// draw each one from the sampler so that the sampling distribution is preserved
+				candidate = rupSampler.getRandomInt();
+			}
+			if (colStamps[candidate] == batchStamp || !isRowSupportFree(colA, candidate, rowStamps)
+					|| (hasInequalityConstraint && !isRowSupportFree(colA_ineq, candidate, rowStampsIneq)))
+				continue;
+			colStamps[candidate] = batchStamp;
+			
+			int b = batchCount++;
+			double perturbation = getConstrainedPerturbation(getTemperature(iter + b), candidate, x[candidate]);
+			batchCols[b] = candidate;
+			batchPerturbations[b] = perturbation;
+			batchEqDeltas[b] = claimAndEvaluate(colA, candidate, perturbation, misfit, rowStamps, rowToRange,
+					b*numRanges, false);
+			if (hasInequalityConstraint)
+				batchIneqDeltas[b] = claimAndEvaluate(colA_ineq, candidate, perturbation, misfit_ineq,
+						rowStampsIneq, rowToRangeIneq, b*numRanges, true);
+		}
+		// the first candidate is always free, so batchCount > 0
+	}
+	
+	private boolean isRowSupportFree(ColumnEntries entries, int col, int[] stamps) {
+		entries.load(col);
+		final int[] rowIndexesA = entries.rows;
+		for (int k = entries.low; k < entries.high; k++)
+			if (stamps[rowIndexesA[k]] == batchStamp)
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Claims the rows of the given column for the current batch and calculates the change in misfit energy that
+	 * the given perturbation would cause, without modifying the misfit. Changes for each constraint range are
+	 * added to the batch range deltas starting at rangeOffset.
+	 */
+	private double claimAndEvaluate(ColumnEntries entries, int col, double perturbation, double[] misfit,
+			int[] stamps, int[] rowToRange, int rangeOffset, boolean inequality) {
+		entries.load(col);
+		final int[] rowIndexesA = entries.rows;
+		final double[] valuesA = entries.values;
+		double delta = 0d;
+		for (int k = entries.low; k < entries.high; k++) {
+			int row = rowIndexesA[k];
+			stamps[row] = batchStamp;
+			double prev = misfit[row];
+			double cur = prev + valuesA[k] * perturbation;
+			double val;
+			if (inequality)
+				// only positive misfits contribute (Target MFD is an UPPER bound)
+				val = (cur > 0d ? cur*cur : 0d) - (prev > 0d ? prev*prev : 0d);
+			else
+				val = cur*cur - prev*prev;
+			if (rowToRange != null) {
+				int j = rowToRange[row];
+				if (j >= 0)
+					batchRangeDeltas[rangeOffset+j] += val;
+			}
+			delta += val;
+		}
+		return delta;
+	}
+	
+	/**
+	 * Accepts or rejects the next proposal of the current batch (building a new batch first if needed). If
+	 * accepted, the model, misfits and current energy are updated in place, as is the best model if applicable.
+	 * @return true if the proposal was accepted
+	 */
+	private boolean nextBatchProposal(long iter, double T, double[] x, double[] misfit, double[] misfit_ineq,
+			double[] E, double[] Enew) {
+		if (batchPos == batchCount)
+			buildBatch(iter, x, misfit, misfit_ineq);
+		int b = batchPos++;
+		int index = batchCols[b];
+		double perturbation = batchPerturbations[b];
+		double prevRate = x[index];
+		double newRate = prevRate + perturbation;
+		
+		// rows of this column weren't touched by any earlier proposals in this batch, so the deltas are still valid
+		System.arraycopy(E, 0, Enew, 0, E.length);
+		Enew[1] += batchEqDeltas[b];
+		Preconditions.checkState(!Double.isNaN(Enew[1]), "energy from equality constraints is NaN!");
+		if (relativeSmoothnessWt > 0.0) {
+			candidateTotalEntropy = curTotalEntropy - entropyTerm(prevRate) + entropyTerm(newRate);
+			Enew[2] = calcEntropyEnergy(candidateTotalEntropy);
+		}
+		if (hasInequalityConstraint) {
+			Enew[3] += batchIneqDeltas[b];
+			Preconditions.checkState(!Double.isNaN(Enew[3]), "energy from inequality constraints is NaN!");
+		}
+		int numRanges = E.length-4;
+		for (int j=0; j<numRanges; j++)
+			Enew[j+4] += batchRangeDeltas[b*numRanges+j];
+		Enew[0] = Enew[1] + Enew[2] + Enew[3];
+		Preconditions.checkState(!Double.isNaN(Enew[0]), "Enew is NaN!");
+		
+		if (getTransitionProbability(E[0], Enew[0], newRate, T) > r.nextDouble()) {
+			x[index] += perturbation;
+			applyPerturbation(A, colA, d, x, index, perturbation, misfit, misfit_undo);
+			if (hasInequalityConstraint)
+				applyPerturbation(A_ineq, colA_ineq, d_ineq, x, index, perturbation, misfit_ineq, misfit_ineq_undo);
+			System.arraycopy(Enew, 0, E, 0, E.length);
+			curTotalEntropy = candidateTotalEntropy;
+			markChanged(index);
+			if (E[0] < Ebest[0] || keepCurrentAsBest)
+				storeBest(x, misfit, misfit_ineq, E);
+			return true;
+		}
+		return false;
 	}
 	
 	private static void calculateMisfit(DoubleMatrix2D mat, double[] data, double[] prev_misfit,
@@ -280,22 +570,38 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 		}
 	}
 	
+	private int getEnergyLength() {
+		return constraintRanges == null ? 4 : 4+constraintRanges.size();
+	}
+	
 	protected double[] calculateEnergy(double[] solution, double[] misfit, double[] misfit_ineq) {
+		return calculateEnergy(solution, misfit, misfit_ineq, new double[getEnergyLength()]);
+	}
+	
+	/**
+	 * Calculates the energy of the given model, storing the results in the given buffer
+	 * @param solution
+	 * @param misfit
+	 * @param misfit_ineq
+	 * @param ret buffer which will be overwritten with the energies, must be at least of length getEnergyLength()
+	 * @return the ret buffer
+	 */
+	protected double[] calculateEnergy(double[] solution, double[] misfit, double[] misfit_ineq, double[] ret) {
 		
 		// Do forward problem for new perturbed model (calculate synthetics)
 		
 		double Eequality = 0;
-		double[] ret = constraintRanges == null ? new double[4] : new double[4+constraintRanges.size()];
+		Arrays.fill(ret, 0d);
 		for (int i = 0; i < nRow; i++) {
 			// NOTE: it is important that we loop over nRow and not the actual misfit array
 			// as it may be larger than nRow (for efficiency and fewer array copies)
 			
 			double val = Math.pow(misfit[i], 2);  // L2 norm of misfit vector
 			
-			if (constraintRanges != null) {
-				for (int j=0; j<constraintRanges.size(); j++)
-					if (constraintRanges.get(j).contains(i, false))
-						ret[j+4] += val;
+			if (rowToRange != null) {
+				int j = rowToRange[i];
+				if (j >= 0)
+					ret[j+4] += val;
 			}
 			
 			Eequality += val;
@@ -336,10 +642,10 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 					// This makes it an INEQUALITY constraint (Target MFD is an UPPER bound)
 					double val = Math.pow(misfit_ineq[i], 2);  // L2 norm of misfit vector
 					
-					if (constraintRanges != null) {
-						for (int j=0; j<constraintRanges.size(); j++)
-							if (constraintRanges.get(j).contains(i, true))
-								ret[j+4] += val;
+					if (rowToRangeIneq != null) {
+						int j = rowToRangeIneq[i];
+						if (j >= 0)
+							ret[j+4] += val;
 					}
 					
 					Einequality += val;
@@ -356,6 +662,364 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 		return ret;
 	}
 	
+	private static final double ENTROPY_CONSTANT = 500;
+	
+	private static double entropyTerm(double rate) {
+		if (rate > 0)
+			return -ENTROPY_CONSTANT*rate*Math.log(ENTROPY_CONSTANT*rate);
+		return 0d;
+	}
+	
+	private double calcTotalEntropy(double[] solution) {
+		double totalEntropy = 0;
+		for (int rup=0; rup<nCol; rup++)
+			totalEntropy += entropyTerm(solution[rup]);
+		return totalEntropy;
+	}
+	
+	private double calcEntropyEnergy(double totalEntropy) {
+		if (totalEntropy==0) {
+			System.out.println("ZERO ENTROPY!");
+			totalEntropy=0.0001;
+		}
+		if (totalEntropy<0) {
+			throw new IllegalStateException("NEGATIVE ENTROPY!");
+		}
+		double Eentropy = relativeSmoothnessWt * (1 / totalEntropy); // High entropy => low misfit
+		Preconditions.checkState(!Double.isNaN(Eentropy), "energy from entropy constraint is NaN!");
+		return Eentropy;
+	}
+	
+	/**
+	 * Calculates the energy of a model that differs from the previous model only in the given column by
+	 * adjusting the previous energies for the rows touched by that column. Only valid for column compressed
+	 * matrices. The candidate entropy sum is stored in candidateTotalEntropy, and should be copied to
+	 * curTotalEntropy if the model is kept.
+	 * 
+	 * @param prevE energies of the previous model
+	 * @param misfit misfit of the perturbed model
+	 * @param misfit_undo previous misfit values for each row in the perturbed column, in column order
+	 * @param misfit_ineq inequality misfit of the perturbed model
+	 * @param misfit_ineq_undo previous inequality misfit values for each row in the perturbed column, in column order
+	 * @param col the perturbed column
+	 * @param prevRate rate of the perturbed column before the perturbation
+	 * @param newRate rate of the perturbed column after the perturbation
+	 * @param ret buffer for the energies of the perturbed model, must be the same length as prevE
+	 * @return energies of the perturbed model (the ret buffer)
+	 */
+	protected double[] calculateEnergyIncremental(double[] prevE, double[] misfit, double[] misfit_undo,
+			double[] misfit_ineq, double[] misfit_ineq_undo, int col, double prevRate, double newRate,
+			double[] ret) {
+		System.arraycopy(prevE, 0, ret, 0, prevE.length);
+		boolean trackRanges = constraintRanges != null && ret.length == 4+constraintRanges.size();
+		
+		ColumnEntries entries = colA;
+		entries.load(col);
+		int[] rowIndexes = entries.rows;
+		int low = entries.low;
+		double dEquality = 0;
+		for (int k=low; k<entries.high; k++) {
+			int row = rowIndexes[k];
+			double prev = misfit_undo[k-low];
+			double val = misfit[row]*misfit[row] - prev*prev;
+			if (trackRanges) {
+				int j = rowToRange[row];
+				if (j >= 0)
+					ret[j+4] += val;
+			}
+			dEquality += val;
+		}
+		ret[1] += dEquality;
+		Preconditions.checkState(!Double.isNaN(ret[1]), "energy from equality constraints is NaN!");
+		
+		if (relativeSmoothnessWt > 0.0) {
+			candidateTotalEntropy = curTotalEntropy - entropyTerm(prevRate) + entropyTerm(newRate);
+			ret[2] = calcEntropyEnergy(candidateTotalEntropy);
+		}
+		
+		if (hasInequalityConstraint) {
+			entries = colA_ineq;
+			entries.load(col);
+			rowIndexes = entries.rows;
+			low = entries.low;
+			double dInequality = 0;
+			for (int k=low; k<entries.high; k++) {
+				int row = rowIndexes[k];
+				double prev = misfit_ineq_undo[k-low];
+				// only positive misfits contribute (Target MFD is an UPPER bound)
+				double newVal = misfit_ineq[row] > 0d ? misfit_ineq[row]*misfit_ineq[row] : 0d;
+				double prevVal = prev > 0d ? prev*prev : 0d;
+				double val = newVal - prevVal;
+				if (val == 0d)
+					continue;
+				if (trackRanges) {
+					int j = rowToRangeIneq[row];
+					if (j >= 0)
+						ret[j+4] += val;
+				}
+				dInequality += val;
+			}
+			ret[3] += dInequality;
+			Preconditions.checkState(!Double.isNaN(ret[3]), "energy from inequality constraints is NaN!");
+		}
+		
+		ret[0] = ret[1] + ret[2] + ret[3];
+		Preconditions.checkState(!Double.isNaN(ret[0]), "Enew is NaN!");
+		return ret;
+	}
+	
+	/**
+	 * Applies a perturbation of the given column to the misfit in place. The previous values of all modified
+	 * rows are stored in the undo buffer such that they can be exactly restored with
+	 * {@link #undoPerturbation(DoubleMatrix2D, ColumnEntries, int, double[], double[])}. For column compressed
+	 * matrices (non null entries), only rows in the perturbed column are modified and the undo buffer is in column
+	 * order. Otherwise, the full misfit is recalculated and the undo buffer holds a copy of the entire previous misfit.
+	 */
+	private static void applyPerturbation(DoubleMatrix2D mat, ColumnEntries entries, double[] data,
+			double[] solution, int col, double perturbation, double[] misfit, double[] undo) {
+		if (entries != null) {
+			entries.load(col);
+			final int[] rowIndexesA = entries.rows;
+			final double[] valuesA = entries.values;
+			
+			int low = entries.low;
+			for (int k = entries.high; --k >= low;) {
+				int row = rowIndexesA[k];
+				undo[k-low] = misfit[row];
+				misfit[row] += valuesA[k] * perturbation;
+			}
+		} else {
+			System.arraycopy(misfit, 0, undo, 0, mat.rows());
+			calculateMisfit(mat, data, null, solution, -1, Double.NaN, misfit);
+		}
+	}
+	
+	/**
+	 * Restores the misfit to the state before the last call to applyPerturbation
+	 */
+	private static void undoPerturbation(DoubleMatrix2D mat, ColumnEntries entries, int col, double[] misfit,
+			double[] undo) {
+		if (entries != null) {
+			entries.load(col);
+			final int[] rowIndexesA = entries.rows;
+			
+			// restore in the opposite order from which they were applied
+			int low = entries.low;
+			int high = entries.high;
+			for (int k = low; k < high; k++)
+				misfit[rowIndexesA[k]] = undo[k-low];
+		} else {
+			System.arraycopy(undo, 0, misfit, 0, mat.rows());
+		}
+	}
+	
+	private static void markDirtyRows(ColumnEntries entries, int col, DirtyTracker dirty) {
+		if (entries != null) {
+			entries.load(col);
+			final int[] rowIndexesA = entries.rows;
+			
+			for (int k = entries.low; k < entries.high; k++)
+				dirty.mark(rowIndexesA[k]);
+		} else {
+			dirty.markAll();
+		}
+	}
+	
+	private static int getUndoBufferSize(DoubleMatrix2D mat, ColumnEntries entries) {
+		if (entries != null)
+			return entries.maxNonZeros;
+		return mat.rows();
+	}
+	
+	/**
+	 * Direct access to the stored entries of a single column of a column compressed matrix. For
+	 * SparseCCDoubleMatrix2D, these are views into the underlying arrays. For ReadOnlyCCDoubleMatrix2D
+	 * implementations (e.g. compact or memory mapped matrices), the column is decoded into reusable buffers.
+	 * Entries are valid for indexes in [low, high) of the rows and values arrays, and stay valid until a
+	 * different column is loaded.
+	 */
+	private static class ColumnEntries {
+		private final ReadOnlyCCDoubleMatrix2D decoder;
+		private final int[] columnPointers;
+		private final int maxNonZeros;
+		
+		private int[] rows;
+		private double[] values;
+		private int low, high;
+		private int column = -1;
+		
+		/**
+		 * @param mat
+		 * @return column entries for the given matrix, or null if it isn't column compressed
+		 */
+		public static ColumnEntries forMatrix(DoubleMatrix2D mat) {
+			if (mat instanceof SparseCCDoubleMatrix2D || mat instanceof ReadOnlyCCDoubleMatrix2D)
+				return new ColumnEntries(mat);
+			return null;
+		}
+		
+		private ColumnEntries(DoubleMatrix2D mat) {
+			if (mat instanceof ReadOnlyCCDoubleMatrix2D) {
+				decoder = (ReadOnlyCCDoubleMatrix2D)mat;
+				columnPointers = null;
+				maxNonZeros = decoder.getMaxColumnNonZeros();
+				rows = new int[maxNonZeros];
+				values = new double[maxNonZeros];
+			} else {
+				decoder = null;
+				Dcs dcs = ((SparseCCDoubleMatrix2D)mat).elements();
+				columnPointers = dcs.p;
+				rows = dcs.i;
+				values = dcs.x;
+				int max = 0;
+				for (int col=0; col<mat.columns(); col++)
+					max = Integer.max(max, columnPointers[col+1] - columnPointers[col]);
+				maxNonZeros = max;
+			}
+		}
+		
+		public void load(int column) {
+			if (column == this.column)
+				return;
+			if (decoder == null) {
+				low = columnPointers[column];
+				high = columnPointers[column+1];
+			} else {
+				low = 0;
+				high = decoder.getColumn(column, rows, values);
+			}
+			this.column = column;
+		}
+	}
+	
+	/**
+	 * Keeps track of which entries of a working array have been modified since they were last copied to
+	 * a best array, so that only those entries need to be copied when a new best is found.
+	 */
+	private static class DirtyTracker {
+		private final boolean[] flags;
+		private final int[] list;
+		private int count;
+		private boolean all;
+		
+		public DirtyTracker(int size) {
+			flags = new boolean[size];
+			list = new int[size];
+		}
+		
+		public void mark(int index) {
+			if (!flags[index]) {
+				flags[index] = true;
+				list[count++] = index;
+			}
+		}
+		
+		public void markAll() {
+			all = true;
+		}
+		
+		/**
+		 * Copies all dirty entries from the source to the destination array, then clears
+		 */
+		public void copyDirty(double[] src, double[] dest) {
+			if (all) {
+				System.arraycopy(src, 0, dest, 0, flags.length);
+			} else {
+				for (int i=0; i<count; i++)
+					dest[list[i]] = src[list[i]];
+			}
+			clear();
+		}
+		
+		public void clear() {
+			for (int i=0; i<count; i++)
+				flags[list[i]] = false;
+			count = 0;
+			all = false;
+		}
+	}
+	
+	/**
+	 * Allocates working buffers if they haven't been allocated yet (or are the wrong size)
+	 */
+	private void initBuffers() {
+		int energyLen = getEnergyLength();
+		if (x_cur == null) {
+			x_cur = new double[nCol];
+			x_dirty = new DirtyTracker(nCol);
+			misfit_cur = new double[nRow];
+			misfit_undo = new double[getUndoBufferSize(A, colA)];
+			misfit_dirty = new DirtyTracker(nRow);
+			if (hasInequalityConstraint) {
+				misfit_ineq_cur = new double[d_ineq.length];
+				misfit_ineq_undo = new double[getUndoBufferSize(A_ineq, colA_ineq)];
+				misfit_ineq_dirty = new DirtyTracker(d_ineq.length);
+			}
+		}
+		if (E_cur == null || E_cur.length != energyLen) {
+			E_cur = new double[energyLen];
+			E_cand = new double[energyLen];
+		}
+		if (batchSize > 1) {
+			if (batchCols == null || batchCols.length != batchSize
+					|| batchRangeDeltas.length != batchSize*(energyLen-4)) {
+				batchCols = new int[batchSize];
+				batchPerturbations = new double[batchSize];
+				batchEqDeltas = new double[batchSize];
+				batchIneqDeltas = new double[batchSize];
+				batchRangeDeltas = new double[batchSize*(energyLen-4)];
+			}
+			if (colStamps == null) {
+				rowStamps = new int[nRow];
+				if (hasInequalityConstraint)
+					rowStampsIneq = new int[d_ineq.length];
+				colStamps = new int[nCol];
+			}
+		}
+		// any batch left over from a previous call was evaluated against a model which may have since changed
+		batchCount = 0;
+		batchPos = 0;
+		x_dirty.clear();
+		misfit_dirty.clear();
+		if (hasInequalityConstraint)
+			misfit_ineq_dirty.clear();
+	}
+	
+	private static long getThreadAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled())
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1l;
+	}
+	
+	/**
+	 * @return total number of bytes allocated by the annealing thread(s) during calls to iterate, or zero
+	 * if thread allocation tracking is not supported by this JVM
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+	
+	/**
+	 * @return total number of iterations for which allocations were tracked
+	 */
+	public long getAllocationTrackedIterations() {
+		return allocationTrackedIters;
+	}
+	
+	/**
+	 * @return average number of bytes allocated per iteration, including the fixed setup cost of each call to
+	 * iterate, or NaN if allocation tracking is not supported by this JVM
+	 */
+	public double getAllocatedBytesPerIteration() {
+		if (allocationTrackedIters == 0l)
+			return Double.NaN;
+		return (double)allocatedBytes/(double)allocationTrackedIters;
+	}
+	
 	@Override
 	public synchronized long iterate(long numIterations) {
 		return iterate(new IterationCompletionCriteria(numIterations));
@@ -370,6 +1034,7 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 	public synchronized long[] iterate(long startIter, long startPerturbs, CompletionCriteria criteria) {
 		StopWatch watch = new StopWatch();
 		watch.start();
+		long startAllocBytes = getThreadAllocatedBytes();
 		
 		if(D) System.out.println("Solving inverse problem with simulated annealing ... \n");
 		if(D) System.out.println("Cooling Function: " + coolingFunc.name());
@@ -377,62 +1042,59 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 		if(D) System.out.println("Nonnegativity Constraint: " + nonnegativityConstraintAlgorithm.name());
 		if(D) System.out.println("Completion Criteria: " + criteria);
 		
-		double[] Enew;
+		initBuffers();
+		
+		double[] Enew = E_cand;
 		double P;
 		long iter=startIter+1;
 		long perturbs = startPerturbs;
 		int index;
-		double[] x = Arrays.copyOf(xbest, xbest.length);
-		double[] E = Ebest;
+		double perturbation;
 		double T;
-		// this is where we store previous misfits
-		double[] misfit;
-		if (misfit_best == null)
-			misfit = null;
-		else
-			misfit = Arrays.copyOf(misfit_best, misfit_best.length);
-		// this is where we store new candidate misfits
-		double[] misfit_new1 = new double[nRow];
-		double[] misfit_new2 = new double[nRow];
-		double[] misfit_cur_purtub = misfit_new1;
+		
+		/*
+		 * The inner loop of this method is allocation free. The current model and misfits are updated in place,
+		 * and a rejected perturbation is undone by restoring the previous values of the modified misfit rows
+		 * from the undo buffers. The best model is stored in separate arrays which are only updated (for the
+		 * entries which have changed since the last best) when a new best is found.
+		 * 
+		 * Best arrays may have been handed out to callers, so start with private copies of them.
+		 */
+		double[] x = x_cur;
+		System.arraycopy(xbest, 0, x, 0, nCol);
+		xbest = Arrays.copyOf(xbest, nCol);
+		double[] misfit = misfit_cur;
+		if (misfit_best == null) {
+			calculateMisfit(A, d, null, x, -1, Double.NaN, misfit);
+			misfit_best = Arrays.copyOf(misfit, nRow);
+		} else {
+			System.arraycopy(misfit_best, 0, misfit, 0, nRow);
+			misfit_best = Arrays.copyOf(misfit_best, nRow);
+		}
 		double[] misfit_ineq = null;
-		double[] misfit_ineq_new1 = null;
-		double[] misfit_ineq_new2 = null;
-		double[] misfit_ineq_cur_purtub = null;
 		if (hasInequalityConstraint) {
-			if (misfit_ineq_best != null) {
-				misfit_ineq = Arrays.copyOf(misfit_ineq_best, misfit_ineq_best.length);
+			misfit_ineq = misfit_ineq_cur;
+			if (misfit_ineq_best == null) {
+				calculateMisfit(A_ineq, d_ineq, null, x, -1, Double.NaN, misfit_ineq);
+				misfit_ineq_best = Arrays.copyOf(misfit_ineq, d_ineq.length);
+			} else {
+				System.arraycopy(misfit_ineq_best, 0, misfit_ineq, 0, d_ineq.length);
+				misfit_ineq_best = Arrays.copyOf(misfit_ineq_best, d_ineq.length);
 			}
-			misfit_ineq_new1 = new double[A_ineq.rows()];
-			misfit_ineq_new2 = new double[A_ineq.rows()];
-			misfit_ineq_cur_purtub = misfit_ineq_new1;
 		}
+		Ebest = Arrays.copyOf(Ebest, E_cur.length);
+		double[] E = E_cur;
+		System.arraycopy(Ebest, 0, E, 0, E.length);
+		
+		if (incrementalEnergy)
+			// incremental updates need the full energy of the starting model
+			recomputeCurrentEnergy(x, misfit, misfit_ineq, E);
 
 		// we do iter-1 because iter here is 1-based, not 0-based
 		while (!criteria.isSatisfied(watch, iter-1, Ebest, perturbs)) {
 
 			// Find current simulated annealing "temperature" based on chosen cooling schedule
-//			double coolIter = (double)iter / coolingFuncSlowdown;
-			double coolIter = iter;
-			if (coolingFuncSlowdown != 1)
-				coolIter = ((double)iter - 1) / coolingFuncSlowdown + 1;
-			switch (coolingFunc) {
-			case CLASSICAL_SA:
-				T = 1/Math.log(coolIter + 1); // classical SA cooling schedule (Geman and Geman, 1984) (slow but ensures convergence)
-				break;
-			case FAST_SA:
-				T = 1 / coolIter;  // fast SA cooling schedule (Szu and Hartley, 1987) (recommended)
-				break;
-			case VERYFAST_SA:
-				T = Math.exp(-( coolIter - 1d)); // very fast SA cooling schedule (Ingber, 1989)  (= 0 to machine precision for high iteration #)
-				break;
-			case LINEAR:
-//				T = 1 - (coolIter / numIterations);
-				T = 1 - (coolIter / 100000);  // need to fix this -- for now just putting in numIterations by hand
-				break;
-			default:
-				throw new IllegalStateException("It's impossible to get here, as long as all cooling schedule enum cases are stated above!");
-			}
+			T = getTemperature(iter);
 
 			if (D) {  // print out convergence info every so often
 				if ((iter-1) % 10000 == 0) { 
@@ -442,6 +1104,16 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 //					System.out.println("Current energy = " + E);
 				}
 			}
+			
+			if (batchSize > 1) {
+				// batched sweep mode, this iteration's proposal was evaluated along with the rest of its batch
+				if (nextBatchProposal(iter, T, x, misfit, misfit_ineq, E, Enew))
+					perturbs++;
+				if (iter % incrementalRecomputeInterval == 0)
+					recomputeCurrentEnergy(x, misfit, misfit_ineq, E);
+				iter++;
+				continue;
+			}
 
 			// Index of model to randomly perturb
 			if(rupSampler == null)
@@ -450,51 +1122,24 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 				index = rupSampler.getRandomInt();
 
 
-			// How much to perturb index (some perturbation functions are a function of T)	
-			perturb[index] = getPerturbation(perturbationFunc, T, index);
-
-			// Apply then nonnegativity constraint -- make sure perturbation doesn't make the rate negative
-			switch (nonnegativityConstraintAlgorithm) {
-			case TRY_ZERO_RATES_OFTEN: // sets rate to zero if they are perturbed to negative values 
-				// This way will result in many zeros in the solution, 
-				// which may be desirable since global minimum is likely near a boundary
-				if (x[index] == 0) { // if that rate was already zero do not keep it at zero
-					while (x[index] + perturb[index] < 0) 
-						perturb[index] = getPerturbation(perturbationFunc,T, index);
-				} else { // if that rate was not already zero, and it goes negative, set it equal to zero
-					if (x[index] + perturb[index] < 0) 
-						perturb[index] = -x[index];
-				}
-				break;
-			case LIMIT_ZERO_RATES:    // re-perturb rates if they are perturbed to negative values 
-				// This way will result in not a lot of zero rates (none if numIterations >> length(x)),
-				// which may be desirable if we don't want a lot of zero rates
-				while (x[index] + perturb[index] < 0) {
-					perturb[index] = getPerturbation(perturbationFunc,T, index);	
-				}
-				break;
-			case PREVENT_ZERO_RATES:    // Only perturb rates to positive values; any perturbations of zero rates MUST be accepted.
-				// Final model will only have zero rates if rate was never selected to be perturbed AND starting model contains zero rates.
-				if (x[index]!=0) {
-					perturb[index] = (r.nextDouble() -0.5) * 2 * x[index]; 	
-					}
-				else {
-					perturb[index] = (r.nextDouble()) * 0.00000001;
-				}
-				break;
-			default:
-				throw new IllegalStateException("You missed a Nonnegativity Constraint Algorithm type.");
-			}
-			x[index] += perturb[index];
+			// How much to perturb index (some perturbation functions are a function of T), subject to the
+			// nonnegativity constraint
+			perturbation = getConstrainedPerturbation(T, index, x[index]);
+			double prevRate = x[index];
+			x[index] += perturbation;
 			
-			// calculate new misfit vectors
-			calculateMisfit(A, d, misfit, x, index, perturb[index], misfit_cur_purtub);
+			// update misfit vectors in place, storing previous values in the undo buffers
+			applyPerturbation(A, colA, d, x, index, perturbation, misfit, misfit_undo);
 			if (hasInequalityConstraint)
-				calculateMisfit(A_ineq, d_ineq, misfit_ineq, x, index, perturb[index], misfit_ineq_cur_purtub);
+				applyPerturbation(A_ineq, colA_ineq, d_ineq, x, index, perturbation, misfit_ineq, misfit_ineq_undo);
 
 			// Calculate "energy" of new model (high misfit -> high energy)
 //			Enew = calculateMisfit(xnew);
-			Enew = calculateEnergy(x, misfit_cur_purtub, misfit_ineq_cur_purtub);
+			if (incrementalEnergy)
+				calculateEnergyIncremental(E, misfit, misfit_undo, misfit_ineq, misfit_ineq_undo,
+						index, prevRate, x[index], Enew);
+			else
+				calculateEnergy(x, misfit, misfit_ineq, Enew);
 			
 			if (D) {
 				if (COLUMN_MULT_SPEEDUP_DEBUG && (iter-1) % 10000 == 0 && iter > 1) {
@@ -520,82 +1165,33 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 			}
 
 			// Change state? Calculate transition probability P
-			switch (nonnegativityConstraintAlgorithm) {
-			case PREVENT_ZERO_RATES:  
-				if (Enew[0] < E[0] || x[index]==0) {
-					P = 1; // Always keep new model if better OR if element was originally zero
-				} else {
-					// Sometimes keep new model if worse (depends on T)
-					P = Math.exp(((E[0] - Enew[0])*energyScaleFactor) / (double) T); 
-				}
-			break;
-			default:
-				if (Enew[0] < E[0]) {
-					P = 1; // Always keep new model if better
-				} else {
-					// Sometimes keep new model if worse (depends on T)
-					P = Math.exp(((E[0] - Enew[0])*energyScaleFactor) / (double) T); 
-				}
-			}
+			P = getTransitionProbability(E[0], Enew[0], x[index], T);
 			
 			// Use transition probability to determine (via random number draw) if solution is kept
 			if (P > r.nextDouble()) {
-				/* 
-				 * I know this is confusing...let me explain what I'm doing here. The most costly operation
-				 * in this inner loop are the array copies. I now use multiple buffers to store perturbations
-				 * and misfits such that I only have to do an array copy in the worst case scenarios.
-				 * 
-				 * The only scenario now where an array copy needs to happen is if we're keeping a solution
-				 * that is not in fact a new best for the 2nd time. I'll spare the details, but it works (and
-				 * is tested).
-				 * * 
-				 */
+				// keep it: swap energy buffers and mark everything that changed since the last best
+				double[] tmp = E;
 				E = Enew;
-				misfit = misfit_cur_purtub;
-				misfit_ineq = misfit_ineq_cur_purtub;
+				Enew = tmp;
+				if (incrementalEnergy)
+					curTotalEntropy = candidateTotalEntropy;
 				perturbs++;
+				markChanged(index);
 				
 				// Is this a new best?
-				if (Enew[0] < Ebest[0] || keepCurrentAsBest) {
-					// we don't want to array copy as it's slow. instead we fix special cases only when
-					// needed with an array copy (see below)
-					xbest = x;
-					if (XBEST_ACCURACY_CHECK) xbest_check_storage = Arrays.copyOf(x, x.length);
-					misfit_best = misfit;
-					if (hasInequalityConstraint) {
-						misfit_ineq_best = misfit_ineq;
-					}
-					Ebest = Enew;
-				} else {
-					if (xbest == x) {
-						// in this case we're keeping an x that is not in fact best. we need
-						// to permanently store xbest
-						xbest = Arrays.copyOf(x, nCol);
-						// now roll back xbest
-						xbest[index] -= perturb[index];
-					}
-				}
-				
-				// now switch buffers so that we're not overwriting a kept solution
-				if (misfit_cur_purtub == misfit_new1) {
-					misfit_cur_purtub = misfit_new2;
-					misfit_ineq_cur_purtub = misfit_ineq_new2;
-				} else {
-					misfit_cur_purtub = misfit_new1;
-					misfit_ineq_cur_purtub = misfit_ineq_new1;
-				}
-				if (misfit_best == misfit_cur_purtub) {
-					// this one is being kept randomly even though it's not the best. make sure to
-					// save the best as we may now purtub what was previously set to misfit_best
-					misfit_best = Arrays.copyOf(misfit_best, misfit_best.length);
-					if (hasInequalityConstraint)
-						misfit_ineq_best = Arrays.copyOf(misfit_ineq_best, misfit_ineq_best.length);
-				}
+				if (E[0] < Ebest[0] || keepCurrentAsBest)
+					storeBest(x, misfit, misfit_ineq, E);
 			} else {
 				// undo the perturbation
-				x[index] -= perturb[index];
+				x[index] -= perturbation;
+				undoPerturbation(A, colA, index, misfit, misfit_undo);
+				if (hasInequalityConstraint)
+					undoPerturbation(A_ineq, colA_ineq, index, misfit_ineq, misfit_ineq_undo);
 			}
 			
+			if (incrementalEnergy && iter % incrementalRecomputeInterval == 0)
+				recomputeCurrentEnergy(x, misfit, misfit_ineq, E);
+			
 			if (D) {
 				if (XBEST_ACCURACY_CHECK && (iter-1) % 10000 == 0 && iter > 1 && xbest_check_storage != null) {
 					double pDiffThreshold = 0.0001;
@@ -635,6 +1231,10 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 		
 		watch.stop();
 		
+		if (incrementalEnergy)
+			// make sure that the reported best energy is free from any drift
+			calculateEnergy(xbest, misfit_best, misfit_ineq_best, Ebest);
+		
 		// Preferred model is best model seen during annealing process
 		if(D) {
 			System.out.println("Annealing schedule completed. Ebest = "+Doubles.join(", ", Ebest));
@@ -642,11 +1242,152 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 			System.out.println("Done with Inversion after " + runSecs + " seconds.");
 		}
 		
+		if (startAllocBytes >= 0l) {
+			long endAllocBytes = getThreadAllocatedBytes();
+			if (endAllocBytes >= startAllocBytes) {
+				allocatedBytes += endAllocBytes - startAllocBytes;
+				allocationTrackedIters += iter-1-startIter;
+			}
+		}
+		
 		// we added one to it before, remove it to make it zero-based
 		long[] ret = { iter-1, perturbs };
 		return ret;
 	}
 
+	/**
+	 * Recomputes the current energy (and entropy sum) in full, used to start and periodically correct for drift
+	 * in incremental mode
+	 */
+	private void recomputeCurrentEnergy(double[] x, double[] misfit, double[] misfit_ineq, double[] E) {
+		calculateEnergy(x, misfit, misfit_ineq, E);
+		if (relativeSmoothnessWt > 0.0)
+			curTotalEntropy = calcTotalEntropy(x);
+	}
+	
+	/**
+	 * Marks the given column and the rows that it touches as changed since the best model was last stored
+	 */
+	private void markChanged(int index) {
+		x_dirty.mark(index);
+		markDirtyRows(colA, index, misfit_dirty);
+		if (hasInequalityConstraint)
+			markDirtyRows(colA_ineq, index, misfit_ineq_dirty);
+	}
+	
+	/**
+	 * Stores the current model as the best model
+	 */
+	private void storeBest(double[] x, double[] misfit, double[] misfit_ineq, double[] E) {
+		// only copy over the entries which have changed since the last best
+		x_dirty.copyDirty(x, xbest);
+		if (XBEST_ACCURACY_CHECK) xbest_check_storage = Arrays.copyOf(x, x.length);
+		misfit_dirty.copyDirty(misfit, misfit_best);
+		if (hasInequalityConstraint)
+			misfit_ineq_dirty.copyDirty(misfit_ineq, misfit_ineq_best);
+		System.arraycopy(E, 0, Ebest, 0, E.length);
+	}
+	
+	/**
+	 * @param iter 1-based iteration
+	 * @return simulated annealing "temperature" for the given iteration based on the chosen cooling schedule
+	 */
+	private double getTemperature(long iter) {
+		if (!Double.isNaN(fixedTemperature))
+			// fixed temperature replica (e.g. for parallel tempering), ignore the cooling schedule
+			return fixedTemperature;
+		
+		double T;
+//		double coolIter = (double)iter / coolingFuncSlowdown;
+		double coolIter = iter;
+		if (coolingFuncSlowdown != 1)
+			coolIter = ((double)iter - 1) / coolingFuncSlowdown + 1;
+		switch (coolingFunc) {
+		case CLASSICAL_SA:
+			T = 1/Math.log(coolIter + 1); // classical SA cooling schedule (Geman and Geman, 1984) (slow but ensures convergence)
+			break;
+		case FAST_SA:
+			T = 1 / coolIter;  // fast SA cooling schedule (Szu and Hartley, 1987) (recommended)
+			break;
+		case VERYFAST_SA:
+			T = Math.exp(-( coolIter - 1d)); // very fast SA cooling schedule (Ingber, 1989)  (= 0 to machine precision for high iteration #)
+			break;
+		case LINEAR:
+//			T = 1 - (coolIter / numIterations);
+			T = 1 - (coolIter / 100000);  // need to fix this -- for now just putting in numIterations by hand
+			break;
+		default:
+			throw new IllegalStateException("It's impossible to get here, as long as all cooling schedule enum cases are stated above!");
+		}
+		return T;
+	}
+	
+	/**
+	 * @param T temperature
+	 * @param index index to perturb
+	 * @param rate current rate at that index
+	 * @return perturbation for the given index, after applying the nonnegativity constraint
+	 */
+	private double getConstrainedPerturbation(double T, int index, double rate) {
+		double perturbation = getPerturbation(perturbationFunc, T, index);
+
+		// Apply then nonnegativity constraint -- make sure perturbation doesn't make the rate negative
+		switch (nonnegativityConstraintAlgorithm) {
+		case TRY_ZERO_RATES_OFTEN: // sets rate to zero if they are perturbed to negative values 
+			// This way will result in many zeros in the solution, 
+			// which may be desirable since global minimum is likely near a boundary
+			if (rate == 0) { // if that rate was already zero do not keep it at zero
+				while (rate + perturbation < 0) 
+					perturbation = getPerturbation(perturbationFunc,T, index);
+			} else { // if that rate was not already zero, and it goes negative, set it equal to zero
+				if (rate + perturbation < 0) 
+					perturbation = -rate;
+			}
+			break;
+		case LIMIT_ZERO_RATES:    // re-perturb rates if they are perturbed to negative values 
+			// This way will result in not a lot of zero rates (none if numIterations >> length(x)),
+			// which may be desirable if we don't want a lot of zero rates
+			while (rate + perturbation < 0) {
+				perturbation = getPerturbation(perturbationFunc,T, index);	
+			}
+			break;
+		case PREVENT_ZERO_RATES:    // Only perturb rates to positive values; any perturbations of zero rates MUST be accepted.
+			// Final model will only have zero rates if rate was never selected to be perturbed AND starting model contains zero rates.
+			if (rate!=0) {
+				perturbation = (r.nextDouble() -0.5) * 2 * rate; 	
+				}
+			else {
+				perturbation = (r.nextDouble()) * 0.00000001;
+			}
+			break;
+		default:
+			throw new IllegalStateException("You missed a Nonnegativity Constraint Algorithm type.");
+		}
+		return perturbation;
+	}
+	
+	/**
+	 * @param E current energy
+	 * @param Enew energy of the perturbed model
+	 * @param newRate rate of the perturbed index in the perturbed model
+	 * @param T temperature
+	 * @return probability of keeping the perturbed model
+	 */
+	private double getTransitionProbability(double E, double Enew, double newRate, double T) {
+		switch (nonnegativityConstraintAlgorithm) {
+		case PREVENT_ZERO_RATES:  
+			if (Enew < E || newRate==0)
+				return 1; // Always keep new model if better OR if element was originally zero
+			// Sometimes keep new model if worse (depends on T)
+			return Math.exp(((E - Enew)*energyScaleFactor) / (double) T); 
+		default:
+			if (Enew < E)
+				return 1; // Always keep new model if better
+			// Sometimes keep new model if worse (depends on T)
+			return Math.exp(((E - Enew)*energyScaleFactor) / (double) T); 
+		}
+	}
+
 	private double getPerturbation(GenerationFunctionType perturbationFunc, double T, int index) {
 
 		double perturbation;
@@ -735,6 +1476,24 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 		energyScaleOption.setRequired(false);
 		ops.addOption(energyScaleOption);
 		
+		Option incrementalOption = new Option("incr", "incremental-energy", false,
+				"Flag for updating energies incrementally from the rows touched by each perturbation rather than"
+				+ " recalculating over all rows each iteration.");
+		incrementalOption.setRequired(false);
+		ops.addOption(incrementalOption);
+		
+		Option incrementalRecomputeOption = new Option("incrrecompute", "incremental-recompute-interval", true,
+				"Number of iterations between full energy recalculations in incremental mode. Default: "
+				+INCREMENTAL_RECOMPUTE_DEFAULT);
+		incrementalRecomputeOption.setRequired(false);
+		ops.addOption(incrementalRecomputeOption);
+		
+		Option batchOption = new Option("batch", "batch-size", true,
+				"If supplied, perturbations are proposed and evaluated in batches of up to this many columns with"
+				+ " disjoint row support (Monte Carlo sweep mode). Implies --incremental-energy. Default: 1 (disabled)");
+		batchOption.setRequired(false);
+		ops.addOption(batchOption);
+		
 		return ops;
 	}
 	
@@ -759,6 +1518,13 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 		}
 		if (cmd.hasOption("energyscale"))
 			energyScaleFactor = Double.parseDouble(cmd.getOptionValue("energyscale"));
+		
+		if (cmd.hasOption("incr"))
+			setIncrementalEnergy(true);
+		if (cmd.hasOption("incrrecompute"))
+			setIncrementalRecomputeInterval(Long.parseLong(cmd.getOptionValue("incrrecompute")));
+		if (cmd.hasOption("batch"))
+			setBatchSize(Integer.parseInt(cmd.getOptionValue("batch")));
 	}
 
 }
\ No newline at end of file
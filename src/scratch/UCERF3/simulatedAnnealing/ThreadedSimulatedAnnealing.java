@@ -11,6 +11,15 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -32,6 +41,7 @@ import org.opensha.commons.gui.plot.HeadlessGraphPanel;
 import org.opensha.commons.gui.plot.PlotCurveCharacterstics;
 import org.opensha.commons.gui.plot.PlotLineType;
 import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.InversionInputGenerator;
 
 import com.google.common.base.Preconditions;
@@ -72,6 +82,10 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 	private int numThreads;
 	private ArrayList<SerialSimulatedAnnealing> sas;
 	
+	// thread pool, created when first needed and reused across calls to iterate (e.g., for each round of a
+	// distributed inversion). threads are daemons so that an un-shutdown pool doesn't keep the JVM alive
+	private ExecutorService exec;
+	
 	private double[] Ebest =  { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
 			Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
 	private double[] xbest = null;
@@ -86,6 +100,25 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 	private DoubleMatrix2D A;
 	private DoubleMatrix2D A_ineq;
 	
+	/**
+	 * If true, threads run without a global barrier between rounds, exchanging best solutions through
+	 * an atomic slot at their own cadence
+	 */
+	private boolean async = false;
+	
+	// asynchronous mode state
+	private volatile boolean asyncDone;
+	private AtomicReference<BestSolution> asyncBest;
+	private AtomicLong asyncIter;
+	private AtomicReference<Throwable> asyncFailure;
+	private Semaphore asyncRoundSignal;
+	
+	// metrics
+	private AtomicLong numRounds = new AtomicLong();
+	private AtomicLong numPublished = new AtomicLong();
+	private AtomicLong numPulled = new AtomicLong();
+	private long stallNanos = 0l;
+	
 	public ThreadedSimulatedAnnealing(
 			DoubleMatrix2D A, double[] d, double[] initialState,
 			int numThreads, CompletionCriteria subCompetionCriteria) {
@@ -146,18 +179,15 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		return subComp;
 	}
 	
-	private class SAThread extends Thread {
+	private class SACallable implements Callable<long[]> {
 		private SimulatedAnnealing sa;
 		private CompletionCriteria subComp;
 		private long startIter;
-		private long endIter;
 		private long startPerturbs;
-		private long endPerturbs;
 		
-		private boolean fatal = false;
-		private Throwable t;
+		private long endNanos;
 		
-		public SAThread(SimulatedAnnealing sa, long startIter, long startPerturbs, CompletionCriteria subComp) {
+		public SACallable(SimulatedAnnealing sa, long startIter, long startPerturbs, CompletionCriteria subComp) {
 			this.sa = sa;
 			this.subComp = subComp;
 			this.startIter = startIter;
@@ -165,20 +195,105 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		}
 		
 		@Override
-		public void run() {
+		public long[] call() throws Exception {
 			try {
-				long[] ret = sa.iterate(startIter, startPerturbs, getForStartIter(startIter, subComp));
-				endIter = ret[0];
-				endPerturbs = ret[1];
+				return sa.iterate(startIter, startPerturbs, getForStartIter(startIter, subComp));
 			} catch (Throwable t) {
 				System.err.println("FATAL ERROR in thread!");
 				t.printStackTrace();
-				fatal = true;
-				this.t = t;
+				throw ExceptionUtils.asRuntimeException(t);
+			} finally {
+				endNanos = System.nanoTime();
 			}
 		}
 	}
+	
+	/**
+	 * Immutable best solution which is exchanged between threads in asynchronous mode. Arrays must
+	 * never be modified after construction.
+	 */
+	private static class BestSolution {
+		private final double[] E;
+		private final double[] x;
+		private final double[] misfit;
+		private final double[] misfit_ineq;
+		private final long perturbs;
+		
+		public BestSolution(double[] E, double[] x, double[] misfit, double[] misfit_ineq, long perturbs) {
+			this.E = E;
+			this.x = x;
+			this.misfit = misfit;
+			this.misfit_ineq = misfit_ineq;
+			this.perturbs = perturbs;
+		}
+		
+		private static double[] copy(double[] array) {
+			if (array == null)
+				return null;
+			return Arrays.copyOf(array, array.length);
+		}
+		
+		public static BestSolution copyOf(SimulatedAnnealing sa, long perturbs) {
+			return new BestSolution(copy(sa.getBestEnergy()), copy(sa.getBestSolution()),
+					copy(sa.getBestMisfit()), copy(sa.getBestInequalityMisfit()), perturbs);
+		}
+	}
+	
+	/**
+	 * Worker for asynchronous mode. Runs sub completion rounds until told to stop, publishing improved
+	 * solutions to the shared best slot and pulling the global best after each round.
+	 */
+	private class AsyncSAWorker implements Callable<Void> {
+		private SimulatedAnnealing sa;
+		
+		public AsyncSAWorker(SimulatedAnnealing sa) {
+			this.sa = sa;
+		}
 
+		@Override
+		public Void call() throws Exception {
+			try {
+				while (!asyncDone) {
+					BestSolution global = asyncBest.get();
+					long start = startSubIterationsAtZero ? 0l : asyncIter.get();
+					long[] ret = sa.iterate(start, global.perturbs, getForStartIter(start, subCompletionCriteria));
+					asyncIter.accumulateAndGet(ret[0], Math::max);
+					numRounds.incrementAndGet();
+					
+					// publish if we beat the current global best
+					double[] E = sa.getBestEnergy();
+					global = asyncBest.get();
+					if (E[0] < global.E[0]) {
+						BestSolution candidate = BestSolution.copyOf(sa, ret[1]);
+						while (candidate.E[0] < global.E[0]) {
+							if (asyncBest.compareAndSet(global, candidate)) {
+								numPublished.incrementAndGet();
+								break;
+							}
+							global = asyncBest.get();
+						}
+					}
+					
+					// pull the global best if someone else beat us
+					global = asyncBest.get();
+					if (global.E[0] < sa.getBestEnergy()[0]) {
+						sa.setResults(global.E, global.x, global.misfit, global.misfit_ineq);
+						numPulled.incrementAndGet();
+					}
+					
+					asyncRoundSignal.release();
+				}
+			} catch (Throwable t) {
+				System.err.println("FATAL ERROR in thread!");
+				t.printStackTrace();
+				asyncFailure.compareAndSet(null, t);
+				asyncRoundSignal.release();
+				throw ExceptionUtils.asRuntimeException(t);
+			}
+			return null;
+		}
+	}
+	
 	@Override
 	public void setCalculationParams(CoolingScheduleType coolingFunc,
 			NonnegativityConstraintType nonnegativeityConstraintAlgorithm,
@@ -318,97 +433,98 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		
 		int rounds = 0;
 		long iter = startIter;
-		while (!criteria.isSatisfied(watch, iter, Ebest, perturbs)) {
-			if (subCompletionCriteria instanceof VariableSubTimeCompletionCriteria)
-				((VariableSubTimeCompletionCriteria)subCompletionCriteria).setGlobalState(watch, iter, Ebest, perturbs);
-			
-			// write checkpoint information if applicable
-			if (checkPointCriteria != null &&
-					checkPointCriteria.isSatisfied(checkPointWatch, iter, Ebest, perturbs)) {
-				numCheckPoints++;
-				System.out.println("Writing checkpoint after "+iter+" iterations. Ebest: "
-						+Doubles.join(", ", Ebest));
-				long millis = checkPointCriteria.getMillis();
-				millis *= numCheckPoints;
-				String name = checkPointFileBase.getName()+"_checkpoint_"
-						+TimeCompletionCriteria.getTimeStr(millis);
-				File checkPointFile = new File(checkPointFileBase.getParentFile(), name+".bin");
-				try {
-					writeBestSolution(checkPointFile);
-					writeRateVsRankPlot(new File(checkPointFile.getParentFile(), name));
-				} catch (IOException e) {
-					// don't fail on a checkpoint, just continue
-					e.printStackTrace();
+		// persistent pool, threads are kept across rounds and calls
+		ExecutorService exec = getExecutor();
+		if (async) {
+			long[] ret = iterateAsync(exec, watch, checkPointWatch, iter, perturbs, criteria);
+			iter = ret[0];
+			perturbs = ret[1];
+			rounds = (int)ret[2];
+		} else {
+			while (!criteria.isSatisfied(watch, iter, Ebest, perturbs)) {
+				if (subCompletionCriteria instanceof VariableSubTimeCompletionCriteria)
+					((VariableSubTimeCompletionCriteria)subCompletionCriteria).setGlobalState(watch, iter, Ebest, perturbs);
+				
+				// write checkpoint information if applicable
+				if (checkPointCriteria != null &&
+						checkPointCriteria.isSatisfied(checkPointWatch, iter, Ebest, perturbs)) {
+					numCheckPoints++;
+					writeCheckPoint(iter, numCheckPoints);
+					checkPointWatch.reset();
+					checkPointWatch.start();
 				}
-				checkPointWatch.reset();
-				checkPointWatch.start();
-			}
-			
-			ArrayList<SAThread> threads = new ArrayList<ThreadedSimulatedAnnealing.SAThread>();
-			
-			// create the threads
-			// TODO switch to using a thread pool
-			for (int i=0; i<numThreads; i++) {
-				long start;
-				if (startSubIterationsAtZero)
-					start = 0l;
-				else
-					start = iter;
-				threads.add(new SAThread(sas.get(i), start, perturbs, subCompletionCriteria));
-			}
-			
-			// start the threads
-			for (Thread t : threads) {
-				t.start();
-			}
-			
-			// join the threads
-			for (Thread t : threads) {
-				try {
-					t.join();
-				} catch (InterruptedException e) {
-					throw new RuntimeException(e);
+				
+				List<SACallable> calls = new ArrayList<>();
+				List<Future<long[]>> futures = new ArrayList<>();
+				
+				// submit a task to the pool for each serial SA
+				for (int i=0; i<numThreads; i++) {
+					long start;
+					if (startSubIterationsAtZero)
+						start = 0l;
+					else
+						start = iter;
+					SACallable call = new SACallable(sas.get(i), start, perturbs, subCompletionCriteria);
+					calls.add(call);
+					futures.add(exec.submit(call));
 				}
-			}
-			
-			// find best solution and max iteration count
-			for (int i=0; i<numThreads; i++) {
-				SAThread thread = threads.get(i);
-				if (thread.fatal)
-					throw new RuntimeException(thread.t);
-				SimulatedAnnealing sa = sas.get(i);
-				double[] E = sa.getBestEnergy();
-				if (E[0] < Ebest[0]) {
-					Ebest = E;
-					xbest = sa.getBestSolution();
-					misfit = sa.getBestMisfit();
-					misfit_ineq = sa.getBestInequalityMisfit();
-					// set the number of perturbations to the perturbation count
-					// of the solution we're actually keeping
-					perturbs = thread.endPerturbs;
+				
+				// wait for all of them to complete
+				long[][] results = new long[numThreads][];
+				for (int i=0; i<numThreads; i++) {
+					try {
+						results[i] = futures.get(i).get();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					} catch (ExecutionException e) {
+						throw new RuntimeException(e.getCause());
+					}
 				}
 				
-				// now set the current iteration count to the max iteration achieved
-				long endIter = thread.endIter;
-				if (endIter > iter)
-					iter = endIter;
-			}
-			
-			rounds++;
-			// this is now done in the loop above
-//			iter += numSubIterations;
-			
-			if (D) {
-				double secs = watch.getTime() / 1000d;
-				System.out.println("Threaded total round "+rounds+" DONE after "
-						+(float)secs+" seconds, "+iter+" total iterations.");
-				System.out.println("Best energy after "+perturbs+" total perturbations: "
-						+Doubles.join(", ", Ebest));
+				// keep track of how long threads sat idle waiting for the slowest thread
+				long lastEnd = Long.MIN_VALUE;
+				for (SACallable call : calls)
+					lastEnd = Long.max(lastEnd, call.endNanos);
+				for (SACallable call : calls)
+					stallNanos += lastEnd - call.endNanos;
+				
+				// find best solution and max iteration count
+				for (int i=0; i<numThreads; i++) {
+					SimulatedAnnealing sa = sas.get(i);
+					double[] E = sa.getBestEnergy();
+					if (E[0] < Ebest[0]) {
+						Ebest = E;
+						xbest = sa.getBestSolution();
+						misfit = sa.getBestMisfit();
+						misfit_ineq = sa.getBestInequalityMisfit();
+						// set the number of perturbations to the perturbation count
+						// of the solution we're actually keeping
+						perturbs = results[i][1];
+					}
+					
+					// now set the current iteration count to the max iteration achieved
+					long endIter = results[i][0];
+					if (endIter > iter)
+						iter = endIter;
+				}
+				
+				rounds++;
+				numRounds.incrementAndGet();
+				// this is now done in the loop above
+	//			iter += numSubIterations;
+				
+				if (D) {
+					double secs = watch.getTime() / 1000d;
+					System.out.println("Threaded total round "+rounds+" DONE after "
+							+(float)secs+" seconds, "+iter+" total iterations.");
+					System.out.println("Best energy after "+perturbs+" total perturbations: "
+							+Doubles.join(", ", Ebest));
+				}
+				
+				// set next state in all SAs
+				for (SimulatedAnnealing sa : sas)
+					sa.setResults(Ebest, xbest, misfit, misfit_ineq);
 			}
-			
-			// set next state in all SAs
-			for (SimulatedAnnealing sa : sas)
-				sa.setResults(Ebest, xbest, misfit, misfit_ineq);
 		}
 		
 		watch.stop();
@@ -421,12 +537,203 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 			System.out.println("Total Iterations: "+iter);
 			System.out.println("Total Perturbations: "+perturbs);
 			System.out.println("Best energy: "+Doubles.join(", ", Ebest));
+			if (async)
+				System.out.println("Async exchanges: "+numPublished.get()+" published, "+numPulled.get()+" pulled");
+			else
+				System.out.println("Total thread stall time: "+(float)(getTotalStallMillis()/1000d)+" seconds");
+			System.out.println("Allocated bytes per iteration: "+(float)getAllocatedBytesPerIteration());
 		}
 		
 		long[] ret = { iter, perturbs };
 		return ret;
 	}
 	
+	private synchronized ExecutorService getExecutor() {
+		if (exec == null) {
+			exec = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				
+				private ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = defaultFactory.newThread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return exec;
+	}
+	
+	/**
+	 * Shuts down the thread pool used by this inversion. It will be recreated if iterate is called again.
+	 */
+	public synchronized void shutdown() {
+		if (exec != null) {
+			exec.shutdown();
+			exec = null;
+		}
+	}
+	
+	private long[] iterateAsync(ExecutorService exec, StopWatch watch, StopWatch checkPointWatch,
+			long iter, long perturbs, CompletionCriteria criteria) {
+		asyncDone = false;
+		asyncBest = new AtomicReference<>(new BestSolution(Ebest, xbest, misfit, misfit_ineq, perturbs));
+		asyncIter = new AtomicLong(iter);
+		asyncFailure = new AtomicReference<>();
+		asyncRoundSignal = new Semaphore(0);
+		long startRounds = numRounds.get();
+		long numCheckPoints = 0;
+		
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int i=0; i<numThreads; i++)
+			futures.add(exec.submit(new AsyncSAWorker(sas.get(i))));
+		
+		try {
+			while (!criteria.isSatisfied(watch, iter, Ebest, perturbs)) {
+				if (subCompletionCriteria instanceof VariableSubTimeCompletionCriteria)
+					((VariableSubTimeCompletionCriteria)subCompletionCriteria).setGlobalState(watch, iter, Ebest, perturbs);
+				
+				// write checkpoint information if applicable
+				if (checkPointCriteria != null &&
+						checkPointCriteria.isSatisfied(checkPointWatch, iter, Ebest, perturbs)) {
+					numCheckPoints++;
+					writeCheckPoint(iter, numCheckPoints);
+					checkPointWatch.reset();
+					checkPointWatch.start();
+				}
+				
+				// wait for at least one thread to complete a round
+				try {
+					asyncRoundSignal.acquire();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				asyncRoundSignal.drainPermits();
+				if (asyncFailure.get() != null)
+					throw new RuntimeException(asyncFailure.get());
+				
+				BestSolution best = asyncBest.get();
+				Ebest = best.E;
+				xbest = best.x;
+				misfit = best.misfit;
+				misfit_ineq = best.misfit_ineq;
+				perturbs = best.perturbs;
+				iter = asyncIter.get();
+				
+				if (D) {
+					double secs = watch.getTime() / 1000d;
+					System.out.println("Async round "+(numRounds.get()-startRounds)+" DONE after "
+							+(float)secs+" seconds, "+iter+" total iterations.");
+					System.out.println("Best energy after "+perturbs+" total perturbations: "
+							+Doubles.join(", ", Ebest));
+				}
+			}
+		} finally {
+			// tell the workers to stop after their current round and wait for them
+			asyncDone = true;
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
+		
+		// pick up anything that was published while the workers finished their final rounds
+		BestSolution best = asyncBest.get();
+		Ebest = best.E;
+		xbest = best.x;
+		misfit = best.misfit;
+		misfit_ineq = best.misfit_ineq;
+		perturbs = best.perturbs;
+		iter = asyncIter.get();
+		for (SimulatedAnnealing sa : sas)
+			sa.setResults(Ebest, xbest, misfit, misfit_ineq);
+		
+		return new long[] { iter, perturbs, numRounds.get()-startRounds };
+	}
+	
+	private void writeCheckPoint(long iter, long numCheckPoints) {
+		System.out.println("Writing checkpoint after "+iter+" iterations. Ebest: "
+				+Doubles.join(", ", Ebest));
+		long millis = checkPointCriteria.getMillis();
+		millis *= numCheckPoints;
+		String name = checkPointFileBase.getName()+"_checkpoint_"
+				+TimeCompletionCriteria.getTimeStr(millis);
+		File checkPointFile = new File(checkPointFileBase.getParentFile(), name+".bin");
+		try {
+			writeBestSolution(checkPointFile);
+			writeRateVsRankPlot(new File(checkPointFile.getParentFile(), name));
+		} catch (IOException e) {
+			// don't fail on a checkpoint, just continue
+			e.printStackTrace();
+		}
+	}
+	
+	public boolean isAsync() {
+		return async;
+	}
+	
+	/**
+	 * Sets asynchronous mode. In asynchronous mode there is no global barrier between rounds: each thread
+	 * runs sub completion rounds independently, publishing improved solutions through an atomic best
+	 * solution slot and pulling the global best after each of its rounds.
+	 * @param async
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+	
+	/**
+	 * @return total number of sub completion rounds. In synchronous mode this is the number of global
+	 * rounds, in asynchronous mode this is the sum of rounds completed by each thread
+	 */
+	public long getNumRounds() {
+		return numRounds.get();
+	}
+	
+	/**
+	 * @return total time (summed across threads) that threads spent idle waiting for the slowest thread to
+	 * complete each round. Always zero in asynchronous mode.
+	 */
+	public long getTotalStallMillis() {
+		return stallNanos / 1000000l;
+	}
+	
+	/**
+	 * @return number of times a thread published a new global best solution in asynchronous mode
+	 */
+	public long getNumPublished() {
+		return numPublished.get();
+	}
+	
+	/**
+	 * @return number of times a thread pulled the global best solution in asynchronous mode
+	 */
+	public long getNumPulled() {
+		return numPulled.get();
+	}
+	
+	/**
+	 * @return average number of bytes allocated per iteration across all threads, or NaN if
+	 * allocation tracking is not supported by this JVM
+	 */
+	public double getAllocatedBytesPerIteration() {
+		long bytes = 0l;
+		long iters = 0l;
+		for (SerialSimulatedAnnealing sa : sas) {
+			bytes += sa.getAllocatedBytes();
+			iters += sa.getAllocationTrackedIterations();
+		}
+		if (iters == 0l)
+			return Double.NaN;
+		return (double)bytes/(double)iters;
+	}
+	
 	public int getNumThreads() {
 		return numThreads;
 	}
@@ -434,6 +741,9 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 	public void setNumThreads(int numThreads) {
 		Preconditions.checkState(numThreads <= this.numThreads,
 				"Can only decrease number of threads for now");
+		if (numThreads != this.numThreads)
+			// pool is sized for the old thread count
+			shutdown();
 		this.numThreads = numThreads;
 		while (sas.size() > numThreads)
 			sas.remove(sas.size()-1);
@@ -444,7 +754,26 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		for (SerialSimulatedAnnealing sa : sas)
 			sa.setConstraintRanges(constraintRanges);
 	}
-	
+
+	/**
+	 * Enables or disables incremental energy calculation in each serial SA instance
+	 * @param incrementalEnergy
+	 */
+	public void setIncrementalEnergy(boolean incrementalEnergy) {
+		for (SerialSimulatedAnnealing sa : sas)
+			sa.setIncrementalEnergy(incrementalEnergy);
+	}
+
+	/**
+	 * Sets the batched sweep mode batch size in each serial SA instance
+	 * @param batchSize
+	 * @see SerialSimulatedAnnealing#setBatchSize(int)
+	 */
+	public void setBatchSize(int batchSize) {
+		for (SerialSimulatedAnnealing sa : sas)
+			sa.setBatchSize(batchSize);
+	}
+
 	public static Options createOptionsNoInputs() {
 		Options ops = SerialSimulatedAnnealing.createOptions();
 		
@@ -464,24 +793,7 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		ops.addOption(solutionFileOption);
 		
 		// Completion Criteria
-		Option timeOption = new Option("time", "completion-time", true, "time to anneal. append 's' for secionds," +
-				" 'm' for minutes, 'h' for hours. default is millis.");
-		timeOption.setRequired(false);
-		ops.addOption(timeOption);
-		
-		Option iterOption = new Option("iter", "completion-iterations", true, "num iterations to anneal");
-		iterOption.setRequired(false);
-		ops.addOption(iterOption);
-		
-		Option energyOption = new Option("energy", "completion-energy", true, "energy maximum to anneal to");
-		energyOption.setRequired(false);
-		ops.addOption(energyOption);
-		
-		Option deltaEnergyOption = new Option("delenergy", "completion-delta-energy", true, "energy change completion" +
-				" criteria. Format: <time>,<%>,<diff>. For example: 60,1.5,2 means a look back period of 60 minutes," +
-				" a minimum percent improvement of 1.5%, and a minimum actual energy change of 2.");
-		deltaEnergyOption.setRequired(false);
-		ops.addOption(deltaEnergyOption);
+		addCompletionOptions(ops);
 		
 		// constraint weights
 		Option smoothnessWeightOption = new Option("smoothness", "smoothness-weight", true, "weight for the entropy constraint");
@@ -508,6 +820,11 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		checkPointOption.setRequired(false);
 		ops.addOption(checkPointOption);
 		
+		Option asyncOption = new Option("async", "async-exchange", false, "flag to run threads asynchronously," +
+				" exchanging best solutions without a global barrier between sub completion rounds");
+		asyncOption.setRequired(false);
+		ops.addOption(asyncOption);
+		
 		Option plotsOption = new Option("plot", "plots", false, "write a variety of plots to the filesystem" +
 				" when annealing has completed");
 		plotsOption.setRequired(false);
@@ -516,9 +833,42 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		return ops;
 	}
 	
+	/**
+	 * Adds completion criteria options, as parsed by {@link #parseCompletionCriteria(CommandLine)}
+	 * @param ops
+	 */
+	static void addCompletionOptions(Options ops) {
+		Option timeOption = new Option("time", "completion-time", true, "time to anneal. append 's' for secionds," +
+				" 'm' for minutes, 'h' for hours. default is millis.");
+		timeOption.setRequired(false);
+		ops.addOption(timeOption);
+		
+		Option iterOption = new Option("iter", "completion-iterations", true, "num iterations to anneal");
+		iterOption.setRequired(false);
+		ops.addOption(iterOption);
+		
+		Option energyOption = new Option("energy", "completion-energy", true, "energy maximum to anneal to");
+		energyOption.setRequired(false);
+		ops.addOption(energyOption);
+		
+		Option deltaEnergyOption = new Option("delenergy", "completion-delta-energy", true, "energy change completion" +
+				" criteria. Format: <time>,<%>,<diff>. For example: 60,1.5,2 means a look back period of 60 minutes," +
+				" a minimum percent improvement of 1.5%, and a minimum actual energy change of 2.");
+		deltaEnergyOption.setRequired(false);
+		ops.addOption(deltaEnergyOption);
+	}
+	
 	public static Options createOptions() {
 		Options ops = createOptionsNoInputs();
-		
+		addInputOptions(ops);
+		return ops;
+	}
+	
+	/**
+	 * Adds options for input matrices, as loaded by {@link #loadInputs(CommandLine)}
+	 * @param ops
+	 */
+	static void addInputOptions(Options ops) {
 		// REQUIRED
 		// inputs can now be supplied in a single zip file if needed, thus individual ones not required
 		Option aMatrix = new Option("a", "a-matrix-file", true, "A matrix file");
@@ -546,7 +896,16 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		zipInputs.setRequired(false);
 		ops.addOption(zipInputs);
 		
-		return ops;
+		Option compactOption = new Option("compact", "compact-matrices", false, "flag to load A matrices in a" +
+				" compact column compressed format (float precision values, delta encoded rows) to reduce memory usage");
+		compactOption.setRequired(false);
+		ops.addOption(compactOption);
+		
+		Option mmapOption = new Option("mmap", "memory-map", false, "flag to memory map A matrices saved in the" +
+				" column compressed binary format (see MatrixIO.saveSparseCSC) rather than loading them into memory." +
+				" Not supported with zip file inputs");
+		mmapOption.setRequired(false);
+		ops.addOption(mmapOption);
 	}
 	
 	public static String subCompletionCriteriaToArgument(CompletionCriteria subCompletion) {
@@ -666,6 +1025,43 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 	}
 	
 	public static ThreadedSimulatedAnnealing parseOptions(CommandLine cmd) throws IOException {
+		AnnealingInputs inputs = loadInputs(cmd);
+		return parseOptions(cmd, inputs.A, inputs.d, inputs.initialState, inputs.A_ineq, inputs.d_ineq,
+				inputs.minimumRuptureRates, inputs.constraintRanges);
+	}
+	
+	/**
+	 * Inversion inputs loaded from the command line
+	 */
+	static class AnnealingInputs {
+		final DoubleMatrix2D A;
+		final double[] d;
+		final double[] initialState;
+		final DoubleMatrix2D A_ineq;
+		final double[] d_ineq;
+		final double[] minimumRuptureRates;
+		final List<ConstraintRange> constraintRanges;
+		
+		private AnnealingInputs(DoubleMatrix2D A, double[] d, double[] initialState, DoubleMatrix2D A_ineq,
+				double[] d_ineq, double[] minimumRuptureRates, List<ConstraintRange> constraintRanges) {
+			this.A = A;
+			this.d = d;
+			this.initialState = initialState;
+			this.A_ineq = A_ineq;
+			this.d_ineq = d_ineq;
+			this.minimumRuptureRates = minimumRuptureRates;
+			this.constraintRanges = constraintRanges;
+		}
+	}
+	
+	/**
+	 * Loads inversion inputs, either from individual files or from a single zip file (see
+	 * {@link #addInputOptions(Options)})
+	 * @param cmd
+	 * @return
+	 * @throws IOException
+	 */
+	static AnnealingInputs loadInputs(CommandLine cmd) throws IOException {
 		DoubleMatrix2D A = null; // can't stay null
 		double[] d = null; // can't stay null
 		double[] initialState = null; // can be null, for now
@@ -675,19 +1071,28 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		
 		List<ConstraintRange> constraintRanges = null;
 		
+		Class<? extends DoubleMatrix2D> matrixClass = SparseCCDoubleMatrix2D.class;
+		if (cmd.hasOption("compact"))
+			matrixClass = CompactCCDoubleMatrix2D.class;
+		if (cmd.hasOption("mmap")) {
+			Preconditions.checkArgument(!cmd.hasOption("zip"), "Can't memory map matrices from a zip file");
+			Preconditions.checkArgument(!cmd.hasOption("compact"), "Can't both memory map and compact matrices");
+			matrixClass = MappedCCDoubleMatrix2D.class;
+		}
+		
 		if (cmd.hasOption("zip")) {
 			File zipFile = new File(cmd.getOptionValue("zip"));
 			if (D) System.out.println("Opening zip file: "+zipFile.getAbsolutePath());
 			ZipFile zip = new ZipFile(zipFile);
 			
 			ZipEntry a_entry = zip.getEntry("a.bin");
-			A = MatrixIO.loadSparse(new BufferedInputStream(zip.getInputStream(a_entry)), SparseCCDoubleMatrix2D.class);
+			A = MatrixIO.loadSparse(new BufferedInputStream(zip.getInputStream(a_entry)), matrixClass);
 			ZipEntry d_entry = zip.getEntry("d.bin");
 			d = MatrixIO.doubleArrayFromInputStream(new BufferedInputStream(zip.getInputStream(d_entry)), A.rows()*8);
 			
 			ZipEntry a_ineq_entry = zip.getEntry("a_ineq.bin");
 			if (a_ineq_entry != null)
-				A_ineq = MatrixIO.loadSparse(new BufferedInputStream(zip.getInputStream(a_ineq_entry)), SparseCCDoubleMatrix2D.class);
+				A_ineq = MatrixIO.loadSparse(new BufferedInputStream(zip.getInputStream(a_ineq_entry)), matrixClass);
 			ZipEntry d_ineq_entry = zip.getEntry("d_ineq.bin");
 			if (d_ineq_entry != null && A_ineq != null)
 				d_ineq = MatrixIO.doubleArrayFromInputStream(new BufferedInputStream(zip.getInputStream(d_ineq_entry)), A_ineq.rows()*8);
@@ -718,7 +1123,7 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		} else {
 			File aFile = new File(cmd.getOptionValue("a"));
 			if (D) System.out.println("Loading A matrix from: "+aFile.getAbsolutePath());
-			A = MatrixIO.loadSparse(aFile, SparseCCDoubleMatrix2D.class);
+			A = MatrixIO.loadSparse(aFile, matrixClass);
 			
 			File dFile = new File(cmd.getOptionValue("d"));
 			if (D) System.out.println("Loading d matrix from: "+dFile.getAbsolutePath());
@@ -727,7 +1132,7 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 			if (cmd.hasOption("aineq")) {
 				File a_ineqFile = new File(cmd.getOptionValue("aineq"));
 				if (D) System.out.println("Loading A_ineq matrix from: "+a_ineqFile.getAbsolutePath());
-				A_ineq = MatrixIO.loadSparse(a_ineqFile, SparseCCDoubleMatrix2D.class);
+				A_ineq = MatrixIO.loadSparse(a_ineqFile, matrixClass);
 			}
 			
 			if (cmd.hasOption("dineq")) {
@@ -742,15 +1147,14 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 				initialState = MatrixIO.doubleArrayFromFile(initialFile);
 			}
 			
-			if (cmd.hasOption("minrates")); {
+			if (cmd.hasOption("minrates")) {
 				File minimumRuptureRatesFile = new File(cmd.getOptionValue("minrates"));
 				if (D) System.out.println("Loading minimumRuptureRates from: "+minimumRuptureRatesFile.getAbsolutePath());
 				minimumRuptureRates = MatrixIO.doubleArrayFromFile(minimumRuptureRatesFile);
 			}
 		}
 		
-		return parseOptions(cmd, A, d, initialState, A_ineq, d_ineq, minimumRuptureRates,
-				constraintRanges);
+		return new AnnealingInputs(A, d, initialState, A_ineq, d_ineq, minimumRuptureRates, constraintRanges);
 	}
 	
 	public static ThreadedSimulatedAnnealing parseOptions(CommandLine cmd,
@@ -787,6 +1191,9 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 		if (cmd.hasOption("zero"))
 			tsa.setStartSubIterationsAtZero(true);
 		
+		if (cmd.hasOption("async"))
+			tsa.setAsync(true);
+		
 		if (cmd.hasOption("checkpoint")) {
 			String time = cmd.getOptionValue("checkpoint");
 			TimeCompletionCriteria checkPointCriteria = TimeCompletionCriteria.fromTimeString(time);
@@ -823,7 +1230,19 @@ public class ThreadedSimulatedAnnealing implements SimulatedAnnealing {
 	}
 	
 	public void writeBestSolution(File outputFile) throws IOException {
-		double[] solution = getBestSolution();
+		writeSolution(getBestSolution(), minimumRuptureRates, outputFile);
+	}
+	
+	/**
+	 * Writes the given solution to a file. If minimum rupture rates are supplied, the original solution is also
+	 * written to a "_noMinRates.bin" file, and the minimum rates are applied to the solution written to outputFile.
+	 * 
+	 * @param solution
+	 * @param minimumRuptureRates minimum rupture rates, can be null
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	static void writeSolution(double[] solution, double[] minimumRuptureRates, File outputFile) throws IOException {
 		if (minimumRuptureRates != null) {
 			String outputFilePath = outputFile.getAbsolutePath();
 			if (outputFilePath.endsWith(".bin"))
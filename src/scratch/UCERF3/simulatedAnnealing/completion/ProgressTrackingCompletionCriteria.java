@@ -3,6 +3,7 @@ package scratch.UCERF3.simulatedAnnealing.completion;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.lang3.time.StopWatch;
@@ -95,7 +96,8 @@ public class ProgressTrackingCompletionCriteria implements CompletionCriteria {
 		if (energy[0] < Double.MAX_VALUE && (iterMod <= 0 || iter % iterMod == 0l)) {
 			times.add(watch.getTime());
 			iterations.add(iter);
-			energies.add(energy);
+			// copy as the annealer may reuse this array
+			energies.add(Arrays.copyOf(energy, energy.length));
 			perturbs.add(numPerturbsKept);
 		}
 		if (autoPlotMillis > 0 && watch.getTime() > nextPlotMillis) {
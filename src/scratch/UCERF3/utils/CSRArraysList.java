@@ -0,0 +1,79 @@
+package scratch.UCERF3.utils;
+
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Read only list of primitive arrays stored in compressed sparse row (CSR) form: one offsets buffer, where
+ * offsets[i] is the index of the first value of the ith array (and offsets[size()] the total number of values),
+ * and a single contiguous values buffer. This avoids an object per array, and the buffers can be memory mapped
+ * directly from a file written by MatrixIO (see {@link MatrixIO#intArraysListToCSRFile(java.util.List, java.io.File)}).
+ * <br><br>
+ * Performance critical code should use {@link #getStart(int)}, {@link #getLength(int)} and the subclass
+ * getValue(int) methods. {@link #get(int)} returns a copy of the given array for compatibility with code
+ * expecting a list of arrays. Only absolute buffer reads are used, so instances are thread safe.
+ *
+ * @param <E> array type
+ */
+public abstract class CSRArraysList<E> extends AbstractList<E> {
+	
+	final IntBuffer offsets;
+	
+	CSRArraysList(IntBuffer offsets) {
+		Preconditions.checkArgument(offsets.limit() > 0, "offsets must contain at least one value");
+		this.offsets = offsets;
+	}
+
+	@Override
+	public int size() {
+		return offsets.limit()-1;
+	}
+	
+	/**
+	 * @param index
+	 * @return index of the first value of the given array
+	 */
+	public int getStart(int index) {
+		return offsets.get(index);
+	}
+	
+	/**
+	 * @param index
+	 * @return length of the given array
+	 */
+	public int getLength(int index) {
+		return offsets.get(index+1) - offsets.get(index);
+	}
+	
+	/**
+	 * @return total number of values in all arrays
+	 */
+	public int getNumValues() {
+		return offsets.get(size());
+	}
+	
+	/**
+	 * @return the offsets buffer, which can be shared with another list with identical array lengths
+	 */
+	public IntBuffer getOffsets() {
+		return offsets;
+	}
+	
+	/**
+	 * Builds offsets for the given array lengths
+	 * @param lengths
+	 * @return
+	 */
+	static IntBuffer buildOffsets(int[] lengths) {
+		int[] offsets = new int[lengths.length+1];
+		for (int i=0; i<lengths.length; i++) {
+			long next = (long)offsets[i] + lengths[i];
+			Preconditions.checkState(next <= Integer.MAX_VALUE, "Too many values for a CSR list");
+			offsets[i+1] = (int)next;
+		}
+		return IntBuffer.wrap(offsets);
+	}
+
+}
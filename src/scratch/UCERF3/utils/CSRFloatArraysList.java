@@ -0,0 +1,70 @@
+package scratch.UCERF3.utils;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * {@link CSRArraysList} of float arrays
+ */
+public class CSRFloatArraysList extends CSRArraysList<float[]> {
+	
+	private final FloatBuffer values;
+
+	/**
+	 * @param offsets index of the first value of each array, followed by the total number of values
+	 * @param values
+	 */
+	public CSRFloatArraysList(IntBuffer offsets, FloatBuffer values) {
+		super(offsets);
+		Preconditions.checkArgument(values.limit() == getNumValues(),
+				"Offsets are for %s values, but there are %s", getNumValues(), values.limit());
+		this.values = values;
+	}
+	
+	/**
+	 * @param valueIndex index in the flattened values, e.g., getStart(index)+i for the ith value of an array
+	 * @return
+	 */
+	public float getValue(int valueIndex) {
+		return values.get(valueIndex);
+	}
+	
+	/**
+	 * @param index
+	 * @param i
+	 * @return the ith value of the given array
+	 */
+	public float get(int index, int i) {
+		return values.get(offsets.get(index) + i);
+	}
+
+	@Override
+	public float[] get(int index) {
+		int start = offsets.get(index);
+		float[] ret = new float[offsets.get(index+1) - start];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = values.get(start + i);
+		return ret;
+	}
+	
+	/**
+	 * @param list
+	 * @return the given list if it is already a CSRFloatArraysList, otherwise a copy in CSR form
+	 */
+	public static CSRFloatArraysList from(List<float[]> list) {
+		if (list instanceof CSRFloatArraysList)
+			return (CSRFloatArraysList)list;
+		int[] lengths = new int[list.size()];
+		for (int i=0; i<lengths.length; i++)
+			lengths[i] = list.get(i).length;
+		IntBuffer offsets = buildOffsets(lengths);
+		float[] values = new float[offsets.get(lengths.length)];
+		for (int i=0; i<lengths.length; i++)
+			System.arraycopy(list.get(i), 0, values, offsets.get(i), lengths[i]);
+		return new CSRFloatArraysList(offsets, FloatBuffer.wrap(values));
+	}
+
+}
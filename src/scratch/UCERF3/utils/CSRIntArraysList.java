@@ -0,0 +1,69 @@
+package scratch.UCERF3.utils;
+
+import java.nio.IntBuffer;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * {@link CSRArraysList} of int arrays
+ */
+public class CSRIntArraysList extends CSRArraysList<int[]> {
+	
+	private final IntBuffer values;
+
+	/**
+	 * @param offsets index of the first value of each array, followed by the total number of values
+	 * @param values
+	 */
+	public CSRIntArraysList(IntBuffer offsets, IntBuffer values) {
+		super(offsets);
+		Preconditions.checkArgument(values.limit() == getNumValues(),
+				"Offsets are for %s values, but there are %s", getNumValues(), values.limit());
+		this.values = values;
+	}
+	
+	/**
+	 * @param valueIndex index in the flattened values, e.g., getStart(index)+i for the ith value of an array
+	 * @return
+	 */
+	public int getValue(int valueIndex) {
+		return values.get(valueIndex);
+	}
+	
+	/**
+	 * @param index
+	 * @param i
+	 * @return the ith value of the given array
+	 */
+	public int get(int index, int i) {
+		return values.get(offsets.get(index) + i);
+	}
+
+	@Override
+	public int[] get(int index) {
+		int start = offsets.get(index);
+		int[] ret = new int[offsets.get(index+1) - start];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = values.get(start + i);
+		return ret;
+	}
+	
+	/**
+	 * @param list
+	 * @return the given list if it is already a CSRIntArraysList, otherwise a copy in CSR form
+	 */
+	public static CSRIntArraysList from(List<int[]> list) {
+		if (list instanceof CSRIntArraysList)
+			return (CSRIntArraysList)list;
+		int[] lengths = new int[list.size()];
+		for (int i=0; i<lengths.length; i++)
+			lengths[i] = list.get(i).length;
+		IntBuffer offsets = buildOffsets(lengths);
+		int[] values = new int[offsets.get(lengths.length)];
+		for (int i=0; i<lengths.length; i++)
+			System.arraycopy(list.get(i), 0, values, offsets.get(i), lengths[i]);
+		return new CSRIntArraysList(offsets, IntBuffer.wrap(values));
+	}
+
+}
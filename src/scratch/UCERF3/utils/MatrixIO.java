@@ -5,14 +5,27 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.opensha.commons.data.function.DiscretizedFunc;
@@ -31,6 +44,10 @@ import cern.colt.matrix.tdouble.impl.SparseCCMDoubleMatrix2D;
 import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
 import cern.colt.matrix.tdouble.impl.SparseRCDoubleMatrix2D;
 import cern.colt.matrix.tdouble.impl.SparseRCMDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+import scratch.UCERF3.simulatedAnnealing.CompactCCDoubleMatrix2D;
+import scratch.UCERF3.simulatedAnnealing.MappedCCDoubleMatrix2D;
+import scratch.UCERF3.simulatedAnnealing.ReadOnlyCCDoubleMatrix2D;
 
 public class MatrixIO {
 
@@ -99,7 +116,8 @@ public class MatrixIO {
 	}
 
 	/**
-	 * Loads a matrix saved in the format of {@link MatrixIO.saveSparse}.
+	 * Loads a matrix saved in the format of {@link MatrixIO.saveSparse}, or in the column compressed format
+	 * of {@link MatrixIO.saveSparseCSC}.
 	 * 
 	 * @param file
 	 * @return
@@ -113,6 +131,8 @@ public class MatrixIO {
 	public static DoubleMatrix2D loadSparse(File file, Class<? extends DoubleMatrix2D> clazz) throws IOException {
 		Preconditions.checkNotNull(file, "File cannot be null!");
 		Preconditions.checkArgument(file.exists(), "File doesn't exist!");
+		if (clazz != null && clazz.equals(MappedCCDoubleMatrix2D.class))
+			return mapSparseCSC(file);
 		return loadSparse(new FileInputStream(file), clazz);
 	}
 
@@ -127,6 +147,12 @@ public class MatrixIO {
 		DataInputStream in = new DataInputStream(input);
 
 		int nRows = in.readInt();
+		if (nRows == CSC_MAGIC) {
+			// column compressed format
+			DoubleMatrix2D mat = loadSparseCSC(in, clazz);
+			in.close();
+			return mat;
+		}
 		int nCols = in.readInt();
 		int nVals = in.readInt();
 
@@ -149,6 +175,12 @@ public class MatrixIO {
 
 		in.close();
 
+		return buildSparse(nRows, nCols, rows, cols, vals, clazz);
+	}
+	
+	private static DoubleMatrix2D buildSparse(int nRows, int nCols, int[] rows, int[] cols, double[] vals,
+			Class<? extends DoubleMatrix2D> clazz) {
+		int nVals = vals.length;
 		DoubleMatrix2D mat;
 		if (clazz == null || clazz.equals(SparseCCDoubleMatrix2D.class))
 			// default
@@ -165,12 +197,490 @@ public class MatrixIO {
 			mat = new SparseRCMDoubleMatrix2D(nRows, nCols);
 			for (int i=0; i<nVals; i++)
 				mat.set(rows[i], cols[i], vals[i]);
-		} else
+		} else if (clazz.equals(CompactCCDoubleMatrix2D.class))
+			// float precision values, delta encoded row indexes
+			mat = CompactCCDoubleMatrix2D.build(nRows, nCols, rows, cols, vals, true);
+		else
 			throw new IllegalArgumentException("Unknown matrix type: "+clazz);
 
 		return mat;
 	}
 
+	/*
+	 * Column compressed (CSC) binary format, which can be memory mapped and used directly. All values are little
+	 * endian (except for the magic number), and each section starts on an 8 byte boundary:
+	 * 
+	 * header (64 bytes): magic number, int version, int rows, int columns, long number of values, zero padding
+	 * column pointers: (columns+1) longs, index of the first value in each column
+	 * row indexes: (number of values) ints, increasing within each column, zero padded to a multiple of 8 bytes
+	 * values: (number of values) doubles
+	 */
+	// first byte has the high bit set, so this can't be confused with the row count at the start of the
+	// triplet format when read as a big endian int
+	private static final int CSC_MAGIC = 0x89435343; // 0x89 'C' 'S' 'C'
+	private static final int CSC_VERSION = 1;
+	private static final int CSC_HEADER_BYTES = 64;
+	private static final int CSC_BUFFER_BYTES = 1 << 20;
+	// number of entries in each mapped row index/value chunk, mapped buffers are limited to 2 GB
+	private static final int CSC_CHUNK_SHIFT = 27;
+	
+	/**
+	 * Saves a binary file containing the given sparse matrix in column compressed format. Unlike the
+	 * triplet format of {@link MatrixIO.saveSparse}, files in this format can be memory mapped with
+	 * {@link MatrixIO.mapSparseCSC} and used without any parsing. They can also be read by
+	 * {@link MatrixIO.loadSparse}.
+	 * 
+	 * @param mat
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void saveSparseCSC(DoubleMatrix2D mat, File file) throws IOException {
+		Preconditions.checkNotNull(mat, "array cannot be null!");
+		Preconditions.checkArgument(mat.rows() > 0 && mat.columns() > 0, "matrix can't be empty!");
+		
+		int nCols = mat.columns();
+		int[] colPointers = new int[nCols+1];
+		int[] rows;
+		double[] vals;
+		if (mat instanceof SparseCCDoubleMatrix2D) {
+			Dcs dcs = ((SparseCCDoubleMatrix2D)mat).elements();
+			System.arraycopy(dcs.p, 0, colPointers, 0, nCols+1);
+			rows = Arrays.copyOf(dcs.i, colPointers[nCols]);
+			vals = Arrays.copyOf(dcs.x, colPointers[nCols]);
+		} else if (mat instanceof ReadOnlyCCDoubleMatrix2D) {
+			ReadOnlyCCDoubleMatrix2D roMat = (ReadOnlyCCDoubleMatrix2D)mat;
+			for (int col=0; col<nCols; col++)
+				colPointers[col+1] = colPointers[col] + roMat.getColumnNonZeros(col);
+			rows = new int[colPointers[nCols]];
+			vals = new double[colPointers[nCols]];
+			int[] rowBuffer = new int[roMat.getMaxColumnNonZeros()];
+			double[] valBuffer = new double[rowBuffer.length];
+			for (int col=0; col<nCols; col++) {
+				int num = roMat.getColumn(col, rowBuffer, valBuffer);
+				System.arraycopy(rowBuffer, 0, rows, colPointers[col], num);
+				System.arraycopy(valBuffer, 0, vals, colPointers[col], num);
+			}
+		} else {
+			IntArrayList rowList = new IntArrayList();
+			IntArrayList colList = new IntArrayList();
+			DoubleArrayList valList = new DoubleArrayList();
+			
+			mat.getNonZeros(rowList, colList, valList);
+			
+			// group by column
+			for (int i=0; i<colList.size(); i++)
+				colPointers[colList.get(i)+1]++;
+			for (int col=0; col<nCols; col++)
+				colPointers[col+1] += colPointers[col];
+			int[] next = Arrays.copyOf(colPointers, nCols);
+			rows = new int[valList.size()];
+			vals = new double[valList.size()];
+			for (int i=0; i<valList.size(); i++) {
+				int k = next[colList.get(i)]++;
+				rows[k] = rowList.get(i);
+				vals[k] = valList.get(i);
+			}
+		}
+		sortColumnRows(colPointers, rows, vals);
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(CSC_BUFFER_BYTES);
+			buffer.order(ByteOrder.BIG_ENDIAN).putInt(CSC_MAGIC);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(CSC_VERSION);
+			buffer.putInt(mat.rows());
+			buffer.putInt(nCols);
+			buffer.putLong(vals.length);
+			while (buffer.position() < CSC_HEADER_BYTES)
+				buffer.put((byte)0);
+			
+			for (int pointer : colPointers) {
+				if (buffer.remaining() < 8)
+					flush(channel, buffer);
+				buffer.putLong(pointer);
+			}
+			for (int row : rows) {
+				if (buffer.remaining() < 4)
+					flush(channel, buffer);
+				buffer.putInt(row);
+			}
+			if (rows.length % 2 == 1) {
+				// pad to 8 bytes
+				if (buffer.remaining() < 4)
+					flush(channel, buffer);
+				buffer.putInt(0);
+			}
+			for (double val : vals) {
+				if (buffer.remaining() < 8)
+					flush(channel, buffer);
+				buffer.putDouble(val);
+			}
+			flush(channel, buffer);
+		}
+	}
+	
+	/**
+	 * Sorts the rows (and values) within each column, in place
+	 */
+	private static void sortColumnRows(int[] colPointers, int[] rows, double[] vals) {
+		long[] sortBuffer = new long[0];
+		double[] valBuffer = new double[0];
+		for (int col=0; col<colPointers.length-1; col++) {
+			int low = colPointers[col];
+			int num = colPointers[col+1] - low;
+			boolean sorted = true;
+			for (int k=low+1; sorted && k<low+num; k++)
+				sorted = rows[k] > rows[k-1];
+			if (sorted)
+				continue;
+			if (sortBuffer.length < num) {
+				sortBuffer = new long[num];
+				valBuffer = new double[num];
+			}
+			// sort by row, keeping track of the original index in the lower bits
+			for (int i=0; i<num; i++)
+				sortBuffer[i] = ((long)rows[low+i] << 32) | i;
+			Arrays.sort(sortBuffer, 0, num);
+			System.arraycopy(vals, low, valBuffer, 0, num);
+			for (int i=0; i<num; i++) {
+				rows[low+i] = (int)(sortBuffer[i] >>> 32);
+				vals[low+i] = valBuffer[(int)sortBuffer[i]];
+			}
+		}
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+	
+	/**
+	 * Reads the rest of a column compressed matrix (after the magic number) from the given stream
+	 */
+	private static DoubleMatrix2D loadSparseCSC(DataInputStream in, Class<? extends DoubleMatrix2D> clazz)
+			throws IOException {
+		ReadableByteChannel channel = Channels.newChannel(in);
+		ByteBuffer buffer = ByteBuffer.allocate(CSC_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		
+		readFully(channel, buffer, CSC_HEADER_BYTES - 4);
+		int version = buffer.getInt();
+		Preconditions.checkState(version == CSC_VERSION, "Unsupported CSC matrix file version: %s", version);
+		int nRows = buffer.getInt();
+		int nCols = buffer.getInt();
+		long nVals = buffer.getLong();
+		
+		System.out.println("Mat size: "+nRows+"x"+nCols);
+		System.out.println("Num non zero: "+nVals);
+		
+		Preconditions.checkState(nRows > 0, "file contains no rows!");
+		Preconditions.checkState(nCols > 0, "file contains no columns!");
+		Preconditions.checkState(nVals <= Integer.MAX_VALUE,
+				"Too many values to load into memory (%s), memory map the file instead", nVals);
+		
+		long[] colPointers = new long[nCols+1];
+		for (int i=0; i<colPointers.length; i+=CSC_BUFFER_BYTES/8) {
+			int num = Integer.min(CSC_BUFFER_BYTES/8, colPointers.length-i);
+			readFully(channel, buffer, 8*num);
+			buffer.asLongBuffer().get(colPointers, i, num);
+		}
+		int[] rows = new int[(int)nVals];
+		for (int i=0; i<rows.length; i+=CSC_BUFFER_BYTES/4) {
+			int num = Integer.min(CSC_BUFFER_BYTES/4, rows.length-i);
+			readFully(channel, buffer, 4*num);
+			buffer.asIntBuffer().get(rows, i, num);
+		}
+		if (rows.length % 2 == 1)
+			// padding
+			readFully(channel, buffer, 4);
+		double[] vals = new double[(int)nVals];
+		for (int i=0; i<vals.length; i+=CSC_BUFFER_BYTES/8) {
+			int num = Integer.min(CSC_BUFFER_BYTES/8, vals.length-i);
+			readFully(channel, buffer, 8*num);
+			buffer.asDoubleBuffer().get(vals, i, num);
+		}
+		
+		int[] cols = new int[(int)nVals];
+		for (int col=0; col<nCols; col++)
+			for (int k=(int)colPointers[col]; k<colPointers[col+1]; k++)
+				cols[k] = col;
+		
+		return buildSparse(nRows, nCols, rows, cols, vals, clazz);
+	}
+	
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer, int numBytes) throws IOException {
+		buffer.clear();
+		buffer.limit(numBytes);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException("Unexpected end of file");
+		buffer.flip();
+	}
+	
+	/**
+	 * Memory maps a matrix saved in the column compressed format of {@link MatrixIO.saveSparseCSC}. The
+	 * returned matrix is read only and reads directly from the mapped file, so it can be used immediately
+	 * without parsing and is shared through the page cache between processes. The file must not be modified
+	 * while the matrix is in use.
+	 * 
+	 * @param file
+	 * @return memory mapped matrix
+	 * @throws IOException
+	 */
+	public static MappedCCDoubleMatrix2D mapSparseCSC(File file) throws IOException {
+		Preconditions.checkNotNull(file, "File cannot be null!");
+		Preconditions.checkArgument(file.exists(), "File doesn't exist!");
+		
+		// mappings stay valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Preconditions.checkState(channel.size() >= CSC_HEADER_BYTES, "Not a CSC matrix file: %s", file);
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, CSC_HEADER_BYTES);
+			Preconditions.checkState(header.order(ByteOrder.BIG_ENDIAN).getInt() == CSC_MAGIC,
+					"Not a CSC matrix file: %s", file);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			int version = header.getInt();
+			Preconditions.checkState(version == CSC_VERSION, "Unsupported CSC matrix file version: %s", version);
+			int nRows = header.getInt();
+			int nCols = header.getInt();
+			long nVals = header.getLong();
+			
+			long pointerOffset = CSC_HEADER_BYTES;
+			long rowOffset = pointerOffset + 8l*(nCols+1);
+			long valueOffset = rowOffset + 4l*nVals + (nVals % 2 == 1 ? 4l : 0l);
+			Preconditions.checkState(channel.size() >= valueOffset + 8l*nVals,
+					"CSC matrix file is truncated: %s", file);
+			
+			LongBuffer colPointers = channel.map(MapMode.READ_ONLY, pointerOffset, 8l*(nCols+1))
+					.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+			
+			long chunkSize = 1l << CSC_CHUNK_SHIFT;
+			int numChunks = (int)((nVals + chunkSize - 1) / chunkSize);
+			IntBuffer[] rowChunks = new IntBuffer[numChunks];
+			DoubleBuffer[] valueChunks = new DoubleBuffer[numChunks];
+			for (int c=0; c<numChunks; c++) {
+				long start = c*chunkSize;
+				long num = Long.min(chunkSize, nVals - start);
+				rowChunks[c] = channel.map(MapMode.READ_ONLY, rowOffset + 4l*start, 4l*num)
+						.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+				valueChunks[c] = channel.map(MapMode.READ_ONLY, valueOffset + 8l*start, 8l*num)
+						.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			}
+			
+			return new MappedCCDoubleMatrix2D(nRows, nCols, colPointers, rowChunks, valueChunks, CSC_CHUNK_SHIFT);
+		}
+	}
+		
+	/*
+	 * Compressed sparse row (CSR) binary format for lists of int or float arrays, which can be memory mapped and
+	 * used directly. All values are little endian (except for the magic number):
+	 * 
+	 * header (32 bytes): magic number, int version, int value type (0 for int, 1 for float), int number of arrays,
+	 * long number of values, zero padding
+	 * offsets: (arrays+1) ints, index of the first value of each array (and the total number of values)
+	 * values: (number of values) ints or floats
+	 */
+	// first byte has the high bit set, so this can't be confused with the list size at the start of the
+	// array list formats when read as a big endian int
+	private static final int CSR_MAGIC = 0x89435352; // 0x89 'C' 'S' 'R'
+	private static final int CSR_VERSION = 1;
+	private static final int CSR_HEADER_BYTES = 32;
+	private static final int CSR_TYPE_INT = 0;
+	private static final int CSR_TYPE_FLOAT = 1;
+	
+	/**
+	 * Writes the given list of int arrays to a file in CSR format. Unlike {@link MatrixIO.intArraysListToFile},
+	 * these files can be memory mapped with {@link MatrixIO.mapIntArraysCSR} without any parsing or per array
+	 * objects. They can also be read by {@link MatrixIO.intArraysListFromFile}.
+	 * @param list
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void intArraysListToCSRFile(List<int[]> list, File file) throws IOException {
+		Preconditions.checkNotNull(list, "list cannot be null!");
+		Preconditions.checkArgument(!list.isEmpty(), "list cannot be empty!");
+		
+		int[] lengths = new int[list.size()];
+		for (int i=0; i<lengths.length; i++)
+			lengths[i] = list.get(i).length;
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = writeCSRHeaderAndOffsets(channel, CSR_TYPE_INT, lengths);
+			for (int[] array : list) {
+				for (int val : array) {
+					if (buffer.remaining() < 4)
+						flush(channel, buffer);
+					buffer.putInt(val);
+				}
+			}
+			flush(channel, buffer);
+		}
+	}
+	
+	/**
+	 * Writes the given list of float arrays to a file in CSR format. Unlike {@link MatrixIO.floatArraysListToFile},
+	 * these files can be memory mapped with {@link MatrixIO.mapFloatArraysCSR} without any parsing or per array
+	 * objects. They can also be read by {@link MatrixIO.floatArraysListFromFile}.
+	 * @param list
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void floatArraysListToCSRFile(List<float[]> list, File file) throws IOException {
+		Preconditions.checkNotNull(list, "list cannot be null!");
+		Preconditions.checkArgument(!list.isEmpty(), "list cannot be empty!");
+		
+		int[] lengths = new int[list.size()];
+		for (int i=0; i<lengths.length; i++)
+			lengths[i] = list.get(i).length;
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = writeCSRHeaderAndOffsets(channel, CSR_TYPE_FLOAT, lengths);
+			for (float[] array : list) {
+				for (float val : array) {
+					if (buffer.remaining() < 4)
+						flush(channel, buffer);
+					buffer.putFloat(val);
+				}
+			}
+			flush(channel, buffer);
+		}
+	}
+	
+	/**
+	 * Writes the CSR header and offsets, and returns the (partially filled) buffer for writing values
+	 */
+	private static ByteBuffer writeCSRHeaderAndOffsets(FileChannel channel, int type, int[] lengths)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(CSC_BUFFER_BYTES);
+		buffer.order(ByteOrder.BIG_ENDIAN).putInt(CSR_MAGIC);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(CSR_VERSION);
+		buffer.putInt(type);
+		buffer.putInt(lengths.length);
+		long numVals = 0;
+		for (int length : lengths)
+			numVals += length;
+		Preconditions.checkState(numVals <= Integer.MAX_VALUE, "Too many values for a CSR file: %s", numVals);
+		buffer.putLong(numVals);
+		while (buffer.position() < CSR_HEADER_BYTES)
+			buffer.put((byte)0);
+		
+		int offset = 0;
+		for (int i=0; i<=lengths.length; i++) {
+			if (buffer.remaining() < 4)
+				flush(channel, buffer);
+			buffer.putInt(offset);
+			if (i < lengths.length)
+				offset += lengths[i];
+		}
+		return buffer;
+	}
+	
+	/**
+	 * @param file
+	 * @return true if the given file starts with the CSR magic number
+	 * @throws IOException
+	 */
+	private static boolean isCSRFile(File file) throws IOException {
+		if (file.length() < CSR_HEADER_BYTES)
+			return false;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == CSR_MAGIC;
+		}
+	}
+	
+	/**
+	 * Memory maps a list of int arrays saved in the CSR format of {@link MatrixIO.intArraysListToCSRFile}. The
+	 * returned list is read only and reads directly from the mapped file, so it is shared through the page cache
+	 * between processes. The file must not be modified while the list is in use.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static CSRIntArraysList mapIntArraysCSR(File file) throws IOException {
+		ByteBuffer[] buffers = mapCSR(file, CSR_TYPE_INT);
+		return new CSRIntArraysList(buffers[0].asIntBuffer(), buffers[1].asIntBuffer());
+	}
+	
+	/**
+	 * Memory maps a list of float arrays saved in the CSR format of {@link MatrixIO.floatArraysListToCSRFile}. The
+	 * returned list is read only and reads directly from the mapped file, so it is shared through the page cache
+	 * between processes. The file must not be modified while the list is in use.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static CSRFloatArraysList mapFloatArraysCSR(File file) throws IOException {
+		ByteBuffer[] buffers = mapCSR(file, CSR_TYPE_FLOAT);
+		return new CSRFloatArraysList(buffers[0].asIntBuffer(), buffers[1].asFloatBuffer());
+	}
+	
+	/**
+	 * @return little endian offsets and values buffers
+	 */
+	private static ByteBuffer[] mapCSR(File file, int type) throws IOException {
+		Preconditions.checkNotNull(file, "File cannot be null!");
+		Preconditions.checkArgument(file.exists(), "File doesn't exist!");
+		
+		// mappings stay valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Preconditions.checkState(channel.size() >= CSR_HEADER_BYTES, "Not a CSR file: %s", file);
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, CSR_HEADER_BYTES);
+			Preconditions.checkState(header.order(ByteOrder.BIG_ENDIAN).getInt() == CSR_MAGIC,
+					"Not a CSR file: %s", file);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			int[] counts = readCSRHeader(header, type);
+			
+			long offsetsStart = CSR_HEADER_BYTES;
+			long valuesStart = offsetsStart + 4l*(counts[0]+1);
+			Preconditions.checkState(channel.size() >= valuesStart + 4l*counts[1], "CSR file is truncated: %s", file);
+			
+			ByteBuffer offsets = channel.map(MapMode.READ_ONLY, offsetsStart, 4l*(counts[0]+1))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer values = channel.map(MapMode.READ_ONLY, valuesStart, 4l*counts[1])
+					.order(ByteOrder.LITTLE_ENDIAN);
+			return new ByteBuffer[] { offsets, values };
+		}
+	}
+	
+	/**
+	 * Reads the rest of a CSR file (after the magic number) from the given stream into heap buffers
+	 * @return little endian offsets and values buffers
+	 */
+	private static ByteBuffer[] loadCSR(DataInputStream in, int type) throws IOException {
+		ReadableByteChannel channel = Channels.newChannel(in);
+		ByteBuffer header = ByteBuffer.allocate(CSR_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header, CSR_HEADER_BYTES - 4);
+		int[] counts = readCSRHeader(header, type);
+		Preconditions.checkState(counts[0] < Integer.MAX_VALUE/4 && counts[1] < Integer.MAX_VALUE/4,
+				"CSR file is too large to load into memory, memory map it instead");
+		
+		ByteBuffer offsets = ByteBuffer.allocate(4*(counts[0]+1)).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, offsets, offsets.capacity());
+		ByteBuffer values = ByteBuffer.allocate(4*counts[1]).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, values, values.capacity());
+		return new ByteBuffer[] { offsets, values };
+	}
+	
+	/**
+	 * Reads the CSR header after the magic number
+	 * @return number of arrays, number of values
+	 */
+	private static int[] readCSRHeader(ByteBuffer header, int type) {
+		int version = header.getInt();
+		Preconditions.checkState(version == CSR_VERSION, "Unsupported CSR file version: %s", version);
+		int fileType = header.getInt();
+		Preconditions.checkState(fileType == type, "CSR file value type is %s, expected %s", fileType, type);
+		int numArrays = header.getInt();
+		long numVals = header.getLong();
+		Preconditions.checkState(numArrays > 0, "Size must be > 0!");
+		Preconditions.checkState(numVals >= 0 && numVals <= Integer.MAX_VALUE, "Bad CSR value count: %s", numVals);
+		return new int[] { numArrays, (int)numVals };
+	}
+
 	/**
 	 * Writes the given double array to a file. Output file simply contains a series of big endian double values.
 	 * @param array
@@ -201,6 +711,16 @@ public class MatrixIO {
 		Preconditions.checkArgument(file.exists(), "File doesn't exist!");
 
 		long len = file.length();
+		
+		if (len > 0 && len % 8 == 0 && len <= Integer.MAX_VALUE) {
+			// bulk read through a memory mapped buffer rather than parsing each value from a stream
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				DoubleBuffer buffer = channel.map(MapMode.READ_ONLY, 0, len).asDoubleBuffer();
+				double[] array = new double[buffer.remaining()];
+				buffer.get(array);
+				return array;
+			}
+		}
 
 		return doubleArrayFromInputStream(new FileInputStream(file), len);
 	}
@@ -437,7 +957,8 @@ public class MatrixIO {
 
 
 	/**
-	 * Reads a file created by {@link MatrixIO.floatArraysListFromFile} into a float array.
+	 * Reads a file created by {@link MatrixIO.floatArraysListFromFile} into a float array. Files in the CSR format
+	 * of {@link MatrixIO.floatArraysListToCSRFile} are memory mapped instead (see {@link MatrixIO.mapFloatArraysCSR}).
 	 * @param file
 	 * @return
 	 * @throws IOException
@@ -445,6 +966,9 @@ public class MatrixIO {
 	public static List<float[]> floatArraysListFromFile(File file) throws IOException {
 		Preconditions.checkNotNull(file, "File cannot be null!");
 		Preconditions.checkArgument(file.exists(), "File doesn't exist!");
+		
+		if (isCSRFile(file))
+			return mapFloatArraysCSR(file);
 
 		long len = file.length();
 		Preconditions.checkState(len > 0, "file is empty!");
@@ -468,6 +992,12 @@ public class MatrixIO {
 		DataInputStream in = new DataInputStream(is);
 
 		int size = in.readInt();
+		
+		if (size == CSR_MAGIC) {
+			ByteBuffer[] buffers = loadCSR(in, CSR_TYPE_FLOAT);
+			in.close();
+			return new CSRFloatArraysList(buffers[0].asIntBuffer(), buffers[1].asFloatBuffer());
+		}
 
 		Preconditions.checkState(size > 0, "Size must be > 0!");
 
@@ -726,7 +1256,8 @@ public class MatrixIO {
 
 	/**
 	 * Reads a file created by {@link MatrixIO.intListListToFile} or {@link MatrixIO.intArraysListToFile}
-	 * into an integer array list.
+	 * into an integer array list. Files in the CSR format of {@link MatrixIO.intArraysListToCSRFile} are
+	 * memory mapped instead (see {@link MatrixIO.mapIntArraysCSR}).
 	 * @param file
 	 * @return
 	 * @throws IOException
@@ -734,6 +1265,9 @@ public class MatrixIO {
 	public static List<int[]> intArraysListFromFile(File file) throws IOException {
 		Preconditions.checkNotNull(file, "File cannot be null!");
 		Preconditions.checkArgument(file.exists(), "File doesn't exist!");
+		
+		if (isCSRFile(file))
+			return mapIntArraysCSR(file);
 
 		long len = file.length();
 		Preconditions.checkState(len > 0, "file is empty!");
@@ -759,6 +1293,12 @@ public class MatrixIO {
 		DataInputStream in = new DataInputStream(is);
 
 		int size = in.readInt();
+		
+		if (size == CSR_MAGIC) {
+			ByteBuffer[] buffers = loadCSR(in, CSR_TYPE_INT);
+			in.close();
+			return new CSRIntArraysList(buffers[0].asIntBuffer(), buffers[1].asIntBuffer());
+		}
 
 		Preconditions.checkState(size > 0, "Size must be > 0!");
 
@@ -0,0 +1,226 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.IDPairing;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.faultSurface.FaultTrace;
+
+public class SectionDistanceAzimuthCalculatorTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static FaultSection buildSect(int id, double lat, double lon, double length) {
+		// north-south trace so that it never crosses the antimeridian itself
+		Location start = new Location(lat, lon);
+		Location end = new Location(lat + length/111d, lon);
+		FaultTrace trace = new FaultTrace("");
+		trace.add(start);
+		trace.add(end);
+		FaultSectionPrefData sect = new FaultSectionPrefData();
+		sect.setFaultTrace(trace);
+		sect.setAveDip(90d);
+		sect.setDipDirection((float)(trace.getAveStrike() + 90d));
+		sect.setAveUpperDepth(0d);
+		sect.setAveLowerDepth(12d);
+		sect.setSectionId(id);
+		return sect;
+	}
+
+	/**
+	 * Builds random sections within the given longitude range, which can extend past 180 (in which case longitudes
+	 * are wrapped to negative values)
+	 */
+	private static List<FaultSection> buildRandomSects(Random r, int num, double minLat, double maxLat,
+			double minLon, double maxLon) {
+		List<FaultSection> sects = new ArrayList<>();
+		for (int id=0; id<num; id++) {
+			double lat = minLat + r.nextDouble()*(maxLat - minLat);
+			double lon = minLon + r.nextDouble()*(maxLon - minLon);
+			if (lon > 180d)
+				lon -= 360d;
+			sects.add(buildSect(id, lat, lon, 5d + 10d*r.nextDouble()));
+		}
+		return sects;
+	}
+
+	private static List<IDPairing> getBruteForcePairs(SectionDistanceAzimuthCalculator calc, double maxDist) {
+		int num = calc.getSubSections().size();
+		List<IDPairing> pairs = new ArrayList<>();
+		for (int id1=0; id1<num; id1++)
+			for (int id2=id1+1; id2<num; id2++)
+				if (calc.getDistanceLowerBound(id1, id2) <= maxDist)
+					pairs.add(new IDPairing(id1, id2));
+		return pairs;
+	}
+
+	private static void checkCandidatePairs(List<FaultSection> sects, double maxDist) {
+		SectionDistanceAzimuthCalculator calc = new SectionDistanceAzimuthCalculator(sects);
+		List<IDPairing> expected = getBruteForcePairs(calc, maxDist);
+		List<IDPairing> actual = calc.getCandidatePairsWithin(maxDist);
+		assertEquals("Candidate pair count mismatch", expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			assertEquals(expected.get(i).getID1(), actual.get(i).getID1());
+			assertEquals(expected.get(i).getID2(), actual.get(i).getID2());
+		}
+	}
+
+	@Test
+	public void testCandidatePairs() {
+		Random r = new Random(12345l);
+		List<FaultSection> sects = buildRandomSects(r, 300, 33d, 36d, -121d, -116d);
+		checkCandidatePairs(sects, 5d);
+		checkCandidatePairs(sects, 20d);
+		checkCandidatePairs(sects, 100d);
+	}
+
+	@Test
+	public void testCandidatePairsAcrossAntimeridian() {
+		Random r = new Random(12345l);
+		List<FaultSection> sects = buildRandomSects(r, 300, 50d, 53d, 177d, 183d);
+		// these two are about 7 km apart, on either side of the antimeridian
+		sects.add(buildSect(sects.size(), 51d, 179.95d, 10d));
+		sects.add(buildSect(sects.size(), 51d, -179.95d, 10d));
+		checkCandidatePairs(sects, 5d);
+		checkCandidatePairs(sects, 20d);
+		checkCandidatePairs(sects, 100d);
+
+		SectionDistanceAzimuthCalculator calc = new SectionDistanceAzimuthCalculator(sects);
+		boolean found = false;
+		for (IDPairing pair : calc.getCandidatePairsWithin(20d))
+			found = found || (pair.getID1() == sects.size()-2 && pair.getID2() == sects.size()-1);
+		assertTrue("Pair across the antimeridian not found", found);
+	}
+
+	@Test
+	public void testCandidatePairsHighLatitude() {
+		Random r = new Random(12345l);
+		// longitude cells are large here, and may collapse to a single cell
+		checkCandidatePairs(buildRandomSects(r, 200, 85d, 88d, -180d, 180d), 50d);
+		checkCandidatePairs(buildRandomSects(r, 200, 70d, 75d, 170d, 190d), 50d);
+	}
+
+	/**
+	 * Sets random distances and azimuths for a random subset of pairs in each calculator, using only ID1 values with
+	 * (id1 % numParts) == part so that partial caches don't overlap. Expected values are NaN where not set.
+	 */
+	private static void populateCache(Random r, SectionDistanceAzimuthCalculator calc, double fract, int part,
+			int numParts, double[][] expectedDists, double[][] expectedAzs) {
+		int num = calc.getSubSections().size();
+		for (int id1=0; id1<num; id1++) {
+			if (id1 % numParts != part)
+				continue;
+			for (int id2=0; id2<num; id2++) {
+				if (id1 == id2)
+					continue;
+				if (id1 < id2 && r.nextDouble() < fract) {
+					double dist = 100d*r.nextDouble();
+					calc.setDistance(id1, id2, dist);
+					expectedDists[id1][id2] = dist;
+					expectedDists[id2][id1] = dist;
+				}
+				if (r.nextDouble() < fract) {
+					double az = 360d*r.nextDouble() - 180d;
+					calc.setAzimuth(id1, id2, az);
+					expectedAzs[id1][id2] = az;
+				}
+			}
+		}
+	}
+
+	private static double[][] buildNaNs(int num) {
+		double[][] ret = new double[num][num];
+		for (double[] row : ret)
+			for (int i=0; i<num; i++)
+				row[i] = Double.NaN;
+		return ret;
+	}
+
+	private static int countFinite(double[][] vals, boolean upperOnly) {
+		int count = 0;
+		for (int i=0; i<vals.length; i++)
+			for (int j=upperOnly ? i+1 : 0; j<vals.length; j++)
+				if (Double.isFinite(vals[i][j]))
+					count++;
+		return count;
+	}
+
+	private static void checkCache(double[][] expectedDists, double[][] expectedAzs,
+			SectionDistanceAzimuthCalculator calc) {
+		assertEquals(countFinite(expectedDists, true), calc.getNumCachedDistances());
+		assertEquals(countFinite(expectedAzs, false), calc.getNumCachedAzimuths());
+		int num = expectedDists.length;
+		for (int id1=0; id1<num; id1++) {
+			for (int id2=0; id2<num; id2++) {
+				if (id1 == id2)
+					continue;
+				boolean hasDist = Double.isFinite(expectedDists[id1][id2]);
+				assertEquals(hasDist, calc.isDistanceCached(id1, id2));
+				if (hasDist)
+					assertEquals(expectedDists[id1][id2], calc.getDistance(id1, id2), 0d);
+				boolean hasAz = Double.isFinite(expectedAzs[id1][id2]);
+				assertEquals(hasAz, calc.isAzimuthCached(id1, id2));
+				if (hasAz)
+					assertEquals(expectedAzs[id1][id2], calc.getAzimuth(id1, id2), 0d);
+			}
+		}
+	}
+
+	@Test
+	public void testCacheFileRoundTrip() throws IOException {
+		List<FaultSection> sects = buildRandomSects(new Random(12345l), 100, 33d, 36d, -121d, -116d);
+		double[][] expectedDists = buildNaNs(sects.size());
+		double[][] expectedAzs = buildNaNs(sects.size());
+		SectionDistanceAzimuthCalculator calc = new SectionDistanceAzimuthCalculator(sects);
+		populateCache(new Random(12345l), calc, 0.3, 0, 1, expectedDists, expectedAzs);
+
+		for (String name : new String[] { "dist_az_cache.bin", "dist_az_cache.csv" }) {
+			File file = tmp.newFile(name);
+			calc.writeCacheFile(file);
+			SectionDistanceAzimuthCalculator loaded = new SectionDistanceAzimuthCalculator(sects);
+			loaded.loadCacheFile(file);
+			checkCache(expectedDists, expectedAzs, loaded);
+		}
+	}
+
+	@Test
+	public void testMergeCacheFiles() throws IOException {
+		List<FaultSection> sects = buildRandomSects(new Random(12345l), 100, 33d, 36d, -121d, -116d);
+		double[][] expectedDists = buildNaNs(sects.size());
+		double[][] expectedAzs = buildNaNs(sects.size());
+		Random r = new Random(12345l);
+		File[] files = new File[2];
+		for (int i=0; i<files.length; i++) {
+			SectionDistanceAzimuthCalculator partial = new SectionDistanceAzimuthCalculator(sects);
+			populateCache(r, partial, 0.3, i, 3, expectedDists, expectedAzs);
+			files[i] = tmp.newFile("partial_"+i+".bin");
+			partial.writeCacheFile(files[i]);
+		}
+
+		// values already in memory are retained, and merged with each mapped file
+		SectionDistanceAzimuthCalculator merged = new SectionDistanceAzimuthCalculator(sects);
+		populateCache(r, merged, 0.3, 2, 3, expectedDists, expectedAzs);
+		for (File file : files)
+			merged.loadCacheFile(file);
+		checkCache(expectedDists, expectedAzs, merged);
+
+		// write over one of the mapped files
+		merged.writeCacheFile(files[0]);
+		SectionDistanceAzimuthCalculator reloaded = new SectionDistanceAzimuthCalculator(sects);
+		reloaded.loadCacheFile(files[0]);
+		checkCache(expectedDists, expectedAzs, reloaded);
+	}
+
+}
@@ -63,6 +63,51 @@ public class UniqueRuptureTest {
 					UniqueRupture.forIDs(union(cluster(0, 25, r.nextBoolean()))));
 	}
 	
+	@Test
+	public void testAdd() {
+		for (int i=0; i<10; i++) {
+			UniqueRupture rup1 = UniqueRupture.forIDs(union(cluster(0, 10, r.nextBoolean()), cluster(20, 30, r.nextBoolean())));
+			UniqueRupture rup2 = UniqueRupture.forIDs(union(cluster(11, 15, r.nextBoolean()), cluster(40, 45, r.nextBoolean())));
+			UniqueRupture expected = UniqueRupture.forIDs(union(cluster(0, 15, r.nextBoolean()),
+					cluster(20, 30, r.nextBoolean()), cluster(40, 45, r.nextBoolean())));
+			checkEquals(expected, UniqueRupture.add(rup1, rup2));
+			checkEquals(expected, UniqueRupture.add(rup2, rup1));
+			checkEquals(expected, UniqueRupture.builder().add(rup2).add(rup1).build());
+			testContains(UniqueRupture.add(rup1, rup2));
+		}
+		// fills the gap between two ranges
+		checkEquals(UniqueRupture.forIDs(cluster(0, 30, false)),
+				UniqueRupture.add(UniqueRupture.forIDs(union(cluster(0, 10, false), cluster(20, 30, false))),
+						UniqueRupture.forIDs(cluster(11, 19, r.nextBoolean()))));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testAddOverlap() {
+		UniqueRupture.add(UniqueRupture.forIDs(cluster(0, 10, false)), UniqueRupture.forIDs(cluster(10, 20, false)));
+	}
+	
+	@Test
+	public void testProbe() {
+		HashSet<UniqueRupture> set = new HashSet<>();
+		UniqueRupture rup1 = UniqueRupture.forIDs(union(cluster(0, 10, r.nextBoolean()), cluster(20, 30, r.nextBoolean())));
+		UniqueRupture rup2 = UniqueRupture.forIDs(cluster(11, 15, r.nextBoolean()));
+		UniqueRupture rup3 = UniqueRupture.forIDs(cluster(40, 45, r.nextBoolean()));
+		set.add(UniqueRupture.add(rup1, rup2));
+		
+		UniqueRupture.Probe probe = new UniqueRupture.Probe();
+		assertTrue(probe.set(rup1, rup2));
+		assertTrue(set.contains(probe));
+		assertEquals(UniqueRupture.add(rup1, rup2).longHashCode(), probe.longHashCode());
+		checkEquals(UniqueRupture.add(rup1, rup2), probe.build());
+		assertTrue(probe.set(rup2, rup1));
+		assertTrue(set.contains(probe));
+		assertTrue(probe.set(rup1, rup3));
+		assertFalse(set.contains(probe));
+		// overlapping
+		assertFalse(probe.set(rup1, rup1));
+		assertFalse(set.contains(probe));
+	}
+	
 	@SafeVarargs
 	private static List<Integer> union(List<Integer>... clusters) {
 		List<Integer> ret = new ArrayList<>();
@@ -0,0 +1,198 @@
+package org.opensha.sha.simulators.stiffness;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensha.commons.geo.Location;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.AggregationMethod;
+import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.StiffnessAggregation;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.StiffnessType;
+
+public class AggregatedStiffnessCacheTest {
+
+	private static final int numSects = 40;
+	// patch aggregation methods for each cache block, null is the full distribution
+	private static final AggregationMethod[] patchMethods = { null, AggregationMethod.MEDIAN, AggregationMethod.MAX };
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static List<FaultSection> sects;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		sects = new ArrayList<>();
+		for (int id=0; id<numSects; id++) {
+			FaultTrace trace = new FaultTrace("");
+			trace.add(new Location(34d + 0.1*id, -118d));
+			trace.add(new Location(34.09 + 0.1*id, -118d));
+			FaultSectionPrefData sect = new FaultSectionPrefData();
+			sect.setFaultTrace(trace);
+			sect.setAveDip(90d);
+			sect.setDipDirection((float)(trace.getAveStrike() + 90d));
+			sect.setAveUpperDepth(0d);
+			sect.setAveLowerDepth(12d);
+			sect.setSectionId(id);
+			sects.add(sect);
+		}
+	}
+
+	private static AggregatedStiffnessCache buildCache(double coeffOfFriction) {
+		SubSectStiffnessCalculator calc = new SubSectStiffnessCalculator(sects, 2d, 3e4, 3e4, coeffOfFriction);
+		return calc.getAggregationCache(StiffnessType.CFF);
+	}
+
+	/**
+	 * Puts random aggregations for a random subset of receiver/source pairs (some receivers have none) into the
+	 * given cache, and records them in expected. Only sources with (source % numParts) == part are used, so that
+	 * partial caches don't overlap.
+	 */
+	private static void populate(Random r, AggregatedStiffnessCache cache, double fract, int part, int numParts,
+			Map<AggregationMethod, StiffnessAggregation[][]> expected) {
+		for (AggregationMethod patchMethod : patchMethods) {
+			StiffnessAggregation[][] vals = expected.get(patchMethod);
+			if (vals == null) {
+				vals = new StiffnessAggregation[numSects][numSects];
+				expected.put(patchMethod, vals);
+			}
+			for (int receiver=0; receiver<numSects; receiver++) {
+				if (receiver % 7 == 3)
+					continue;
+				for (int source=0; source<numSects; source++) {
+					if (source % numParts != part || r.nextDouble() >= fract)
+						continue;
+					double[] values = new double[1 + r.nextInt(20)];
+					for (int i=0; i<values.length; i++)
+						values[i] = r.nextGaussian();
+					StiffnessAggregation agg = new StiffnessAggregation(values, r.nextInt(1000));
+					cache.putSectAggregated(patchMethod, sects.get(source), sects.get(receiver), agg);
+					vals[receiver][source] = agg;
+				}
+			}
+		}
+	}
+
+	private static int countExpected(Map<AggregationMethod, StiffnessAggregation[][]> expected) {
+		int count = 0;
+		for (StiffnessAggregation[][] vals : expected.values())
+			for (StiffnessAggregation[] row : vals)
+				for (StiffnessAggregation agg : row)
+					if (agg != null)
+						count++;
+		return count;
+	}
+
+	private static void checkCache(Map<AggregationMethod, StiffnessAggregation[][]> expected,
+			AggregatedStiffnessCache cache) {
+		for (AggregationMethod patchMethod : patchMethods) {
+			StiffnessAggregation[][] vals = expected.get(patchMethod);
+			for (int receiver=0; receiver<numSects; receiver++) {
+				for (int source=0; source<numSects; source++) {
+					StiffnessAggregation agg = cache.getSectAggregated(patchMethod, sects.get(source),
+							sects.get(receiver));
+					if (vals[receiver][source] == null) {
+						assertNull(agg);
+					} else {
+						assertNotNull("Missing value for "+patchMethod+", receiver="+receiver+", source="+source,
+								agg);
+						for (AggregationMethod method : AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS)
+							assertEquals(vals[receiver][source].get(method), agg.get(method), 0d);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException {
+		Map<AggregationMethod, StiffnessAggregation[][]> expected = new HashMap<>();
+		AggregatedStiffnessCache cache = buildCache(0.5);
+		populate(new Random(12345l), cache, 0.3, 0, 1, expected);
+		int count = countExpected(expected);
+		assertEquals(count, cache.calcCacheSize());
+
+		File file = tmp.newFile(cache.getCacheFileName(true));
+		cache.writeCacheFile(file);
+
+		AggregatedStiffnessCache loaded = buildCache(0.5);
+		assertEquals(count, loaded.loadCacheFile(file));
+		assertEquals(count, loaded.calcCacheSize());
+		checkCache(expected, loaded);
+		assertEquals(count, loaded.calcCacheSize());
+	}
+
+	@Test
+	public void testCSVRoundTrip() throws IOException {
+		Map<AggregationMethod, StiffnessAggregation[][]> expected = new HashMap<>();
+		AggregatedStiffnessCache cache = buildCache(0.5);
+		populate(new Random(12345l), cache, 0.3, 0, 1, expected);
+
+		File csvFile = tmp.newFile(cache.getCacheFileName(false));
+		cache.writeCacheFile(csvFile);
+		AggregatedStiffnessCache loaded = buildCache(0.5);
+		assertEquals(countExpected(expected), loaded.loadCacheFile(csvFile));
+		checkCache(expected, loaded);
+
+		// and from CSV to binary
+		File binFile = tmp.newFile("from_csv.bin");
+		loaded.writeCacheFile(binFile);
+		AggregatedStiffnessCache fromBin = buildCache(0.5);
+		fromBin.loadCacheFile(binFile);
+		checkCache(expected, fromBin);
+	}
+
+	@Test
+	public void testMergePartialCaches() throws IOException {
+		Random r = new Random(12345l);
+		Map<AggregationMethod, StiffnessAggregation[][]> expected = new HashMap<>();
+		File[] files = new File[2];
+		for (int i=0; i<files.length; i++) {
+			AggregatedStiffnessCache partial = buildCache(0.5);
+			populate(r, partial, 0.3, i, 3, expected);
+			files[i] = tmp.newFile("partial_"+i+".bin");
+			partial.writeCacheFile(files[i]);
+		}
+
+		// values already in memory are retained, and rows which were loaded before mapping are merged
+		AggregatedStiffnessCache merged = buildCache(0.5);
+		populate(r, merged, 0.3, 2, 3, expected);
+		for (File file : files)
+			merged.loadCacheFile(file);
+		assertEquals(countExpected(expected), merged.calcCacheSize());
+		checkCache(expected, merged);
+
+		// write over one of the mapped files
+		merged.writeCacheFile(files[0]);
+		AggregatedStiffnessCache reloaded = buildCache(0.5);
+		reloaded.loadCacheFile(files[0]);
+		assertEquals(countExpected(expected), reloaded.calcCacheSize());
+		checkCache(expected, reloaded);
+	}
+
+	@Test
+	public void testMismatchedParameters() throws IOException {
+		AggregatedStiffnessCache cache = buildCache(0.5);
+		populate(new Random(12345l), cache, 0.3, 0, 1, new HashMap<>());
+		File file = tmp.newFile("mismatch.bin");
+		cache.writeCacheFile(file);
+
+		AggregatedStiffnessCache other = buildCache(0.2);
+		assertEquals(0, other.loadCacheFile(file));
+		assertEquals(0, other.calcCacheSize());
+	}
+
+}
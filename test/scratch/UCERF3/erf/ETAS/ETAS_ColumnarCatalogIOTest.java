@@ -0,0 +1,181 @@
+package scratch.UCERF3.erf.ETAS;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.ETAS_Catalog;
+import scratch.UCERF3.erf.ETAS.ETAS_ColumnarCatalogIO.ColumnarCatalogWriter;
+import scratch.UCERF3.erf.ETAS.ETAS_ColumnarCatalogIO.Column;
+
+public class ETAS_ColumnarCatalogIOTest {
+
+	private static File tempDir;
+	private static List<ETAS_Catalog> catalogs;
+
+	// not exactly representable as a float, rounds down when stored
+	private static final double boundaryMag = 6.7;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		tempDir = Files.createTempDir();
+
+		Random r = new Random(12345l);
+		catalogs = new ArrayList<>();
+		int id = 0;
+		long ot = 1325419200000l;
+		for (int c=0; c<5; c++) {
+			ETAS_Catalog catalog = new ETAS_Catalog(null);
+			int numRups = c == 2 ? 0 : 50 + r.nextInt(100);
+			for (int i=0; i<numRups; i++) {
+				ETAS_EqkRupture rup = new ETAS_EqkRupture();
+				rup.setID(id++);
+				rup.setParentID(i == 0 ? -1 : id - 1 - r.nextInt(i));
+				rup.setGeneration(r.nextInt(5));
+				ot += r.nextInt(1000000);
+				rup.setOriginTime(ot);
+				rup.setHypocenterLocation(new Location(32 + 10*r.nextDouble(), -125 + 10*r.nextDouble(),
+						15*r.nextDouble()));
+				if (c == 3)
+					// all below the boundary
+					rup.setMag(-1d + 6*r.nextDouble());
+				else if (i == numRups/2)
+					rup.setMag(boundaryMag);
+				else
+					rup.setMag(-1d + 8*r.nextDouble());
+				rup.setDistanceToParent(100*r.nextDouble());
+				rup.setNthERF_Index(r.nextInt(100000));
+				rup.setFSSIndex(r.nextBoolean() ? -1 : r.nextInt(250000));
+				rup.setGridNodeIndex(r.nextBoolean() ? -1 : r.nextInt(7000));
+				rup.setETAS_k(r.nextDouble());
+				catalog.add(rup);
+			}
+			catalogs.add(catalog);
+		}
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static File writeColumnar(String name) throws IOException {
+		File file = new File(tempDir, name);
+		ColumnarCatalogWriter writer = new ColumnarCatalogWriter(file);
+		for (ETAS_Catalog catalog : catalogs)
+			writer.write(catalog);
+		writer.close();
+		assertEquals(catalogs.size(), writer.getNumCatalogs());
+		return file;
+	}
+
+	private static void assertFloatEquals(double expected, double actual) {
+		assertEquals((float)expected, actual, 0d);
+	}
+
+	private static void assertRupEquals(ETAS_EqkRupture expected, ETAS_EqkRupture actual) {
+		assertEquals(expected.getID(), actual.getID());
+		assertEquals(expected.getParentID(), actual.getParentID());
+		assertEquals(expected.getGeneration(), actual.getGeneration());
+		assertEquals(expected.getOriginTime(), actual.getOriginTime());
+		Location expectedHypo = expected.getHypocenterLocation();
+		Location actualHypo = actual.getHypocenterLocation();
+		assertFloatEquals(expectedHypo.getLatitude(), actualHypo.getLatitude());
+		assertFloatEquals(expectedHypo.getLongitude(), actualHypo.getLongitude());
+		assertFloatEquals(expectedHypo.getDepth(), actualHypo.getDepth());
+		assertFloatEquals(expected.getMag(), actual.getMag());
+		assertFloatEquals(expected.getDistanceToParent(), actual.getDistanceToParent());
+		assertEquals(expected.getNthERF_Index(), actual.getNthERF_Index());
+		assertEquals(expected.getFSSIndex(), actual.getFSSIndex());
+		assertEquals(expected.getGridNodeIndex(), actual.getGridNodeIndex());
+		assertFloatEquals(expected.getETAS_k(), actual.getETAS_k());
+	}
+
+	private static void assertCatalogsEqual(List<ETAS_Catalog> expected, List<ETAS_Catalog> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int c=0; c<expected.size(); c++) {
+			assertEquals("catalog "+c+" size mismatch", expected.get(c).size(), actual.get(c).size());
+			for (int i=0; i<expected.get(c).size(); i++)
+				assertRupEquals(expected.get(c).get(i), actual.get(c).get(i));
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File file = writeColumnar("round_trip.etcc");
+		assertCatalogsEqual(catalogs, ETAS_ColumnarCatalogIO.loadCatalogs(file));
+	}
+
+	@Test
+	public void testMinMagFilter() throws IOException {
+		File file = writeColumnar("min_mag.etcc");
+		List<ETAS_Catalog> loaded = ETAS_ColumnarCatalogIO.loadCatalogs(
+				file, boundaryMag, EnumSet.allOf(Column.class));
+		assertEquals(catalogs.size(), loaded.size());
+		for (int c=0; c<catalogs.size(); c++) {
+			ETAS_Catalog expected = new ETAS_Catalog(null);
+			for (ETAS_EqkRupture rup : catalogs.get(c))
+				if ((float)rup.getMag() >= (float)boundaryMag)
+					expected.add(rup);
+			ETAS_Catalog actual = loaded.get(c);
+			assertEquals("catalog "+c+" size mismatch", expected.size(), actual.size());
+			for (int i=0; i<expected.size(); i++)
+				assertRupEquals(expected.get(i), actual.get(i));
+			if (c == 3)
+				assertTrue("catalog entirely below min mag should be empty", actual.isEmpty());
+			else if (!catalogs.get(c).isEmpty())
+				// rupture exactly at the min mag must be kept even though its stored value rounded down
+				assertTrue("rupture at min mag was filtered", hasBoundaryRup(actual));
+		}
+	}
+
+	private static boolean hasBoundaryRup(ETAS_Catalog catalog) {
+		for (ETAS_EqkRupture rup : catalog)
+			if ((float)rup.getMag() == (float)boundaryMag)
+				return true;
+		return false;
+	}
+
+	@Test
+	public void testColumnSubset() throws IOException {
+		File file = writeColumnar("subset.etcc");
+		List<ETAS_Catalog> loaded = ETAS_ColumnarCatalogIO.loadCatalogs(
+				file, -10d, EnumSet.of(Column.ORIGIN_TIME, Column.MAGNITUDE));
+		assertEquals(catalogs.size(), loaded.size());
+		for (int c=0; c<catalogs.size(); c++) {
+			assertEquals(catalogs.get(c).size(), loaded.get(c).size());
+			for (int i=0; i<catalogs.get(c).size(); i++) {
+				ETAS_EqkRupture expected = catalogs.get(c).get(i);
+				ETAS_EqkRupture actual = loaded.get(c).get(i);
+				assertEquals(expected.getOriginTime(), actual.getOriginTime());
+				assertFloatEquals(expected.getMag(), actual.getMag());
+				assertNull("hypocenter shouldn't be loaded", actual.getHypocenterLocation());
+			}
+		}
+	}
+
+	@Test
+	public void testConvertBinary() throws IOException {
+		File binFile = new File(tempDir, "results_complete.bin");
+		ETAS_CatalogIO.writeCatalogsBinary(binFile, catalogs);
+		File columnarFile = new File(tempDir, "converted.etcc");
+		int numCatalogs = ETAS_ColumnarCatalogIO.convertBinaryCatalogs(binFile, columnarFile);
+		assertEquals(catalogs.size(), numCatalogs);
+		// includes negative magnitudes, which must not be dropped on conversion
+		assertCatalogsEqual(catalogs, ETAS_ColumnarCatalogIO.loadCatalogs(columnarFile));
+	}
+
+}
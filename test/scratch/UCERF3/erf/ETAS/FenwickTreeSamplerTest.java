@@ -0,0 +1,149 @@
+package scratch.UCERF3.erf.ETAS;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.StatUtils;
+import org.junit.Test;
+
+public class FenwickTreeSamplerTest {
+
+	/**
+	 * Integer valued weights so that all partial sums are exact, including some runs of zeros at either end
+	 */
+	private static double[] buildWeights(Random r, int num) {
+		double[] weights = new double[num];
+		for (int i=0; i<num; i++)
+			weights[i] = r.nextInt(4) == 0 ? 0d : 1 + r.nextInt(100);
+		for (int i=0; i<3; i++) {
+			weights[i] = 0d;
+			weights[num-1-i] = 0d;
+		}
+		weights[num/2] = 1d;
+		return weights;
+	}
+
+	/**
+	 * @return first index where the cumulative weight exceeds randDouble*sum
+	 */
+	private static int linearSample(double[] weights, double randDouble) {
+		double target = randDouble*StatUtils.sum(weights);
+		double cumulative = 0d;
+		for (int i=0; i<weights.length; i++) {
+			cumulative += weights[i];
+			if (cumulative > target)
+				return i;
+		}
+		throw new IllegalStateException("Random value past end of distribution");
+	}
+
+	private static void checkMatchesLinear(FenwickTreeSampler sampler, double[] weights, Random r) {
+		double total = StatUtils.sum(weights);
+		assertEquals(total, sampler.calcSumOfY_Vals(), 0d);
+		for (int i=0; i<10000; i++) {
+			double randDouble = r.nextDouble();
+			assertEquals("Mismatch for rand="+randDouble, linearSample(weights, randDouble),
+					sampler.getRandomInt(randDouble));
+		}
+		// exactly on each cumulative boundary, which must go to the next nonzero weight
+		double cumulative = 0d;
+		for (int i=0; i<weights.length-1; i++) {
+			cumulative += weights[i];
+			if (cumulative == total)
+				break;
+			double randDouble = cumulative/total;
+			int index = sampler.getRandomInt(randDouble);
+			assertTrue("Zero weight index "+index+" returned", weights[index] > 0d);
+			assertEquals("Mismatch at boundary "+i, linearSample(weights, randDouble), index);
+		}
+	}
+
+	@Test
+	public void testMatchesCumulative() {
+		Random r = new Random(12345l);
+		for (int num : new int[] {7, 8, 64, 100, 1000}) {
+			double[] weights = buildWeights(r, num);
+			FenwickTreeSampler sampler = new FenwickTreeSampler(weights.clone());
+			checkMatchesLinear(sampler, weights, r);
+		}
+	}
+
+	@Test
+	public void testDistribution() {
+		Random r = new Random(12345l);
+		double[] weights = buildWeights(r, 50);
+		FenwickTreeSampler sampler = new FenwickTreeSampler(weights.clone());
+		// evenly spaced random values, so the expected counts are known to within a sample or so
+		int numSamples = 1000000;
+		int[] counts = new int[weights.length];
+		for (int i=0; i<numSamples; i++)
+			counts[sampler.getRandomInt((i + 0.5)/numSamples)]++;
+		double total = StatUtils.sum(weights);
+		for (int i=0; i<weights.length; i++) {
+			if (weights[i] == 0d)
+				assertEquals("Zero weight index "+i+" was sampled", 0, counts[i]);
+			else
+				assertEquals("Count mismatch for index "+i, numSamples*weights[i]/total, counts[i], 2d);
+		}
+	}
+
+	@Test
+	public void testZeroWeightEnds() {
+		double[] weights = { 0d, 0d, 3d, 0d, 5d, 0d, 0d };
+		FenwickTreeSampler sampler = new FenwickTreeSampler(weights);
+		assertEquals(2, sampler.getRandomInt(0d));
+		assertEquals(2, sampler.getRandomInt(0.3));
+		// exactly at the end of index 2, skips the zero weight at index 3
+		assertEquals(4, sampler.getRandomInt(3d/8d));
+		assertEquals(4, sampler.getRandomInt(Math.nextDown(1d)));
+		// past the end, shouldn't return a trailing zero weight
+		assertEquals(4, sampler.getRandomInt(1d));
+	}
+
+	@Test
+	public void testUpdates() {
+		Random r = new Random(12345l);
+		int num = 200;
+		double[] weights = buildWeights(r, num);
+		FenwickTreeSampler sampler = new FenwickTreeSampler(num);
+		for (int i=0; i<num; i++)
+			sampler.set(i, weights[i]);
+		checkMatchesLinear(sampler, weights, r);
+		// enough updates to trigger rebuilds of the tree, including setting weights to and from zero
+		for (int n=0; n<5*num; n++) {
+			int index = r.nextInt(num);
+			weights[index] = r.nextInt(3) == 0 ? 0d : 1 + r.nextInt(100);
+			sampler.set(index, weights[index]);
+			assertEquals(weights[index], sampler.getY(index), 0d);
+			if (n % 50 == 0)
+				checkMatchesLinear(sampler, weights, r);
+		}
+		checkMatchesLinear(sampler, weights, r);
+	}
+
+	@Test
+	public void testSinglePositiveWeight() {
+		FenwickTreeSampler sampler = new FenwickTreeSampler(10);
+		sampler.set(6, 0.25);
+		assertEquals(6, sampler.getRandomInt(0d));
+		assertEquals(6, sampler.getRandomInt(0.5));
+		assertEquals(6, sampler.getRandomInt(1d));
+		sampler.set(6, 0d);
+		sampler.set(0, 2d);
+		assertEquals(0, sampler.getRandomInt(0.999));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testAllZero() {
+		FenwickTreeSampler sampler = new FenwickTreeSampler(10);
+		sampler.getRandomInt(0.5);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeWeight() {
+		FenwickTreeSampler sampler = new FenwickTreeSampler(10);
+		sampler.set(3, -1d);
+	}
+
+}
@@ -0,0 +1,101 @@
+package scratch.UCERF3.erf.ETAS;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.StatUtils;
+import org.junit.Test;
+
+public class WalkerAliasSamplerTest {
+
+	private static double[] buildWeights(Random r, int num) {
+		double[] weights = new double[num];
+		for (int i=0; i<num; i++)
+			weights[i] = r.nextInt(4) == 0 ? 0d : r.nextDouble()*Math.pow(10, r.nextInt(6));
+		// zeros at either end, and one tiny weight
+		weights[0] = 0d;
+		weights[num-1] = 0d;
+		weights[num/2] = 1e-10;
+		return weights;
+	}
+
+	private static void checkDistribution(double[] weights) {
+		WalkerAliasSampler sampler = new WalkerAliasSampler(weights);
+		assertEquals(weights.length, sampler.size());
+		double total = StatUtils.sum(weights);
+		assertEquals(total, sampler.getSumOfWeights(), 1e-12*total);
+		// evenly spaced random values. each column of the alias table covers an equal share of them, as does the
+		// split between each column and its alias, so the expected counts are known to within a sample per column
+		int numSamples = 1000000;
+		int[] counts = new int[weights.length];
+		for (int i=0; i<numSamples; i++)
+			counts[sampler.getRandomInt((i + 0.5)/numSamples)]++;
+		for (int i=0; i<weights.length; i++) {
+			if (weights[i] == 0d)
+				assertEquals("Zero weight index "+i+" was sampled", 0, counts[i]);
+			else
+				// an index can be the alias of every column
+				assertEquals("Count mismatch for index "+i, numSamples*weights[i]/total, counts[i],
+						weights.length + 1d);
+		}
+	}
+
+	@Test
+	public void testDistribution() {
+		Random r = new Random(12345l);
+		for (int num : new int[] {3, 10, 50, 100})
+			checkDistribution(buildWeights(r, num));
+	}
+
+	@Test
+	public void testUniform() {
+		double[] weights = new double[16];
+		for (int i=0; i<weights.length; i++)
+			weights[i] = 0.5;
+		checkDistribution(weights);
+	}
+
+	@Test
+	public void testZeroWeights() {
+		Random r = new Random(12345l);
+		double[] weights = buildWeights(r, 100);
+		WalkerAliasSampler sampler = new WalkerAliasSampler(weights);
+		for (int i=0; i<100000; i++) {
+			int index = sampler.getRandomInt(r.nextDouble());
+			assertTrue("Zero weight index "+index+" returned", weights[index] > 0d);
+		}
+		// start and end of each column, and the end of the range
+		for (int i=0; i<weights.length; i++) {
+			assertTrue(weights[sampler.getRandomInt((double)i/weights.length)] > 0d);
+			assertTrue(weights[sampler.getRandomInt(Math.nextDown((i+1d)/weights.length))] > 0d);
+		}
+		assertTrue(weights[sampler.getRandomInt(1d)] > 0d);
+	}
+
+	@Test
+	public void testSinglePositiveWeight() {
+		double[] weights = new double[10];
+		weights[6] = 0.25;
+		WalkerAliasSampler sampler = new WalkerAliasSampler(weights);
+		for (int i=0; i<=100; i++)
+			assertEquals(6, sampler.getRandomInt(i/100d));
+		assertEquals(6, sampler.getRandomInt(Math.nextDown(1d)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testAllZero() {
+		new WalkerAliasSampler(new double[10]);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeWeight() {
+		new WalkerAliasSampler(new double[] { 1d, -1d, 2d });
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testEmpty() {
+		new WalkerAliasSampler(new double[0]);
+	}
+
+}
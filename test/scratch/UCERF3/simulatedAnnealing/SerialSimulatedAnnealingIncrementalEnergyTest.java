@@ -0,0 +1,224 @@
+package scratch.UCERF3.simulatedAnnealing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
+import scratch.UCERF3.simulatedAnnealing.params.CoolingScheduleType;
+import scratch.UCERF3.simulatedAnnealing.params.GenerationFunctionType;
+import scratch.UCERF3.simulatedAnnealing.params.NonnegativityConstraintType;
+
+/**
+ * Checks that incremental energies match a full recalculation, by running the same annealing sequence with and
+ * without incremental energy calculation and comparing the candidate energies of every iteration.
+ */
+public class SerialSimulatedAnnealingIncrementalEnergyTest {
+
+	private static final int nRow = 150;
+	private static final int nRowIneq = 40;
+	private static final int nCol = 200;
+	private static final long numIterations = 10000;
+	private static final double relativeSmoothnessWt = 0.1;
+
+	private static SparseDoubleMatrix2D A, A_ineq;
+	private static double[] d, d_ineq;
+	private static double[] initialState;
+	private static List<ConstraintRange> ranges;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		Random r = new Random(12345l);
+		A = buildRandomMatrix(r, nRow, nCol, 0.05);
+		A_ineq = buildRandomMatrix(r, nRowIneq, nCol, 0.1);
+		// data from a random target model, with rates small enough that the entropy stays positive
+		DenseDoubleMatrix1D target = new DenseDoubleMatrix1D(nCol);
+		for (int i=0; i<nCol; i++)
+			target.set(i, 1e-3*r.nextDouble());
+		d = new double[nRow];
+		for (int i=0; i<nRow; i++)
+			d[i] = A.viewRow(i).zDotProduct(target)*(0.8 + 0.4*r.nextDouble());
+		// some inequality rows start out satisfied, others violated
+		d_ineq = new double[nRowIneq];
+		for (int i=0; i<nRowIneq; i++)
+			d_ineq[i] = A_ineq.viewRow(i).zDotProduct(target)*(0.5 + r.nextDouble());
+		initialState = new double[nCol];
+		for (int i=0; i<nCol; i++)
+			initialState[i] = 1e-4 + 9e-4*r.nextDouble();
+
+		// leave some rows of each matrix outside of any range
+		ranges = new ArrayList<>();
+		ranges.add(new ConstraintRange("Equality 1", "Eq1", 0, 100, false));
+		ranges.add(new ConstraintRange("Equality 2", "Eq2", 100, 140, false));
+		ranges.add(new ConstraintRange("Inequality", "Ineq", 0, 30, true));
+	}
+
+	private static SparseDoubleMatrix2D buildRandomMatrix(Random r, int rows, int cols, double density) {
+		SparseDoubleMatrix2D mat = new SparseDoubleMatrix2D(rows, cols);
+		for (int row=0; row<rows; row++)
+			for (int col=0; col<cols; col++)
+				if (r.nextDouble() < density)
+					mat.set(row, col, r.nextDouble());
+		return mat;
+	}
+
+	/**
+	 * Records a copy of the candidate energy calculated for each iteration
+	 */
+	private static class RecordingSimulatedAnnealing extends SerialSimulatedAnnealing {
+
+		private boolean recording = false;
+		private List<double[]> energies = new ArrayList<>();
+
+		public RecordingSimulatedAnnealing(DoubleMatrix2D A, double[] d, double[] initialState,
+				DoubleMatrix2D A_ineq, double[] d_ineq) {
+			super(A, d, initialState, relativeSmoothnessWt, A_ineq, d_ineq);
+		}
+
+		@Override
+		protected double[] calculateEnergy(double[] solution, double[] misfit, double[] misfit_ineq,
+				double[] ret) {
+			super.calculateEnergy(solution, misfit, misfit_ineq, ret);
+			if (recording)
+				energies.add(ret.clone());
+			return ret;
+		}
+
+		@Override
+		protected double[] calculateEnergyIncremental(double[] prevE, double[] misfit, double[] misfit_undo,
+				double[] misfit_ineq, double[] misfit_ineq_undo, int col, double prevRate, double newRate,
+				double[] ret) {
+			super.calculateEnergyIncremental(prevE, misfit, misfit_undo, misfit_ineq, misfit_ineq_undo,
+					col, prevRate, newRate, ret);
+			energies.add(ret.clone());
+			return ret;
+		}
+	}
+
+	private static List<double[]> runFull(DoubleMatrix2D A, DoubleMatrix2D A_ineq,
+			NonnegativityConstraintType nonNeg) {
+		RecordingSimulatedAnnealing sa = new RecordingSimulatedAnnealing(A, d, initialState, A_ineq, d_ineq);
+		sa.setConstraintRanges(ranges);
+		sa.setCalculationParams(CoolingScheduleType.FAST_SA, nonNeg,
+				GenerationFunctionType.UNIFORM_NO_TEMP_DEPENDENCE);
+		sa.setRandom(new Random(54321l));
+		sa.setIncrementalEnergy(false);
+		// every full calculation from here on is the energy of a perturbed model
+		sa.recording = true;
+		sa.iterate(numIterations);
+		return sa.energies;
+	}
+
+	private static List<double[]> runIncremental(DoubleMatrix2D A, DoubleMatrix2D A_ineq,
+			NonnegativityConstraintType nonNeg) {
+		RecordingSimulatedAnnealing sa = new RecordingSimulatedAnnealing(A, d, initialState, A_ineq, d_ineq);
+		sa.setConstraintRanges(ranges);
+		sa.setCalculationParams(CoolingScheduleType.FAST_SA, nonNeg,
+				GenerationFunctionType.UNIFORM_NO_TEMP_DEPENDENCE);
+		sa.setRandom(new Random(54321l));
+		sa.setIncrementalEnergy(true);
+		// never correct the running sums, so that any drift would show up
+		sa.setIncrementalRecomputeInterval(Long.MAX_VALUE);
+		sa.iterate(numIterations);
+		return sa.energies;
+	}
+
+	private static void checkEnergies(DoubleMatrix2D A, DoubleMatrix2D A_ineq,
+			NonnegativityConstraintType nonNeg) {
+		List<double[]> expected = runFull(A, A_ineq, nonNeg);
+		List<double[]> actual = runIncremental(A, A_ineq, nonNeg);
+		assertEquals("iteration count mismatch", numIterations, expected.size());
+		assertEquals("iteration count mismatch", numIterations, actual.size());
+		// relative to the initial energy, as individual terms can be near zero
+		double tol = 1e-8*expected.get(0)[0];
+		for (int i=0; i<expected.size(); i++) {
+			double[] expectedE = expected.get(i);
+			double[] actualE = actual.get(i);
+			assertEquals(expectedE.length, actualE.length);
+			for (int j=0; j<expectedE.length; j++)
+				assertEquals("energy "+j+" mismatch at iteration "+(i+1), expectedE[j], actualE[j], tol);
+		}
+	}
+
+	@Test
+	public void testSparseCC() {
+		checkEnergies(A.getColumnCompressed(true), A_ineq.getColumnCompressed(true),
+				NonnegativityConstraintType.LIMIT_ZERO_RATES);
+	}
+
+	@Test
+	public void testSparseCCZeroRates() {
+		// rates will be set to zero, exercising the entropy terms at the boundary
+		checkEnergies(A.getColumnCompressed(true), A_ineq.getColumnCompressed(true),
+				NonnegativityConstraintType.TRY_ZERO_RATES_OFTEN);
+	}
+
+	@Test
+	public void testCompactCC() {
+		checkEnergies(CompactCCDoubleMatrix2D.build(A, true), CompactCCDoubleMatrix2D.build(A_ineq, false),
+				NonnegativityConstraintType.LIMIT_ZERO_RATES);
+	}
+
+	private static void checkBatched(DoubleMatrix2D A, DoubleMatrix2D A_ineq, NonnegativityConstraintType nonNeg) {
+		final List<double[]> tracked = new ArrayList<>();
+		SerialSimulatedAnnealing sa = new SerialSimulatedAnnealing(A, d, initialState, relativeSmoothnessWt,
+				A_ineq, d_ineq) {
+			@Override
+			protected double[] calculateEnergy(double[] solution, double[] misfit, double[] misfit_ineq,
+					double[] ret) {
+				// the best energy is recalculated in place at the end, keep the running value that it replaces
+				if (ret == getBestEnergy())
+					tracked.add(ret.clone());
+				return super.calculateEnergy(solution, misfit, misfit_ineq, ret);
+			}
+		};
+		sa.setConstraintRanges(ranges);
+		sa.setCalculationParams(CoolingScheduleType.FAST_SA, nonNeg,
+				GenerationFunctionType.UNIFORM_NO_TEMP_DEPENDENCE);
+		sa.setRandom(new Random(54321l));
+		sa.setBatchSize(8);
+		assertTrue(sa.isIncrementalEnergy());
+		sa.setIncrementalRecomputeInterval(Long.MAX_VALUE);
+		double initialE = sa.getBestEnergy()[0];
+		assertEquals(numIterations, sa.iterate(numIterations));
+		assertTrue(sa.getBestEnergy()[0] < initialE);
+
+		// best misfits were updated in place from each accepted proposal
+		double[] x = sa.getBestSolution();
+		for (int i=0; i<x.length; i++)
+			assertTrue(x[i] >= 0d);
+		DenseDoubleMatrix1D syn = new DenseDoubleMatrix1D(nRow);
+		A.zMult(new DenseDoubleMatrix1D(x), syn);
+		for (int i=0; i<nRow; i++)
+			assertEquals(syn.get(i) - d[i], sa.getBestMisfit()[i], 1e-12);
+		DenseDoubleMatrix1D synIneq = new DenseDoubleMatrix1D(nRowIneq);
+		A_ineq.zMult(new DenseDoubleMatrix1D(x), synIneq);
+		for (int i=0; i<nRowIneq; i++)
+			assertEquals(synIneq.get(i) - d_ineq[i], sa.getBestInequalityMisfit()[i], 1e-12);
+
+		// and the best energies from each proposal's deltas
+		assertEquals(1, tracked.size());
+		double[] expectedE = sa.getBestEnergy();
+		double tol = 1e-8*initialE;
+		for (int j=0; j<expectedE.length; j++)
+			assertEquals("energy "+j+" mismatch", expectedE[j], tracked.get(0)[j], tol);
+	}
+
+	@Test
+	public void testBatched() {
+		checkBatched(A.getColumnCompressed(true), A_ineq.getColumnCompressed(true),
+				NonnegativityConstraintType.LIMIT_ZERO_RATES);
+		checkBatched(A.getColumnCompressed(true), A_ineq.getColumnCompressed(true),
+				NonnegativityConstraintType.TRY_ZERO_RATES_OFTEN);
+		checkBatched(CompactCCDoubleMatrix2D.build(A, true), CompactCCDoubleMatrix2D.build(A_ineq, false),
+				NonnegativityConstraintType.PREVENT_ZERO_RATES);
+	}
+
+}
@@ -0,0 +1,138 @@
+package scratch.UCERF3.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.DoubleProperty;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
+import scratch.UCERF3.simulatedAnnealing.CompactCCDoubleMatrix2D;
+import scratch.UCERF3.simulatedAnnealing.MappedCCDoubleMatrix2D;
+
+public class MatrixIOCSCTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static final SparseDoubleMatrix2D mat = buildMatrix();
+
+	private static SparseDoubleMatrix2D buildMatrix() {
+		Random r = new Random(12345l);
+		SparseDoubleMatrix2D mat = new SparseDoubleMatrix2D(300, 500);
+		for (int col=0; col<mat.columns(); col++) {
+			if (col % 17 == 0)
+				// leave some columns empty
+				continue;
+			for (int row=0; row<mat.rows(); row++)
+				if (r.nextDouble() < 0.03)
+					mat.set(row, col, r.nextGaussian());
+		}
+		// make sure that the first and last cells and an odd number of values (for padding) are included
+		mat.set(0, 1, 1d);
+		mat.set(mat.rows()-1, mat.columns()-1, -1d);
+		if (mat.cardinality() % 2 == 0)
+			// column 0 is otherwise empty
+			mat.set(5, 0, 0.5);
+		return mat;
+	}
+
+	@Test
+	public void testLoadRoundTrip() throws IOException {
+		assertTrue(mat.cardinality() % 2 == 1);
+		File file = tmp.newFile("hash.csc");
+		MatrixIO.saveSparseCSC(mat, file);
+		DoubleMatrix2D loaded = MatrixIO.loadSparse(file);
+		assertTrue(loaded instanceof SparseCCDoubleMatrix2D);
+		assertEquals(mat, loaded);
+		assertEquals(mat.cardinality(), loaded.cardinality());
+
+		assertEquals(mat, MatrixIO.loadSparse(file, SparseDoubleMatrix2D.class));
+		// float precision values
+		DoubleMatrix2D compact = MatrixIO.loadSparse(file, CompactCCDoubleMatrix2D.class);
+		assertTrue(compact instanceof CompactCCDoubleMatrix2D);
+		assertTrue(new DoubleProperty(1e-6).equals(mat, compact));
+	}
+
+	@Test
+	public void testMappedRoundTrip() throws IOException {
+		File file = tmp.newFile("mapped.csc");
+		MatrixIO.saveSparseCSC(mat, file);
+		MappedCCDoubleMatrix2D mapped = MatrixIO.mapSparseCSC(file);
+		assertEquals(mat.cardinality(), mapped.getNumStored());
+		assertEquals(mat, mapped);
+		assertTrue(MatrixIO.loadSparse(file, MappedCCDoubleMatrix2D.class) instanceof MappedCCDoubleMatrix2D);
+
+		// columns are returned with increasing rows
+		int[] rowBuffer = new int[mapped.getMaxColumnNonZeros()];
+		double[] valBuffer = new double[rowBuffer.length];
+		int maxNonZeros = 0;
+		for (int col=0; col<mat.columns(); col++) {
+			int num = mapped.getColumn(col, rowBuffer, valBuffer);
+			assertEquals(num, mapped.getColumnNonZeros(col));
+			assertEquals(mat.viewColumn(col).cardinality(), num);
+			for (int i=0; i<num; i++) {
+				if (i > 0)
+					assertTrue(rowBuffer[i] > rowBuffer[i-1]);
+				assertEquals(mat.get(rowBuffer[i], col), valBuffer[i], 0d);
+			}
+			maxNonZeros = Integer.max(maxNonZeros, num);
+		}
+		assertEquals(maxNonZeros, mapped.getMaxColumnNonZeros());
+
+		// forward problem, as used in simulated annealing
+		Random r = new Random(12345l);
+		DenseDoubleMatrix1D x = new DenseDoubleMatrix1D(mat.columns());
+		for (int i=0; i<mat.columns(); i++)
+			x.set(i, r.nextDouble());
+		DenseDoubleMatrix1D expected = new DenseDoubleMatrix1D(mat.rows());
+		mat.zMult(x, expected);
+		DenseDoubleMatrix1D actual = new DenseDoubleMatrix1D(mat.rows());
+		mapped.zMult(x, actual);
+		for (int i=0; i<mat.rows(); i++)
+			assertEquals(expected.get(i), actual.get(i), 1e-12);
+	}
+
+	@Test
+	public void testColumnCompressedInputs() throws IOException {
+		// already column compressed inputs are written directly rather than through their nonzero lists
+		SparseCCDoubleMatrix2D cc = mat.getColumnCompressed(true);
+		File ccFile = tmp.newFile("cc.csc");
+		MatrixIO.saveSparseCSC(cc, ccFile);
+		MappedCCDoubleMatrix2D mapped = MatrixIO.mapSparseCSC(ccFile);
+		assertEquals(mat, mapped);
+
+		CompactCCDoubleMatrix2D compact = CompactCCDoubleMatrix2D.build(cc, true);
+		File compactFile = tmp.newFile("compact.csc");
+		MatrixIO.saveSparseCSC(compact, compactFile);
+		assertEquals(compact, MatrixIO.mapSparseCSC(compactFile));
+
+		// and a mapped matrix can be written back out
+		File remappedFile = tmp.newFile("remapped.csc");
+		MatrixIO.saveSparseCSC(mapped, remappedFile);
+		assertEquals(mat, MatrixIO.loadSparse(remappedFile));
+	}
+
+	@Test
+	public void testTripletFormatStillLoads() throws IOException {
+		File file = tmp.newFile("triplet.bin");
+		MatrixIO.saveSparse(mat, file);
+		assertEquals(mat, MatrixIO.loadSparse(file));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testMapNonCSC() throws IOException {
+		File file = tmp.newFile("not_csc.bin");
+		MatrixIO.saveSparse(mat, file);
+		MatrixIO.mapSparseCSC(file);
+	}
+
+}
@@ -0,0 +1,176 @@
+package scratch.UCERF3.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scratch.UCERF3.erf.ETAS.launcher.util.ETAS_ConvertCubeCachesToCSR;
+
+public class MatrixIOCSRTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	// section in cube and distance lists, with identical array lengths as in the ETAS cube caches
+	private static List<int[]> intList;
+	private static List<float[]> floatList;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		Random r = new Random(12345l);
+		intList = new ArrayList<>();
+		floatList = new ArrayList<>();
+		for (int c=0; c<1000; c++) {
+			// many cubes have no sections, including the first and last
+			int len = c == 0 || c == 999 || r.nextBoolean() ? 0 : 1 + r.nextInt(10);
+			int[] sects = new int[len];
+			float[] dists = new float[len];
+			for (int i=0; i<len; i++) {
+				sects[i] = r.nextInt(3000);
+				dists[i] = 20f*r.nextFloat();
+			}
+			intList.add(sects);
+			floatList.add(dists);
+		}
+	}
+
+	private static void checkIndexAccessors(CSRIntArraysList list) {
+		int start = 0;
+		for (int c=0; c<intList.size(); c++) {
+			int[] array = intList.get(c);
+			assertEquals(start, list.getStart(c));
+			assertEquals(array.length, list.getLength(c));
+			for (int i=0; i<array.length; i++) {
+				assertEquals(array[i], list.getValue(start+i));
+				assertEquals(array[i], list.get(c, i));
+			}
+			start += array.length;
+		}
+		assertEquals(start, list.getNumValues());
+	}
+
+	@Test
+	public void testIntRoundTrip() throws IOException {
+		File file = tmp.newFile("sectInCubeCache");
+		MatrixIO.intArraysListToCSRFile(intList, file);
+
+		CSRIntArraysList mapped = MatrixIO.mapIntArraysCSR(file);
+		assertArrayEquals(intList.toArray(), mapped.toArray());
+		checkIndexAccessors(mapped);
+
+		// format is detected when loading
+		List<int[]> loaded = MatrixIO.intArraysListFromFile(file);
+		assertTrue(loaded instanceof CSRIntArraysList);
+		assertArrayEquals(intList.toArray(), loaded.toArray());
+
+		// and can be read into the heap from a stream
+		List<int[]> streamed = MatrixIO.intArraysListFromInputStream(new FileInputStream(file));
+		assertTrue(streamed instanceof CSRIntArraysList);
+		checkIndexAccessors((CSRIntArraysList)streamed);
+	}
+
+	@Test
+	public void testFloatRoundTrip() throws IOException {
+		File file = tmp.newFile("sectDistForCubeCache");
+		MatrixIO.floatArraysListToCSRFile(floatList, file);
+
+		CSRFloatArraysList mapped = MatrixIO.mapFloatArraysCSR(file);
+		assertArrayEquals(floatList.toArray(), mapped.toArray());
+		int index = 0;
+		for (float[] array : floatList)
+			for (float val : array)
+				assertEquals(val, mapped.getValue(index++), 0f);
+		assertEquals(index, mapped.getNumValues());
+
+		List<float[]> loaded = MatrixIO.floatArraysListFromFile(file);
+		assertTrue(loaded instanceof CSRFloatArraysList);
+		assertArrayEquals(floatList.toArray(), loaded.toArray());
+
+		List<float[]> streamed = MatrixIO.floatArraysListFromInputStream(new FileInputStream(file));
+		assertTrue(streamed instanceof CSRFloatArraysList);
+		assertArrayEquals(floatList.toArray(), streamed.toArray());
+	}
+
+	@Test
+	public void testSharedOffsets() throws IOException {
+		File intFile = tmp.newFile("shared_ints");
+		MatrixIO.intArraysListToCSRFile(intList, intFile);
+		CSRIntArraysList ints = MatrixIO.mapIntArraysCSR(intFile);
+
+		// values indexed the same as the mapped int list, as done for the fraction of each section in each cube
+		float[] vals = new float[ints.getNumValues()];
+		for (int i=0; i<vals.length; i++)
+			vals[i] = ints.getValue(i)*0.5f;
+		CSRFloatArraysList floats = new CSRFloatArraysList(ints.getOffsets(), FloatBuffer.wrap(vals));
+		assertEquals(ints.size(), floats.size());
+		for (int c=0; c<intList.size(); c++) {
+			int[] expected = intList.get(c);
+			float[] actual = floats.get(c);
+			assertEquals(expected.length, actual.length);
+			for (int i=0; i<expected.length; i++)
+				assertEquals(expected[i]*0.5f, actual[i], 0f);
+		}
+	}
+
+	@Test
+	public void testLegacyFormats() throws IOException {
+		File intFile = tmp.newFile("legacy_ints");
+		MatrixIO.intArraysListToFile(intList, intFile);
+		List<int[]> ints = MatrixIO.intArraysListFromFile(intFile);
+		assertFalse(ints instanceof CSRIntArraysList);
+		assertArrayEquals(intList.toArray(), ints.toArray());
+		CSRIntArraysList csrInts = CSRIntArraysList.from(ints);
+		checkIndexAccessors(csrInts);
+		assertSame(csrInts, CSRIntArraysList.from(csrInts));
+
+		File floatFile = tmp.newFile("legacy_floats");
+		MatrixIO.floatArraysListToFile(floatList, floatFile);
+		List<float[]> floats = MatrixIO.floatArraysListFromFile(floatFile);
+		assertFalse(floats instanceof CSRFloatArraysList);
+		assertArrayEquals(floatList.toArray(), floats.toArray());
+		assertArrayEquals(floatList.toArray(), CSRFloatArraysList.from(floats).toArray());
+	}
+
+	@Test
+	public void testConvertCubeCaches() throws IOException {
+		File cacheDir = tmp.newFolder("cache");
+		File sectInCubeFile = new File(cacheDir, "sectInCubeCache");
+		File sectDistFile = new File(cacheDir, "sectDistForCubeCache");
+		MatrixIO.intArraysListToFile(intList, sectInCubeFile);
+		MatrixIO.floatArraysListToFile(floatList, sectDistFile);
+
+		ETAS_ConvertCubeCachesToCSR.main(new String[] { cacheDir.getAbsolutePath() });
+		List<int[]> ints = MatrixIO.intArraysListFromFile(sectInCubeFile);
+		assertTrue(ints instanceof CSRIntArraysList);
+		assertArrayEquals(intList.toArray(), ints.toArray());
+		List<float[]> floats = MatrixIO.floatArraysListFromFile(sectDistFile);
+		assertTrue(floats instanceof CSRFloatArraysList);
+		assertArrayEquals(floatList.toArray(), floats.toArray());
+
+		// already converted files are left alone
+		long modified = sectInCubeFile.lastModified();
+		ETAS_ConvertCubeCachesToCSR.main(new String[] { cacheDir.getAbsolutePath() });
+		assertEquals(modified, sectInCubeFile.lastModified());
+		assertArrayEquals(intList.toArray(), MatrixIO.intArraysListFromFile(sectInCubeFile).toArray());
+		assertArrayEquals(floatList.toArray(), MatrixIO.floatArraysListFromFile(sectDistFile).toArray());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testTypeMismatch() throws IOException {
+		File file = tmp.newFile("type_mismatch");
+		MatrixIO.intArraysListToCSRFile(intList, file);
+		MatrixIO.mapFloatArraysCSR(file);
+	}
+
+}